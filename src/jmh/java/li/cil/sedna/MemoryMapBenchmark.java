@@ -0,0 +1,82 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.memory.MappedMemoryRange;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.api.memory.MemoryRange;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import li.cil.sedna.memory.SortedMemoryMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares address lookups of {@link SimpleMemoryMap} and {@link SortedMemoryMap} in a layout like that of a
+ * board, with RAM and a number of small MMIO devices, such as VirtIO devices.
+ * <p>
+ * Run using {@code ./gradlew jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryMapBenchmark {
+    private static final long RAM_ADDRESS = 0x80000000L;
+    private static final int RAM_SIZE = 16 * 1024 * 1024;
+    private static final long DEVICE_ADDRESS = 0x10000000L;
+    private static final int DEVICE_SIZE = 0x1000;
+    private static final int ADDRESS_COUNT = 1 << 12;
+
+    @Param({"simple", "sorted"}) public String implementation;
+    @Param({"4", "16", "64"}) public int deviceCount;
+
+    private MemoryMap memoryMap;
+    private long[] mixedAddresses;
+    private long[] deviceAddresses;
+    private int index;
+
+    @Setup
+    public void setup() {
+        memoryMap = implementation.equals("simple") ? new SimpleMemoryMap() : new SortedMemoryMap();
+
+        // Add devices in reverse order, so the simple map does not happen to scan in address order.
+        for (int i = deviceCount - 1; i >= 0; i--) {
+            memoryMap.addDevice(DEVICE_ADDRESS + (long) i * 2 * DEVICE_SIZE, Memory.create(DEVICE_SIZE));
+        }
+        memoryMap.addDevice(RAM_ADDRESS, Memory.create(RAM_SIZE));
+
+        final Random random = new Random(deviceCount);
+        mixedAddresses = new long[ADDRESS_COUNT];
+        deviceAddresses = new long[ADDRESS_COUNT];
+        for (int i = 0; i < ADDRESS_COUNT; i++) {
+            deviceAddresses[i] = DEVICE_ADDRESS + (long) random.nextInt(deviceCount) * 2 * DEVICE_SIZE + random.nextInt(DEVICE_SIZE);
+            // Drivers access RAM between device register accesses, so the last-hit cache rarely helps.
+            mixedAddresses[i] = (i & 1) == 0 ? RAM_ADDRESS + random.nextInt(RAM_SIZE) : deviceAddresses[i];
+        }
+    }
+
+    @Benchmark
+    public MappedMemoryRange lookupRamAndDevices() {
+        return memoryMap.getMemoryRange(mixedAddresses[nextIndex()]);
+    }
+
+    @Benchmark
+    public MappedMemoryRange lookupDevices() {
+        return memoryMap.getMemoryRange(deviceAddresses[nextIndex()]);
+    }
+
+    @Benchmark
+    public Optional<MappedMemoryRange> lookupIntersection() {
+        // As done when adding devices, or when finding free ranges for them.
+        return memoryMap.getMemoryRange(MemoryRange.at(deviceAddresses[nextIndex()] & ~(DEVICE_SIZE - 1), DEVICE_SIZE));
+    }
+
+    private int nextIndex() {
+        index = (index + 1) & (ADDRESS_COUNT - 1);
+        return index;
+    }
+}
@@ -0,0 +1,94 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.ByteBufferMemory;
+import li.cil.sedna.device.memory.UnsafeMemory;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares block copies of the {@link PhysicalMemory} implementations with copying the same block one byte at a
+ * time, which is what {@link UnsafeMemory} used to do. Single values are included as a baseline.
+ * <p>
+ * Run using {@code ./gradlew jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhysicalMemoryBenchmark {
+    private static final int MEMORY_SIZE = 64 * 1024 * 1024;
+
+    @Param({"unsafe", "byteBuffer"}) public String implementation;
+    @Param({"heap", "direct"}) public String bufferType;
+    @Param({"64", "4096"}) public int blockSize;
+
+    private PhysicalMemory memory;
+    private ByteBuffer buffer;
+    private int offset;
+
+    @Setup
+    public void setup() {
+        memory = implementation.equals("unsafe") ? UnsafeMemory.create(MEMORY_SIZE) : new ByteBufferMemory(MEMORY_SIZE);
+        buffer = (bufferType.equals("heap") ? ByteBuffer.allocate(blockSize) : ByteBuffer.allocateDirect(blockSize))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        memory.close();
+    }
+
+    @Benchmark
+    public ByteBuffer loadBlock() throws MemoryAccessException {
+        buffer.clear();
+        memory.load(nextOffset(), buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer loadBlockPerByte() throws MemoryAccessException {
+        final int address = nextOffset();
+        buffer.clear();
+        for (int i = 0; i < blockSize; i++) {
+            buffer.put((byte) memory.load(address + i, Sizes.SIZE_8_LOG2));
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    public void storeBlock() throws MemoryAccessException {
+        buffer.clear();
+        memory.store(nextOffset(), buffer);
+    }
+
+    @Benchmark
+    public void storeBlockPerByte() throws MemoryAccessException {
+        final int address = nextOffset();
+        buffer.clear();
+        for (int i = 0; i < blockSize; i++) {
+            memory.store(address + i, buffer.get(), Sizes.SIZE_8_LOG2);
+        }
+    }
+
+    @Benchmark
+    public long loadWord() throws MemoryAccessException {
+        return memory.load(nextOffset(), Sizes.SIZE_64_LOG2);
+    }
+
+    private int nextOffset() {
+        // Walk through all of memory, so the working set does not fit into caches.
+        offset += blockSize;
+        if (offset > MEMORY_SIZE - blockSize) {
+            offset = 0;
+        }
+        return offset;
+    }
+}
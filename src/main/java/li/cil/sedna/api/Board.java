@@ -30,4 +30,27 @@ public interface Board extends Steppable, Resettable {
     void setBootArguments(String value);
 
     void setStandardOutputDevice(@Nullable MemoryMappedDevice device);
+
+    /**
+     * Checks whether all harts of this board wait for an interrupt and all its devices are idle.
+     * <p>
+     * Hosts running many boards may stop stepping idle boards until either {@link #getCyclesUntilWakeup()}
+     * cycles have passed, or the host itself changes the state of a device, e.g. by providing input to a
+     * serial console or completing an I/O request. Stepping an idle board is cheap, so to keep guest time
+     * in sync, a board may then be stepped by the cycles it was skipped for in one go.
+     *
+     * @return {@code true} if this board is idle; {@code false} otherwise.
+     */
+    @Override
+    boolean isIdle();
+
+    /**
+     * Returns the number of cycles after which an idle board will resume doing work on its own,
+     * typically because a timer interrupt becomes due.
+     *
+     * @return the number of cycles until this board wakes up, or {@link Long#MAX_VALUE} if it will
+     * only wake up due to an external event.
+     */
+    @Override
+    long getCyclesUntilWakeup();
 }
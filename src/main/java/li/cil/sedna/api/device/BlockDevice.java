@@ -4,6 +4,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public interface BlockDevice extends Closeable {
     /**
@@ -60,7 +61,125 @@ public interface BlockDevice extends Closeable {
         return getOutputStream(0);
     }
 
-    default void flush() {
+    /**
+     * Returns whether {@link #read(ByteBuffer, long)}, {@link #write(ByteBuffer, long)} and {@link #flush()}
+     * may be called concurrently from multiple threads.
+     * <p>
+     * When {@code false}, users must make sure to only ever access this device from one thread at a time.
+     *
+     * @return whether this device supports concurrent access.
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Reads data from the block device into the specified buffer, starting at the specified position.
+     * <p>
+     * Reads until the buffer is full or the end of the block device is reached. Unlike streams, this
+     * does not keep any state between calls, so implementations may support concurrent calls to this.
+     * The default implementation reads from a stream obtained via {@link #getInputStream(long)}.
+     *
+     * @param dst    the buffer to read data into.
+     * @param offset the position in the block device to start reading from.
+     * @return the number of bytes read.
+     * @throws IOException if reading from the device failed.
+     */
+    default int read(final ByteBuffer dst, final long offset) throws IOException {
+        final InputStream stream = getInputStream(offset);
+        final int start = dst.position();
+        if (dst.hasArray()) {
+            while (dst.hasRemaining()) {
+                final int count = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (count < 0) {
+                    break;
+                }
+                dst.position(dst.position() + count);
+            }
+        } else {
+            final byte[] buffer = new byte[Math.min(dst.remaining(), 8 * 1024)];
+            while (dst.hasRemaining()) {
+                final int count = stream.read(buffer, 0, Math.min(buffer.length, dst.remaining()));
+                if (count < 0) {
+                    break;
+                }
+                dst.put(buffer, 0, count);
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Writes data from the specified buffer to the block device, starting at the specified position.
+     * <p>
+     * Writes all remaining bytes in the buffer. Like {@link #read(ByteBuffer, long)}, this does not keep
+     * any state between calls. The default implementation writes to a stream obtained via
+     * {@link #getOutputStream(long)}.
+     *
+     * @param src    the buffer to write data from.
+     * @param offset the position in the block device to start writing at.
+     * @throws IOException if writing to the device failed.
+     */
+    default void write(final ByteBuffer src, final long offset) throws IOException {
+        final OutputStream stream = getOutputStream(offset);
+        if (src.hasArray()) {
+            stream.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            final byte[] buffer = new byte[Math.min(src.remaining(), 8 * 1024)];
+            while (src.hasRemaining()) {
+                final int count = Math.min(buffer.length, src.remaining());
+                src.get(buffer, 0, count);
+                stream.write(buffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Notifies the device that the specified range is no longer in use.
+     * <p>
+     * This is a hint, devices may use it to release storage backing the range. After this, reading
+     * from the range may return any data, so callers must not rely on its contents. The default
+     * implementation does nothing.
+     *
+     * @param offset the position in the block device the range starts at.
+     * @param length the length of the range in bytes.
+     * @throws IOException if discarding the range failed.
+     */
+    default void discard(final long offset, final long length) throws IOException {
+    }
+
+    /**
+     * Fills the specified range with zeroes.
+     * <p>
+     * Unlike {@link #discard(long, long)}, reading from the range afterwards must return zeroes. Devices
+     * may still release storage backing the range. The default implementation writes zeroes using
+     * {@link #write(ByteBuffer, long)}.
+     *
+     * @param offset the position in the block device the range starts at.
+     * @param length the length of the range in bytes.
+     * @throws IOException if writing to the device failed.
+     */
+    default void writeZeroes(final long offset, final long length) throws IOException {
+        final ByteBuffer zeroes = ByteBuffer.allocate((int) Math.min(length, 64 * 1024));
+        long position = offset;
+        long remaining = length;
+        while (remaining > 0) {
+            final int count = (int) Math.min(remaining, zeroes.capacity());
+            write(zeroes.clear().limit(count), position);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Makes sure all data written to the device so far has reached persistent storage.
+     * <p>
+     * The default implementation does nothing.
+     *
+     * @throws IOException if flushing the device failed.
+     */
+    default void flush() throws IOException {
     }
 
     @Override
@@ -0,0 +1,17 @@
+package li.cil.sedna.api.device;
+
+/**
+ * Drainable devices may process work asynchronously, outside of calls to {@link Steppable#step(int)}.
+ * <p>
+ * Work in progress is not part of the serialized state of such devices. Before serializing them, or
+ * taking a snapshot of the machine they are part of, {@link #drain()} must be called, so that all work
+ * has completed and its results are reflected in the device's state and the machine's memory.
+ */
+public interface Drainable extends Device {
+    /**
+     * Waits for all work in progress to complete and applies its results.
+     * <p>
+     * Like {@link Steppable#step(int)}, this must be called from the thread running the emulation.
+     */
+    void drain();
+}
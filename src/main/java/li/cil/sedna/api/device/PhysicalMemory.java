@@ -4,6 +4,7 @@ import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.memory.MappedMemoryRange;
 import li.cil.sedna.api.memory.MemoryAccessException;
 
+import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 
 /**
@@ -49,6 +50,68 @@ public abstract class PhysicalMemory implements MemoryMappedDevice, AutoCloseabl
         }
     }
 
+    /**
+     * Returns a buffer directly backed by the specified range of this physical memory, if supported.
+     * <p>
+     * Reads from and writes to the returned buffer are reads from and writes to this memory, without
+     * any copying. This allows devices to transfer data between guest memory and, for example, files
+     * directly. Writes to the buffer bypass dirty page tracking, callers must mark the written pages
+     * dirty themselves. The buffer must not be used after this memory has been closed.
+     *
+     * @param offset the offset in this memory the buffer should start at.
+     * @param length the length of the buffer.
+     * @return a buffer backed by this memory, or {@code null} if this memory does not support direct access.
+     * @throws MemoryAccessException if the range is not within this memory.
+     */
+    @Nullable
+    public ByteBuffer slice(final int offset, final int length) throws MemoryAccessException {
+        return null;
+    }
+
+    /**
+     * Fills a range of this physical memory with zeros.
+     *
+     * @param offset the offset in this memory to start clearing at.
+     * @param length the number of bytes to clear.
+     * @throws MemoryAccessException if the device fails clearing the data.
+     */
+    public void clear(int offset, final int length) throws MemoryAccessException {
+        final int end = offset + length;
+        while (offset < end && (offset & 0b111) != 0) {
+            store(offset++, 0, Sizes.SIZE_8_LOG2);
+        }
+        while (offset <= end - Long.BYTES) {
+            store(offset, 0, Sizes.SIZE_64_LOG2);
+            offset += Long.BYTES;
+        }
+        while (offset < end) {
+            store(offset++, 0, Sizes.SIZE_8_LOG2);
+        }
+    }
+
+    /**
+     * Atomically replaces a value in this physical memory, if it currently has the expected value.
+     * <p>
+     * This is used to implement atomic memory operations for multiple harts running in parallel.
+     * The default implementation is only atomic with respect to other calls to this method;
+     * implementations should override it to also be atomic with respect to regular stores.
+     *
+     * @param offset   the offset in this memory of the value to replace.
+     * @param expected the value expected to currently be stored at the offset.
+     * @param value    the value to store if the current value matches the expected one.
+     * @param sizeLog2 the size of the value, log2. See {@link Sizes}.
+     * @return {@code true} if the value was replaced; {@code false} otherwise.
+     * @throws MemoryAccessException if there was an error accessing the data in this memory.
+     */
+    public synchronized boolean compareAndSwap(final int offset, final long expected, final long value, final int sizeLog2) throws MemoryAccessException {
+        final long mask = sizeLog2 == Sizes.SIZE_64_LOG2 ? -1L : (1L << (8 << sizeLog2)) - 1;
+        if (((load(offset, sizeLog2) ^ expected) & mask) != 0) {
+            return false;
+        }
+        store(offset, value, sizeLog2);
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      */
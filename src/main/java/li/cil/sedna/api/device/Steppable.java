@@ -18,4 +18,33 @@ public interface Steppable extends Device {
      * @param cycles the number of cycles to advance the device by.
      */
     void step(final int cycles);
+
+    /**
+     * Checks whether this device currently has nothing to do.
+     * <p>
+     * An idle device will stay idle until either {@link #getCyclesUntilWakeup()} cycles have passed,
+     * or something outside the device, such as a CPU accessing it or the host providing input to it,
+     * changes its state. Stepping an idle device has no effect other than advancing its notion of time.
+     * <p>
+     * Hosts may use this to skip stepping idle devices. Devices that cannot tell default to never
+     * being idle.
+     *
+     * @return {@code true} if this device is idle; {@code false} otherwise.
+     */
+    default boolean isIdle() {
+        return false;
+    }
+
+    /**
+     * Returns the number of cycles after which an idle device will have work to do on its own,
+     * for example because a timer expires.
+     * <p>
+     * Only meaningful while the device is idle, see {@link #isIdle()}.
+     *
+     * @return the number of cycles until this device wakes up, or {@link Long#MAX_VALUE} if it will
+     * only wake up due to an external event.
+     */
+    default long getCyclesUntilWakeup() {
+        return Long.MAX_VALUE;
+    }
 }
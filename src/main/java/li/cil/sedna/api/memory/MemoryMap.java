@@ -4,12 +4,19 @@ import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.device.MemoryMappedDevice;
 
 import javax.annotation.Nullable;
+import java.util.BitSet;
 import java.util.Optional;
 
 /**
  * Represents a physical memory mapping of devices.
  */
 public interface MemoryMap {
+    /**
+     * The size of the pages dirty state is tracked for, see {@link #setDirty(MemoryRange, int)}.
+     */
+    int DIRTY_PAGE_SIZE_LOG2 = 12;
+    int DIRTY_PAGE_SIZE = 1 << DIRTY_PAGE_SIZE_LOG2;
+
     /**
      * Tries to add a new device to the mapping at the specified address.
      * <p>
@@ -67,12 +74,54 @@ public interface MemoryMap {
      * Marks a location in memory dirty.
      * <p>
      * This may be called by systems in parallel to performing actual store operations
-     * directly on {@link MemoryMappedDevice}s.
+     * directly on {@link MemoryMappedDevice}s. It may also be called from multiple threads
+     * in parallel.
+     * <p>
+     * Dirty state is tracked per page of {@link #DIRTY_PAGE_SIZE} bytes, relative to the
+     * start of the range, and only for devices that {@link MemoryMappedDevice#supportsFetch()}.
+     * Stores performed via {@link #store(long, long, int)} mark pages dirty automatically.
+     * <p>
+     * Implementations that do not track dirty state may ignore this.
      *
      * @param range  the memory range in which data has changed.
      * @param offset the offset inside that memory range at which data has changed.
      */
-    void setDirty(final MemoryRange range, final int offset);
+    default void setDirty(final MemoryRange range, final int offset) {
+    }
+
+    /**
+     * Checks if the page containing the specified offset in a device has been marked dirty.
+     * <p>
+     * Implementations that do not track dirty state report every page as dirty.
+     *
+     * @param device the device to check.
+     * @param offset the offset inside the device.
+     * @return {@code true} if the page is dirty; {@code false} otherwise.
+     */
+    default boolean isDirty(final MemoryMappedDevice device, final int offset) {
+        return true;
+    }
+
+    /**
+     * Returns the pages of a device that have been marked dirty and atomically marks them clean.
+     * <p>
+     * Indices in the returned set are page indices, i.e. offsets into the device shifted right
+     * by {@link #DIRTY_PAGE_SIZE_LOG2}. For devices not in this map or not tracked, the returned
+     * set is empty. Implementations that do not track dirty state return all pages of the device.
+     * <p>
+     * Note that systems caching direct references to devices may only mark pages dirty when
+     * filling their caches. Such caches have to be invalidated after calling this to not miss
+     * subsequent changes.
+     *
+     * @param device the device to get the dirty pages for.
+     * @return the pages that were dirty.
+     */
+    default BitSet getAndClearDirtyPages(final MemoryMappedDevice device) {
+        final int pageCount = (int) (((long) device.getLength() + DIRTY_PAGE_SIZE - 1) >>> DIRTY_PAGE_SIZE_LOG2);
+        final BitSet pages = new BitSet(pageCount);
+        pages.set(0, pageCount);
+        return pages;
+    }
 
     /**
      * Reads a value from the specified physical address.
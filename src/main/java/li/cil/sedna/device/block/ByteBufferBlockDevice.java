@@ -85,6 +85,40 @@ public class ByteBufferBlockDevice implements BlockDevice {
         return new ByteBufferOutputStream(data);
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, final long offset) {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        // Absolute bulk copy, does not touch the position of our buffer, so this is safe to
+        // use from multiple threads in parallel.
+        final int count = (int) Math.min(dst.remaining(), capacity - offset);
+        dst.put(dst.position(), data, (int) offset, count);
+        dst.position(dst.position() + count);
+        return count;
+    }
+
+    @Override
+    public void write(final ByteBuffer src, final long offset) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > capacity - src.remaining()) {
+            throw new IllegalArgumentException();
+        }
+
+        final int count = src.remaining();
+        data.put((int) offset, src, src.position(), count);
+        src.position(src.position() + count);
+    }
+
     private static final class FileByteBufferBlockDevice extends ByteBufferBlockDevice {
         private final FileChannel channel;
 
@@ -0,0 +1,566 @@
+package li.cil.sedna.device.block;
+
+import li.cil.sedna.api.device.BlockDevice;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write block device storing modified data in a file, on top of a read-only backing device.
+ * <p>
+ * Similar in spirit to qcow2, the overlay file is split into clusters, which are allocated on first write.
+ * Clusters are located using a two-level index: the L1 table, which is kept in memory, points to L2 tables,
+ * which live in the file and point to the data clusters. Clusters that were never written are read from
+ * the backing device. Unlike {@link SparseBlockDevice}, memory use does not grow with the amount of data
+ * written, and the overlay does not need to be serialized.
+ * <p>
+ * An overlay file may in turn be opened read-only and used as the backing device of another overlay, to
+ * build a chain of backing files. The backing device is not closed when this device is closed.
+ * <p>
+ * File layout, all values big-endian:
+ * <pre>
+ * cluster 0:      header
+ *                   u32 magic, "SCOW"
+ *                   u32 version
+ *                   u32 cluster_bits
+ *                   u32 l1_size, number of L1 entries
+ *                   u64 capacity, must match the backing device
+ *                   u64 l1_offset
+ *                   u64 free_list, offset of first free cluster, or zero
+ * l1_offset:      u64 l1[l1_size], offsets of L2 tables, or zero
+ * other clusters: L2 tables, u64 l2[cluster_size / 8], offsets of data clusters, zero or one
+ *                 data clusters
+ *                 free clusters, u64 offset of next free cluster, or zero
+ * </pre>
+ * An L2 entry of zero means the cluster is read from the backing device, an entry of one means the cluster
+ * reads as zeroes. Clusters released by {@link #discard(long, long)} and {@link #writeZeroes(long, long)} are
+ * put into the free list and reused by later writes.
+ */
+public final class CopyOnWriteBlockDevice implements BlockDevice {
+    private static final int MAGIC = 0x53434F57; // SCOW
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int HEADER_FREE_LIST_OFFSET = 32;
+
+    private static final int DEFAULT_CLUSTER_BITS = 16;
+    private static final int MIN_CLUSTER_BITS = 9;
+    private static final int MAX_CLUSTER_BITS = 21;
+
+    // L2 entries for clusters that do not have a data cluster. Data clusters are aligned, so these
+    // can never be confused with actual offsets.
+    private static final long UNALLOCATED = 0;
+    private static final long ZERO_CLUSTER = 1;
+
+    private final FileChannel channel;
+    private final BlockDevice backing;
+    private final boolean readonly;
+    private final long capacity;
+    private final int clusterBits;
+    private final int clusterSize;
+    private final int l2Bits;
+    private final long l1Offset;
+    private final long[] l1Table;
+    private long freeListHead;
+    private long fileSize;
+
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate(Long.BYTES);
+    @Nullable private ByteBuffer clusterBuffer;
+
+    /**
+     * Creates a new, empty overlay file on top of the specified backing device.
+     *
+     * @param path    the path to the file to create. Must not exist yet.
+     * @param backing the device to read clusters from that were not written yet.
+     * @return the new device.
+     * @throws IOException if the file could not be created.
+     */
+    public static CopyOnWriteBlockDevice create(final Path path, final BlockDevice backing) throws IOException {
+        return create(path, backing, DEFAULT_CLUSTER_BITS);
+    }
+
+    /**
+     * Creates a new, empty overlay file on top of the specified backing device.
+     *
+     * @param path        the path to the file to create. Must not exist yet.
+     * @param backing     the device to read clusters from that were not written yet.
+     * @param clusterBits the log2 of the cluster size, in the range of [9, 21].
+     * @return the new device.
+     * @throws IOException if the file could not be created.
+     */
+    public static CopyOnWriteBlockDevice create(final Path path, final BlockDevice backing, final int clusterBits) throws IOException {
+        if (clusterBits < MIN_CLUSTER_BITS || clusterBits > MAX_CLUSTER_BITS) {
+            throw new IllegalArgumentException("clusterBits must be in the range of [" + MIN_CLUSTER_BITS + ", " + MAX_CLUSTER_BITS + "]");
+        }
+
+        final long capacity = backing.getCapacity();
+        final int clusterSize = 1 << clusterBits;
+        final long l2Coverage = (long) clusterSize << (clusterBits - 3);
+        final long l1Size = (capacity + l2Coverage - 1) / l2Coverage;
+        if (l1Size > Integer.MAX_VALUE / Long.BYTES) {
+            throw new IllegalArgumentException("Backing BlockDevice is too large.");
+        }
+
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(clusterBits);
+            header.putInt((int) l1Size);
+            header.putLong(capacity);
+            header.putLong(clusterSize);
+            header.putLong(UNALLOCATED);
+            header.flip();
+            writeFully(channel, header, 0);
+
+            // Reserve the clusters for the L1 table, which starts out empty.
+            final long l1Bytes = l1Size * Long.BYTES;
+            final long fileSize = clusterSize + (l1Bytes + clusterSize - 1) / clusterSize * clusterSize;
+            writeFully(channel, ByteBuffer.allocate(1), fileSize - 1);
+
+            return new CopyOnWriteBlockDevice(channel, backing, false);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing overlay file on top of the specified backing device.
+     * <p>
+     * The backing device must be the same the overlay was created with, or a copy of it.
+     *
+     * @param path     the path to the overlay file.
+     * @param backing  the device to read clusters from that were not written yet.
+     * @param readonly whether to open the overlay read-only, e.g. to use it as a backing device.
+     * @return the opened device.
+     * @throws IOException if the file could not be opened or is not a valid overlay file.
+     */
+    public static CopyOnWriteBlockDevice open(final Path path, final BlockDevice backing, final boolean readonly) throws IOException {
+        final FileChannel channel = readonly
+            ? FileChannel.open(path, StandardOpenOption.READ)
+            : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new CopyOnWriteBlockDevice(channel, backing, readonly);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private CopyOnWriteBlockDevice(final FileChannel channel, final BlockDevice backing, final boolean readonly) throws IOException {
+        this.channel = channel;
+        this.backing = backing;
+        this.readonly = readonly;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a copy-on-write overlay file.");
+        }
+        if (header.getInt() != VERSION) {
+            throw new IOException("Unsupported overlay file version.");
+        }
+
+        clusterBits = header.getInt();
+        if (clusterBits < MIN_CLUSTER_BITS || clusterBits > MAX_CLUSTER_BITS) {
+            throw new IOException("Invalid cluster size.");
+        }
+        clusterSize = 1 << clusterBits;
+        l2Bits = clusterBits - 3;
+
+        final int l1Size = header.getInt();
+        capacity = header.getLong();
+        l1Offset = header.getLong();
+        freeListHead = header.getLong();
+
+        if (capacity != backing.getCapacity()) {
+            throw new IOException("Capacity of backing BlockDevice does not match overlay file.");
+        }
+        if (l1Size < 0 || ((long) l1Size << l2Bits) < (capacity + clusterSize - 1) >>> clusterBits) {
+            throw new IOException("Invalid L1 table size.");
+        }
+
+        l1Table = new long[l1Size];
+        final ByteBuffer l1Buffer = ByteBuffer.allocate(l1Size * Long.BYTES);
+        readFully(channel, l1Buffer, l1Offset);
+        l1Buffer.flip();
+        l1Buffer.asLongBuffer().get(l1Table);
+
+        fileSize = (channel.size() + clusterSize - 1) / clusterSize * clusterSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return readonly;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CopyOnWriteInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new CopyOnWriteOutputStream(offset);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, final long offset) throws IOException {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        final int count = (int) Math.min(dst.remaining(), capacity - offset);
+        final int limit = dst.limit();
+        try {
+            long position = offset;
+            int remaining = count;
+            while (remaining > 0) {
+                final long clusterIndex = position >>> clusterBits;
+                final int clusterOffset = (int) (position & (clusterSize - 1));
+                final int chunkSize = Math.min(remaining, clusterSize - clusterOffset);
+                dst.limit(dst.position() + chunkSize);
+
+                final long entry = getClusterEntry(clusterIndex);
+                if (entry == UNALLOCATED) {
+                    if (backing.read(dst, position) != chunkSize) {
+                        throw new IOException();
+                    }
+                } else if (entry == ZERO_CLUSTER) {
+                    fillZeroes(dst);
+                } else {
+                    readFully(channel, dst, entry + clusterOffset);
+                }
+
+                position += chunkSize;
+                remaining -= chunkSize;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+
+        return count;
+    }
+
+    @Override
+    public void write(final ByteBuffer src, final long offset) throws IOException {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > capacity - src.remaining()) {
+            throw new IllegalArgumentException();
+        }
+
+        final int limit = src.limit();
+        try {
+            long position = offset;
+            while (src.hasRemaining()) {
+                final long clusterIndex = position >>> clusterBits;
+                final int clusterOffset = (int) (position & (clusterSize - 1));
+                final int chunkSize = Math.min(src.remaining(), clusterSize - clusterOffset);
+                src.limit(src.position() + chunkSize);
+
+                final long entry = getClusterEntry(clusterIndex);
+                if (entry != UNALLOCATED && entry != ZERO_CLUSTER) {
+                    writeFully(channel, src, entry + clusterOffset);
+                } else {
+                    // Cluster not in overlay yet, build the full cluster, then write it to a new data cluster.
+                    final ByteBuffer cluster = getClusterBuffer();
+                    if (chunkSize < clusterSize) {
+                        if (entry == UNALLOCATED) {
+                            final long clusterStart = clusterIndex << clusterBits;
+                            cluster.limit((int) Math.min(clusterSize, capacity - clusterStart));
+                            backing.read(cluster, clusterStart);
+                            cluster.limit(clusterSize);
+                        }
+                        fillZeroes(cluster);
+                    }
+
+                    cluster.clear().position(clusterOffset);
+                    cluster.put(src);
+                    cluster.clear();
+
+                    final long dataOffset = allocateCluster();
+                    writeFully(channel, cluster, dataOffset);
+                    setClusterEntry(clusterIndex, dataOffset);
+                }
+
+                position += chunkSize;
+                src.limit(limit);
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    @Override
+    public void discard(final long offset, final long length) throws IOException {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        validateRange(offset, length);
+
+        // Contents of discarded ranges are undefined, so we can fall back to the backing device's data.
+        // Only release clusters completely contained in the range, partially discarded clusters stay as they are.
+        final long firstClusterIndex = (offset + clusterSize - 1) >>> clusterBits;
+        final long endClusterIndex = (offset + length) >>> clusterBits;
+        for (long clusterIndex = firstClusterIndex; clusterIndex < endClusterIndex; clusterIndex++) {
+            replaceClusterEntry(clusterIndex, UNALLOCATED);
+        }
+    }
+
+    @Override
+    public void writeZeroes(final long offset, final long length) throws IOException {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        validateRange(offset, length);
+
+        final long end = offset + length;
+        final long firstClusterIndex = (offset + clusterSize - 1) >>> clusterBits;
+        final long endClusterIndex = end >>> clusterBits;
+        if (firstClusterIndex >= endClusterIndex) {
+            BlockDevice.super.writeZeroes(offset, length);
+            return;
+        }
+
+        final long firstClusterOffset = firstClusterIndex << clusterBits;
+        if (offset < firstClusterOffset) {
+            BlockDevice.super.writeZeroes(offset, firstClusterOffset - offset);
+        }
+
+        for (long clusterIndex = firstClusterIndex; clusterIndex < endClusterIndex; clusterIndex++) {
+            replaceClusterEntry(clusterIndex, ZERO_CLUSTER);
+        }
+
+        final long endClusterOffset = endClusterIndex << clusterBits;
+        if (endClusterOffset < end) {
+            BlockDevice.super.writeZeroes(endClusterOffset, end - endClusterOffset);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    private void validateRange(final long offset, final long length) {
+        if (offset < 0 || length < 0 || offset > capacity - length) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private long getClusterEntry(final long clusterIndex) throws IOException {
+        final long l2Offset = l1Table[(int) (clusterIndex >>> l2Bits)];
+        if (l2Offset == UNALLOCATED) {
+            return UNALLOCATED;
+        }
+
+        return readLong(l2Offset + getL2Index(clusterIndex) * Long.BYTES);
+    }
+
+    private void setClusterEntry(final long clusterIndex, final long entry) throws IOException {
+        final int l1Index = (int) (clusterIndex >>> l2Bits);
+        long l2Offset = l1Table[l1Index];
+        if (l2Offset == UNALLOCATED) {
+            if (entry == UNALLOCATED) {
+                return;
+            }
+
+            // Write the empty table before linking it, so the L1 table never points to garbage.
+            l2Offset = allocateCluster();
+            final ByteBuffer table = getClusterBuffer();
+            fillZeroes(table);
+            table.flip();
+            writeFully(channel, table, l2Offset);
+
+            writeLong(l1Offset + (long) l1Index * Long.BYTES, l2Offset);
+            l1Table[l1Index] = l2Offset;
+        }
+
+        writeLong(l2Offset + getL2Index(clusterIndex) * Long.BYTES, entry);
+    }
+
+    private void replaceClusterEntry(final long clusterIndex, final long entry) throws IOException {
+        final long oldEntry = getClusterEntry(clusterIndex);
+        if (oldEntry == entry) {
+            return;
+        }
+
+        setClusterEntry(clusterIndex, entry);
+        if (oldEntry != UNALLOCATED && oldEntry != ZERO_CLUSTER) {
+            freeCluster(oldEntry);
+        }
+    }
+
+    private long getL2Index(final long clusterIndex) {
+        return clusterIndex & ((1L << l2Bits) - 1);
+    }
+
+    private long allocateCluster() throws IOException {
+        if (freeListHead != UNALLOCATED) {
+            final long offset = freeListHead;
+            setFreeListHead(readLong(offset));
+            return offset;
+        }
+
+        final long offset = fileSize;
+        fileSize += clusterSize;
+        return offset;
+    }
+
+    private void freeCluster(final long offset) throws IOException {
+        writeLong(offset, freeListHead);
+        setFreeListHead(offset);
+    }
+
+    private void setFreeListHead(final long offset) throws IOException {
+        writeLong(HEADER_FREE_LIST_OFFSET, offset);
+        freeListHead = offset;
+    }
+
+    private ByteBuffer getClusterBuffer() {
+        if (clusterBuffer == null) {
+            clusterBuffer = ByteBuffer.allocate(clusterSize);
+        }
+        return clusterBuffer.clear();
+    }
+
+    private long readLong(final long position) throws IOException {
+        entryBuffer.clear();
+        readFully(channel, entryBuffer, position);
+        return entryBuffer.getLong(0);
+    }
+
+    private void writeLong(final long position, final long value) throws IOException {
+        entryBuffer.clear();
+        entryBuffer.putLong(0, value);
+        writeFully(channel, entryBuffer, position);
+    }
+
+    private static void fillZeroes(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit(), (byte) 0);
+            buffer.position(buffer.limit());
+        } else {
+            while (buffer.remaining() >= Long.BYTES) {
+                buffer.putLong(0);
+            }
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0);
+            }
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer dst, final long position) throws IOException {
+        long offset = position;
+        while (dst.hasRemaining()) {
+            final int count = channel.read(dst, offset);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer src, final long position) throws IOException {
+        long offset = position;
+        while (src.hasRemaining()) {
+            offset += channel.write(src, offset);
+        }
+    }
+
+    private final class CopyOnWriteInputStream extends InputStream {
+        private long offset;
+
+        public CopyOnWriteInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            final int count = CopyOnWriteBlockDevice.this.read(ByteBuffer.wrap(b, off, len), offset);
+            if (count <= 0) {
+                return -1;
+            }
+
+            offset += count;
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, capacity - offset));
+            offset += skipped;
+            return skipped;
+        }
+    }
+
+    private final class CopyOnWriteOutputStream extends OutputStream {
+        private long offset;
+
+        public CopyOnWriteOutputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            try {
+                CopyOnWriteBlockDevice.this.write(ByteBuffer.wrap(b, off, len), offset);
+            } catch (final IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+            offset += len;
+        }
+    }
+}
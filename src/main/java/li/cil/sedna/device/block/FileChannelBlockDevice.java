@@ -0,0 +1,191 @@
+package li.cil.sedna.device.block;
+
+import li.cil.sedna.api.device.BlockDevice;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block device backed by a file, accessed using positional reads and writes.
+ * <p>
+ * Unlike {@link ByteBufferBlockDevice#createFromFile(File, boolean)}, this does not map the file
+ * into memory. Since positional access does not change the channel's position, concurrent calls
+ * to {@link #read(ByteBuffer, long)} and {@link #write(ByteBuffer, long)} are safe.
+ */
+public final class FileChannelBlockDevice implements BlockDevice {
+    private final FileChannel channel;
+    private final boolean readonly;
+    private final long capacity;
+
+    public static FileChannelBlockDevice create(final File file, final boolean readonly) throws IOException {
+        return create(file.toPath(), readonly);
+    }
+
+    public static FileChannelBlockDevice create(final Path path, final boolean readonly) throws IOException {
+        final FileChannel channel = readonly
+            ? FileChannel.open(path, StandardOpenOption.READ)
+            : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new FileChannelBlockDevice(channel, channel.size(), readonly);
+    }
+
+    public static FileChannelBlockDevice wrap(final FileChannel channel, final long length, final boolean readonly) {
+        return new FileChannelBlockDevice(channel, length, readonly);
+    }
+
+    private FileChannelBlockDevice(final FileChannel channel, final long capacity, final boolean readonly) {
+        this.channel = channel;
+        this.capacity = capacity;
+        this.readonly = readonly;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return readonly;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new FileChannelInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        return new FileChannelOutputStream(offset);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, final long offset) throws IOException {
+        if (offset < 0 || offset > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        final int limit = dst.limit();
+        dst.limit(dst.position() + (int) Math.min(dst.remaining(), capacity - offset));
+
+        int totalCount = 0;
+        try {
+            while (dst.hasRemaining()) {
+                final int count = channel.read(dst, offset + totalCount);
+                if (count < 0) {
+                    break;
+                }
+                totalCount += count;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+
+        return totalCount;
+    }
+
+    @Override
+    public void write(final ByteBuffer src, final long offset) throws IOException {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (offset < 0 || offset + src.remaining() > capacity) {
+            throw new IllegalArgumentException();
+        }
+
+        long position = offset;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    private final class FileChannelInputStream extends InputStream {
+        private long offset;
+
+        public FileChannelInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            final int count = FileChannelBlockDevice.this.read(ByteBuffer.wrap(b, off, len), offset);
+            if (count <= 0) {
+                return -1;
+            }
+
+            offset += count;
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, capacity - offset));
+            offset += skipped;
+            return skipped;
+        }
+    }
+
+    private final class FileChannelOutputStream extends OutputStream {
+        private long offset;
+
+        public FileChannelOutputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            try {
+                FileChannelBlockDevice.this.write(ByteBuffer.wrap(b, off, len), offset);
+            } catch (final IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+            offset += len;
+        }
+    }
+}
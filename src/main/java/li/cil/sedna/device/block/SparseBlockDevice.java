@@ -8,10 +8,15 @@ import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 public final class SparseBlockDevice implements BlockDevice {
     private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
 
+    // Stored for blocks that have been filled with zeroes, so they do not need to hold on to any data.
+    // Compare by length, not identity, since deserialized maps will contain different instances.
+    private static final byte[] ZERO_BLOCK = new byte[0];
+
     private final BlockDevice lower;
     private final int blockSize;
     private final boolean readonly;
@@ -66,6 +71,64 @@ public final class SparseBlockDevice implements BlockDevice {
         return new SparseOutputStream(offset);
     }
 
+    @Override
+    public void discard(final long offset, final long length) {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        validateRange(offset, length);
+
+        // Contents of discarded ranges are undefined, so we can fall back to the lower device's data.
+        // Only drop blocks completely contained in the range, partially discarded blocks stay as they are.
+        final int firstBlockIndex = (int) ((offset + blockSize - 1) / blockSize);
+        final int endBlockIndex = (int) ((offset + length) / blockSize);
+        for (int blockIndex = firstBlockIndex; blockIndex < endBlockIndex; blockIndex++) {
+            blocks.remove(blockIndex);
+        }
+    }
+
+    @Override
+    public void writeZeroes(final long offset, final long length) throws IOException {
+        if (isReadonly()) {
+            throw new UnsupportedOperationException();
+        }
+
+        validateRange(offset, length);
+
+        final long end = offset + length;
+        final int firstBlockIndex = (int) ((offset + blockSize - 1) / blockSize);
+        final int endBlockIndex = (int) (end / blockSize);
+        if (firstBlockIndex >= endBlockIndex) {
+            BlockDevice.super.writeZeroes(offset, length);
+            return;
+        }
+
+        final long firstBlockOffset = (long) firstBlockIndex * blockSize;
+        if (offset < firstBlockOffset) {
+            BlockDevice.super.writeZeroes(offset, firstBlockOffset - offset);
+        }
+
+        for (int blockIndex = firstBlockIndex; blockIndex < endBlockIndex; blockIndex++) {
+            blocks.put(blockIndex, ZERO_BLOCK);
+        }
+
+        final long endBlockOffset = (long) endBlockIndex * blockSize;
+        if (endBlockOffset < end) {
+            BlockDevice.super.writeZeroes(endBlockOffset, end - endBlockOffset);
+        }
+    }
+
+    private void validateRange(final long offset, final long length) {
+        if (offset < 0 || length < 0 || offset > getCapacity() - length) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private static boolean isZeroBlock(final byte[] block) {
+        return block.length == 0;
+    }
+
     private int offsetToBlockIndex(final long offset) {
         return (int) (offset / blockSize);
     }
@@ -103,7 +166,7 @@ public final class SparseBlockDevice implements BlockDevice {
                 final int startOffset = blockIndexToOffset(blockIndex);
                 final int localOffset = (int) (offset - startOffset);
                 if (lowerStream.skip(1) != 1) throw new IOException();
-                readValue = block[localOffset];
+                readValue = isZeroBlock(block) ? 0 : block[localOffset];
             } else {
                 readValue = lowerStream.read();
             }
@@ -127,7 +190,11 @@ public final class SparseBlockDevice implements BlockDevice {
                 final int localOffset = (int) (offset - startOffset);
                 final int blockCount = blockSize - localOffset;
                 readBytes = (int) lowerStream.skip(Math.min(blockCount, len));
-                System.arraycopy(block, localOffset, b, off, readBytes);
+                if (isZeroBlock(block)) {
+                    Arrays.fill(b, off, off + readBytes, (byte) 0);
+                } else {
+                    System.arraycopy(block, localOffset, b, off, readBytes);
+                }
             } else {
                 readBytes = lowerStream.read(b, off, len);
             }
@@ -194,6 +261,10 @@ public final class SparseBlockDevice implements BlockDevice {
         private byte[] getShadowBlock(final int blockIndex) throws IOException {
             byte[] block = blocks.get(blockIndex);
             if (block != null) {
+                if (isZeroBlock(block)) {
+                    block = new byte[blockSize];
+                    blocks.put(blockIndex, block);
+                }
                 return block;
             }
 
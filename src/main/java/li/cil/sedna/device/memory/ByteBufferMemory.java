@@ -5,6 +5,8 @@ import li.cil.sedna.api.device.PhysicalMemory;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.utils.DirectByteBufferUtils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -12,6 +14,10 @@ import java.nio.ByteOrder;
  * Simple physical memory implementation backed by a {@link ByteBuffer}.
  */
 public class ByteBufferMemory extends PhysicalMemory {
+    private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final byte[] ZEROS = new byte[4096];
+
     private final ByteBuffer data;
     private final int size;
 
@@ -68,6 +74,22 @@ public class ByteBufferMemory extends PhysicalMemory {
         }
     }
 
+    @Override
+    public boolean compareAndSwap(final int offset, final long expected, final long value, final int sizeLog2) throws MemoryAccessException {
+        // Atomic access via view handles is only supported for aligned values in direct buffers.
+        if (!data.isDirect() || (offset & ((1 << sizeLog2) - 1)) != 0) {
+            return super.compareAndSwap(offset, expected, value, sizeLog2);
+        }
+        if (offset < 0 || offset > getLength() - (1 << sizeLog2)) {
+            throw new MemoryAccessException();
+        }
+        return switch (sizeLog2) {
+            case Sizes.SIZE_32_LOG2 -> INT_VIEW.compareAndSet(data, offset, (int) expected, (int) value);
+            case Sizes.SIZE_64_LOG2 -> LONG_VIEW.compareAndSet(data, offset, expected, value);
+            default -> super.compareAndSwap(offset, expected, value, sizeLog2);
+        };
+    }
+
     @Override
     public void load(final int offset, final ByteBuffer dst) throws MemoryAccessException {
         if (offset < 0 || offset > getLength() - dst.remaining()) {
@@ -89,4 +111,22 @@ public class ByteBufferMemory extends PhysicalMemory {
         slice.limit(offset + src.remaining());
         slice.put(src);
     }
+
+    @Override
+    public ByteBuffer slice(final int offset, final int length) throws MemoryAccessException {
+        if (offset < 0 || length < 0 || offset > getLength() - length) {
+            throw new MemoryAccessException();
+        }
+        return data.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void clear(final int offset, final int length) throws MemoryAccessException {
+        if (offset < 0 || length < 0 || offset > getLength() - length) {
+            throw new MemoryAccessException();
+        }
+        for (int i = 0; i < length; i += ZEROS.length) {
+            data.put(offset + i, ZEROS, 0, Math.min(ZEROS.length, length - i));
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package li.cil.sedna.device.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Physical memory initialized from a base image file, using a private copy-on-write mapping.
+ * <p>
+ * The image file is mapped read-only using {@link FileChannel.MapMode#PRIVATE}, so no data is copied
+ * when creating the memory. The operating system loads pages of the image lazily and shares them between
+ * all processes and memories mapping the same image, until they are written to. Written pages are copied
+ * and only visible to this memory; the image file itself is never modified.
+ * <p>
+ * This makes it cheap to start many machines from the same memory image, e.g. one written from a
+ * machine that has finished booting.
+ */
+public final class CopyOnWriteMemory extends ByteBufferMemory {
+    /**
+     * Creates a new memory backed by the specified base image.
+     *
+     * @param size  the size of the memory. Must not be larger than the image.
+     * @param image the base image to map.
+     * @throws IOException              if the image cannot be opened or mapped.
+     * @throws IllegalArgumentException if the image is smaller than the requested size.
+     */
+    public CopyOnWriteMemory(final int size, final File image) throws IOException {
+        this(size, image.toPath());
+    }
+
+    /**
+     * Creates a new memory backed by the specified base image.
+     *
+     * @param size  the size of the memory. Must not be larger than the image.
+     * @param image the base image to map.
+     * @throws IOException              if the image cannot be opened or mapped.
+     * @throws IllegalArgumentException if the image is smaller than the requested size.
+     */
+    public CopyOnWriteMemory(final int size, final Path image) throws IOException {
+        super(size, map(size, image));
+    }
+
+    private static MappedByteBuffer map(final int size, final Path image) throws IOException {
+        // The mapping stays valid after the channel is closed.
+        try (final FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            // Private mappings are never extended to the requested size, and accessing pages past
+            // the end of the file crashes the VM, so make sure the image is large enough.
+            if (channel.size() < Integer.toUnsignedLong(size)) {
+                throw new IllegalArgumentException("image is smaller than memory size");
+            }
+
+            return channel.map(FileChannel.MapMode.PRIVATE, 0, size);
+        }
+    }
+}
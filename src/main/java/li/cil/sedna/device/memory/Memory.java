@@ -3,8 +3,16 @@ package li.cil.sedna.device.memory;
 import li.cil.sedna.api.device.PhysicalMemory;
 
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
 
 public final class Memory {
+    /**
+     * The maximum size of a single memory device created by {@link #createSegmented(long)}.
+     */
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
     public static PhysicalMemory create(final int sizeInBytes) {
         if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
             return new ByteBufferMemory(sizeInBytes);
@@ -12,4 +20,42 @@ public final class Memory {
             return UnsafeMemory.create(sizeInBytes);
         }
     }
+
+    /**
+     * Creates physical memory of the specified size, split into devices of at most {@link #MAX_SEGMENT_SIZE} bytes.
+     * <p>
+     * Offsets into a single {@link PhysicalMemory} are {@code int}s, limiting its size to less than 2 GiB.
+     * Adding the returned devices to a memory map back to back at an address aligned to {@link #MAX_SEGMENT_SIZE}
+     * provides guests with a continuous range of memory larger than that.
+     *
+     * @param sizeInBytes the total size of the memory.
+     * @return the memory devices, in order.
+     */
+    public static List<PhysicalMemory> createSegmented(final long sizeInBytes) {
+        return createSegmented(sizeInBytes, Memory::create);
+    }
+
+    /**
+     * Creates physical memory of the specified size, split into devices of at most {@link #MAX_SEGMENT_SIZE} bytes
+     * created using the specified factory.
+     * <p>
+     * This allows backing segments with something other than the default memory implementation, e.g. with
+     * memory mapped files.
+     *
+     * @param sizeInBytes    the total size of the memory.
+     * @param segmentFactory creates a single device of the size passed to it.
+     * @return the memory devices, in order.
+     * @see #createSegmented(long)
+     */
+    public static List<PhysicalMemory> createSegmented(final long sizeInBytes, final IntFunction<PhysicalMemory> segmentFactory) {
+        if (sizeInBytes <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+
+        final ArrayList<PhysicalMemory> segments = new ArrayList<>();
+        for (long remaining = sizeInBytes; remaining > 0; remaining -= MAX_SEGMENT_SIZE) {
+            segments.add(segmentFactory.apply((int) Math.min(remaining, MAX_SEGMENT_SIZE)));
+        }
+        return segments;
+    }
 }
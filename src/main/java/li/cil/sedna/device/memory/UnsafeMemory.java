@@ -88,22 +88,55 @@ public final class UnsafeMemory extends PhysicalMemory {
     }
 
     @Override
-    public void load(int offset, final ByteBuffer dst) throws MemoryAccessException {
-        if (offset < 0 || offset > getLength() - dst.remaining()) {
+    public boolean compareAndSwap(final int offset, final long expected, final long value, final int sizeLog2) throws MemoryAccessException {
+        if ((offset & ((1 << sizeLog2) - 1)) != 0) {
+            return super.compareAndSwap(offset, expected, value, sizeLog2);
+        }
+        if (offset < 0 || offset > getLength() - (1 << sizeLog2)) {
             throw new MemoryAccessException();
         }
-        while (dst.hasRemaining()) {
-            dst.put(UNSAFE.getByte(address + offset++));
+        return switch (sizeLog2) {
+            case Sizes.SIZE_32_LOG2 -> UNSAFE.compareAndSwapInt(null, address + offset, (int) expected, (int) value);
+            case Sizes.SIZE_64_LOG2 -> UNSAFE.compareAndSwapLong(null, address + offset, expected, value);
+            default -> super.compareAndSwap(offset, expected, value, sizeLog2);
+        };
+    }
+
+    @Override
+    public void load(final int offset, final ByteBuffer dst) throws MemoryAccessException {
+        if (offset < 0 || offset > getLength() - dst.remaining()) {
+            throw new MemoryAccessException();
         }
+        // Absolute bulk copy, does not touch the position of our buffer, so this is safe to
+        // use from multiple threads in parallel.
+        final int length = dst.remaining();
+        dst.put(dst.position(), buffer, offset, length);
+        dst.position(dst.position() + length);
     }
 
     @Override
-    public void store(int offset, final ByteBuffer src) throws MemoryAccessException {
+    public void store(final int offset, final ByteBuffer src) throws MemoryAccessException {
         if (offset < 0 || offset > getLength() - src.remaining()) {
             throw new MemoryAccessException();
         }
-        while (src.hasRemaining()) {
-            UNSAFE.putByte(address + offset++, src.get());
+        final int length = src.remaining();
+        buffer.put(offset, src, src.position(), length);
+        src.position(src.position() + length);
+    }
+
+    @Override
+    public ByteBuffer slice(final int offset, final int length) throws MemoryAccessException {
+        if (offset < 0 || length < 0 || offset > getLength() - length) {
+            throw new MemoryAccessException();
+        }
+        return buffer.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void clear(final int offset, final int length) throws MemoryAccessException {
+        if (offset < 0 || length < 0 || offset > getLength() - length) {
+            throw new MemoryAccessException();
         }
+        UNSAFE.setMemory(address + offset, length, (byte) 0);
     }
 }
@@ -232,6 +232,11 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
         interrupt.lowerInterrupt();
     }
 
+    @Override
+    public boolean isIdle() {
+        return !interruptUpdatePending;
+    }
+
     @Override
     public void step(final int cycles) {
         if (interruptUpdatePending) {
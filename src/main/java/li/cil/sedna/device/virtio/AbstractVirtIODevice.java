@@ -13,6 +13,7 @@ import li.cil.sedna.memory.MemoryMaps;
 import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 import static java.util.Collections.singletonList;
@@ -1113,11 +1114,14 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
                     final int skip = Math.min(count, remaining);
                     count -= skip;
                     if (readableBytes() > 0) {
-                        assert readableBytes() <= skip;
+                        assert skip <= readableBytes();
                         readByteCount += skip;
                     } else {
-                        assert writableBytes() <= skip;
+                        assert skip <= writableBytes();
                         writtenByteCount += skip;
+
+                        // Skipped writable bytes may have been written to directly, see getBuffers.
+                        MemoryMaps.setDirty(memoryMap, address + position, skip);
                     }
                     position += skip;
                     if (position >= length) {
@@ -1126,6 +1130,46 @@ public abstract class AbstractVirtIODevice implements MemoryMappedDevice, Interr
                 }
             }
 
+            @Nullable
+            @Override
+            public ByteBuffer[] getBuffers(int count) throws VirtIODeviceException, MemoryAccessException {
+                if (isUsed) {
+                    throw new IllegalStateException();
+                }
+                if (count > (readableBytes() > 0 ? readableBytes() : writableBytes())) {
+                    throw new IndexOutOfBoundsException();
+                }
+
+                // Walk the chain from the current position without advancing it.
+                final ArrayList<ByteBuffer> buffers = new ArrayList<>();
+                short descIdx = this.descIdx;
+                long address = this.address + position;
+                int length = this.length - position;
+                int chainLength = this.chainLength;
+                while (count > 0) {
+                    final int segmentLength = Math.min(count, length);
+                    if (!MemoryMaps.slice(memoryMap, address, segmentLength, buffers)) {
+                        return null;
+                    }
+                    count -= segmentLength;
+
+                    if (count > 0) {
+                        // Same as in nextDescriptor, the driver may have changed the chain since we validated it.
+                        if ((getDescFlags(descIdx) & VIRTQ_DESC_F_NEXT) == 0 || chainLength >= VIRTIO_MMIO_QUEUE_NUM_MAX) {
+                            error(); // Set error state immediately in case this gets caught by implementation code.
+                            throw new VirtIODeviceException();
+                        }
+
+                        descIdx = getDescNext(descIdx);
+                        address = getDescAddress(descIdx);
+                        length = getDescLength(descIdx);
+                        chainLength++;
+                    }
+                }
+
+                return buffers.toArray(new ByteBuffer[0]);
+            }
+
             @Override
             public byte get() throws VirtIODeviceException, MemoryAccessException {
                 if (isUsed) {
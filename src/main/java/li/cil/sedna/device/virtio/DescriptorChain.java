@@ -1,7 +1,9 @@
 package li.cil.sedna.device.virtio;
 
+import li.cil.sedna.api.device.PhysicalMemory;
 import li.cil.sedna.api.memory.MemoryAccessException;
 
+import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -81,6 +83,32 @@ public interface DescriptorChain {
      */
     void skip(final int count) throws VirtIODeviceException, MemoryAccessException;
 
+    /**
+     * Returns buffers directly backed by guest memory for the next {@code count} bytes in this descriptor chain.
+     * <p>
+     * If {@link #readableBytes()} is non-zero, the buffers cover readable bytes, otherwise they cover
+     * writable bytes. The returned buffers form a scatter/gather list, i.e. they are in chain order and
+     * may be passed to methods such as {@link java.nio.channels.ScatteringByteChannel#read(ByteBuffer[])}.
+     * <p>
+     * This does not advance the descriptor chain. Once done reading from or writing to the buffers, call
+     * {@link #skip(int)} with the same {@code count}. Skipping writable bytes marks the memory they are
+     * in dirty. The buffers must not be used after the chain has been advanced past them.
+     * <p>
+     * This is only supported if the whole range is in {@link PhysicalMemory} supporting direct access,
+     * see {@link PhysicalMemory#slice(int, int)}. Otherwise, {@code null} is returned and data must be
+     * transferred using {@link #get(ByteBuffer)} and {@link #put(ByteBuffer)} instead.
+     *
+     * @param count the number of bytes to get buffers for.
+     * @return buffers covering the next {@code count} bytes, or {@code null} if not supported for this range.
+     * @throws VirtIODeviceException     when the device enters an error state.
+     * @throws MemoryAccessException     when an exception is thrown while accessing physical memory.
+     * @throws IndexOutOfBoundsException if {@link #readableBytes()} is non-zero and smaller than {@code count},
+     *                                   or if it is zero and {@link #writableBytes()} is smaller than {@code count}.
+     * @throws IllegalStateException     when called after {@link #use()} has been called.
+     */
+    @Nullable
+    ByteBuffer[] getBuffers(final int count) throws VirtIODeviceException, MemoryAccessException;
+
     /**
      * Reads a single byte from the descriptor chain.
      *
@@ -2,20 +2,22 @@ package li.cil.sedna.device.virtio;
 
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.device.BlockDevice;
+import li.cil.sedna.api.device.Drainable;
 import li.cil.sedna.api.device.Steppable;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.device.block.NullBlockDevice;
 
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ReadOnlyBufferException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
-public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Steppable, Closeable {
+public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Steppable, Drainable, Closeable {
     private static final int VIRTIO_BLK_SECTOR_SIZE = 512;
 
     /**
@@ -50,6 +52,10 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
      * Device can toggle its cache between writeback and writethrough modes.
      */
     private static final int VIRTIO_BLK_F_CONFIG_WCE = 1 << 11;
+    /**
+     * Device supports multiqueue.
+     */
+    private static final int VIRTIO_BLK_F_MQ = 1 << 12;
     /**
      * Device can support discard command, maximum discard sectors size in {@code max_discard_sectors} and
      * maximum discard segment number in {@code max_discard_seg}.
@@ -74,6 +80,7 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
     private static final int VIRTIO_BLK_CFG_TOPOLOGY_MIN_IO_SIZE_OFFSET = 26;
     private static final int VIRTIO_BLK_CFG_TOPOLOGY_OPT_IO_SIZE_OFFSET = 28;
     private static final int VIRTIO_BLK_CFG_WRITEBACK_OFFSET = 32;
+    private static final int VIRTIO_BLK_CFG_NUM_QUEUES_OFFSET = 34;
     private static final int VIRTIO_BLK_CFG_MAX_DISCARD_SECTORS_OFFSET = 36;
     private static final int VIRTIO_BLK_CFG_MAX_DISCARD_SEG_OFFSET = 40;
     private static final int VIRTIO_BLK_CFG_DISCARD_SECTOR_ALIGNMENT_OFFSET = 44;
@@ -91,35 +98,76 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
     private static final int VIRTIO_BLK_S_IOERR = 1;
     private static final int VIRTIO_BLK_S_UNSUPP = 2;
 
-    private static final int VIRTQ_REQUEST = 0;
+    private static final int VIRTIO_BLK_WRITE_ZEROES_FLAG_UNMAP = 1;
+
+    // Queues with pending notifications are tracked in a bit mask.
+    private static final int MAX_QUEUE_COUNT = 32;
 
     private static final int MAX_SEGMENT_SIZE = 32 * VIRTIO_BLK_SECTOR_SIZE;
     private static final int MAX_SEGMENT_COUNT = 16;
 
+    private static final int MAX_REQUEST_DATA_SIZE = MAX_SEGMENT_SIZE * MAX_SEGMENT_COUNT;
+
+    private static final int DISCARD_WRITE_ZEROES_SEGMENT_SIZE = 16;
+    private static final int MAX_DISCARD_SECTOR_COUNT = 1 << 16;
+    private static final int MAX_DISCARD_SEGMENT_COUNT = 16;
+    private static final int MAX_WRITE_ZEROES_SECTOR_COUNT = 1 << 16;
+    private static final int MAX_WRITE_ZEROES_SEGMENT_COUNT = 1;
+
+    // Maximum number of requests taken from the queue that may not have completed yet when processing
+    // requests asynchronously. Each of these may hold on to a buffer of up to MAX_REQUEST_DATA_SIZE bytes,
+    // when data has to be copied because it is not in memory supporting direct access.
+    private static final int MAX_IN_FLIGHT_REQUEST_COUNT = 16;
+
     private static final ThreadLocal<ByteBuffer> REQUEST_HEADER_BUFFER = ThreadLocal.withInitial(() ->
         ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN));
-    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_SEGMENT_SIZE * MAX_SEGMENT_COUNT]);
 
     private BlockDevice block;
     private int remainingByteProcessingQuota;
-    @Serialized private boolean hasPendingRequest;
+    @Serialized private int pendingQueueMask;
 
     private int maxBytesPerThousandCycles = 32;
 
+    @Nullable private Executor executor;
+    private final RequestQueue[] requestQueues;
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    @Nullable private Request lastSubmittedRequest;
+    private int nextQueueIndex;
+
     public VirtIOBlockDevice(final MemoryMap memoryMap, final boolean readonly) {
         this(memoryMap, NullBlockDevice.get(readonly));
     }
 
     public VirtIOBlockDevice(final MemoryMap memoryMap, final BlockDevice block) {
+        this(memoryMap, block, 1);
+    }
+
+    /**
+     * Creates a new block device with the specified number of request queues.
+     * <p>
+     * With more than one queue, {@code VIRTIO_BLK_F_MQ} is offered, allowing drivers to submit requests
+     * from multiple CPUs without contending for a single queue. See {@link #setExecutor(Executor)} for
+     * when requests from different queues are processed in parallel.
+     *
+     * @param memoryMap  the memory map the device lives in.
+     * @param block      the block device to expose.
+     * @param queueCount the number of request queues, in the range of [1, 32].
+     */
+    public VirtIOBlockDevice(final MemoryMap memoryMap, final BlockDevice block, final int queueCount) {
         super(memoryMap, VirtIODeviceSpec.builder(VirtIODeviceType.VIRTIO_DEVICE_ID_BLOCK_DEVICE)
-            .configSpaceSize(56)
-            .queueCount(1)
-            .features((block.isReadonly() ? VIRTIO_BLK_F_RO : 0) |
+            .configSpaceSize(60)
+            .queueCount(validateQueueCount(queueCount))
+            .features((block.isReadonly() ? VIRTIO_BLK_F_RO : VIRTIO_BLK_F_DISCARD | VIRTIO_BLK_F_WRITE_ZEROES) |
+                (queueCount > 1 ? VIRTIO_BLK_F_MQ : 0) |
                 VIRTIO_BLK_F_SIZE_MAX |
                 VIRTIO_BLK_F_SEG_MAX |
                 VIRTIO_BLK_F_FLUSH)
             .build());
         this.block = block;
+        this.requestQueues = new RequestQueue[queueCount];
+        for (int i = 0; i < queueCount; i++) {
+            requestQueues[i] = new RequestQueue(i);
+        }
     }
 
     public void setMaxBytesPerThousandCycles(final int value) {
@@ -129,7 +177,32 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         maxBytesPerThousandCycles = value;
     }
 
+    /**
+     * Sets the executor to run block device I/O on.
+     * <p>
+     * When set, requests are still taken from the queue and validated on the thread calling
+     * {@link #step(int)}, but reading from and writing to the {@link BlockDevice} happens on the
+     * executor. Requests from the same queue are run on the executor one after the other, in the order
+     * they were taken from the queue. If the block device is thread-safe, as reported by
+     * {@link BlockDevice#isThreadSafe()}, requests from different queues run in parallel. Otherwise,
+     * all requests run one after the other. Completed requests are returned to the driver in the next
+     * call to {@link #step(int)}.
+     * <p>
+     * When {@code null}, which is the default, requests are processed synchronously in {@link #step(int)}.
+     * <p>
+     * The executor is not shut down by this device. Before the executor is shut down, this device must be
+     * closed, or the executor must be replaced.
+     *
+     * @param executor the executor to run I/O on, or {@code null} to process requests synchronously.
+     */
+    public void setExecutor(@Nullable final Executor executor) {
+        drain();
+        this.executor = executor;
+    }
+
     public void setBlock(final BlockDevice block) throws IOException {
+        drain();
+
         final BlockDevice oldBlock = this.block;
         this.block = block;
         notifyConfigChanged();
@@ -139,15 +212,46 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         }
     }
 
+    /**
+     * Waits for all requests currently being processed asynchronously and returns them to the driver.
+     * <p>
+     * Requests in flight are not serialized. This must be called before serializing this device
+     * if an executor was set via {@link #setExecutor(Executor)}. Like {@link #step(int)}, this must
+     * be called from the thread running the emulation.
+     */
+    @Override
+    public void drain() {
+        try {
+            for (final RequestQueue queue : requestQueues) {
+                while (!queue.inFlightRequests.isEmpty()) {
+                    queue.inFlightRequests.peekFirst().future.handle((result, e) -> null).join();
+                    completeRequests(queue);
+                }
+            }
+        } catch (final Throwable e) {
+            discardRequests();
+            error();
+        }
+        lastSubmittedRequest = null;
+    }
+
     @Override
     public void close() throws IOException {
+        discardRequests();
         block.close();
     }
 
     @Override
     public void reset() {
+        // Wait for workers before the queues they complete into are reset.
+        discardRequests();
         super.reset();
-        hasPendingRequest = false;
+        pendingQueueMask = 0;
+    }
+
+    @Override
+    public boolean isIdle() {
+        return (pendingQueueMask == 0 && !hasInFlightRequests()) || (getStatus() & VIRTIO_STATUS_FAILED) != 0;
     }
 
     @Override
@@ -159,7 +263,7 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
             remainingByteProcessingQuota = byteQuota;
         }
 
-        if (!hasPendingRequest) {
+        if (pendingQueueMask == 0 && !hasInFlightRequests()) {
             return;
         }
 
@@ -168,12 +272,22 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         }
 
         try {
-            while (remainingByteProcessingQuota > 0) {
-                final int processedBytes = processRequest();
-                if (processedBytes < 0) {
-                    break;
+            // Start at a different queue each step, so all queues get a share of the quota.
+            final int queueCount = requestQueues.length;
+            final int firstQueueIndex = nextQueueIndex;
+            nextQueueIndex = (nextQueueIndex + 1) % queueCount;
+            for (int i = 0; i < queueCount; i++) {
+                final RequestQueue queue = requestQueues[(firstQueueIndex + i) % queueCount];
+                completeRequests(queue);
+
+                while (remainingByteProcessingQuota > 0 && queue.inFlightRequests.size() < MAX_IN_FLIGHT_REQUEST_COUNT) {
+                    final Request request = takeRequest(queue.index);
+                    if (request == null) {
+                        break;
+                    }
+                    remainingByteProcessingQuota -= request.processedBytes;
+                    submitRequest(queue, request);
                 }
-                remainingByteProcessingQuota -= processedBytes;
             }
         } catch (final Throwable e) {
             error();
@@ -203,7 +317,8 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         //         le32 opt_io_size;
         //     } topology;
         //     u8 writeback;
-        //     u8 unused0[3];
+        //     u8 unused0;
+        //     le16 num_queues;
         //     le32 max_discard_sectors;
         //     le32 max_discard_seg;
         //     le32 discard_sector_alignment;
@@ -225,6 +340,27 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
             case VIRTIO_BLK_CFG_SEG_MAX_OFFSET -> {
                 return MAX_SEGMENT_COUNT;
             }
+            case VIRTIO_BLK_CFG_NUM_QUEUES_OFFSET -> {
+                return requestQueues.length;
+            }
+            case VIRTIO_BLK_CFG_MAX_DISCARD_SECTORS_OFFSET -> {
+                return MAX_DISCARD_SECTOR_COUNT;
+            }
+            case VIRTIO_BLK_CFG_MAX_DISCARD_SEG_OFFSET -> {
+                return MAX_DISCARD_SEGMENT_COUNT;
+            }
+            case VIRTIO_BLK_CFG_DISCARD_SECTOR_ALIGNMENT_OFFSET -> {
+                return 1;
+            }
+            case VIRTIO_BLK_CFG_MAX_WRITE_ZEROES_SECTORS_OFFSET -> {
+                return MAX_WRITE_ZEROES_SECTOR_COUNT;
+            }
+            case VIRTIO_BLK_CFG_MAX_WRITE_ZEROES_SEG_OFFSET -> {
+                return MAX_WRITE_ZEROES_SEGMENT_COUNT;
+            }
+            case VIRTIO_BLK_CFG_WRITE_ZEROES_MAY_UNMAP_OFFSET -> {
+                return 1;
+            }
         }
         return super.loadConfig(offset, sizeLog2);
     }
@@ -236,19 +372,33 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
 
     @Override
     protected void handleQueueNotification(final int queueIndex) {
-        hasPendingRequest = true;
+        pendingQueueMask |= 1 << queueIndex;
     }
 
-    private int processRequest() throws VirtIODeviceException, MemoryAccessException {
-        final VirtqueueIterator queue = getQueueIterator(VIRTQ_REQUEST);
+    private boolean hasInFlightRequests() {
+        for (final RequestQueue queue : requestQueues) {
+            if (!queue.inFlightRequests.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private Request takeRequest(final int queueIndex) throws VirtIODeviceException, MemoryAccessException {
+        if ((pendingQueueMask & (1 << queueIndex)) == 0) {
+            return null;
+        }
+
+        final VirtqueueIterator queue = getQueueIterator(queueIndex);
         if (queue == null) {
-            hasPendingRequest = false;
-            return -1;
+            pendingQueueMask &= ~(1 << queueIndex);
+            return null;
         }
 
         if (!queue.hasNext()) {
-            hasPendingRequest = false;
-            return -1;
+            pendingQueueMask &= ~(1 << queueIndex);
+            return null;
         }
         final DescriptorChain chain = queue.next();
 
@@ -283,6 +433,7 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
         header.getInt(); // reserved
         final long sector = header.getLong();
 
+        final Request request = new Request(chain, type, sector * VIRTIO_BLK_SECTOR_SIZE, processedBytes);
         switch (type) {
             case VIRTIO_BLK_T_IN: {
                 // Expect to have completely read the header.
@@ -296,37 +447,17 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
                 }
 
                 // Ensure driver respects virtio_blk_config.size_max and virtio_blk_config.seg_max.
-                if (chain.writableBytes() > MAX_SEGMENT_COUNT * MAX_SEGMENT_SIZE + 1) {
-                    chain.skip(chain.writableBytes() - 1);
-                    chain.put((byte) VIRTIO_BLK_S_IOERR);
+                if (chain.writableBytes() > MAX_REQUEST_DATA_SIZE + 1) {
+                    request.status = VIRTIO_BLK_S_IOERR;
                     break;
                 }
 
-                final long offset = sector * VIRTIO_BLK_SECTOR_SIZE;
-                int status = VIRTIO_BLK_S_OK;
-                try {
-                    final InputStream stream = block.getInputStream(offset);
-                    final byte[] buffer = COPY_BUFFER.get();
-                    final int requestedReadCount = chain.writableBytes() - 1;
-                    int totalReadCount = 0;
-                    while (totalReadCount < requestedReadCount) {
-                        final int count = Math.min(buffer.length, requestedReadCount - totalReadCount);
-                        final int readCount = stream.read(buffer, 0, count);
-                        if (readCount < 0) {
-                            break;
-                        } else {
-                            chain.put(buffer, 0, readCount);
-                            totalReadCount += readCount;
-                        }
-                    }
-
-                    chain.skip(chain.writableBytes() - 1);
-                } catch (final IllegalArgumentException | IOException e) {
-                    chain.skip(chain.writableBytes() - 1);
-                    status = VIRTIO_BLK_S_IOERR;
+                // Read directly into guest memory if possible.
+                request.buffers = chain.getBuffers(chain.writableBytes() - 1);
+                if (request.buffers == null) {
+                    request.copyBuffer = allocateBuffer(chain.writableBytes() - 1);
+                    request.buffers = new ByteBuffer[]{request.copyBuffer};
                 }
-
-                chain.put((byte) status);
                 break;
             }
             case VIRTIO_BLK_T_OUT: {
@@ -341,31 +472,19 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
                 }
 
                 // Ensure driver respects virtio_blk_config.size_max and virtio_blk_config.seg_max.
-                if (chain.readableBytes() > MAX_SEGMENT_COUNT * MAX_SEGMENT_SIZE) {
-                    chain.skip(chain.readableBytes());
-                    chain.put((byte) VIRTIO_BLK_S_IOERR);
+                if (chain.readableBytes() > MAX_REQUEST_DATA_SIZE) {
+                    request.status = VIRTIO_BLK_S_IOERR;
                     break;
                 }
 
-                final long offset = sector * VIRTIO_BLK_SECTOR_SIZE;
-                int status = VIRTIO_BLK_S_OK;
-                try {
-                    final OutputStream stream = block.getOutputStream(offset);
-                    final byte[] buffer = COPY_BUFFER.get();
-                    final int requestedWriteCount = chain.readableBytes();
-                    int totalWriteCount = 0;
-                    while (totalWriteCount < requestedWriteCount) {
-                        final int count = Math.min(buffer.length, requestedWriteCount - totalWriteCount);
-                        chain.get(buffer, 0, count);
-                        stream.write(buffer, 0, count);
-                        totalWriteCount += count;
-                    }
-                } catch (final IllegalArgumentException | ReadOnlyBufferException | IOException e) {
-                    status = VIRTIO_BLK_S_IOERR;
+                // Write directly from guest memory if possible.
+                request.buffers = chain.getBuffers(chain.readableBytes());
+                if (request.buffers == null) {
+                    request.copyBuffer = allocateBuffer(chain.readableBytes());
+                    chain.get(request.copyBuffer);
+                    request.copyBuffer.flip();
+                    request.buffers = new ByteBuffer[]{request.copyBuffer};
                 }
-
-                chain.skip(chain.readableBytes());
-                chain.put((byte) status);
                 break;
             }
             case VIRTIO_BLK_T_FLUSH: {
@@ -374,29 +493,155 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
                     throw new VirtIODeviceException();
                 }
 
+                // Only expect having to write status.
+                if (chain.writableBytes() != 1) {
+                    throw new VirtIODeviceException();
+                }
+                break;
+            }
+            case VIRTIO_BLK_T_DISCARD:
+            case VIRTIO_BLK_T_WRITE_ZEROES: {
                 // Only expect having to write status.
                 if (chain.writableBytes() != 1) {
                     throw new VirtIODeviceException();
                 }
 
-                block.flush();
+                // Expect a list of virtio_blk_discard_write_zeroes.
+                if (chain.readableBytes() == 0 || chain.readableBytes() % DISCARD_WRITE_ZEROES_SEGMENT_SIZE != 0) {
+                    throw new VirtIODeviceException();
+                }
 
-                chain.put((byte) VIRTIO_BLK_S_OK);
+                request.status = readDiscardWriteZeroesSegments(request);
                 break;
             }
-            case VIRTIO_BLK_T_DISCARD:
-            case VIRTIO_BLK_T_WRITE_ZEROES:
             default: {
-                chain.skip(chain.readableBytes());
-                chain.skip(chain.writableBytes() - 1);
-                chain.put((byte) VIRTIO_BLK_S_UNSUPP);
+                request.status = VIRTIO_BLK_S_UNSUPP;
                 break;
             }
         }
 
+        return request;
+    }
+
+    private int readDiscardWriteZeroesSegments(final Request request) throws VirtIODeviceException, MemoryAccessException {
+        final boolean isDiscard = request.type == VIRTIO_BLK_T_DISCARD;
+        final int maxSegmentCount = isDiscard ? MAX_DISCARD_SEGMENT_COUNT : MAX_WRITE_ZEROES_SEGMENT_COUNT;
+        final int maxSectorCount = isDiscard ? MAX_DISCARD_SECTOR_COUNT : MAX_WRITE_ZEROES_SECTOR_COUNT;
+
+        // Ensure driver respects virtio_blk_config.max_discard_seg and virtio_blk_config.max_write_zeroes_seg.
+        final DescriptorChain chain = request.chain;
+        final int segmentCount = chain.readableBytes() / DISCARD_WRITE_ZEROES_SEGMENT_SIZE;
+        if (segmentCount > maxSegmentCount) {
+            return VIRTIO_BLK_S_IOERR;
+        }
+
+        final long sectorCapacity = capacityToSectorCount(block.getCapacity());
+        final long[] segments = new long[segmentCount * 2];
+        for (int i = 0; i < segmentCount; i++) {
+            final ByteBuffer segment = getRequestHeaderBuffer();
+            chain.get(segment);
+            segment.flip();
+
+            final long sector = segment.getLong();
+            final long sectorCount = segment.getInt() & 0xFFFFFFFFL;
+            final int flags = segment.getInt();
+
+            // Unmap is only valid for write zeroes, where we're always allowed to unmap.
+            if ((flags & ~VIRTIO_BLK_WRITE_ZEROES_FLAG_UNMAP) != 0 ||
+                (isDiscard && (flags & VIRTIO_BLK_WRITE_ZEROES_FLAG_UNMAP) != 0)) {
+                return VIRTIO_BLK_S_UNSUPP;
+            }
+
+            // Ensure driver respects virtio_blk_config.max_discard_sectors and virtio_blk_config.max_write_zeroes_sectors.
+            if (sectorCount > maxSectorCount) {
+                return VIRTIO_BLK_S_IOERR;
+            }
+
+            // Block devices may ignore discards, so check the range here to fail consistently.
+            if (Long.compareUnsigned(sector, sectorCapacity) > 0 || sectorCount > sectorCapacity - sector) {
+                return VIRTIO_BLK_S_IOERR;
+            }
+
+            segments[i * 2] = sector * VIRTIO_BLK_SECTOR_SIZE;
+            segments[i * 2 + 1] = sectorCount * VIRTIO_BLK_SECTOR_SIZE;
+        }
+
+        request.segments = segments;
+        return VIRTIO_BLK_S_OK;
+    }
+
+    private void submitRequest(final RequestQueue queue, final Request request) throws VirtIODeviceException, MemoryAccessException {
+        if (executor == null) {
+            request.run();
+            completeRequest(request);
+            return;
+        }
+
+        // Chain requests so they run one after the other, even if the executor has multiple threads.
+        // Requests from different queues only need to be ordered if the block device may not be used
+        // from multiple threads at the same time.
+        final Request previousRequest = block.isThreadSafe() ? queue.inFlightRequests.peekLast() : lastSubmittedRequest;
+        if (previousRequest != null && !previousRequest.future.isDone()) {
+            request.future = previousRequest.future.handle((result, e) -> null).thenRunAsync(request, executor);
+        } else {
+            request.future = CompletableFuture.runAsync(request, executor);
+        }
+        queue.inFlightRequests.addLast(request);
+        lastSubmittedRequest = request;
+    }
+
+    private void completeRequests(final RequestQueue queue) throws VirtIODeviceException, MemoryAccessException {
+        while (!queue.inFlightRequests.isEmpty() && queue.inFlightRequests.peekFirst().future.isDone()) {
+            final Request request = queue.inFlightRequests.removeFirst();
+            if (request.future.isCompletedExceptionally()) {
+                request.status = VIRTIO_BLK_S_IOERR;
+            }
+            completeRequest(request);
+        }
+    }
+
+    private void discardRequests() {
+        for (final RequestQueue queue : requestQueues) {
+            for (final Request request : queue.inFlightRequests) {
+                request.future.handle((result, e) -> null).join();
+            }
+            queue.inFlightRequests.clear();
+        }
+        lastSubmittedRequest = null;
+    }
+
+    private void completeRequest(final Request request) throws VirtIODeviceException, MemoryAccessException {
+        final DescriptorChain chain = request.chain;
+        if (request.type == VIRTIO_BLK_T_IN && request.status == VIRTIO_BLK_S_OK && request.copyBuffer != null) {
+            request.copyBuffer.flip();
+            chain.put(request.copyBuffer);
+        }
+
+        chain.skip(chain.readableBytes());
+        chain.skip(chain.writableBytes() - 1);
+        chain.put((byte) request.status);
         chain.use();
 
-        return processedBytes;
+        if (request.copyBuffer != null) {
+            freeBuffers.addLast(request.copyBuffer);
+            request.copyBuffer = null;
+        }
+    }
+
+    private ByteBuffer allocateBuffer(final int size) {
+        final ByteBuffer buffer = freeBuffers.pollLast();
+        if (buffer != null) {
+            return buffer.clear().limit(size);
+        } else {
+            return ByteBuffer.allocate(MAX_REQUEST_DATA_SIZE).limit(size);
+        }
+    }
+
+    private static int validateQueueCount(final int queueCount) {
+        if (queueCount < 1 || queueCount > MAX_QUEUE_COUNT) {
+            throw new IllegalArgumentException("queueCount must be in the range of [1, " + MAX_QUEUE_COUNT + "]");
+        }
+        return queueCount;
     }
 
     private static long capacityToSectorCount(final long capacity) {
@@ -408,4 +653,83 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
     private static ByteBuffer getRequestHeaderBuffer() {
         return REQUEST_HEADER_BUFFER.get().clear();
     }
+
+    private static final class RequestQueue {
+        final int index;
+        final ArrayDeque<Request> inFlightRequests = new ArrayDeque<>();
+
+        RequestQueue(final int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * A request taken from the queue. Once taken from the queue, requests only access the queue when
+     * completed. The I/O part may run on a worker thread, reading from and writing to guest memory
+     * directly where possible.
+     */
+    private final class Request implements Runnable {
+        final DescriptorChain chain;
+        final int type;
+        final long offset;
+        final int processedBytes;
+        @Nullable ByteBuffer[] buffers; // Either slices of guest memory or the copy buffer.
+        @Nullable ByteBuffer copyBuffer;
+        @Nullable long[] segments; // Offset and length pairs of discard and write zeroes requests.
+        int status = VIRTIO_BLK_S_OK;
+        CompletableFuture<Void> future;
+
+        Request(final DescriptorChain chain, final int type, final long offset, final int processedBytes) {
+            this.chain = chain;
+            this.type = type;
+            this.offset = offset;
+            this.processedBytes = processedBytes;
+        }
+
+        @Override
+        public void run() {
+            if (status != VIRTIO_BLK_S_OK) {
+                return;
+            }
+
+            try {
+                switch (type) {
+                    case VIRTIO_BLK_T_IN -> {
+                        assert buffers != null;
+                        long position = offset;
+                        for (final ByteBuffer buffer : buffers) {
+                            position += block.read(buffer, position);
+                            if (buffer.hasRemaining()) {
+                                break; // Reached end of block device.
+                            }
+                        }
+                    }
+                    case VIRTIO_BLK_T_OUT -> {
+                        assert buffers != null;
+                        long position = offset;
+                        for (final ByteBuffer buffer : buffers) {
+                            final int count = buffer.remaining();
+                            block.write(buffer, position);
+                            position += count;
+                        }
+                    }
+                    case VIRTIO_BLK_T_FLUSH -> block.flush();
+                    case VIRTIO_BLK_T_DISCARD -> {
+                        assert segments != null;
+                        for (int i = 0; i < segments.length; i += 2) {
+                            block.discard(segments[i], segments[i + 1]);
+                        }
+                    }
+                    case VIRTIO_BLK_T_WRITE_ZEROES -> {
+                        assert segments != null;
+                        for (int i = 0; i < segments.length; i += 2) {
+                            block.writeZeroes(segments[i], segments[i + 1]);
+                        }
+                    }
+                }
+            } catch (final IllegalArgumentException | UnsupportedOperationException | IOException e) {
+                status = VIRTIO_BLK_S_IOERR;
+            }
+        }
+    }
 }
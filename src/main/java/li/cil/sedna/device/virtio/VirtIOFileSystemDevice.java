@@ -189,6 +189,11 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
         closeFilesAndClearFIDs();
     }
 
+    @Override
+    public boolean isIdle() {
+        return !hasPendingRequest || (getStatus() & VIRTIO_STATUS_FAILED) != 0;
+    }
+
     @Override
     public void step(final int cycles) {
         if (remainingByteProcessingQuota <= 0) {
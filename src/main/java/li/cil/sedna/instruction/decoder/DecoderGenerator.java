@@ -16,6 +16,7 @@ import li.cil.sedna.utils.BitUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.objectweb.asm.*;
 
+import javax.annotation.Nullable;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -75,14 +76,34 @@ import java.util.stream.Collectors;
  * private static void decoderHook() {
  * }
  * </pre>
+ * <p>
+ * Optionally, pairs of instructions that commonly appear together can be declared as {@link InstructionFusion}s.
+ * After running the first instruction of such a pair, the generated code fetches the next instruction itself and,
+ * if it is the expected second instruction, runs it directly instead of dispatching it through the decoder tree.
+ * Otherwise, it dispatches the fetched instruction as usual. For this, the class being visited <em>must</em> have
+ * a method named exactly as specified in the {@code fusionFetchMethod} constructor parameter. It must take the same
+ * parameters as the {@code decoderMethod} and return an {@code int}. It will be called with the current values of
+ * these parameters, and must do anything the {@code decoderMethod} does between two instructions, then return the
+ * next instruction. If the next instruction must not be fused, e.g. because it is not fully inside the memory range
+ * being executed, it must instead return zero without any side effects, in which case the generated code continues
+ * with the regular end of the loop.
  */
 public class DecoderGenerator extends ClassVisitor implements Opcodes {
+    // Width of instructions that may be dispatched using a lookup table, see shouldUseDispatchTable.
+    private static final int DISPATCH_TABLE_INSTRUCTION_BITS = 16;
+    // Maximum number of instruction bits a lookup table may be indexed with. Tables are stored as string
+    // constants, which may be at most 65535 bytes long in modified UTF-8, using up to three bytes per entry.
+    private static final int DISPATCH_TABLE_MAX_INDEX_BITS = 14;
+
     private final AbstractDecoderTreeNode decoderTree;
     private final Function<InstructionDeclaration, InstructionDefinition> definitionProvider;
     private final String decoderMethod;
     private final String decoderHook;
     private final String illegalInstructionInternalName;
+    private final String fusionFetchMethod;
+    private final Map<String, List<InstructionDeclaration>> fusionsByFirst = new HashMap<>();
     private String hostClassInternalName;
+    private String decoderMethodDescriptor;
     private int instructionGroupMethodIndex;
 
     public DecoderGenerator(final ClassVisitor cv,
@@ -91,12 +112,46 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                             final Class<?> illegalInstructionExceptionClass,
                             final String decoderMethod,
                             final String decoderHook) {
+        this(cv, decoderTree, definitionProvider, illegalInstructionExceptionClass, decoderMethod, decoderHook, null, List.of());
+    }
+
+    public DecoderGenerator(final ClassVisitor cv,
+                            final AbstractDecoderTreeNode decoderTree,
+                            final Function<InstructionDeclaration, InstructionDefinition> definitionProvider,
+                            final Class<?> illegalInstructionExceptionClass,
+                            final String decoderMethod,
+                            final String decoderHook,
+                            @Nullable final String fusionFetchMethod,
+                            final Collection<InstructionFusion> fusions) {
         super(ASM7, cv);
         this.decoderTree = decoderTree;
         this.definitionProvider = definitionProvider;
         this.decoderMethod = decoderMethod;
         this.decoderHook = decoderHook;
         this.illegalInstructionInternalName = Type.getInternalName(illegalInstructionExceptionClass);
+        this.fusionFetchMethod = fusionFetchMethod;
+
+        if (!fusions.isEmpty() && fusionFetchMethod == null) {
+            throw new IllegalArgumentException("fusionFetchMethod is required when using fusions");
+        }
+
+        final Map<String, InstructionDeclaration> declarationsByName = new HashMap<>();
+        decoderTree.getInstructions().forEach(declaration -> declarationsByName.put(declaration.displayName, declaration));
+        for (final InstructionFusion fusion : fusions) {
+            final InstructionDeclaration first = declarationsByName.get(fusion.first());
+            final InstructionDeclaration second = declarationsByName.get(fusion.second());
+            if (first == null || second == null) {
+                throw new IllegalArgumentException(String.format("Unknown instruction in fusion [%s].", fusion));
+            }
+            if (second.type != InstructionType.REGULAR || definitionProvider.apply(second) == null) {
+                continue;
+            }
+
+            final List<InstructionDeclaration> seconds = fusionsByFirst.computeIfAbsent(first.displayName, name -> new ArrayList<>());
+            if (!seconds.contains(second)) {
+                seconds.add(second);
+            }
+        }
     }
 
     protected void emitInstruction(final GeneratorContext context,
@@ -170,10 +225,37 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             }
         } else {
             context.emitIncrementPC(declaration.size);
-            context.emitContinue();
+            emitContinueOrFuse(context, List.of(declaration));
         }
     }
 
+    /**
+     * Decides whether to dispatch the instructions in the specified subtree using a lookup table.
+     * <p>
+     * This is only called for subtrees containing 16-bit instructions only, where at most 14 bits remain to
+     * be decoded. For these, a table covering all possible encodings is small enough to precompute. If this returns {@code true}, the whole subtree is
+     * replaced by a single lookup in such a table, followed by a single switch over all instructions in the
+     * subtree. Otherwise, the subtree is emitted as a sequence of nested switches and branches, as usual.
+     * <p>
+     * This can make sense where the decoder tree contains many branches, i.e. where instructions overlap
+     * each other, which is typical for compressed instruction sets with many reserved encodings and hints.
+     *
+     * @param node the root node of the subtree.
+     * @return {@code true} to dispatch the subtree using a lookup table; {@code false} otherwise.
+     */
+    protected boolean shouldUseDispatchTable(final AbstractDecoderTreeNode node) {
+        return false;
+    }
+
+    /**
+     * The internal name of the class being visited, for use by subclasses emitting field accesses.
+     *
+     * @return the internal name of the class being visited.
+     */
+    protected String getHostClassInternalName() {
+        return hostClassInternalName;
+    }
+
     @Override
     public void visit(final int version, final int access, final String name, final String signature, final String superName, final String[] interfaces) {
         super.visit(version, access, name, signature, superName, interfaces);
@@ -183,12 +265,76 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
     @Override
     public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
         if (decoderMethod.equals(name)) {
+            decoderMethodDescriptor = descriptor;
             return new TemplateMethodVisitor(super.visitMethod(access, name, descriptor, signature, exceptions), super.cv);
         } else {
             return super.visitMethod(access, name, descriptor, signature, exceptions);
         }
     }
 
+    private void emitContinueOrFuse(final GeneratorContext context, final Collection<InstructionDeclaration> declarations) {
+        if (context.type != ContextType.TOP_LEVEL || context.isFused) {
+            context.emitContinue();
+            return;
+        }
+
+        // Any of the instructions we just ran may have been the first of a fusion. Since the fetch replaces the one
+        // at the end of the decoder loop, checking for second instructions costs next to nothing when they do not
+        // match, so we check for all candidates even when we can't know which of the instructions was run.
+        final List<InstructionDeclaration> seconds = declarations.stream()
+            .map(declaration -> fusionsByFirst.getOrDefault(declaration.displayName, List.of()))
+            .flatMap(List::stream)
+            .distinct()
+            .toList();
+        if (seconds.isEmpty()) {
+            context.emitContinue();
+            return;
+        }
+
+        final MethodVisitor mv = context.methodVisitor;
+
+        // inst = fusionFetchMethod(...); if (inst == 0) continue;
+        mv.visitVarInsn(ALOAD, GeneratorContext.LOCAL_THIS);
+        final Type[] argumentTypes = Type.getArgumentTypes(decoderMethodDescriptor);
+        int localIndex = 1;
+        for (final Type argumentType : argumentTypes) {
+            mv.visitVarInsn(argumentType.getOpcode(ILOAD), localIndex);
+            localIndex += argumentType.getSize();
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, hostClassInternalName, fusionFetchMethod,
+            Type.getMethodDescriptor(Type.INT_TYPE, argumentTypes), false);
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ISTORE, context.localInst);
+        mv.visitJumpInsn(IFEQ, context.continueLabel);
+
+        final GeneratorContext fusedContext = context.asFused();
+        for (final InstructionDeclaration second : seconds) {
+            final Label noMatchLabel = new Label();
+            emitMatchInstruction(context, second, noMatchLabel, IF_ICMPNE);
+
+            // Declarations may overlap with more specific ones, which take precedence in the decoder tree.
+            decoderTree.getInstructions()
+                .filter(other -> other != second && other.size == second.size)
+                .filter(other -> (other.patternMask & second.patternMask) == second.patternMask && other.patternMask != second.patternMask)
+                .filter(other -> (other.pattern & second.patternMask) == second.pattern)
+                .forEach(other -> emitMatchInstruction(context, other, noMatchLabel, IF_ICMPEQ));
+
+            emitInstruction(fusedContext, second, definitionProvider.apply(second));
+            mv.visitLabel(noMatchLabel);
+        }
+
+        // Not one of the expected instructions, dispatch it normally.
+        mv.visitJumpInsn(GOTO, context.decodeLabel);
+    }
+
+    private void emitMatchInstruction(final GeneratorContext context, final InstructionDeclaration declaration, final Label label, final int opcode) {
+        context.methodVisitor.visitVarInsn(ILOAD, context.localInst);
+        context.emitFastLdc(declaration.patternMask);
+        context.methodVisitor.visitInsn(IAND);
+        context.emitFastLdc(declaration.pattern);
+        context.methodVisitor.visitJumpInsn(opcode, label);
+    }
+
     private final class TemplateMethodVisitor extends MethodVisitor implements Opcodes {
         private final ClassVisitor classVisitor;
 
@@ -204,7 +350,9 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 return;
             }
 
-            decoderTree.accept(new DecoderTreeRootNodeVisitor(new GeneratorContext(classVisitor, super.mv)));
+            final GeneratorContext context = new GeneratorContext(classVisitor, super.mv);
+            context.methodVisitor.visitLabel(context.decodeLabel);
+            decoderTree.accept(new DecoderTreeRootNodeVisitor(context));
         }
     }
 
@@ -240,6 +388,8 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
 
         public final Label continueLabel;
         public final Label illegalInstructionLabel;
+        @Nullable public final Label decodeLabel; // Only set for top-level contexts.
+        public final boolean isFused; // Whether this is the context for the second instruction of a fusion.
         public final Object2IntArrayMap<FieldInstructionArgument> localVariables;
 
         // Constructor for new top-level context.
@@ -247,7 +397,7 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                                  final MethodVisitor methodVisitor) {
             this(classVisitor, methodVisitor, ContextType.TOP_LEVEL, 0,
                 LOCAL_INST, LOCAL_PC, LOCAL_FIRST_FIELD,
-                new Label(), new Label(), new Object2IntArrayMap<>());
+                new Label(), new Label(), new Label(), false, new Object2IntArrayMap<>());
         }
 
         // Constructor for nested context.
@@ -260,7 +410,7 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 LOCAL_GEN_INST, // inst is always first arg
                 LOCAL_GEN_PC, // pc is always second arg
                 LOCAL_GEN_FIRST_FIELD + localVariables.size(), // this + inst + pc + nargs
-                new Label(), new Label(), localVariables);
+                new Label(), new Label(), null, false, localVariables);
         }
 
         private GeneratorContext(final ClassVisitor classVisitor,
@@ -272,6 +422,8 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                                  final int localFirstField,
                                  final Label continueLabel,
                                  final Label illegalInstructionLabel,
+                                 @Nullable final Label decodeLabel,
+                                 final boolean isFused,
                                  final Object2IntArrayMap<FieldInstructionArgument> localVariables) {
             this.classVisitor = classVisitor;
             this.methodVisitor = methodVisitor;
@@ -282,13 +434,24 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             this.localFirstField = localFirstField;
             this.continueLabel = continueLabel;
             this.illegalInstructionLabel = illegalInstructionLabel;
+            this.decodeLabel = decodeLabel;
+            this.isFused = isFused;
             this.localVariables = localVariables;
         }
 
         public GeneratorContext withProcessed(final int mask) {
             return new GeneratorContext(classVisitor, methodVisitor, type,
                 processedMask | mask, localInst, localPc, localFirstField,
-                continueLabel, illegalInstructionLabel, localVariables);
+                continueLabel, illegalInstructionLabel, decodeLabel, isFused, localVariables);
+        }
+
+        // Context for running the second instruction of a fusion. It starts out with nothing processed
+        // and no fields in locals, since those of the current context refer to the previous instruction.
+        private GeneratorContext asFused() {
+            assert type == ContextType.TOP_LEVEL;
+            return new GeneratorContext(classVisitor, methodVisitor, type,
+                0, localInst, localPc, LOCAL_FIRST_FIELD,
+                continueLabel, illegalInstructionLabel, decodeLabel, true, new Object2IntArrayMap<>());
         }
 
         private void emitFastLdc(final int value) {
@@ -469,11 +632,19 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
 
         @Override
         public DecoderTreeSwitchVisitor visitSwitch(final DecoderTreeSwitchNode node) {
+            if (isDispatchTableCandidate(node)) {
+                emitDispatchTable(generateMethodInvocation(node), node);
+                return null;
+            }
             return new SwitchVisitor(generateMethodInvocation(node));
         }
 
         @Override
         public DecoderTreeBranchVisitor visitBranch(final DecoderTreeBranchNode node) {
+            if (isDispatchTableCandidate(node)) {
+                emitDispatchTable(generateMethodInvocation(node), node);
+                return null;
+            }
             return new BranchVisitor(generateMethodInvocation(node));
         }
 
@@ -572,7 +743,7 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
 
                         context.methodVisitor.visitLabel(conditionalLabels[GeneratorContext.RETURN_CONTINUE]);
                         context.emitIncrementPC(commonInstructionSize.getAsInt());
-                        context.methodVisitor.visitJumpInsn(GOTO, context.continueLabel);
+                        emitContinueOrFuse(context, instructions);
 
                         context.methodVisitor.visitLabel(conditionalLabels[GeneratorContext.RETURN_EXIT_INC_PC]);
                         context.emitIncrementPC(commonInstructionSize.getAsInt());
@@ -592,7 +763,7 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 }
             } else {
                 context.emitIncrementPC(commonInstructionSize.getAsInt());
-                context.emitContinue();
+                emitContinueOrFuse(context, instructions);
             }
 
             final String[] exceptions = definitions.stream()
@@ -616,6 +787,59 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             return childContext;
         }
 
+        private boolean isDispatchTableCandidate(final AbstractDecoderTreeNode node) {
+            final OptionalInt commonInstructionSize = computeCommonInstructionSize(node);
+            final int indexBits = DISPATCH_TABLE_INSTRUCTION_BITS - Integer.numberOfTrailingZeros(~context.processedMask);
+            return commonInstructionSize.isPresent() && commonInstructionSize.getAsInt() == 2 &&
+                   indexBits <= DISPATCH_TABLE_MAX_INDEX_BITS &&
+                   shouldUseDispatchTable(node);
+        }
+
+        private void emitDispatchTable(final GeneratorContext context, final AbstractDecoderTreeNode node) {
+            // Bits below the lowest bit not yet processed by parent nodes are the same for all instructions
+            // in the subtree, so we only need to look at the bits from there up to the end of the instruction.
+            final int shift = Integer.numberOfTrailingZeros(~context.processedMask);
+            final int indexMask = (1 << (DISPATCH_TABLE_INSTRUCTION_BITS - shift)) - 1;
+
+            // Table entries are indices into the instruction list plus one, zero meaning no match. Stored
+            // as a string constant, which the JIT can treat as a constant array.
+            final List<InstructionDeclaration> instructions = node.getInstructions().toList();
+            final StringBuilder table = new StringBuilder(indexMask + 1);
+            for (int index = 0; index <= indexMask; index++) {
+                final int instruction = (index << shift) | (node.getPattern() & ~(-1 << shift));
+                final InstructionDeclaration declaration = node.query(instruction);
+                table.append((char) (declaration != null ? instructions.indexOf(declaration) + 1 : 0));
+            }
+
+            final Label[] cases = new Label[instructions.size()];
+            for (int i = 0; i < cases.length; i++) {
+                cases[i] = new Label();
+            }
+            final Label defaultCase = new Label();
+
+            context.methodVisitor.visitLdcInsn(table.toString()); // table
+            context.methodVisitor.visitVarInsn(ILOAD, context.localInst); // table, inst
+            if (shift > 0) {
+                context.emitFastLdc(shift); // table, inst, shift
+                context.methodVisitor.visitInsn(IUSHR); // table, inst >>> shift
+            }
+            context.emitFastLdc(indexMask); // table, inst >>> shift, mask
+            context.methodVisitor.visitInsn(IAND); // table, index
+            context.methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "charAt", "(I)C", false); // case
+            context.methodVisitor.visitTableSwitchInsn(1, cases.length, defaultCase, cases);
+
+            final GeneratorContext leafContext = context.withProcessed(indexMask << shift);
+            for (int i = 0; i < cases.length; i++) {
+                context.methodVisitor.visitLabel(cases[i]);
+                final LeafVisitor leafVisitor = new LeafVisitor(leafContext);
+                leafVisitor.visitInstruction(instructions.get(i));
+                leafVisitor.visitEnd();
+            }
+
+            context.methodVisitor.visitLabel(defaultCase);
+            context.emitThrowIllegalInstruction();
+        }
+
         private OptionalInt computeCommonInstructionSize(final AbstractDecoderTreeNode node) {
             final List<Integer> sizes = node.getInstructions().map(i -> i.size).distinct().toList();
             return sizes.size() == 1 ? OptionalInt.of(sizes.get(0)) : OptionalInt.empty();
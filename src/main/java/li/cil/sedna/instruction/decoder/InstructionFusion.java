@@ -0,0 +1,14 @@
+package li.cil.sedna.instruction.decoder;
+
+/**
+ * Declares a pair of instructions the {@link DecoderGenerator} should try to execute as one
+ * superinstruction, i.e. with a single dispatch through the decoder tree.
+ * <p>
+ * Instructions are referenced by their display names, so that compressed and uncompressed
+ * variants of an instruction can be told apart.
+ *
+ * @param first  the display name of the first instruction of the pair.
+ * @param second the display name of the instruction expected to follow the first one.
+ */
+public record InstructionFusion(String first, String second) {
+}
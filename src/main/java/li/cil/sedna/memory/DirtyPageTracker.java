@@ -0,0 +1,88 @@
+package li.cil.sedna.memory;
+
+import li.cil.sedna.api.memory.MemoryMap;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitmap of dirty pages in a memory range, used by {@link MemoryMap} implementations.
+ * <p>
+ * Pages may be marked dirty from multiple threads in parallel. Dirty pages are collected
+ * and cleared word by word using atomic operations, so no marks get lost when collecting
+ * while other threads are marking pages dirty.
+ */
+public final class DirtyPageTracker {
+    private static final int WORD_SIZE_LOG2 = 6; // 1 << 6 == Long.SIZE
+
+    private final int pageCount;
+    private final AtomicLongArray words;
+
+    /**
+     * Creates a new tracker for a memory range of the specified size.
+     *
+     * @param length the size of the tracked memory range in bytes.
+     */
+    public DirtyPageTracker(final int length) {
+        pageCount = (int) ((Integer.toUnsignedLong(length) + MemoryMap.DIRTY_PAGE_SIZE - 1) >>> MemoryMap.DIRTY_PAGE_SIZE_LOG2);
+        words = new AtomicLongArray((pageCount + Long.SIZE - 1) >>> WORD_SIZE_LOG2);
+    }
+
+    /**
+     * The number of pages tracked by this tracker.
+     *
+     * @return the number of pages.
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Marks the page containing the specified offset dirty.
+     *
+     * @param offset the offset into the tracked memory range.
+     */
+    public void setDirty(final int offset) {
+        final int page = offset >>> MemoryMap.DIRTY_PAGE_SIZE_LOG2;
+        if (page >= pageCount) {
+            return;
+        }
+
+        final int index = page >>> WORD_SIZE_LOG2;
+        final long bit = 1L << page;
+        // Pages tend to be marked dirty repeatedly, avoid the atomic update if the bit is already set.
+        if ((words.get(index) & bit) == 0) {
+            words.getAndAccumulate(index, bit, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * Checks if the page containing the specified offset is dirty.
+     *
+     * @param offset the offset into the tracked memory range.
+     * @return {@code true} if the page is dirty; {@code false} otherwise.
+     */
+    public boolean isDirty(final int offset) {
+        final int page = offset >>> MemoryMap.DIRTY_PAGE_SIZE_LOG2;
+        if (page >= pageCount) {
+            return false;
+        }
+
+        return (words.get(page >>> WORD_SIZE_LOG2) & (1L << page)) != 0;
+    }
+
+    /**
+     * Returns the set of dirty pages and marks all pages clean.
+     *
+     * @return the indices of the pages that were dirty.
+     */
+    public BitSet getAndClear() {
+        final long[] result = new long[words.length()];
+        for (int i = 0; i < result.length; i++) {
+            if (words.get(i) != 0) {
+                result[i] = words.getAndSet(i, 0);
+            }
+        }
+        return BitSet.valueOf(result);
+    }
+}
@@ -11,22 +11,47 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 
 public final class MemoryMaps {
     /**
      * Computes the size of continuous physical memory starting at and including the specified address.
+     * <p>
+     * Memory larger than {@link Integer#MAX_VALUE} bytes is reported as {@link Integer#MAX_VALUE} bytes, use
+     * {@link #getContinuousMemorySizeLong(MemoryMap, long)} to get the size of such memory.
      *
      * @param memory  the memory map the address is local to.
      * @param address the address to start at.
      * @return the size of the continuous memory range.
      */
     public static int getContinuousMemorySize(final MemoryMap memory, final long address) {
-        final MappedMemoryRange range = memory.getMemoryRange(address);
-        if (range == null || !(range.device instanceof PhysicalMemory)) {
-            return 0;
-        }
+        return (int) Math.min(getContinuousMemorySizeLong(memory, address), Integer.MAX_VALUE);
+    }
 
-        return range.size() + getContinuousMemorySize(memory, range.end + 1);
+    /**
+     * Computes the size of continuous physical memory starting at and including the specified address.
+     * <p>
+     * Unlike {@link #getContinuousMemorySize(MemoryMap, long)}, this supports memory split into multiple
+     * devices larger than 2 GiB in total, see {@link li.cil.sedna.device.memory.Memory#createSegmented(long)}.
+     *
+     * @param memory  the memory map the address is local to.
+     * @param address the address to start at.
+     * @return the size of the continuous memory range.
+     */
+    public static long getContinuousMemorySizeLong(final MemoryMap memory, long address) {
+        long size = 0;
+        for (; ; ) {
+            final MappedMemoryRange range = memory.getMemoryRange(address);
+            if (range == null || !(range.device instanceof PhysicalMemory)) {
+                return size;
+            }
+
+            size += Integer.toUnsignedLong(range.size());
+            if (range.end == -1L) {
+                return size;
+            }
+            address = range.end + 1;
+        }
     }
 
     /**
@@ -115,6 +140,7 @@ public final class MemoryMaps {
             }
 
             store(range.device, offset, length, src);
+            setDirty(memory, range, offset, length);
             address += length;
         }
     }
@@ -150,10 +176,76 @@ public final class MemoryMaps {
 
             buffer.clear();
             store(range.device, offset, readCount, buffer);
+            setDirty(memory, range, offset, readCount);
             address += readCount;
         }
     }
 
+    /**
+     * Collects buffers directly backed by the physical memory in the specified address range.
+     * <p>
+     * Buffers are added to the list in address order, one per device the range spans. This fails if
+     * any part of the range is not in a {@link PhysicalMemory} supporting direct access, see
+     * {@link PhysicalMemory#slice(int, int)}. In that case the list may contain some buffers already.
+     * <p>
+     * Writes to the buffers bypass dirty page tracking, use {@link #setDirty(MemoryMap, long, int)}
+     * to mark written ranges dirty.
+     *
+     * @param memory  the memory map to get the buffers from.
+     * @param address the address in memory the range starts at.
+     * @param length  the length of the range.
+     * @param buffers the list to add the buffers to.
+     * @return {@code true} if buffers covering the whole range were added; {@code false} otherwise.
+     * @throws MemoryAccessException when an exception is thrown while accessing a device.
+     */
+    public static boolean slice(final MemoryMap memory, long address, int length, final List<ByteBuffer> buffers) throws MemoryAccessException {
+        while (length > 0) {
+            final MappedMemoryRange range = memory.getMemoryRange(address);
+            if (range == null || !(range.device instanceof final PhysicalMemory physicalMemory)) {
+                return false;
+            }
+
+            final int offset = (int) (address - range.start);
+            final int count = (int) Math.min(range.end - address + 1, length);
+            final ByteBuffer buffer = physicalMemory.slice(offset, count);
+            if (buffer == null) {
+                return false;
+            }
+
+            buffers.add(buffer);
+            address += count;
+            length -= count;
+        }
+
+        return true;
+    }
+
+    /**
+     * Marks all pages in the specified address range dirty.
+     * <p>
+     * Use this after writing to memory directly, e.g. via buffers obtained from
+     * {@link #slice(MemoryMap, long, int, List)}. Parts of the range not occupied by any
+     * device are ignored.
+     *
+     * @param memory  the memory map the range is in.
+     * @param address the address in memory the range starts at.
+     * @param length  the length of the range.
+     */
+    public static void setDirty(final MemoryMap memory, long address, int length) {
+        while (length > 0) {
+            final MappedMemoryRange range = memory.getMemoryRange(address);
+            if (range == null) {
+                return;
+            }
+
+            final int offset = (int) (address - range.start);
+            final int count = (int) Math.min(range.end - address + 1, length);
+            setDirty(memory, range, offset, count);
+            address += count;
+            length -= count;
+        }
+    }
+
     private static void load(final MemoryMappedDevice device, final int offset, final int length, final ByteBuffer dst) throws MemoryAccessException {
         if (device instanceof PhysicalMemory) {
             final int limit = dst.limit();
@@ -176,6 +268,19 @@ public final class MemoryMaps {
         }
     }
 
+    private static void setDirty(final MemoryMap memory, final MappedMemoryRange range, final int offset, final int length) {
+        // Block copies bypass MemoryMap.store, so mark the written pages dirty explicitly.
+        if (length <= 0) {
+            return;
+        }
+
+        final int first = offset >>> MemoryMap.DIRTY_PAGE_SIZE_LOG2;
+        final int last = (offset + length - 1) >>> MemoryMap.DIRTY_PAGE_SIZE_LOG2;
+        for (int page = first; page <= last; page++) {
+            memory.setDirty(range, page << MemoryMap.DIRTY_PAGE_SIZE_LOG2);
+        }
+    }
+
     private static void loadSlow(final MemoryMappedDevice device, int offset, final int length, final ByteBuffer dst) throws MemoryAccessException {
         final int end = offset + length;
 
@@ -7,12 +7,14 @@ import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.api.memory.MemoryRange;
 
 import javax.annotation.Nullable;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 
 public final class SimpleMemoryMap implements MemoryMap {
     private final Map<MemoryMappedDevice, MappedMemoryRange> devices = new HashMap<>();
+    private final Map<MemoryMappedDevice, DirtyPageTracker> dirtyPages = new HashMap<>();
 
     // For device IO we often get sequential access to the same range/device, so we remember the last one as a cache.
     private MappedMemoryRange cache;
@@ -29,12 +31,16 @@ public final class SimpleMemoryMap implements MemoryMap {
         }
 
         devices.put(device, deviceRange);
+        if (device.supportsFetch()) {
+            dirtyPages.put(device, new DirtyPageTracker(device.getLength()));
+        }
         return true;
     }
 
     @Override
     public void removeDevice(final MemoryMappedDevice device) {
         devices.remove(device);
+        dirtyPages.remove(device);
         if (cache != null && cache.device == device) {
             cache = null;
         }
@@ -76,7 +82,24 @@ public final class SimpleMemoryMap implements MemoryMap {
 
     @Override
     public void setDirty(final MemoryRange range, final int offset) {
-        // todo implement tracking dirty bits; really need this if we want to add a frame buffer.
+        if (range instanceof final MappedMemoryRange mappedRange) {
+            final DirtyPageTracker tracker = dirtyPages.get(mappedRange.device);
+            if (tracker != null) {
+                tracker.setDirty(offset);
+            }
+        }
+    }
+
+    @Override
+    public boolean isDirty(final MemoryMappedDevice device, final int offset) {
+        final DirtyPageTracker tracker = dirtyPages.get(device);
+        return tracker != null && tracker.isDirty(offset);
+    }
+
+    @Override
+    public BitSet getAndClearDirtyPages(final MemoryMappedDevice device) {
+        final DirtyPageTracker tracker = dirtyPages.get(device);
+        return tracker != null ? tracker.getAndClear() : new BitSet();
     }
 
     @Override
@@ -92,7 +115,10 @@ public final class SimpleMemoryMap implements MemoryMap {
     public void store(final long address, final long value, final int sizeLog2) throws MemoryAccessException {
         final MappedMemoryRange range = getMemoryRange(address);
         if (range != null && (range.device.getSupportedSizes() & (1 << sizeLog2)) != 0) {
-            range.device.store((int) (address - range.start), value, sizeLog2);
+            final int offset = (int) (address - range.start);
+            range.device.store(offset, value, sizeLog2);
+            setDirty(range, offset);
+            setDirty(range, offset + (1 << sizeLog2) - 1); // In case of misaligned stores crossing a page boundary.
         }
     }
 }
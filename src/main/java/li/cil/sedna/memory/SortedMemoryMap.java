@@ -0,0 +1,180 @@
+package li.cil.sedna.memory;
+
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MappedMemoryRange;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.api.memory.MemoryRange;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Memory map implementation keeping mapped ranges in an array sorted by address.
+ * <p>
+ * Lookups by address and intersection tests use binary search, so they scale well with
+ * the number of devices, unlike the linear scans in {@link SimpleMemoryMap}. Adding and
+ * removing devices is comparatively expensive, which is fine since it happens rarely.
+ * <p>
+ * Lookups are safe to perform from multiple threads in parallel, as long as no devices
+ * are added or removed at the same time.
+ */
+public final class SortedMemoryMap implements MemoryMap {
+    private final Map<MemoryMappedDevice, MappedMemoryRange> devices = new HashMap<>();
+    private final Map<MemoryMappedDevice, DirtyPageTracker> dirtyPages = new HashMap<>();
+
+    // Sorted by start address, compared unsigned. Ranges never overlap, so this also sorts them by end address.
+    // Replaced as a whole when devices are added or removed.
+    private volatile MappedMemoryRange[] ranges = new MappedMemoryRange[0];
+
+    // For device IO we often get sequential access to the same range/device, so we remember the last one as a cache.
+    // Harts look up ranges from their own threads; ranges are immutable, so publishing them via a volatile is enough.
+    private volatile MappedMemoryRange cache;
+
+    @Override
+    public boolean addDevice(final long address, final MemoryMappedDevice device) {
+        if (devices.containsKey(device)) {
+            return false;
+        }
+
+        final MappedMemoryRange deviceRange = new MappedMemoryRange(device, address);
+        if (getMemoryRange(deviceRange).isPresent()) {
+            return false;
+        }
+
+        // Insert before the first range ending after the new one starts. Since there is no
+        // intersection, that range must also start after the new one ends.
+        final int found = findFirstEndingAtOrAfter(ranges, deviceRange.start);
+        final int index = found >= 0 ? found : ~found;
+        final MappedMemoryRange[] newRanges = new MappedMemoryRange[ranges.length + 1];
+        System.arraycopy(ranges, 0, newRanges, 0, index);
+        newRanges[index] = deviceRange;
+        System.arraycopy(ranges, index, newRanges, index + 1, ranges.length - index);
+
+        devices.put(device, deviceRange);
+        if (device.supportsFetch()) {
+            dirtyPages.put(device, new DirtyPageTracker(device.getLength()));
+        }
+        ranges = newRanges;
+        return true;
+    }
+
+    @Override
+    public void removeDevice(final MemoryMappedDevice device) {
+        final MappedMemoryRange deviceRange = devices.remove(device);
+        if (deviceRange == null) {
+            return;
+        }
+
+        dirtyPages.remove(device);
+
+        ranges = Arrays.stream(ranges)
+            .filter(range -> range != deviceRange)
+            .toArray(MappedMemoryRange[]::new);
+        final MappedMemoryRange cachedValue = cache;
+        if (cachedValue != null && cachedValue.device == device) {
+            cache = null;
+        }
+    }
+
+    @Override
+    public Optional<MappedMemoryRange> getMemoryRange(final MemoryMappedDevice device) {
+        return Optional.ofNullable(devices.get(device));
+    }
+
+    @Override
+    public Optional<MappedMemoryRange> getMemoryRange(final MemoryRange range) {
+        final MappedMemoryRange[] ranges = this.ranges;
+        final int index = findFirstEndingAtOrAfter(ranges, range.start);
+        if (index >= 0 && ranges[index].intersects(range)) {
+            return Optional.of(ranges[index]);
+        }
+
+        return Optional.empty();
+    }
+
+    @Nullable
+    @Override
+    public MappedMemoryRange getMemoryRange(final long address) {
+        final MappedMemoryRange cachedValue = cache; // Copy to local to avoid threading issues.
+        if (cachedValue != null && cachedValue.contains(address)) {
+            return cachedValue;
+        }
+
+        final MappedMemoryRange[] ranges = this.ranges;
+        final int index = findFirstEndingAtOrAfter(ranges, address);
+        if (index >= 0 && ranges[index].contains(address)) {
+            cache = ranges[index];
+            return ranges[index];
+        }
+
+        return null;
+    }
+
+    @Override
+    public void setDirty(final MemoryRange range, final int offset) {
+        if (range instanceof final MappedMemoryRange mappedRange) {
+            final DirtyPageTracker tracker = dirtyPages.get(mappedRange.device);
+            if (tracker != null) {
+                tracker.setDirty(offset);
+            }
+        }
+    }
+
+    @Override
+    public boolean isDirty(final MemoryMappedDevice device, final int offset) {
+        final DirtyPageTracker tracker = dirtyPages.get(device);
+        return tracker != null && tracker.isDirty(offset);
+    }
+
+    @Override
+    public BitSet getAndClearDirtyPages(final MemoryMappedDevice device) {
+        final DirtyPageTracker tracker = dirtyPages.get(device);
+        return tracker != null ? tracker.getAndClear() : new BitSet();
+    }
+
+    @Override
+    public long load(final long address, final int sizeLog2) throws MemoryAccessException {
+        final MappedMemoryRange range = getMemoryRange(address);
+        if (range != null && (range.device.getSupportedSizes() & (1 << sizeLog2)) != 0) {
+            return range.device.load((int) (address - range.start), sizeLog2);
+        }
+        return 0;
+    }
+
+    @Override
+    public void store(final long address, final long value, final int sizeLog2) throws MemoryAccessException {
+        final MappedMemoryRange range = getMemoryRange(address);
+        if (range != null && (range.device.getSupportedSizes() & (1 << sizeLog2)) != 0) {
+            final int offset = (int) (address - range.start);
+            range.device.store(offset, value, sizeLog2);
+            setDirty(range, offset);
+            setDirty(range, offset + (1 << sizeLog2) - 1); // In case of misaligned stores crossing a page boundary.
+        }
+    }
+
+    /**
+     * Finds the first range in the specified sorted array that ends at or after the specified address.
+     *
+     * @param ranges  the sorted ranges to search.
+     * @param address the address to search for.
+     * @return the index of the found range; or, if there is no such range, {@code ~ranges.length}.
+     */
+    private static int findFirstEndingAtOrAfter(final MappedMemoryRange[] ranges, final long address) {
+        int low = 0;
+        int high = ranges.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(ranges[mid].end, address) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < ranges.length ? low : ~low;
+    }
+}
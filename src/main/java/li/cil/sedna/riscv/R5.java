@@ -2,6 +2,8 @@ package li.cil.sedna.riscv;
 
 import li.cil.sedna.utils.BitUtils;
 
+import java.util.List;
+
 @SuppressWarnings({"unused", "RedundantSuppression", "PointlessBitwiseExpression"})
 public final class R5 {
     // Supported XLEN values.
@@ -123,6 +125,8 @@ public final class R5 {
     public static final long SATP_PPN_MASK64 = BitUtils.maskFromRange(0, 43);
     public static final long SATP_ASID_MASK64 = BitUtils.maskFromRange(44, 59);
     public static final long SATP_MODE_MASK64 = BitUtils.maskFromRange(60, 63);
+    public static final int SATP_ASID_SHIFT32 = 22;
+    public static final int SATP_ASID_SHIFT64 = 44;
 
     // SATP modes.
     public static final long SATP_MODE_NONE = 0L << 60;
@@ -132,6 +136,17 @@ public final class R5 {
     public static final long SATP_MODE_SV57 = 10L << 60;
     public static final long SATP_MODE_SV64 = 11L << 60;
 
+    // Environment configuration CSR (menvcfg, senvcfg) masks.
+    public static final int ENVCFG_CBIE_MASK = 0b11 << 4; // Cache block invalidate instruction enable.
+    public static final int ENVCFG_CBIE_RESERVED = 0b10 << 4; // Reserved value of the CBIE field.
+    public static final int ENVCFG_CBCFE_MASK = 0b1 << 6; // Cache block clean and flush instruction enable.
+    public static final int ENVCFG_CBZE_MASK = 0b1 << 7; // Cache block zero instruction enable.
+    public static final long ENVCFG_STCE_MASK = 1L << 63; // Supervisor timer compare enable (Sstc), menvcfg only.
+
+    // Size of the blocks operated on by cache block management instructions (Zicbom, Zicboz).
+    public static final int CACHE_BLOCK_SIZE_LOG2 = 6;
+    public static final int CACHE_BLOCK_SIZE = 1 << CACHE_BLOCK_SIZE_LOG2;
+
     // Page sizes are 4KiB (V2p73).
     public static final int PAGE_ADDRESS_SHIFT = 12; // 1<<12 == 4096; SATP << 12 == root PTE address
     public static final int PAGE_ADDRESS_MASK = (1 << PAGE_ADDRESS_SHIFT) - 1;
@@ -183,6 +198,9 @@ public final class R5 {
 
     public static final String CANONICAL_ISA_ORDER = "IEMAFDQLCBJTPVNSUHKORWXYZG";
 
+    // Supported extensions that have no bit in the misa CSR, in canonical order.
+    public static final List<String> MULTI_LETTER_EXTENSIONS = List.of("zicbom", "zicboz", "zba", "zbb", "zbs", "sstc");
+
     /**
      * Computes flags for the machine ISA CSR given a list of extension letters.
      *
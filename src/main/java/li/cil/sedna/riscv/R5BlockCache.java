@@ -0,0 +1,215 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps track of how often guest basic blocks are entered and holds compiled blocks for hot ones.
+ * <p>
+ * Blocks are kept in per-page tables, keyed by their physical location, i.e. the device they live
+ * in and the page of that device they start in. Within a page, blocks are indexed by their offset
+ * into the page, so that looking up the block for a location is a single array access once the
+ * table for the page is known. The CPU keeps a reference to the table in its fetch TLB entries.
+ * <p>
+ * Compiled blocks for a page must be dropped when the page is written to.
+ * <p>
+ * This class has to be public, because the generated CPU class is defined by its own class loader.
+ */
+public final class R5BlockCache {
+    // Number of times a block has to be entered before we compile it.
+    private static final int COMPILE_THRESHOLD = 64;
+
+    // When we exceed this many compiled blocks, we drop all of them and start over.
+    private static final int MAX_BLOCK_COUNT = 16 * 1024;
+
+    // When we exceed this many tracked pages, we drop all of them and start over.
+    private static final int MAX_PAGE_COUNT = 8 * 1024;
+
+    // Instructions are 16-bit aligned, so there are half as many possible block starts as bytes.
+    private static final int SLOT_COUNT = (1 << R5.PAGE_ADDRESS_SHIFT) >>> 1;
+
+    private static final byte UNCOMPILABLE = -1;
+
+    private final R5BlockCompiler compiler;
+    private final IdentityHashMap<MemoryMappedDevice, Int2ObjectOpenHashMap<Page>> pagesByDevice = new IdentityHashMap<>();
+    private int pageCount;
+    private int blockCount;
+
+    public R5BlockCache(final MethodHandles.Lookup lookup, final R5CostModel costModel) {
+        compiler = new R5BlockCompiler(lookup, costModel);
+    }
+
+    /**
+     * Get the block table for the page containing the specified location.
+     * <p>
+     * The returned table stays usable until {@link Page#contains(int)} returns {@code false},
+     * at which point it must be looked up again.
+     *
+     * @param device the device the code lives in.
+     * @param offset the offset into the device.
+     * @return the block table for the page.
+     */
+    public Page getPage(final MemoryMappedDevice device, final int offset) {
+        final int index = offset >>> R5.PAGE_ADDRESS_SHIFT;
+        Page page = getPages(device).get(index);
+        if (page == null) {
+            if (pageCount >= MAX_PAGE_COUNT) {
+                clear();
+            }
+
+            page = new Page(device, index);
+            getPages(device).put(index, page);
+            pageCount++;
+        }
+        return page;
+    }
+
+    /**
+     * Compiles a block at the specified location if code at that location has become hot.
+     *
+     * @param page   the table for the page the code lives in.
+     * @param offset the offset of the first instruction in the device.
+     * @param end    the offset up to which 32-bit instructions may be read from the device.
+     * @return the newly compiled block, or {@code null} if no block was compiled.
+     */
+    @Nullable
+    public R5BlockCompiler.Block compileIfHot(final Page page, final int offset, final int end) {
+        final int slot = Page.getSlot(offset);
+        if (page.entryCounts[slot] < COMPILE_THRESHOLD) {
+            return null;
+        }
+
+        final R5BlockCompiler.Block block = compiler.compile(page.device, offset, end);
+        if (block == null) {
+            page.entryCounts[slot] = UNCOMPILABLE;
+            return null;
+        }
+
+        Page target = page;
+        if (blockCount >= MAX_BLOCK_COUNT) {
+            clear();
+            target = getPage(page.device, offset);
+        }
+
+        target.add(slot, block);
+        blockCount++;
+
+        return block;
+    }
+
+    /**
+     * Drops all compiled blocks in the page containing the specified offset.
+     *
+     * @param device the device that was written to.
+     * @param offset the offset in the device that was written to.
+     */
+    public void invalidate(final MemoryMappedDevice device, final int offset) {
+        final Int2ObjectOpenHashMap<Page> pages = pagesByDevice.get(device);
+        if (pages != null) {
+            final Page page = pages.get(offset >>> R5.PAGE_ADDRESS_SHIFT);
+            if (page != null) {
+                blockCount -= page.reset();
+            }
+        }
+    }
+
+    /**
+     * Drops all compiled blocks and collected entry counts.
+     */
+    public void clear() {
+        for (final Int2ObjectOpenHashMap<Page> pages : pagesByDevice.values()) {
+            for (final Page page : pages.values()) {
+                page.isValid = false;
+            }
+        }
+        pagesByDevice.clear();
+        pageCount = 0;
+        blockCount = 0;
+    }
+
+    private Int2ObjectOpenHashMap<Page> getPages(final MemoryMappedDevice device) {
+        return pagesByDevice.computeIfAbsent(device, d -> new Int2ObjectOpenHashMap<>());
+    }
+
+    /**
+     * The compiled blocks and entry counts for a single page of a device.
+     */
+    public static final class Page {
+        private final MemoryMappedDevice device;
+        private final int index;
+        private final byte[] entryCounts = new byte[SLOT_COUNT];
+        @Nullable private R5BlockCompiler.Block[] blocks; // Only allocated once a block in this page is compiled.
+        private int blockCount;
+        private boolean isValid = true;
+
+        private Page(final MemoryMappedDevice device, final int index) {
+            this.device = device;
+            this.index = index;
+        }
+
+        /**
+         * Checks whether this table is still in use and holds blocks for the specified offset.
+         *
+         * @param offset the offset into the device.
+         * @return {@code true} if this table may be used for the offset; {@code false} otherwise.
+         */
+        public boolean contains(final int offset) {
+            return isValid && index == offset >>> R5.PAGE_ADDRESS_SHIFT;
+        }
+
+        /**
+         * Get the compiled block starting at the specified location, if there is one.
+         * <p>
+         * This also counts the entry into the block at this location, so it should be called exactly
+         * once each time code at the specified location is about to be run.
+         *
+         * @param offset the offset of the first instruction in the device.
+         * @return the compiled block, if any.
+         */
+        @Nullable
+        public R5BlockCompiler.Block get(final int offset) {
+            final int slot = getSlot(offset);
+            if (blocks != null) {
+                final R5BlockCompiler.Block block = blocks[slot];
+                if (block != null) {
+                    return block;
+                }
+            }
+
+            final byte count = entryCounts[slot];
+            if (count != UNCOMPILABLE && count < COMPILE_THRESHOLD) {
+                entryCounts[slot] = (byte) (count + 1);
+            }
+            return null;
+        }
+
+        private static int getSlot(final int offset) {
+            return (offset & R5.PAGE_ADDRESS_MASK) >>> 1;
+        }
+
+        private void add(final int slot, final R5BlockCompiler.Block block) {
+            if (blocks == null) {
+                blocks = new R5BlockCompiler.Block[SLOT_COUNT];
+            }
+            blocks[slot] = block;
+            blockCount++;
+        }
+
+        private int reset() {
+            if (blocks == null) {
+                return 0;
+            }
+
+            final int removed = blockCount;
+            blocks = null;
+            blockCount = 0;
+            Arrays.fill(entryCounts, (byte) 0);
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionDefinition;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.argument.ProgramCounterInstructionArgument;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
+import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
+import li.cil.sedna.riscv.exception.R5MemoryAccessException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+
+/**
+ * Compiles guest basic blocks to JVM byte code.
+ * <p>
+ * A compiled block is a hidden class that calls the instruction implementations of the CPU directly,
+ * with all instruction fields extracted at compile time. Blocks are defined as nest mates of the CPU
+ * class, which allows them to call its private instruction methods and access its fields.
+ * <p>
+ * Blocks are compiled from physical memory, i.e. they do not know the virtual address they are run
+ * at. The program counter of the first instruction is passed in when running the block instead, so
+ * the same block may be used for all virtual addresses the physical page is mapped to.
+ * <p>
+ * This class has to be public, because the generated CPU class is defined by its own class loader.
+ */
+public final class R5BlockCompiler implements Opcodes {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int MAX_BLOCK_INSTRUCTIONS = 64;
+
+    private static final String BLOCK_INTERFACE_NAME = Type.getInternalName(CompiledBlock.class);
+    private static final String RUN_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(R5CPU.class), Type.LONG_TYPE);
+    private static final String[] RUN_METHOD_EXCEPTIONS = {
+        Type.getInternalName(R5IllegalInstructionException.class),
+        Type.getInternalName(R5MemoryAccessException.class)
+    };
+
+    private static final int LOCAL_THIS = 0;
+    private static final int LOCAL_PC = 2;
+    private static final int LOCAL_CPU = 4;
+
+    private final MethodHandles.Lookup lookup;
+    private final String hostClassInternalName;
+    private final AbstractDecoderTreeNode decoderTree;
+    private final R5CostModel costModel;
+
+    public R5BlockCompiler(final MethodHandles.Lookup lookup, final R5CostModel costModel) {
+        this.lookup = lookup;
+        this.hostClassInternalName = Type.getInternalName(lookup.lookupClass());
+        this.decoderTree = R5Instructions.RV64.getDecoderTree();
+        this.costModel = costModel;
+    }
+
+    /**
+     * Compiles the instructions starting at the specified offset into the specified device into a block.
+     * <p>
+     * Blocks end at the first instruction that may change control flow or exit the current trace, or when
+     * the specified end offset is reached. Only RV64 instructions are supported.
+     *
+     * @param device the device to read instructions from.
+     * @param offset the offset of the first instruction of the block in the device.
+     * @param end    the offset up to which 32-bit instructions may be read from the device.
+     * @return the compiled block, or {@code null} if no block can be compiled at the specified location.
+     */
+    @Nullable
+    public Block compile(final MemoryMappedDevice device, final int offset, final int end) {
+        final IntArrayList instructions = new IntArrayList();
+        final IntArrayList offsets = new IntArrayList();
+        final ArrayList<InstructionDeclaration> declarations = new ArrayList<>();
+        final ArrayList<InstructionDefinition> definitions = new ArrayList<>();
+
+        int instOffset = offset;
+        while (instructions.size() < MAX_BLOCK_INSTRUCTIONS && instOffset < end) {
+            final int inst;
+            try {
+                inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
+            } catch (final MemoryAccessException e) {
+                break;
+            }
+
+            final InstructionDeclaration declaration = decoderTree.query(inst);
+            if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+                break; // Leave it to the interpreter to raise the exception.
+            }
+
+            final InstructionDefinition definition;
+            if (declaration.type == InstructionType.NOP) {
+                definition = null;
+            } else {
+                definition = R5Instructions.RV64.getDefinition(declaration);
+                if (definition == null) {
+                    break;
+                }
+            }
+
+            instructions.add(inst);
+            offsets.add(instOffset - offset);
+            declarations.add(declaration);
+            definitions.add(definition);
+
+            instOffset += declaration.size;
+
+            if (definition != null && (definition.writesPC || definition.returnsBoolean)) {
+                break;
+            }
+        }
+
+        if (instructions.isEmpty()) {
+            return null;
+        }
+
+        final byte[] bytes = generateClass(instructions, offsets, declarations, definitions);
+        try {
+            final MethodHandles.Lookup blockLookup = lookup.defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+            final CompiledBlock code = (CompiledBlock) blockLookup
+                .findConstructor(blockLookup.lookupClass(), MethodType.methodType(void.class))
+                .invoke();
+            return new Block(code, offset, instOffset - offset, offsets.toIntArray(), instructions.toIntArray());
+        } catch (final Throwable e) {
+            LOGGER.warn("Failed compiling block.", e);
+            return null;
+        }
+    }
+
+    private byte[] generateClass(final IntArrayList instructions,
+                                 final IntArrayList offsets,
+                                 final ArrayList<InstructionDeclaration> declarations,
+                                 final ArrayList<InstructionDefinition> definitions) {
+        final ClassWriter writer = new BlockClassWriter();
+        writer.visit(V17, ACC_FINAL | ACC_SUPER, hostClassInternalName + "$Block", null,
+            Type.getInternalName(Object.class), new String[]{BLOCK_INTERFACE_NAME});
+
+        final MethodVisitor ctor = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        ctor.visitCode();
+        ctor.visitVarInsn(ALOAD, LOCAL_THIS);
+        ctor.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+        ctor.visitInsn(RETURN);
+        ctor.visitMaxs(-1, -1);
+        ctor.visitEnd();
+
+        final MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, "run", RUN_METHOD_DESCRIPTOR, null, RUN_METHOD_EXCEPTIONS);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, hostClassInternalName);
+        mv.visitVarInsn(ASTORE, LOCAL_CPU);
+
+        // Cycles are accumulated and only written back when we may leave the block, to avoid
+        // a read-modify-write of the field per instruction. Cycles beyond the first one of each
+        // instruction do not retire instructions, so they are tracked separately.
+        int pendingCycles = 0;
+        int pendingNonRetiringCycles = 0;
+        boolean exited = false;
+        for (int i = 0; i < instructions.size(); i++) {
+            final int inst = instructions.getInt(i);
+            final int instOffset = offsets.getInt(i);
+            final InstructionDeclaration declaration = declarations.get(i);
+            final InstructionDefinition definition = definitions.get(i);
+
+            if (definition == null) { // NOP
+                pendingCycles++;
+                continue;
+            }
+
+            final int cost = costModel.getCost(declaration);
+            pendingCycles += cost;
+            pendingNonRetiringCycles += cost - 1;
+
+            final boolean mayThrow = definition.thrownExceptions != null && definition.thrownExceptions.length > 0;
+            if (mayThrow || definition.writesPC || definition.returnsBoolean) {
+                // Make sure the CPU state is correct when we leave the block from inside the instruction,
+                // which includes raising an exception, where the PC field is used for the exception PC.
+                emitAddCycles(mv, pendingCycles, pendingNonRetiringCycles);
+                pendingCycles = 0;
+                pendingNonRetiringCycles = 0;
+                emitSavePC(mv, instOffset);
+            }
+
+            mv.visitVarInsn(ALOAD, LOCAL_CPU);
+            final StringBuilder methodDescriptor = new StringBuilder("(");
+            for (final InstructionArgument argument : definition.parameters) {
+                if (argument instanceof ProgramCounterInstructionArgument) {
+                    emitPC(mv, instOffset);
+                    methodDescriptor.append('J');
+                } else {
+                    emitFastLdc(mv, argument.get(inst));
+                    methodDescriptor.append('I');
+                }
+            }
+            methodDescriptor.append(')').append(definition.returnsBoolean ? 'Z' : 'V');
+
+            mv.visitMethodInsn(INVOKEVIRTUAL, hostClassInternalName, definition.methodName, methodDescriptor.toString(), false);
+
+            if (definition.returnsBoolean) {
+                final Label continueLabel = new Label();
+                mv.visitJumpInsn(IFEQ, continueLabel);
+                if (!definition.writesPC) {
+                    emitSavePC(mv, instOffset + declaration.size);
+                }
+                mv.visitInsn(RETURN);
+                mv.visitLabel(continueLabel);
+            } else if (definition.writesPC) {
+                mv.visitInsn(RETURN);
+                exited = true;
+            }
+        }
+
+        if (!exited) {
+            final int lastIndex = instructions.size() - 1;
+            emitAddCycles(mv, pendingCycles, pendingNonRetiringCycles);
+            emitSavePC(mv, offsets.getInt(lastIndex) + declarations.get(lastIndex).size);
+            mv.visitInsn(RETURN);
+        }
+
+        mv.visitMaxs(-1, -1);
+        mv.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private void emitPC(final MethodVisitor mv, final int instOffset) {
+        mv.visitVarInsn(LLOAD, LOCAL_PC);
+        if (instOffset != 0) {
+            mv.visitLdcInsn((long) instOffset);
+            mv.visitInsn(LADD);
+        }
+    }
+
+    private void emitSavePC(final MethodVisitor mv, final int instOffset) {
+        mv.visitVarInsn(ALOAD, LOCAL_CPU);
+        emitPC(mv, instOffset);
+        mv.visitFieldInsn(PUTFIELD, hostClassInternalName, "pc", "J");
+    }
+
+    private void emitAddCycles(final MethodVisitor mv, final int cycles, final int nonRetiringCycles) {
+        emitAddToField(mv, "mcycle", cycles);
+        emitAddToField(mv, "nonRetiringCycles", nonRetiringCycles);
+    }
+
+    private void emitAddToField(final MethodVisitor mv, final String name, final int value) {
+        if (value == 0) {
+            return;
+        }
+
+        mv.visitVarInsn(ALOAD, LOCAL_CPU);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETFIELD, hostClassInternalName, name, "J");
+        mv.visitLdcInsn((long) value);
+        mv.visitInsn(LADD);
+        mv.visitFieldInsn(PUTFIELD, hostClassInternalName, name, "J");
+    }
+
+    private static void emitFastLdc(final MethodVisitor mv, final int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Interface implemented by compiled blocks.
+     */
+    public interface CompiledBlock {
+        /**
+         * Runs the block on the specified CPU.
+         * <p>
+         * When this returns, the program counter of the CPU points to the next instruction to execute.
+         * When this throws, the program counter of the CPU points to the instruction that raised the
+         * exception.
+         *
+         * @param cpu the CPU to run the block on. Must be an instance of the class the block was compiled for.
+         * @param pc  the program counter of the first instruction of the block.
+         */
+        void run(R5CPU cpu, long pc) throws R5IllegalInstructionException, R5MemoryAccessException;
+    }
+
+    public static final class Block {
+        public final CompiledBlock code;
+        public final int offset; // Device offset of the first instruction.
+        public final int size; // Size of the block in bytes.
+        private final int[] instructionOffsets;
+        private final int[] instructions;
+
+        private Block(final CompiledBlock code, final int offset, final int size, final int[] instructionOffsets, final int[] instructions) {
+            this.code = code;
+            this.offset = offset;
+            this.size = size;
+            this.instructionOffsets = instructionOffsets;
+            this.instructions = instructions;
+        }
+
+        /**
+         * Get the raw instruction at the specified offset relative to the start of the block.
+         *
+         * @param instOffset the offset of the instruction in the block.
+         * @return the instruction at that offset.
+         */
+        public int getInstruction(final int instOffset) {
+            for (int i = 0; i < instructionOffsets.length; i++) {
+                if (instructionOffsets[i] == instOffset) {
+                    return instructions[i];
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final class BlockClassWriter extends ClassWriter {
+        public BlockClassWriter() {
+            super(COMPUTE_FRAMES);
+        }
+
+        @Override
+        protected String getCommonSuperClass(final String type1, final String type2) {
+            // Frames in blocks never merge different types, but we must not try to load the
+            // CPU class through our class loader if it happens to get asked anyway.
+            return Type.getInternalName(Object.class);
+        }
+    }
+}
@@ -16,7 +16,7 @@ import li.cil.sedna.device.flash.FlashMemoryDevice;
 import li.cil.sedna.devicetree.DeviceTreeRegistry;
 import li.cil.sedna.devicetree.FlattenedDeviceTree;
 import li.cil.sedna.gdbstub.GDBStub;
-import li.cil.sedna.memory.SimpleMemoryMap;
+import li.cil.sedna.memory.SortedMemoryMap;
 import li.cil.sedna.riscv.device.R5CoreLocalInterrupter;
 import li.cil.sedna.riscv.device.R5PlatformLevelInterruptController;
 import li.cil.sedna.riscv.device.R5SystemController;
@@ -24,14 +24,22 @@ import li.cil.sedna.riscv.exception.R5SystemPowerOffException;
 import li.cil.sedna.riscv.exception.R5SystemResetException;
 
 import javax.annotation.Nullable;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public final class R5Board implements Board {
+public final class R5Board implements Board, Closeable {
     private static final long SYSCON_ADDRESS = 0x01000000L;
     private static final long CLINT_ADDRESS = 0x02000000L;
     private static final long PLIC_ADDRESS = 0x0C000000L;
@@ -50,7 +58,17 @@ public final class R5Board implements Board {
     private GDBStub gdbStub;
     private boolean waitForGdb = false;
 
+    // Harts other than the first one are stepped in parallel, each on its own thread.
+    @Nullable private final ExecutorService hartExecutor;
+    @Nullable private final Future<?>[] hartFutures;
+    private final SecondaryHartTime[] secondaryHartTimes;
+
+    private final R5CPU[] harts;
+
+    // The first hart is kept in its own field, so that boards saved before multiple harts
+    // were supported can still be loaded.
     @Serialized private final R5CPU cpu;
+    @Serialized private final R5CPU[] secondaryHarts;
     @Serialized private final R5CoreLocalInterrupter clint;
     @Serialized private final R5PlatformLevelInterruptController plic;
     @Serialized private String bootargs;
@@ -58,18 +76,72 @@ public final class R5Board implements Board {
     @Serialized private boolean isRestarting;
 
     public R5Board() {
-        memoryMap = new SimpleMemoryMap();
-        rtc = cpu = R5CPU.create(memoryMap);
+        this(1);
+    }
 
-        flash = new FlashMemoryDevice(FLASH_SIZE);
-        clint = new R5CoreLocalInterrupter(rtc);
-        plic = new R5PlatformLevelInterruptController();
+    /**
+     * Creates a new board with the specified number of harts.
+     * <p>
+     * When using more than one hart, all harts but the first one are each stepped on a
+     * thread of their own. All harts are stepped in parallel, and {@link #step(int)} will
+     * return once all harts have run for the specified number of cycles. Call {@link #close()}
+     * once the board is no longer needed to stop these threads.
+     *
+     * @param hartCount the number of harts.
+     */
+    public R5Board(final int hartCount) {
+        this(hartCount, R5CostModel.DEFAULT);
+    }
 
-        steppableDevices.add(cpu);
+    /**
+     * Creates a new board with the specified number of harts, using the specified instruction cost model.
+     *
+     * @param hartCount the number of harts.
+     * @param costModel the cost model defining how many cycles instructions take on the harts.
+     * @see #R5Board(int)
+     */
+    public R5Board(final int hartCount, final R5CostModel costModel) {
+        if (hartCount < 1) {
+            throw new IllegalArgumentException("hartCount must be positive");
+        }
+
+        memoryMap = new SortedMemoryMap();
+        harts = new R5CPU[hartCount];
+        harts[0] = R5CPU.create(memoryMap, null, null, costModel);
+        rtc = harts[0];
+        secondaryHartTimes = new SecondaryHartTime[hartCount - 1];
+        for (int i = 1; i < hartCount; i++) {
+            final SecondaryHartTime time = new SecondaryHartTime(rtc);
+            harts[i] = R5CPU.create(memoryMap, time, null, costModel);
+            time.hart = harts[i];
+            secondaryHartTimes[i - 1] = time;
+        }
+        cpu = harts[0];
+        secondaryHarts = Arrays.copyOfRange(harts, 1, hartCount);
+
+        flash = new FlashMemoryDevice(FLASH_SIZE);
+        clint = new R5CoreLocalInterrupter(rtc, harts[0]);
+        plic = new R5PlatformLevelInterruptController(hartCount);
 
         // Wire up interrupts.
-        clint.putHart(0, cpu);
-        plic.setHart(cpu);
+        for (int i = 0; i < hartCount; i++) {
+            harts[i].setHartId(i);
+            clint.putHart(i, harts[i]);
+            plic.putHart(i, harts[i]);
+        }
+
+        if (hartCount > 1) {
+            final AtomicInteger threadIndex = new AtomicInteger(1);
+            hartExecutor = Executors.newFixedThreadPool(hartCount - 1, runnable -> {
+                final Thread thread = new Thread(runnable, "Sedna Hart " + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            hartFutures = new Future<?>[hartCount - 1];
+        } else {
+            hartExecutor = null;
+            hartFutures = null;
+        }
 
         // Map devices to memory.
         addDevice(SYSCON_ADDRESS, new R5SystemController());
@@ -94,6 +166,39 @@ public final class R5Board implements Board {
         return cpu;
     }
 
+    public int getHartCount() {
+        return harts.length;
+    }
+
+    public R5CPU getHart(final int index) {
+        return harts[index];
+    }
+
+    /**
+     * Returns the devices added to this board, ordered by the address they are mapped at.
+     *
+     * @return the devices of this board.
+     */
+    public List<MemoryMappedDevice> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+
+    /**
+     * Returns the pages of a device that have been written to since the last call and marks them clean.
+     * <p>
+     * This must not be called while the board is being stepped.
+     *
+     * @param device the device to get the dirty pages for.
+     * @return the indices of the dirty pages, see {@link MemoryMap#getAndClearDirtyPages(MemoryMappedDevice)}.
+     */
+    public BitSet getAndClearDirtyPages(final MemoryMappedDevice device) {
+        final BitSet result = memoryMap.getAndClearDirtyPages(device);
+        for (final R5CPU hart : harts) {
+            hart.invalidateStoreCaches();
+        }
+        return result;
+    }
+
     @Override
     public MemoryMap getMemoryMap() {
         return memoryMap;
@@ -139,7 +244,7 @@ public final class R5Board implements Board {
             steppableDevices.add((Steppable) device);
         }
 
-        cpu.invalidateCaches();
+        invalidateCaches();
 
         return true;
     }
@@ -167,7 +272,7 @@ public final class R5Board implements Board {
             standardOutputDevice = null;
         }
 
-        cpu.invalidateCaches();
+        invalidateCaches();
     }
 
     @Override
@@ -199,7 +304,7 @@ public final class R5Board implements Board {
     public void enableGDB(final int port, final boolean waitForGdb) {
         GDBStub gdbStub;
         try {
-            gdbStub = GDBStub.createDefault(cpu.getDebugInterface(), port);
+            gdbStub = GDBStub.createDefault(harts[0].getDebugInterface(), port);
         } catch (final IOException e) {
             e.printStackTrace();
             gdbStub = null;
@@ -220,8 +325,22 @@ public final class R5Board implements Board {
         }
 
         try {
-            for (final Steppable device : steppableDevices) {
-                device.step(cycles);
+            // Split the step at timer deadlines, so that timer interrupts are raised on time. Harts
+            // waiting for an interrupt skip over their slices, so idle time costs next to nothing.
+            int remaining = cycles;
+            while (remaining > 0) {
+                for (final SecondaryHartTime time : secondaryHartTimes) {
+                    time.synchronize();
+                }
+
+                final int slice = getSliceLength(remaining);
+                remaining -= slice;
+
+                stepHarts(slice);
+
+                for (final Steppable device : steppableDevices) {
+                    device.step(slice);
+                }
             }
         } catch (final R5SystemResetException e) {
             reset();
@@ -232,9 +351,62 @@ public final class R5Board implements Board {
         }
     }
 
+    @Override
+    public boolean isIdle() {
+        if (!isRunning()) {
+            return true;
+        }
+
+        for (final R5CPU hart : harts) {
+            if (!hart.isIdle()) {
+                return false;
+            }
+        }
+
+        for (final Steppable device : steppableDevices) {
+            if (!device.isIdle()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public long getCyclesUntilWakeup() {
+        if (!isRunning()) {
+            return Long.MAX_VALUE;
+        }
+
+        long cycles = Long.MAX_VALUE;
+        for (final R5CPU hart : harts) {
+            cycles = Math.min(cycles, hart.getCyclesUntilWakeup());
+        }
+        for (final Steppable device : steppableDevices) {
+            cycles = Math.min(cycles, device.getCyclesUntilWakeup());
+        }
+        return cycles;
+    }
+
+    /**
+     * Waits for devices processing work asynchronously to complete it, see {@link Drainable}.
+     * <p>
+     * This must be called before serializing the board and its devices. It must not be called
+     * while the board is being stepped.
+     */
+    public void drain() {
+        for (final MemoryMappedDevice device : devices) {
+            if (device instanceof Drainable) {
+                ((Drainable) device).drain();
+            }
+        }
+    }
+
     @Override
     public void reset() {
-        cpu.reset();
+        for (final R5CPU hart : harts) {
+            hart.reset();
+        }
 
         for (final MemoryMappedDevice device : devices) {
             if (device instanceof Resettable) {
@@ -243,6 +415,89 @@ public final class R5Board implements Board {
         }
     }
 
+    /**
+     * Stops the threads used to step secondary harts.
+     * <p>
+     * This must not be called while the board is being stepped. The board cannot be stepped afterwards.
+     */
+    @Override
+    public void close() {
+        if (hartExecutor != null) {
+            hartExecutor.shutdown();
+        }
+    }
+
+    private int getSliceLength(final int cycles) {
+        // Secondary harts only check their supervisor timer at the start of a step, so stop at those deadlines, too.
+        long deadline = clint.getNextDeadline();
+        for (final R5CPU hart : harts) {
+            final long hartDeadline = hart.getSupervisorTimerDeadline();
+            if (Long.compareUnsigned(hartDeadline, deadline) < 0) {
+                deadline = hartDeadline;
+            }
+        }
+
+        // Time is the cycle counter of the first hart, so we can tell exactly how many cycles to run.
+        final long cyclesUntilDeadline = deadline - rtc.getTime();
+        if (cyclesUntilDeadline <= 0 || cyclesUntilDeadline >= cycles) {
+            return cycles;
+        }
+        return (int) cyclesUntilDeadline;
+    }
+
+    private void stepHarts(final int cycles) {
+        if (hartExecutor == null || hartFutures == null) {
+            harts[0].step(cycles);
+            return;
+        }
+
+        for (int i = 1; i < harts.length; i++) {
+            final R5CPU hart = harts[i];
+            hartFutures[i - 1] = hartExecutor.submit(() -> hart.step(cycles));
+        }
+
+        // Always wait for all harts to finish their slice, even if one of them fails,
+        // so that nothing is still running when we e.g. reset the board.
+        RuntimeException exception = null;
+        try {
+            harts[0].step(cycles);
+        } catch (final RuntimeException e) {
+            exception = e;
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < hartFutures.length; i++) {
+            while (true) {
+                try {
+                    hartFutures[i].get();
+                    break;
+                } catch (final ExecutionException e) {
+                    if (exception == null) {
+                        exception = e.getCause() instanceof final RuntimeException cause ? cause : new RuntimeException(e.getCause());
+                    }
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true; // Keep waiting, the hart is still running.
+                }
+            }
+            hartFutures[i] = null;
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void invalidateCaches() {
+        for (final R5CPU hart : harts) {
+            hart.invalidateCaches();
+        }
+    }
+
     public void initialize() throws IllegalStateException, MemoryAccessException {
         initialize(getDefaultProgramStart());
     }
@@ -285,29 +540,40 @@ public final class R5Board implements Board {
         final int auipc = 0b0010111;
         final int ld = 0b011_00000_0000011;
         final int jalr = 0b1100111;
+        final int csrrs = 0b010_00000_1110011;
 
         final int rd_t0 = 5 << 7;
+        final int rd_a0 = 10 << 7;
         final int rd_a1 = 11 << 7;
         final int rs1_t0 = 5 << 15;
 
-        final int imm_fdtAddressOffset = 0x10 << 20;
-        final int imm_programStartOffset = 0x18 << 20;
+        final int csr_mhartid = 0xF14 << 20;
 
-        // 0x0000  auipc t0, 0 ; x5 = pc
+        // Offsets are relative to t0, i.e. the address of the auipc.
+        final int imm_fdtAddressOffset = 0x14 << 20;
+        final int imm_programStartOffset = 0x1C << 20;
+
+        // 0x0000  csrr a0, mhartid ; a0 = hart id
+        data.putInt(csrrs | rd_a0 | csr_mhartid);
+
+        // 0x0004  auipc t0, 0 ; x5 = pc
         data.putInt(auipc | rd_t0);
 
-        // 0x0004  ld a1, 8(t0) ; a1 = *(t0 + 8) = fdtAddress
+        // 0x0008  ld a1, 0x14(t0) ; a1 = *(t0 + 0x14) = fdtAddress
         data.putInt(ld | rd_a1 | rs1_t0 | imm_fdtAddressOffset);
 
-        // 0x0008  ld t0, 12(t0) ; t0 = *(t0 + 12) = programStart
+        // 0x000C  ld t0, 0x1C(t0) ; t0 = *(t0 + 0x1C) = programStart
         data.putInt(ld | rd_t0 | rs1_t0 | imm_programStartOffset);
 
-        // 0x000C  jalr t0 ; jump to firmware
+        // 0x0010  jalr t0 ; jump to firmware
         data.putInt(jalr | rs1_t0);
 
-        // 0x0010  fdtAddress
+        // 0x0014  padding, keeps data 8-byte aligned
+        data.putInt(0);
+
+        // 0x0018  fdtAddress
         data.putLong(fdtAddress.getAsLong());
-        // 0x0018  programStart
+        // 0x0020  programStart
         data.putLong(programStart);
     }
 
@@ -319,30 +585,39 @@ public final class R5Board implements Board {
             .addProp(DevicePropertyNames.COMPATIBLE, "riscv-sedna", "riscv-virtio")
             .addProp(DevicePropertyNames.MODEL, "riscv-virtio,sedna");
 
-        root.putChild(DeviceNames.CPUS, cpus -> cpus
+        final DeviceTree cpus = root.getChild(DeviceNames.CPUS)
             .addProp(DevicePropertyNames.NUM_ADDRESS_CELLS, 1)
             .addProp(DevicePropertyNames.NUM_SIZE_CELLS, 0)
-            .addProp(DevicePropertyNames.TIMEBASE_FREQUENCY, rtc.getFrequency())
+            .addProp(DevicePropertyNames.TIMEBASE_FREQUENCY, rtc.getFrequency());
 
-            .putChild("cpu-map", cpuMap -> cpuMap
-                .putChild("cluster0", cluster -> cluster
-                    .addProp("core0", root.getPHandle(cpu))))
+        cpus.putChild("cpu-map", cpuMap -> cpuMap
+            .putChild("cluster0", cluster -> {
+                for (int hartId = 0; hartId < harts.length; hartId++) {
+                    cluster.addProp("core" + hartId, root.getPHandle(harts[hartId]));
+                }
+            }));
 
-            .putChild(DeviceNames.CPU, 0, cpuNode -> cpuNode
+        for (int i = 0; i < harts.length; i++) {
+            final int hartId = i;
+            final R5CPU hart = harts[i];
+            cpus.putChild(DeviceNames.CPU, hartId, cpuNode -> cpuNode
                 .addProp(DevicePropertyNames.DEVICE_TYPE, DeviceNames.CPU)
-                .addProp(DevicePropertyNames.REG, 0)
+                .addProp(DevicePropertyNames.REG, hartId)
                 .addProp(DevicePropertyNames.STATUS, "okay")
                 .addProp(DevicePropertyNames.COMPATIBLE, "riscv")
-                .addProp("riscv,isa", getISAString(cpu))
+                .addProp("riscv,isa", getISAString(hart))
+                .addProp("riscv,cbom-block-size", R5.CACHE_BLOCK_SIZE)
+                .addProp("riscv,cboz-block-size", R5.CACHE_BLOCK_SIZE)
 
                 .addProp(DevicePropertyNames.MMU_TYPE, "riscv,sv48")
-                .addProp(DevicePropertyNames.CLOCK_FREQUENCY, cpu.getFrequency())
+                .addProp(DevicePropertyNames.CLOCK_FREQUENCY, hart.getFrequency())
 
                 .putChild(DeviceNames.INTERRUPT_CONTROLLER, ic -> ic
                     .addProp(DevicePropertyNames.NUM_INTERRUPT_CELLS, 1)
                     .addProp(DevicePropertyNames.INTERRUPT_CONTROLLER)
                     .addProp(DevicePropertyNames.COMPATIBLE, "riscv,cpu-intc")
-                    .addProp(DevicePropertyNames.PHANDLE, ic.getPHandle(cpu)))));
+                    .addProp(DevicePropertyNames.PHANDLE, ic.getPHandle(hart))));
+        }
 
         root.putChild("soc", soc -> soc
             .addProp(DevicePropertyNames.NUM_ADDRESS_CELLS, 2)
@@ -373,6 +648,40 @@ public final class R5Board implements Board {
                 isa.append(Character.toLowerCase(i));
             }
         }
+        for (final String extension : R5.MULTI_LETTER_EXTENSIONS) {
+            isa.append('_').append(extension);
+        }
         return isa.toString();
     }
+
+    /**
+     * Time as seen by secondary harts.
+     * <p>
+     * Reading the first hart's cycle counter from other harts would race with it being stepped in parallel.
+     * Instead, secondary harts use their own cycle counter, offset to match the first hart's at the start
+     * of each slice.
+     */
+    private static final class SecondaryHartTime implements RealTimeCounter {
+        private final RealTimeCounter rtc;
+        private R5CPU hart;
+        private long offset;
+
+        public SecondaryHartTime(final RealTimeCounter rtc) {
+            this.rtc = rtc;
+        }
+
+        public void synchronize() {
+            offset = rtc.getTime() - hart.getTime();
+        }
+
+        @Override
+        public long getTime() {
+            return hart.getTime() + offset;
+        }
+
+        @Override
+        public int getFrequency() {
+            return rtc.getFrequency();
+        }
+    }
 }
@@ -14,6 +14,23 @@ public interface R5CPU extends Steppable, Resettable, RealTimeCounter, Interrupt
         return R5CPUGenerator.create(physicalMemory, rtc);
     }
 
+    static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler) {
+        return R5CPUGenerator.create(physicalMemory, rtc, profiler);
+    }
+
+    /**
+     * Creates a new CPU charging cycles for instructions according to the specified cost model.
+     *
+     * @param physicalMemory the memory map the CPU accesses memory through.
+     * @param rtc            the real time counter to use for the {@code time} CSR, or {@code null} to use the CPU itself.
+     * @param profiler       the profiler to collect execution statistics with, or {@code null}.
+     * @param costModel      the cost model defining how many cycles instructions take.
+     * @return the new CPU.
+     */
+    static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler, final R5CostModel costModel) {
+        return R5CPUGenerator.create(physicalMemory, rtc, profiler, costModel);
+    }
+
     static R5CPU create(final MemoryMap physicalMemory) {
         return create(physicalMemory, null);
     }
@@ -24,8 +41,71 @@ public interface R5CPU extends Steppable, Resettable, RealTimeCounter, Interrupt
 
     void reset(boolean hard, long pc);
 
+    /**
+     * Returns the number of instructions retired so far, as reported by the {@code minstret} CSR.
+     * <p>
+     * Unlike the cycle counter, see {@link #getTime()}, this is not affected by instruction costs,
+     * traps or time spent waiting for interrupts.
+     *
+     * @return the number of instructions retired.
+     */
+    long getInstructionsRetired();
+
     void invalidateCaches();
 
+    /**
+     * Drops all cached store address translations.
+     * <p>
+     * Harts only mark pages dirty in the memory map when caching a translation for a store,
+     * so this must be called after clearing dirty pages for later stores to be tracked.
+     */
+    void invalidateStoreCaches();
+
+    /**
+     * Sets the ID of this hart, as reported by the {@code mhartid} CSR.
+     *
+     * @param value the hart ID.
+     */
+    void setHartId(int value);
+
+    /**
+     * Returns the time at which the supervisor timer of this hart fires next.
+     * <p>
+     * The returned value is an unsigned time value as returned by the {@link RealTimeCounter} used by
+     * this hart. If the supervisor timer (Sstc) is disabled or does not lie in the future, {@code -1},
+     * i.e. the maximum unsigned value, is returned.
+     *
+     * @return the time at which the next supervisor timer interrupt is due.
+     */
+    long getSupervisorTimerDeadline();
+
+    /**
+     * Sets whether frequently executed basic blocks are compiled to byte code.
+     * <p>
+     * This is disabled by default. Disabling it drops all compiled blocks, leaving execution to the interpreter.
+     *
+     * @param value whether block compilation is enabled.
+     */
+    void setBlockCompilationEnabled(boolean value);
+
+    /**
+     * Sets whether instructions in frequently executed pages are kept in decoded form, for the interpreter to
+     * run them without fetching and decoding them again.
+     * <p>
+     * This is enabled by default. Disabling it drops all decoded instructions.
+     *
+     * @param value whether predecoding is enabled.
+     */
+    void setPredecodingEnabled(boolean value);
+
+    /**
+     * Configures the size of the translation look-aside buffers. This flushes the buffers.
+     *
+     * @param size the number of entries per buffer. Must be a power of two.
+     * @param ways the number of entries per set. Must be a power of two, at most {@code size}.
+     */
+    void setTLBSize(int size, int ways);
+
     void setFrequency(int value);
 
     CPUDebugInterface getDebugInterface();
@@ -2,12 +2,18 @@ package li.cil.sedna.riscv;
 
 import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionDefinition;
 import li.cil.sedna.instruction.decoder.DecoderGenerator;
+import li.cil.sedna.instruction.decoder.InstructionFusion;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
 import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
 import org.apache.logging.log4j.core.util.Throwables;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
@@ -19,22 +25,69 @@ import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public final class R5CPUGenerator {
     public static final Class<R5CPUTemplate> TEMPLATE_CLASS = R5CPUTemplate.class;
     public static final String GENERATED_SUFFIX = "$Generated";
 
+    // Instruction pairs commonly emitted by compilers, which we run with a single dispatch. These are
+    // constant loading and address generation (lui/auipc followed by an add, load or jump), zero-extension
+    // (slli followed by srli) and comparisons followed by a branch on the result.
+    private static final List<InstructionFusion> FUSIONS_64 = fusions(
+        fusions(List.of("LUI", "C.LUI"), List.of("ADDI", "ADDIW", "C.ADDI", "C.ADDIW")),
+        fusions(List.of("AUIPC"), List.of("ADDI", "JALR", "LD", "LW")),
+        fusions(List.of("SLLI", "C.SLLI"), List.of("SRLI", "C.SRLI")),
+        fusions(List.of("SLT", "SLTU", "SLTI", "SLTIU"), List.of("BEQ", "BNE", "C.BEQZ", "C.BNEZ")));
+    private static final List<InstructionFusion> FUSIONS_32 = fusions(
+        fusions(List.of("LUI", "C.LUI"), List.of("ADDIW", "C.ADDI")),
+        fusions(List.of("AUIPCW"), List.of("ADDIW", "JALRW", "LW")),
+        fusions(List.of("SLLIW", "C.SLLI"), List.of("SRLIW", "C.SRLI")),
+        fusions(List.of("SLT", "SLTU", "SLTI", "SLTIU"), List.of("BEQ", "BNE", "C.BEQZ", "C.BNEZ")));
+
     @SuppressWarnings("unchecked")
-    private static final Class<R5CPU> GENERATED_CLASS = (Class<R5CPU>) generateClass();
-    private static final Constructor<R5CPU> GENERATED_CLASS_CTOR;
+    private static final Class<R5CPU> GENERATED_CLASS = (Class<R5CPU>) generateClass(R5CostModel.DEFAULT);
+
+    // Costs are compiled into the generated code, so we need one class per cost model.
+    private static final Map<R5CostModel, Constructor<R5CPU>> GENERATED_CLASS_CTORS = new ConcurrentHashMap<>();
 
+    /**
+     * Returns the generated class used for CPUs with the {@link R5CostModel#DEFAULT default} cost model.
+     *
+     * @return the default generated CPU class.
+     */
     public static Class<R5CPU> getGeneratedClass() {
         return GENERATED_CLASS;
     }
 
     public static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc) {
+        return create(physicalMemory, rtc, null);
+    }
+
+    public static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler) {
+        return create(physicalMemory, rtc, profiler, R5CostModel.DEFAULT);
+    }
+
+    public static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler, final R5CostModel costModel) {
+        final Constructor<R5CPU> ctor = GENERATED_CLASS_CTORS.computeIfAbsent(costModel, R5CPUGenerator::getConstructor);
+        return newInstance(ctor, physicalMemory, rtc, profiler, costModel);
+    }
+
+    /**
+     * Creates a CPU decoding all instructions through the decoder tree, without any dispatch tables.
+     * <p>
+     * Generates a new class on each call. Only meant for checking the regular decoder against.
+     */
+    @SuppressWarnings("unchecked")
+    static R5CPU createWithoutDispatchTables(final MemoryMap physicalMemory) {
+        final Constructor<R5CPU> ctor = getConstructor((Class<R5CPU>) generateClass(R5CostModel.DEFAULT, false));
+        return newInstance(ctor, physicalMemory, null, null, R5CostModel.DEFAULT);
+    }
+
+    private static R5CPU newInstance(final Constructor<R5CPU> ctor, final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler, final R5CostModel costModel) {
         try {
-            return GENERATED_CLASS_CTOR.newInstance(physicalMemory, rtc);
+            return ctor.newInstance(physicalMemory, rtc, profiler, costModel);
         } catch (final InvocationTargetException e) {
             Throwables.rethrow(e.getCause());
             throw new AssertionError();
@@ -43,10 +96,18 @@ public final class R5CPUGenerator {
         }
     }
 
-    static {
+    @SuppressWarnings("unchecked")
+    private static Constructor<R5CPU> getConstructor(final R5CostModel costModel) {
+        return getConstructor(costModel.equals(R5CostModel.DEFAULT)
+            ? GENERATED_CLASS
+            : (Class<R5CPU>) generateClass(costModel));
+    }
+
+    private static Constructor<R5CPU> getConstructor(final Class<R5CPU> generatedClass) {
         try {
-            GENERATED_CLASS_CTOR = GENERATED_CLASS.getDeclaredConstructor(MemoryMap.class, RealTimeCounter.class);
-            GENERATED_CLASS_CTOR.setAccessible(true);
+            final Constructor<R5CPU> ctor = generatedClass.getDeclaredConstructor(MemoryMap.class, RealTimeCounter.class, R5Profiler.class, R5CostModel.class);
+            ctor.setAccessible(true);
+            return ctor;
         } catch (final NoSuchMethodException e) {
             throw new AssertionError(e);
         }
@@ -134,7 +195,11 @@ public final class R5CPUGenerator {
         }
     }
 
-    private static Class<?> generateClass() {
+    private static Class<?> generateClass(final R5CostModel costModel) {
+        return generateClass(costModel, true);
+    }
+
+    private static Class<?> generateClass(final R5CostModel costModel, final boolean useDispatchTables) {
         try {
             final ClassLoader classLoader = TEMPLATE_CLASS.getClassLoader();
             final CPUClassLoader definerClassLoader = new CPUClassLoader();
@@ -172,20 +237,24 @@ public final class R5CPUGenerator {
                 }
 
                 final RemappedTypeClassWriter writer = new RemappedTypeClassWriter(remappedTypeNames);
-                final DecoderGenerator generator64 = new DecoderGenerator(
-                    new ClassRemapper(writer, remapper),
+                final R5DecodeCache.DispatchGenerator dispatchGenerator = new R5DecodeCache.DispatchGenerator(
+                    new ClassRemapper(writer, remapper));
+                final DecoderGenerator generator64 = new CostModelDecoderGenerator(
+                    dispatchGenerator,
                     R5Instructions.RV64.getDecoderTree(),
                     R5Instructions.RV64::getDefinition,
-                    R5IllegalInstructionException.class,
                     "interpretTrace64",
-                    "decode");
-                final DecoderGenerator generator32 = new DecoderGenerator(
+                    FUSIONS_64,
+                    costModel,
+                    useDispatchTables);
+                final DecoderGenerator generator32 = new CostModelDecoderGenerator(
                     generator64,
                     R5Instructions.RV32.getDecoderTree(),
                     R5Instructions.RV32::getDefinition,
-                    R5IllegalInstructionException.class,
                     "interpretTrace32",
-                    "decode");
+                    FUSIONS_32,
+                    costModel,
+                    useDispatchTables);
 
                 reader.accept(generator32, ClassReader.EXPAND_FRAMES);
 
@@ -198,6 +267,75 @@ public final class R5CPUGenerator {
         }
     }
 
+    private static List<InstructionFusion> fusions(final List<String> firsts, final List<String> seconds) {
+        final ArrayList<InstructionFusion> result = new ArrayList<>();
+        for (final String first : firsts) {
+            for (final String second : seconds) {
+                result.add(new InstructionFusion(first, second));
+            }
+        }
+        return result;
+    }
+
+    @SafeVarargs
+    private static List<InstructionFusion> fusions(final List<InstructionFusion>... lists) {
+        final ArrayList<InstructionFusion> result = new ArrayList<>();
+        for (final List<InstructionFusion> list : lists) {
+            result.addAll(list);
+        }
+        return result;
+    }
+
+    private static final class CostModelDecoderGenerator extends DecoderGenerator {
+        private final R5CostModel costModel;
+        private final boolean useDispatchTables;
+
+        public CostModelDecoderGenerator(final ClassVisitor cv,
+                                         final AbstractDecoderTreeNode decoderTree,
+                                         final Function<InstructionDeclaration, InstructionDefinition> definitionProvider,
+                                         final String decoderMethod,
+                                         final List<InstructionFusion> fusions,
+                                         final R5CostModel costModel,
+                                         final boolean useDispatchTables) {
+            super(cv, decoderTree, definitionProvider, R5IllegalInstructionException.class, decoderMethod, "decode",
+                "fetchFusedInstruction", fusions);
+            this.costModel = costModel;
+            this.useDispatchTables = useDispatchTables;
+        }
+
+        @Override
+        protected void emitInstruction(final GeneratorContext context,
+                                       final InstructionDeclaration declaration,
+                                       final InstructionDefinition definition) {
+            // The interpreter loop already counts one cycle per instruction, we only add what goes beyond
+            // that. Which means we don't generate anything at all when using the default cost model.
+            final int extraCycles = costModel.getCost(declaration) - 1;
+            if (extraCycles > 0) {
+                emitAddToField(context.methodVisitor, "mcycle", extraCycles);
+                emitAddToField(context.methodVisitor, "nonRetiringCycles", extraCycles);
+            }
+
+            super.emitInstruction(context, declaration, definition);
+        }
+
+        @Override
+        protected boolean shouldUseDispatchTable(final AbstractDecoderTreeNode node) {
+            // The compressed quadrants are full of reserved encodings and hints, which otherwise end up as long
+            // chains of branches in front of the actually interesting instructions. The generator only offers
+            // subtrees below the quadrant switch, whose tables have 2^14 entries at most.
+            return useDispatchTables;
+        }
+
+        private void emitAddToField(final MethodVisitor mv, final String name, final int value) {
+            mv.visitVarInsn(Opcodes.ALOAD, GeneratorContext.LOCAL_THIS);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitFieldInsn(Opcodes.GETFIELD, getHostClassInternalName(), name, "J");
+            mv.visitLdcInsn((long) value);
+            mv.visitInsn(Opcodes.LADD);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, getHostClassInternalName(), name, "J");
+        }
+    }
+
     private static class CPUClassLoader extends ClassLoader {
         public CPUClassLoader() {
             super(CPUClassLoader.class.getClassLoader());
@@ -7,6 +7,7 @@ import it.unimi.dsi.fastutil.longs.LongSortedSet;
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.device.PhysicalMemory;
 import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.api.memory.MappedMemoryRange;
 import li.cil.sedna.api.memory.MemoryAccessException;
@@ -23,6 +24,8 @@ import li.cil.sedna.utils.SoftDouble;
 import li.cil.sedna.utils.SoftFloat;
 
 import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,7 +55,7 @@ final class R5CPUTemplate implements R5CPU {
     private static final long MSTATUS_MASK = ~R5.STATUS_UBE_MASK & ~R5.STATUS_SBE_MASK & ~R5.STATUS_MBE_MASK;
 
     // No time and no high perf counters.
-    private static final int COUNTEREN_MASK = R5.MCOUNTERN_CY | R5.MCOUNTERN_IR;
+    private static final int COUNTEREN_MASK = R5.MCOUNTERN_CY | R5.MCOUNTERN_TM | R5.MCOUNTERN_IR;
 
     // Supervisor status (sstatus) CSR mask over mstatus.
     private static final long SSTATUS_MASK = (R5.STATUS_UIE_MASK | R5.STATUS_SIE_MASK |
@@ -62,7 +65,33 @@ final class R5CPUTemplate implements R5CPU {
         R5.STATUS_MXR_MASK | R5.STATUS_UXL_MASK);
 
     // Translation look-aside buffer config.
-    private static final int TLB_SIZE = 256; // Must be a power of two for fast modulo via `& (TLB_SIZE - 1)`.
+    private static final int DEFAULT_TLB_SIZE = 1024; // Total number of entries per TLB.
+    private static final int DEFAULT_TLB_WAYS = 4; // Number of entries per set.
+
+    // Translation look-aside buffer tags. Entries only apply when their tag matches the current
+    // translation context. Translated contexts are distinguished by ASID, effective privilege and
+    // the MMU related mstatus bits, so switching between them does not require a flush.
+    private static final int TLB_TAG_ASID_MASK = 0xFFFF;
+    private static final int TLB_TAG_PRIV_SHIFT = 16;
+    private static final int TLB_TAG_SUM_MASK = 1 << 18;
+    private static final int TLB_TAG_MXR_MASK = 1 << 19;
+    private static final int TLB_TAG_TRANSLATED_MASK = 1 << 20;
+    private static final int TLB_TAG_XLEN32_MASK = 1 << 21;
+
+    // Page walk cache config. The cache holds addresses of page tables for the levels below the root table.
+    private static final int PAGE_WALK_CACHE_SIZE = 64; // Entries per level. Must be a power of two.
+    private static final int PAGE_WALK_CACHE_LEVELS = R5.SV57_LEVELS - 1;
+
+    // Atomic memory operation types.
+    private static final int AMO_SWAP = 0;
+    private static final int AMO_ADD = 1;
+    private static final int AMO_XOR = 2;
+    private static final int AMO_AND = 3;
+    private static final int AMO_OR = 4;
+    private static final int AMO_MIN = 5;
+    private static final int AMO_MAX = 6;
+    private static final int AMO_MINU = 7;
+    private static final int AMO_MAXU = 8;
 
     ///////////////////////////////////////////////////////////////////
     // RV32I / RV64I
@@ -84,10 +113,12 @@ final class R5CPUTemplate implements R5CPU {
     ///////////////////////////////////////////////////////////////////
     // RV64A
     private long reservation_set = -1L; // Reservation set for RV64A's LR/SC.
+    private long reservation_value; // Value loaded by LR, SC only succeeds if memory still holds this value.
 
     ///////////////////////////////////////////////////////////////////
     // User-level CSRs
     private long mcycle;
+    private long nonRetiringCycles; // Cycles not spent retiring instructions, minstret = mcycle - nonRetiringCycles.
 
     // Machine-level CSRs
     private long mstatus; // Machine Status Register
@@ -100,6 +131,7 @@ final class R5CPUTemplate implements R5CPU {
     private long mepc; // Machine Exception Program Counter
     private long mcause; // Machine Cause Register
     private long mtval; //  Machine Trap Value Register
+    private long menvcfg; // Machine Environment Configuration Register
 
     // Supervisor-level CSRs
     private long stvec; // Supervisor Trap Vector Base Address Register; 0b11=Mode: 0=direct, 1=vectored
@@ -109,26 +141,54 @@ final class R5CPUTemplate implements R5CPU {
     private long scause; // Supervisor Cause Register
     private long stval; // Supervisor Trap Value Register
     private long satp; // Supervisor Address Translation and Protection Register
+    private long senvcfg; // Supervisor Environment Configuration Register
+    private long stimecmp = -1; // Supervisor Timer Compare Register (Sstc)
 
     ///////////////////////////////////////////////////////////////////
     // Misc. state
     private int priv; // Current privilege level.
-    private boolean waitingForInterrupt;
+    private volatile boolean waitingForInterrupt; // Volatile because interrupts may be raised by other harts' threads.
+    private transient int mhartid; // Hardware thread ID, assigned by the board.
 
     ///////////////////////////////////////////////////////////////////
     // Memory access
 
-    // Translation look-aside buffers.
-    private final transient TLBEntry[] fetchTLB = new TLBEntry[TLB_SIZE];
-    private final transient TLBEntry[] loadTLB = new TLBEntry[TLB_SIZE];
-    private final transient TLBEntry[] storeTLB = new TLBEntry[TLB_SIZE];
+    // Translation look-aside buffers. These are set-associative, the entries of a set are stored
+    // next to each other, ordered from most to least recently used.
+    private transient TLBEntry[] fetchTLB;
+    private transient TLBEntry[] loadTLB;
+    private transient TLBEntry[] storeTLB;
+    private transient int tlbSetMask; // Number of sets minus one, number of sets is a power of two.
+    private transient int tlbWaysShift; // Log2 of number of entries per set.
+    private transient int fetchTLBTag, dataTLBTag; // Tags of current translation contexts.
+
+    // Page walk cache, used to skip the upper levels of page table walks on TLB misses. Entries are
+    // grouped by level and tagged with the satp value they were created for and the virtual address
+    // bits above the level they are for.
+    private final transient long[] pageWalkCacheTags = new long[PAGE_WALK_CACHE_SIZE * PAGE_WALK_CACHE_LEVELS];
+    private final transient long[] pageWalkCacheRoots = new long[PAGE_WALK_CACHE_SIZE * PAGE_WALK_CACHE_LEVELS];
+    private final transient long[] pageWalkCacheTables = new long[PAGE_WALK_CACHE_SIZE * PAGE_WALK_CACHE_LEVELS];
 
     // Access to physical memory for load/store operations.
     private final transient MemoryMap physicalMemory;
 
+    ///////////////////////////////////////////////////////////////////
+    // Block translation
+    @Nullable private transient R5BlockCache blockCache; // Only set when block compilation is enabled.
+    @Nullable private transient R5DecodeCache decodeCache; // Only set when predecoding is enabled.
+
+    ///////////////////////////////////////////////////////////////////
+    // Profiling
+    @Nullable private final transient R5Profiler.HartCounters profiler; // Only set when profiling was requested on construction.
+
+    ///////////////////////////////////////////////////////////////////
+    // Cost model, also compiled into the generated decoder. Only needed here for block compilation and predecoding.
+    private final transient R5CostModel costModel;
+
     ///////////////////////////////////////////////////////////////////
     // Stepping
     private int cycleDebt; // Traces may lead to us running more cycles than given, remember to pay it back.
+    private transient long supervisorTimerDeadline; // Cycle at which to compare time and stimecmp next, zero for asap.
 
     ///////////////////////////////////////////////////////////////////
     // Real time counter -- at least in RISC-V Linux 5.1 the mtime CSR is needed in add_device_randomness
@@ -139,21 +199,24 @@ final class R5CPUTemplate implements R5CPU {
     private final transient DebugInterface debugInterface = new DebugInterface();
 
     public R5CPUTemplate(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc) {
+        this(physicalMemory, rtc, null);
+    }
+
+    public R5CPUTemplate(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler) {
+        this(physicalMemory, rtc, profiler, R5CostModel.DEFAULT);
+    }
+
+    public R5CPUTemplate(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, @Nullable final R5Profiler profiler, final R5CostModel costModel) {
         // This cast is necessary so that stack frame computation in ASM does not throw
         // an exception from trying to load the realization class we're generating while
         // we're generating it.
         this.rtc = rtc != null ? rtc : this;
         this.physicalMemory = physicalMemory;
+        this.profiler = profiler != null ? profiler.createHartCounters() : null;
+        this.costModel = costModel;
 
-        for (int i = 0; i < TLB_SIZE; i++) {
-            fetchTLB[i] = new TLBEntry();
-        }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            loadTLB[i] = new TLBEntry();
-        }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            storeTLB[i] = new TLBEntry();
-        }
+        allocateTLB(DEFAULT_TLB_SIZE, DEFAULT_TLB_WAYS);
+        setPredecodingEnabled(true);
 
         reset();
     }
@@ -177,6 +240,8 @@ final class R5CPUTemplate implements R5CPU {
                 x[i] = (int) x[i];
             }
         }
+
+        updateTLBTags();
     }
 
     @Override
@@ -200,6 +265,7 @@ final class R5CPUTemplate implements R5CPU {
         xlen = R5.XLEN_64;
 
         flushTLB();
+        flushCodeCaches();
 
         if (hard) {
             Arrays.fill(x, 0);
@@ -207,6 +273,7 @@ final class R5CPUTemplate implements R5CPU {
             reservation_set = -1;
 
             mcycle = 0;
+            nonRetiringCycles = 0;
 
             mstatus = (R5.mxl(xlen) << R5.STATUS_UXL_SHIFT) |
                 (R5.mxl(xlen) << R5.STATUS_SXL_SHIFT);
@@ -219,6 +286,9 @@ final class R5CPUTemplate implements R5CPU {
             mscratch = 0;
             mepc = 0;
             mtval = 0;
+            // Enable cache block operations for lower privilege levels by default, so firmware not
+            // aware of menvcfg does not cause illegal instructions when the kernel uses them.
+            menvcfg = R5.ENVCFG_CBIE_MASK | R5.ENVCFG_CBCFE_MASK | R5.ENVCFG_CBZE_MASK;
 
             stvec = 0;
             scounteren = 0;
@@ -227,12 +297,61 @@ final class R5CPUTemplate implements R5CPU {
             scause = 0;
             stval = 0;
             satp = 0;
+            senvcfg = 0;
+            stimecmp = -1;
         }
+
+        supervisorTimerDeadline = 0;
+
+        updateTLBTags();
     }
 
     @Override
     public void invalidateCaches() {
         flushTLB();
+        flushCodeCaches();
+        updateTLBTags();
+    }
+
+    @Override
+    public void invalidateStoreCaches() {
+        for (final TLBEntry entry : storeTLB) {
+            entry.hash = -1;
+        }
+    }
+
+    @Override
+    public void setTLBSize(final int size, final int ways) {
+        if (Integer.bitCount(size) != 1 || Integer.bitCount(ways) != 1 || ways > size) {
+            throw new IllegalArgumentException("size and ways must be powers of two and ways must not exceed size");
+        }
+
+        allocateTLB(size, ways);
+    }
+
+    @Override
+    public void setHartId(final int value) {
+        mhartid = value;
+    }
+
+    @Override
+    public void setBlockCompilationEnabled(final boolean value) {
+        if (value == (blockCache != null)) {
+            return;
+        }
+
+        // The lookup must be created in here, so that it is one for the generated class.
+        blockCache = value ? new R5BlockCache(MethodHandles.lookup(), costModel) : null;
+    }
+
+    @Override
+    public void setPredecodingEnabled(final boolean value) {
+        if (value == (decodeCache != null)) {
+            return;
+        }
+
+        // The lookup must be created in here, so that it is one for the generated class.
+        decodeCache = value ? new R5DecodeCache(costModel) : null;
     }
 
     @Override
@@ -240,6 +359,11 @@ final class R5CPUTemplate implements R5CPU {
         return mcycle;
     }
 
+    @Override
+    public long getInstructionsRetired() {
+        return mcycle - nonRetiringCycles;
+    }
+
     @Override
     public int getFrequency() {
         return cycleFrequency;
@@ -273,31 +397,83 @@ final class R5CPUTemplate implements R5CPU {
         return (int) mip.get();
     }
 
+    @Override
+    public boolean isIdle() {
+        return waitingForInterrupt;
+    }
+
+    @Override
+    public long getSupervisorTimerDeadline() {
+        if ((menvcfg & R5.ENVCFG_STCE_MASK) == 0 || Long.compareUnsigned(stimecmp, rtc.getTime()) <= 0) {
+            return -1;
+        }
+        return stimecmp;
+    }
+
+    @Override
+    public long getCyclesUntilWakeup() {
+        if ((menvcfg & R5.ENVCFG_STCE_MASK) == 0 || (mip.get() & R5.STIP_MASK) != 0) {
+            return Long.MAX_VALUE; // Only interrupts raised by other devices can wake us.
+        }
+
+        final long time = rtc.getTime();
+        if (Long.compareUnsigned(stimecmp, time) <= 0) {
+            return 0;
+        }
+
+        final long timeUntilWakeup = stimecmp - time;
+        if (rtc == this) {
+            return timeUntilWakeup < 0 ? Long.MAX_VALUE : timeUntilWakeup;
+        } else {
+            final double cyclesUntilWakeup = (double) timeUntilWakeup * cycleFrequency / rtc.getFrequency();
+            return cyclesUntilWakeup >= Long.MAX_VALUE || timeUntilWakeup < 0 ? Long.MAX_VALUE : (long) cyclesUntilWakeup;
+        }
+    }
+
     public void step(int cycles) {
         final int paidDebt = Math.min(cycles, cycleDebt);
         cycles -= paidDebt;
         cycleDebt -= paidDebt;
 
-        if (waitingForInterrupt) {
-            mcycle += cycles;
-            return;
+        if (rtc != this && (menvcfg & R5.ENVCFG_STCE_MASK) != 0) {
+            // We cannot predict when an external timer reaches stimecmp, so check once per step.
+            updateSupervisorTimer();
         }
 
         final long cycleLimit = mcycle + cycles;
-        while (!waitingForInterrupt && mcycle < cycleLimit) {
+        while (mcycle < cycleLimit) {
+            if (mcycle >= supervisorTimerDeadline) {
+                updateSupervisorTimer();
+            }
+
+            if (waitingForInterrupt) {
+                // Sleep until the end of the step, or until the supervisor timer fires if that comes first.
+                final long wakeup = Math.min(cycleLimit, supervisorTimerDeadline);
+                nonRetiringCycles += wakeup - mcycle;
+                mcycle = wakeup;
+                continue;
+            }
+
             final long pending = mip.get() & mie;
             if (pending != 0) {
                 raiseInterrupt(pending);
             }
 
-            interpret(false, false);
-        }
-
-        if (waitingForInterrupt && mcycle < cycleLimit) {
-            mcycle = cycleLimit;
+            if (profiler == null) {
+                interpret(false, false);
+            } else {
+                final long entryPC = pc;
+                final long entryInstructionsRetired = getInstructionsRetired();
+                interpret(false, false);
+                profiler.record(entryPC, getInstructionsRetired() - entryInstructionsRetired);
+            }
         }
 
         cycleDebt += (int) (cycleLimit - mcycle);
+
+        if (profiler != null) {
+            profiler.publish();
+        }
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -332,6 +508,40 @@ final class R5CPUTemplate implements R5CPU {
             final int instEnd = instOffset - (int) (pc & R5.PAGE_ADDRESS_MASK) // Page start.
                 + ((1 << R5.PAGE_ADDRESS_SHIFT) - 2); // Page size minus 16bit.
 
+            if (blockCache != null && !singleStep && (ignoreBreakpoints || cache.breakpoints == null) &&
+                xlen == R5.XLEN_64 && instOffset < instEnd) {
+                R5BlockCache.Page blocks = cache.blocks;
+                if (blocks == null || !blocks.contains(instOffset)) {
+                    blocks = cache.blocks = blockCache.getPage(device, instOffset);
+                }
+                R5BlockCompiler.Block block = blocks.get(instOffset);
+                if (block == null) {
+                    block = blockCache.compileIfHot(blocks, instOffset, instEnd);
+                    if (block != null) {
+                        flushStoreTLB(device, block.offset, block.size);
+                    }
+                }
+                if (block != null) {
+                    runBlock(block);
+                    return;
+                }
+            }
+
+            if (decodeCache != null && !singleStep && (ignoreBreakpoints || cache.breakpoints == null) &&
+                xlen == R5.XLEN_64 && instOffset < instEnd) {
+                R5DecodeCache.Page decoded = cache.decoded;
+                if (decoded == null || !decoded.contains(instOffset)) {
+                    decoded = cache.decoded = decodeCache.getPage(device, instOffset);
+                }
+                if (decodeCache.enter(decoded)) {
+                    if (!interpretDecoded(decodeCache, decoded, device, pc, instOffset, instEnd)) {
+                        // Reached an instruction without decoded form, have the interpreter run just that one.
+                        interpret(true, ignoreBreakpoints);
+                    }
+                    return;
+                }
+            }
+
             int inst;
             try {
                 if (instOffset < instEnd) { // Likely case, instruction fully inside page.
@@ -359,6 +569,95 @@ final class R5CPUTemplate implements R5CPU {
         }
     }
 
+    private void runBlock(final R5BlockCompiler.Block block) throws R5MemoryAccessException {
+        final long pc = this.pc;
+        try {
+            block.code.run(this, pc);
+        } catch (final R5IllegalInstructionException e) {
+            // Compiled blocks set the PC field before running instructions that may throw.
+            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, block.getInstruction((int) (this.pc - pc)));
+        }
+    }
+
+    // Threaded variant of the interpreter loop, runs pre-decoded instructions of a single page. Follows the same
+    // rules for leaving the loop as the regular interpreter loop, and additionally returns false when reaching an
+    // instruction that has no decoded form, with the PC field pointing at that instruction.
+    @SuppressWarnings("unused") // `operation` and the fields get read by the generated code replacing dispatch().
+    private boolean interpretDecoded(final R5DecodeCache decodeCache, final R5DecodeCache.Page page, final MemoryMappedDevice device, long pc, int instOffset, final int instEnd) {
+        int[] records = page.getRecords();
+        int record = R5DecodeCache.NOT_DECODED;
+        try { // Catch any exceptions to patch PC field.
+            for (; ; ) {
+                record = page.get(instOffset);
+                if (record == R5DecodeCache.NOT_DECODED) {
+                    if (page.isEmpty()) {
+                        // First decoded instruction since the page was last written to, stores to it must
+                        // take the slow path again from now on, so they drop the decoded instructions.
+                        flushStoreTLB(device, instOffset & ~R5.PAGE_ADDRESS_MASK, 1 << R5.PAGE_ADDRESS_SHIFT);
+                    }
+                    record = decodeCache.decode(page, instOffset);
+                    records = page.getRecords();
+                }
+                if (record == R5DecodeCache.UNSUPPORTED) {
+                    this.pc = pc;
+                    return false;
+                }
+
+                mcycle++;
+                final int extraCycles = records[record + R5DecodeCache.RECORD_EXTRA_CYCLES];
+                if (extraCycles != 0) {
+                    mcycle += extraCycles;
+                    nonRetiringCycles += extraCycles;
+                }
+
+                // Read by the generated code replacing dispatch(). Loading all fields up front keeps the
+                // generated code, and with that this method, small enough for the JIT to compile it.
+                final int operation = records[record + R5DecodeCache.RECORD_OPERATION];
+                final int field0 = records[record + R5DecodeCache.RECORD_FIELDS];
+                final int field1 = records[record + R5DecodeCache.RECORD_FIELDS + 1];
+                final int field2 = records[record + R5DecodeCache.RECORD_FIELDS + 2];
+                final int field3 = records[record + R5DecodeCache.RECORD_FIELDS + 3];
+                final int field4 = records[record + R5DecodeCache.RECORD_FIELDS + 4];
+
+                final int size;
+
+                ///////////////////////////////////////////////////////////////////
+                // This is the hook we replace when generating dispatch code.    //
+                size = dispatch();                                               //
+                // See R5DecodeCache.                                            //
+                ///////////////////////////////////////////////////////////////////
+
+                if (size > 0) {
+                    pc += size;
+                    instOffset += size;
+                } else if (size == R5DecodeCache.JUMP) {
+                    // Like the regular interpreter, leave on backward jumps so cycle limits are checked, but
+                    // keep going on forward jumps within the page.
+                    final long delta = this.pc - pc;
+                    if (delta <= 0 || delta >= instEnd - instOffset) {
+                        return true;
+                    }
+                    pc = this.pc;
+                    instOffset += (int) delta;
+                } else {
+                    return true;
+                }
+
+                if (Integer.compareUnsigned(instOffset, instEnd) >= 0) {
+                    this.pc = pc;
+                    return true;
+                }
+            }
+        } catch (final R5IllegalInstructionException e) {
+            this.pc = pc;
+            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, records[record + R5DecodeCache.RECORD_INSTRUCTION]);
+        } catch (final R5MemoryAccessException e) {
+            this.pc = pc;
+            raiseException(e.getType(), e.getAddress());
+        }
+        return true;
+    }
+
     // NB: Yes, having the same method more or less duplicated sucks, but it's just so
     //     much faster than having the actual decoding happen in one more method.
 
@@ -439,6 +738,27 @@ final class R5CPUTemplate implements R5CPU {
         throw new UnsupportedOperationException();
     }
 
+    @SuppressWarnings("RedundantThrows")
+    private static int dispatch() throws R5IllegalInstructionException, R5MemoryAccessException {
+        throw new UnsupportedOperationException();
+    }
+
+    // Called by the generated decoder code to fetch the second instruction of a fused instruction pair,
+    // see R5CPUGenerator. Does what the loop in the trace methods does between two instructions, or returns
+    // zero to have that loop handle the next instruction, e.g. when we reached the end of the page.
+    @SuppressWarnings("unused")
+    private int fetchFusedInstruction(final MemoryMappedDevice device, final int inst, final long pc, final int instOffset, final int instEnd, final LongSet breakpoints) throws MemoryAccessException {
+        if (breakpoints != null || Integer.compareUnsigned(instOffset, instEnd) >= 0) {
+            return 0;
+        }
+
+        final int nextInst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
+        if (nextInst != 0) {
+            mcycle++;
+        }
+        return nextInst;
+    }
+
     ///////////////////////////////////////////////////////////////////
     // CSR
 
@@ -535,6 +855,11 @@ final class R5CPUTemplate implements R5CPU {
                 return scounteren;
             }
 
+            // Supervisor Configuration
+            case 0x10A -> { // senvcfg, Supervisor environment configuration register.
+                return senvcfg;
+            }
+
             // Supervisor Trap Handling
             case 0x140 -> { // sscratch Scratch register for supervisor trap handlers.
                 return sscratch;
@@ -552,6 +877,17 @@ final class R5CPUTemplate implements R5CPU {
                 return mip.get() & mideleg; // Effectively read-only because we don't implement N.
             }
 
+            // Supervisor Timer Compare (Sstc)
+            case 0x14D -> { // stimecmp, Supervisor timer compare.
+                checkSupervisorTimerAccess();
+                return stimecmp;
+            }
+            case 0x15D -> { // stimecmph, Upper 32 bits of stimecmp, RV32 only.
+                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                checkSupervisorTimerAccess();
+                return stimecmp >>> 32;
+            }
+
             // Supervisor Protection and Translation
             case 0x180 -> { // satp Supervisor address translation and protection.
                 if (priv == R5.PRIVILEGE_S && (mstatus & R5.STATUS_TVM_MASK) != 0) {
@@ -598,6 +934,15 @@ final class R5CPUTemplate implements R5CPU {
                 return getStatus(MSTATUS_MASK) >>> 32;
             }
 
+            // Machine Configuration
+            case 0x30A -> { // menvcfg, Machine environment configuration register.
+                return menvcfg;
+            }
+            case 0x31A -> { // menvcfgh, Upper 32 bits of menvcfg, RV32 only.
+                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                return menvcfg >>> 32;
+            }
+
             // Debug/Trace Registers
             case 0x7A0 -> { // tselect
                 return 0;
@@ -663,39 +1008,51 @@ final class R5CPUTemplate implements R5CPU {
             // 0x615: htimedeltah, Upper 32 bits of htimedelta, RV32 only.
 
             //Machine Counter/Timers
-            // mcycle, Machine cycle counter.
-            case 0xB00, 0xB02 -> { // minstret, Machine instructions-retired counter.
+            case 0xB00 -> { // mcycle, Machine cycle counter.
                 return mcycle;
             }
+            case 0xB02 -> { // minstret, Machine instructions-retired counter.
+                return getInstructionsRetired();
+            }
             // 0xB03: mhpmcounter3, Machine performance-monitoring counter.
             // 0xB04...0xB1F: mhpmcounter4...mhpmcounter31, Machine performance-monitoring counter.
-            // mcycleh, Upper 32 bits of mcycle, RV32 only.
-            case 0xB80, 0xB82 -> { // minstreth, Upper 32 bits of minstret, RV32 only.
+            case 0xB80 -> { // mcycleh, Upper 32 bits of mcycle, RV32 only.
                 if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
                 return mcycle >>> 32;
             }
+            case 0xB82 -> { // minstreth, Upper 32 bits of minstret, RV32 only.
+                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                return getInstructionsRetired() >>> 32;
+            }
             // 0xB83: mhpmcounter3h, Upper 32 bits of mhpmcounter3, RV32 only.
             // 0xB84...0xB9F: mhpmcounter4h...mhpmcounter31h, Upper 32 bits of mhpmcounter4, RV32 only.
 
             // Counters and Timers
-            // cycle
-            case 0xC00, 0xC02 -> { // instret
+            case 0xC00 -> { // cycle
                 // counteren[2:0] is IR, TM, CY. As such the bit index matches the masked csr value.
                 checkCounterAccess(csr & 0b11);
                 return mcycle;
             }
+            case 0xC02 -> { // instret
+                checkCounterAccess(csr & 0b11);
+                return getInstructionsRetired();
+            }
             case 0xC01 -> { // time
                 return rtc.getTime();
             }
             // 0xC03 ... 0xC1F: hpmcounter3 ... hpmcounter31
-            // cycleh
-            case 0xC80, 0xC82 -> { // instreth
+            case 0xC80 -> { // cycleh
                 if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
 
                 // counteren[2:0] is IR, TM, CY. As such the bit index matches the masked csr value.
                 checkCounterAccess(csr & 0b11);
                 return mcycle >>> 32;
             }
+            case 0xC82 -> { // instreth
+                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                checkCounterAccess(csr & 0b11);
+                return getInstructionsRetired() >>> 32;
+            }
             // 0xC81: timeh
             // 0xC83 ... 0xC9F: hpmcounter3h ... hpmcounter31h
 
@@ -710,7 +1067,7 @@ final class R5CPUTemplate implements R5CPU {
                 return 0; // Not implemented.
             }
             case 0xF14 -> { // mhartid, Hardware thread ID.
-                return 0; // Single, primary hart.
+                return mhartid;
             }
             default -> throw new R5IllegalInstructionException();
         }
@@ -764,6 +1121,10 @@ final class R5CPUTemplate implements R5CPU {
             case 0x106 -> // scounteren, Supervisor counter enable.
                 scounteren = (int) (value & COUNTEREN_MASK);
 
+            // Supervisor Configuration
+            case 0x10A -> // senvcfg, Supervisor environment configuration register.
+                senvcfg = getEnvironmentConfig(senvcfg, value);
+
             // Supervisor Trap Handling
             case 0x140 -> // sscratch Scratch register for supervisor trap handlers.
                 sscratch = value;
@@ -774,21 +1135,30 @@ final class R5CPUTemplate implements R5CPU {
             case 0x143 -> // stval Supervisor bad address or instruction.
                 stval = value;
             case 0x144 -> { // sip Supervisor interrupt pending.
-                final long mask = mideleg; // Can only set stuff that's delegated to S mode.
+                final long mask = mideleg & ~getSupervisorTimerReadonlyMask(); // Can only set stuff that's delegated to S mode.
                 mip.updateAndGet(operand -> (operand & ~mask) | (value & mask));
             }
 
-            // Supervisor Protection and Translation
-            case 0x180 -> { // satp Supervisor address translation and protection.
-                // Say no to ASID (not implemented).
-                final long validatedValue;
+            // Supervisor Timer Compare (Sstc)
+            case 0x14D -> { // stimecmp, Supervisor timer compare.
+                checkSupervisorTimerAccess();
                 if (xlen == R5.XLEN_32) {
-                    validatedValue = value & ~R5.SATP_ASID_MASK32;
+                    stimecmp = (stimecmp & ~0xFFFFFFFFL) | (value & 0xFFFFFFFFL);
                 } else {
-                    validatedValue = value & ~R5.SATP_ASID_MASK64;
+                    stimecmp = value;
                 }
+                updateSupervisorTimer();
+            }
+            case 0x15D -> { // stimecmph, Upper 32 bits of stimecmp, RV32 only.
+                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                checkSupervisorTimerAccess();
+                stimecmp = (stimecmp & 0xFFFFFFFFL) | (value << 32);
+                updateSupervisorTimer();
+            }
 
-                final long change = satp ^ validatedValue;
+            // Supervisor Protection and Translation
+            case 0x180 -> { // satp Supervisor address translation and protection.
+                final long change = satp ^ value;
                 if (change != 0) {
                     if (priv == R5.PRIVILEGE_S && (mstatus & R5.STATUS_TVM_MASK) != 0) {
                         throw new R5IllegalInstructionException();
@@ -796,7 +1166,7 @@ final class R5CPUTemplate implements R5CPU {
 
                     if (xlen != R5.XLEN_32) {
                         // We only support Sv39 and Sv48. On unsupported writes spec says just don't change anything.
-                        final long mode = validatedValue & R5.SATP_MODE_MASK64;
+                        final long mode = value & R5.SATP_MODE_MASK64;
                         if (mode != R5.SATP_MODE_SV39 && mode != R5.SATP_MODE_SV48) {
                             break;
                         }
@@ -807,17 +1177,18 @@ final class R5CPUTemplate implements R5CPU {
                     // without the need to execute an SFENCE.VMA instruction."
                     if (xlen == R5.XLEN_32) {
                         if (((satp & R5.SATP_MODE_MASK32) == R5.SATP_MODE_NONE) !=
-                            ((validatedValue & R5.SATP_MODE_MASK32) == R5.SATP_MODE_NONE)) {
+                            ((value & R5.SATP_MODE_MASK32) == R5.SATP_MODE_NONE)) {
                             flushTLB();
                         }
                     } else {
                         if (((satp & R5.SATP_MODE_MASK64) == R5.SATP_MODE_NONE) !=
-                            ((validatedValue & R5.SATP_MODE_MASK64) == R5.SATP_MODE_NONE)) {
+                            ((value & R5.SATP_MODE_MASK64) == R5.SATP_MODE_NONE)) {
                             flushTLB();
                         }
                     }
 
-                    satp = validatedValue;
+                    satp = value;
+                    updateTLBTags();
 
                     return true; // Invalidate fetch cache.
                 }
@@ -864,6 +1235,21 @@ final class R5CPUTemplate implements R5CPU {
                 setStatus((value << 32) & MSTATUS_MASK);
             }
 
+            // Machine Configuration
+            case 0x30A -> { // menvcfg, Machine environment configuration register.
+                if (xlen == R5.XLEN_32) { // Upper half is written via menvcfgh.
+                    menvcfg = getEnvironmentConfig(menvcfg, value) | (menvcfg & R5.ENVCFG_STCE_MASK);
+                } else {
+                    menvcfg = getEnvironmentConfig(menvcfg, value) | (value & R5.ENVCFG_STCE_MASK);
+                }
+                supervisorTimerDeadline = 0;
+            }
+            case 0x31A -> { // menvcfgh, Upper 32 bits of menvcfg, RV32 only.
+                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                menvcfg = (menvcfg & ~R5.ENVCFG_STCE_MASK) | ((value << 32) & R5.ENVCFG_STCE_MASK);
+                supervisorTimerDeadline = 0;
+            }
+
             // Debug/Trace Registers
             case 0x7A0 -> { // tselect
             }
@@ -887,7 +1273,8 @@ final class R5CPUTemplate implements R5CPU {
                 // p32: MEIP, MTIP, MSIP are readonly in mip.
                 // Additionally, SEIP is controlled by a PLIC in our case, so we must not allow
                 // software to reset it, as this could lead to lost interrupts.
-                final int mask = R5.STIP_MASK | R5.SSIP_MASK;
+                // With Sstc enabled, STIP reflects stimecmp and is readonly as well.
+                final long mask = (R5.STIP_MASK | R5.SSIP_MASK) & ~getSupervisorTimerReadonlyMask();
                 mip.updateAndGet(operand -> (operand & ~mask) | (value & mask));
             }
             // 0x34A: mtinst, Machine trap instruction (transformed).
@@ -964,35 +1351,67 @@ final class R5CPUTemplate implements R5CPU {
     }
 
     private void setStatus(final long value) {
-        final long change = mstatus ^ value;
-        final boolean mmuConfigChanged =
-            (change & (R5.STATUS_MPRV_MASK | R5.STATUS_SUM_MASK | R5.STATUS_MXR_MASK)) != 0 ||
-                ((mstatus & R5.STATUS_MPRV_MASK) != 0 && (change & R5.STATUS_MPP_MASK) != 0);
-        if (mmuConfigChanged) {
-            flushTLB();
-        }
-
         fs = (byte) ((value & R5.STATUS_FS_MASK) >> R5.STATUS_FS_SHIFT);
 
         final long mask = MSTATUS_MASK & ~(R5.getStatusStateDirtyMask(xlen) | R5.STATUS_FS_MASK |
             R5.STATUS_UXL_MASK | R5.STATUS_SXL_MASK);
         mstatus = (mstatus & ~mask) | (value & mask);
+
+        // MPRV, MPP, SUM and MXR influence loads and stores.
+        updateTLBTags();
     }
 
-    private void setPrivilege(final int level) {
-        if (priv == level) {
+    private void checkSupervisorTimerAccess() throws R5IllegalInstructionException {
+        // Sstc: stimecmp is only accessible from S-mode if enabled in menvcfg and time is accessible.
+        if (priv < R5.PRIVILEGE_M &&
+            ((menvcfg & R5.ENVCFG_STCE_MASK) == 0 || (mcounteren & R5.MCOUNTERN_TM) == 0)) {
+            throw new R5IllegalInstructionException();
+        }
+    }
+
+    private long getSupervisorTimerReadonlyMask() {
+        return (menvcfg & R5.ENVCFG_STCE_MASK) != 0 ? R5.STIP_MASK : 0;
+    }
+
+    private void updateSupervisorTimer() {
+        if ((menvcfg & R5.ENVCFG_STCE_MASK) == 0) {
+            supervisorTimerDeadline = Long.MAX_VALUE;
             return;
         }
 
-        flushTLB();
+        // Sstc: STIP is pending while time is greater than or equal to stimecmp.
+        if (Long.compareUnsigned(rtc.getTime(), stimecmp) >= 0) {
+            raiseInterrupts(R5.STIP_MASK);
+            supervisorTimerDeadline = Long.MAX_VALUE;
+        } else {
+            lowerInterrupts(R5.STIP_MASK);
+            // If time is our own cycle counter we know exactly when to check again. Otherwise, we check
+            // at the start of each step.
+            supervisorTimerDeadline = rtc == this && stimecmp >= 0 ? stimecmp : Long.MAX_VALUE;
+        }
+    }
+
+    private static long getEnvironmentConfig(final long current, final long value) {
+        long result = value & (R5.ENVCFG_CBIE_MASK | R5.ENVCFG_CBCFE_MASK | R5.ENVCFG_CBZE_MASK);
+        if ((result & R5.ENVCFG_CBIE_MASK) == R5.ENVCFG_CBIE_RESERVED) { // WARL, keep legal value.
+            result = (result & ~R5.ENVCFG_CBIE_MASK) | (current & R5.ENVCFG_CBIE_MASK);
+        }
+        return result;
+    }
 
-        switch (level) {
-            case R5.PRIVILEGE_S -> xlen = R5.xlen((mstatus & R5.STATUS_SXL_MASK) >>> R5.STATUS_SXL_SHIFT);
-            case R5.PRIVILEGE_U -> xlen = R5.xlen((mstatus & R5.STATUS_UXL_MASK) >>> R5.STATUS_UXL_SHIFT);
-            default -> xlen = R5.xlen(mxl);
+    private void setPrivilege(final int level) {
+        if (priv != level) {
+            switch (level) {
+                case R5.PRIVILEGE_S -> xlen = R5.xlen((mstatus & R5.STATUS_SXL_MASK) >>> R5.STATUS_SXL_SHIFT);
+                case R5.PRIVILEGE_U -> xlen = R5.xlen((mstatus & R5.STATUS_UXL_MASK) >>> R5.STATUS_UXL_SHIFT);
+                default -> xlen = R5.xlen(mxl);
+            }
+
+            priv = level;
         }
 
-        priv = level;
+        // Callers also update mstatus, which may change the effective privilege for loads and stores.
+        updateTLBTags();
     }
 
     private int resolveRoundingMode(int rm) throws R5IllegalInstructionException {
@@ -1011,6 +1430,7 @@ final class R5CPUTemplate implements R5CPU {
     private void raiseException(final long exception, final long value) {
         // Exceptions take cycle.
         mcycle++;
+        nonRetiringCycles++;
 
         // Check whether to run supervisor level trap instead of machine level one.
         // We don't implement the N extension (user level interrupts) so if we're
@@ -1123,10 +1543,10 @@ final class R5CPUTemplate implements R5CPU {
             throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_FETCH);
         }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
+        final int index = getTLBSetIndex(address);
         final long hash = address & ~R5.PAGE_ADDRESS_MASK;
         final TLBEntry entry = fetchTLB[index];
-        if (entry.hash == hash) {
+        if (entry.hash == hash && entry.tag == fetchTLBTag) {
             return entry;
         } else {
             return fetchPageSlow(address);
@@ -1171,10 +1591,10 @@ final class R5CPUTemplate implements R5CPU {
             return loadxPageMisaligned(address, size);
         }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
+        final int index = getTLBSetIndex(address);
         final long hash = address & ~R5.PAGE_ADDRESS_MASK;
         final TLBEntry entry = loadTLB[index];
-        if (entry.hash == hash) {
+        if (entry.hash == hash && entry.tag == dataTLBTag) {
             try {
                 return entry.device.load((int) (address + entry.toOffset), sizeLog2);
             } catch (final MemoryAccessException e) {
@@ -1192,10 +1612,10 @@ final class R5CPUTemplate implements R5CPU {
             return;
         }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
+        final int index = getTLBSetIndex(address);
         final long hash = address & ~R5.PAGE_ADDRESS_MASK;
         final TLBEntry entry = storeTLB[index];
-        if (entry.hash == hash) {
+        if (entry.hash == hash && entry.tag == dataTLBTag) {
             try {
                 entry.device.store((int) (address + entry.toOffset), value, sizeLog2);
             } catch (final MemoryAccessException e) {
@@ -1207,12 +1627,17 @@ final class R5CPUTemplate implements R5CPU {
     }
 
     private TLBEntry fetchPageSlow(final long address) throws R5MemoryAccessException {
+        final TLBEntry entry = findTLBEntry(fetchTLB, address, fetchTLBTag);
+        if (entry != null) {
+            return entry;
+        }
+
         final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.FETCH, false);
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null || !range.device.supportsFetch()) {
             throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_FETCH);
         }
-        final TLBEntry tlb = updateTLB(fetchTLB, address, physicalAddress, range);
+        final TLBEntry tlb = updateTLB(fetchTLB, address, physicalAddress, range, fetchTLBTag);
         final var subset = debugInterface.breakpoints.subSet(address, address + (1 << R5.PAGE_ADDRESS_SHIFT));
         if (subset.isEmpty()) {
             tlb.breakpoints = null;
@@ -1224,6 +1649,15 @@ final class R5CPUTemplate implements R5CPU {
     }
 
     private long loadSlow(final long address, final int sizeLog2) throws R5MemoryAccessException {
+        final TLBEntry cached = findTLBEntry(loadTLB, address, dataTLBTag);
+        if (cached != null) {
+            try {
+                return cached.device.load((int) (address + cached.toOffset), sizeLog2);
+            } catch (final MemoryAccessException e) {
+                throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
+            }
+        }
+
         final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.LOAD, false);
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null) {
@@ -1232,10 +1666,13 @@ final class R5CPUTemplate implements R5CPU {
 
         try {
             if (range.device.supportsFetch()) {
-                final TLBEntry entry = updateTLB(loadTLB, address, physicalAddress, range);
+                final TLBEntry entry = updateTLB(loadTLB, address, physicalAddress, range, dataTLBTag);
                 return entry.device.load((int) (address + entry.toOffset), sizeLog2);
             } else {
-                return range.device.load((int) (physicalAddress - range.address()), sizeLog2);
+                // Devices are not thread-safe, other harts share the memory map, so use that as a lock.
+                synchronized (physicalMemory) {
+                    return range.device.load((int) (physicalAddress - range.address()), sizeLog2);
+                }
             }
         } catch (final MemoryAccessException e) {
             throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
@@ -1243,6 +1680,16 @@ final class R5CPUTemplate implements R5CPU {
     }
 
     private void storeSlow(final long address, final long value, final int sizeLog2) throws R5MemoryAccessException {
+        final TLBEntry cached = findTLBEntry(storeTLB, address, dataTLBTag);
+        if (cached != null) {
+            try {
+                cached.device.store((int) (address + cached.toOffset), value, sizeLog2);
+            } catch (final MemoryAccessException e) {
+                throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            }
+            return;
+        }
+
         final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.STORE, false);
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null) {
@@ -1251,12 +1698,16 @@ final class R5CPUTemplate implements R5CPU {
 
         try {
             if (range.device.supportsFetch()) {
-                final TLBEntry entry = updateTLB(storeTLB, address, physicalAddress, range);
+                final TLBEntry entry = updateTLB(storeTLB, address, physicalAddress, range, dataTLBTag);
                 final int offset = (int) (address + entry.toOffset);
                 entry.device.store(offset, value, sizeLog2);
                 physicalMemory.setDirty(range, offset);
+                invalidateCode(entry.device, offset);
             } else {
-                range.device.store((int) (physicalAddress - range.start), value, sizeLog2);
+                // Devices are not thread-safe, other harts share the memory map, so use that as a lock.
+                synchronized (physicalMemory) {
+                    range.device.store((int) (physicalAddress - range.start), value, sizeLog2);
+                }
             }
         } catch (final MemoryAccessException e) {
             throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
@@ -1278,6 +1729,117 @@ final class R5CPUTemplate implements R5CPU {
         }
     }
 
+    private long amo(final long address, final long operand, final int operation, final int sizeLog2) throws R5MemoryAccessException {
+        final TLBEntry entry = getAtomicAccessTLBEntry(address, sizeLog2);
+        if (entry == null) {
+            // Not in memory we can do atomic operations on. Use the same lock as for device access.
+            synchronized (physicalMemory) {
+                final int size = Sizes.SIZE_8 << sizeLog2;
+                final long value = loadx(address, size, sizeLog2);
+                storex(address, applyAMO(operation, value, operand, sizeLog2), size, sizeLog2);
+                return value;
+            }
+        }
+
+        final PhysicalMemory memory = (PhysicalMemory) entry.device;
+        final int offset = (int) (address + entry.toOffset);
+        try {
+            long value;
+            do {
+                value = memory.load(offset, sizeLog2);
+            } while (!memory.compareAndSwap(offset, value, applyAMO(operation, value, operand, sizeLog2), sizeLog2));
+            return value;
+        } catch (final MemoryAccessException e) {
+            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+        }
+    }
+
+    private boolean compareAndSwap(final long address, final long expected, final long value, final int sizeLog2) throws R5MemoryAccessException {
+        final TLBEntry entry = getAtomicAccessTLBEntry(address, sizeLog2);
+        if (entry == null) {
+            synchronized (physicalMemory) {
+                final int size = Sizes.SIZE_8 << sizeLog2;
+                final long mask = sizeLog2 == Sizes.SIZE_64_LOG2 ? -1L : (1L << size) - 1;
+                if (((loadx(address, size, sizeLog2) ^ expected) & mask) != 0) {
+                    return false;
+                }
+                storex(address, value, size, sizeLog2);
+                return true;
+            }
+        }
+
+        final PhysicalMemory memory = (PhysicalMemory) entry.device;
+        try {
+            return memory.compareAndSwap((int) (address + entry.toOffset), expected, value, sizeLog2);
+        } catch (final MemoryAccessException e) {
+            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+        }
+    }
+
+    @Nullable
+    private TLBEntry getAtomicAccessTLBEntry(final long address, final int sizeLog2) throws R5MemoryAccessException {
+        // Misaligned values may span pages, let the caller fall back to regular accesses.
+        if ((address & ((1 << sizeLog2) - 1)) != 0) {
+            return null;
+        }
+
+        final int index = getTLBSetIndex(address);
+        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
+        TLBEntry entry = storeTLB[index];
+        if (entry.hash != hash || entry.tag != dataTLBTag) {
+            entry = findTLBEntry(storeTLB, address, dataTLBTag);
+        }
+        if (entry == null) {
+            // Same as in storeSlow, atomic operations count as stores.
+            final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.STORE, false);
+            final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
+            if (range == null) {
+                throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            }
+            if (!range.device.supportsFetch()) {
+                return null;
+            }
+
+            entry = updateTLB(storeTLB, address, physicalAddress, range, dataTLBTag);
+            final int offset = (int) (address + entry.toOffset);
+            physicalMemory.setDirty(range, offset);
+            invalidateCode(entry.device, offset);
+        }
+
+        return entry.device instanceof PhysicalMemory ? entry : null;
+    }
+
+    private static long applyAMO(final int operation, final long a, final long b, final int sizeLog2) {
+        if (sizeLog2 == Sizes.SIZE_32_LOG2) {
+            final int a32 = (int) a, b32 = (int) b;
+            return switch (operation) {
+                case AMO_SWAP -> b32;
+                case AMO_ADD -> a32 + b32;
+                case AMO_XOR -> a32 ^ b32;
+                case AMO_AND -> a32 & b32;
+                case AMO_OR -> a32 | b32;
+                case AMO_MIN -> Math.min(a32, b32);
+                case AMO_MAX -> Math.max(a32, b32);
+                case AMO_MINU -> Integer.compareUnsigned(a32, b32) < 0 ? a32 : b32;
+                case AMO_MAXU -> Integer.compareUnsigned(a32, b32) > 0 ? a32 : b32;
+                default -> throw new IllegalArgumentException();
+            };
+        } else {
+            return switch (operation) {
+                case AMO_SWAP -> b;
+                case AMO_ADD -> a + b;
+                case AMO_XOR -> a ^ b;
+                case AMO_AND -> a & b;
+                case AMO_OR -> a | b;
+                case AMO_MIN -> Math.min(a, b);
+                case AMO_MAX -> Math.max(a, b);
+                case AMO_MINU -> Long.compareUnsigned(a, b) < 0 ? a : b;
+                case AMO_MAXU -> Long.compareUnsigned(a, b) > 0 ? a : b;
+                default -> throw new IllegalArgumentException();
+            };
+        }
+    }
+
     private long getPhysicalAddress(final long virtualAddress, final MemoryAccessType accessType, final boolean bypassPermissions) throws R5MemoryAccessException {
         final int privilege;
         if ((mstatus & R5.STATUS_MPRV_MASK) != 0 && accessType != MemoryAccessType.FETCH) {
@@ -1334,7 +1896,20 @@ final class R5CPUTemplate implements R5CPU {
 
         // Virtual address translation, V2p75f.
         long pteAddress = (satp & ppnMask) << R5.PAGE_ADDRESS_SHIFT; // 1.
-        for (int i = levels - 1; i >= 0; i--) {
+        int firstLevel = levels - 1;
+
+        // Start at the lowest level we have the page table cached for, if any.
+        for (int level = 0; level < levels - 1; level++) {
+            final long tag = virtualAddress >>> (R5.PAGE_ADDRESS_SHIFT + xpnSize * (level + 1));
+            final int index = getPageWalkCacheIndex(level, tag);
+            if (pageWalkCacheTags[index] == tag && pageWalkCacheRoots[index] == satp) {
+                pteAddress = pageWalkCacheTables[index];
+                firstLevel = level;
+                break;
+            }
+        }
+
+        for (int i = firstLevel; i >= 0; i--) {
             final int vpnShift = R5.PAGE_ADDRESS_SHIFT + xpnSize * i;
             final int vpn = (int) ((virtualAddress >>> vpnShift) & xpnMask);
             pteAddress += ((long) vpn) << pteSizeLog2; // equivalent to vpn * PTE size
@@ -1355,6 +1930,15 @@ final class R5CPUTemplate implements R5CPU {
             if (xwr == 0) { // r=0 && x=0: pointer to next level of the page table. w=0 is implicit due to r=0 (see 3).
                 final long ppn = pte >>> R5.PTE_DATA_BITS;
                 pteAddress = ppn << R5.PAGE_ADDRESS_SHIFT;
+
+                if (i > 0) {
+                    final long tag = virtualAddress >>> vpnShift;
+                    final int index = getPageWalkCacheIndex(i - 1, tag);
+                    pageWalkCacheTags[index] = tag;
+                    pageWalkCacheRoots[index] = satp;
+                    pageWalkCacheTables[index] = pteAddress;
+                }
+
                 continue;
             }
 
@@ -1391,11 +1975,16 @@ final class R5CPUTemplate implements R5CPU {
             // 7. Update accessed and dirty flags.
             final long updated_pte = pte | R5.PTE_A_MASK | (accessType == MemoryAccessType.STORE ? R5.PTE_D_MASK : 0);
             if (pte != updated_pte) {
+                final boolean updated;
                 try {
-                    physicalMemory.store(pteAddress, updated_pte, pteSizeLog2);
+                    updated = compareAndSwapPTE(pteAddress, pte, updated_pte, pteSizeLog2);
                 } catch (final MemoryAccessException e) {
                     throw getPageFaultException(accessType, virtualAddress);
                 }
+                if (!updated) {
+                    // Another hart changed the PTE since we loaded it, so our checks may be stale. V2p75f.
+                    return getPhysicalAddress(virtualAddress, accessType, bypassPermissions);
+                }
             }
 
             // 8. physical address = pte.ppn[LEVELS-1:i], va.vpn[i-1:0], va.pgoff
@@ -1407,6 +1996,37 @@ final class R5CPUTemplate implements R5CPU {
         throw getPageFaultException(accessType, virtualAddress);
     }
 
+    private boolean compareAndSwapPTE(final long pteAddress, final long expected, final long value, final int pteSizeLog2) throws MemoryAccessException {
+        final MappedMemoryRange range = physicalMemory.getMemoryRange(pteAddress);
+        if (range == null || !(range.device instanceof final PhysicalMemory memory)) {
+            // Page tables in devices, use the same lock as for other device accesses.
+            synchronized (physicalMemory) {
+                if (physicalMemory.load(pteAddress, pteSizeLog2) != expected) {
+                    return false;
+                }
+                physicalMemory.store(pteAddress, value, pteSizeLog2);
+                return true;
+            }
+        }
+
+        // Other harts may update the same PTE concurrently, so use the same atomic swap as the AMOs.
+        final int offset = (int) (pteAddress - range.address());
+        if (!memory.compareAndSwap(offset, expected, value, pteSizeLog2)) {
+            return false;
+        }
+        physicalMemory.setDirty(range, offset);
+        return true;
+    }
+
+    private static int getPageWalkCacheIndex(final int level, final long tag) {
+        return level * PAGE_WALK_CACHE_SIZE + ((int) tag & (PAGE_WALK_CACHE_SIZE - 1));
+    }
+
+    private void flushPageWalkCache() {
+        // Tags are virtual addresses shifted right by at least the page address shift, so they can never be -1.
+        Arrays.fill(pageWalkCacheTags, -1);
+    }
+
     private static R5MemoryAccessException getPageFaultException(final MemoryAccessType accessType, final long address) {
         return switch (accessType) {
             case LOAD -> new R5MemoryAccessException(address, R5.EXCEPTION_LOAD_PAGE_FAULT);
@@ -1418,15 +2038,99 @@ final class R5CPUTemplate implements R5CPU {
     ///////////////////////////////////////////////////////////////////
     // TLB
 
-    private static TLBEntry updateTLB(final TLBEntry[] tlb, final long address, final long physicalAddress, final MappedMemoryRange range) {
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        return updateTLBEntry(tlb[index], address, physicalAddress, range);
+    private void allocateTLB(final int size, final int ways) {
+        fetchTLB = new TLBEntry[size];
+        loadTLB = new TLBEntry[size];
+        storeTLB = new TLBEntry[size];
+        for (int i = 0; i < size; i++) {
+            fetchTLB[i] = new TLBEntry();
+        }
+        for (int i = 0; i < size; i++) {
+            loadTLB[i] = new TLBEntry();
+        }
+        for (int i = 0; i < size; i++) {
+            storeTLB[i] = new TLBEntry();
+        }
+
+        tlbSetMask = size / ways - 1;
+        tlbWaysShift = Integer.numberOfTrailingZeros(ways);
+    }
+
+    private void updateTLBTags() {
+        final int xlenTag = xlen == R5.XLEN_32 ? TLB_TAG_XLEN32_MASK : 0;
+
+        final long mode, asid;
+        if (xlen == R5.XLEN_32) {
+            mode = satp & R5.SATP_MODE_MASK32;
+            asid = (satp & R5.SATP_ASID_MASK32) >>> R5.SATP_ASID_SHIFT32;
+        } else {
+            mode = satp & R5.SATP_MODE_MASK64;
+            asid = (satp & R5.SATP_ASID_MASK64) >>> R5.SATP_ASID_SHIFT64;
+        }
+
+        // Same logic as in getPhysicalAddress for determining the privilege level to use.
+        final int dataPrivilege;
+        if ((mstatus & R5.STATUS_MPRV_MASK) != 0) {
+            dataPrivilege = (int) ((mstatus & R5.STATUS_MPP_MASK) >>> R5.STATUS_MPP_SHIFT);
+        } else {
+            dataPrivilege = priv;
+        }
+
+        if (priv == R5.PRIVILEGE_M || mode == R5.SATP_MODE_NONE) {
+            fetchTLBTag = xlenTag;
+        } else {
+            fetchTLBTag = xlenTag | TLB_TAG_TRANSLATED_MASK | (priv << TLB_TAG_PRIV_SHIFT) | (int) asid;
+        }
+
+        if (dataPrivilege == R5.PRIVILEGE_M || mode == R5.SATP_MODE_NONE) {
+            dataTLBTag = xlenTag;
+        } else {
+            dataTLBTag = xlenTag | TLB_TAG_TRANSLATED_MASK | (dataPrivilege << TLB_TAG_PRIV_SHIFT) | (int) asid |
+                ((mstatus & R5.STATUS_SUM_MASK) != 0 ? TLB_TAG_SUM_MASK : 0) |
+                ((mstatus & R5.STATUS_MXR_MASK) != 0 ? TLB_TAG_MXR_MASK : 0);
+        }
+    }
+
+    private int getTLBSetIndex(final long address) {
+        return (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & tlbSetMask) << tlbWaysShift;
+    }
+
+    @Nullable
+    private TLBEntry findTLBEntry(final TLBEntry[] tlb, final long address, final int tag) {
+        // The first entry in the set is checked in the fast paths already, so we skip it here.
+        final int index = getTLBSetIndex(address);
+        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
+        final int ways = 1 << tlbWaysShift;
+        for (int i = 1; i < ways; i++) {
+            final TLBEntry entry = tlb[index + i];
+            if (entry.hash == hash && entry.tag == tag) {
+                // Move to front, so the fast paths find it next time.
+                System.arraycopy(tlb, index, tlb, index + 1, i);
+                tlb[index] = entry;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private TLBEntry updateTLB(final TLBEntry[] tlb, final long address, final long physicalAddress, final MappedMemoryRange range, final int tag) {
+        // Evict the least recently used entry in the set and move it to the front.
+        final int index = getTLBSetIndex(address);
+        final int last = (1 << tlbWaysShift) - 1;
+        final TLBEntry entry = tlb[index + last];
+        System.arraycopy(tlb, index, tlb, index + 1, last);
+        tlb[index] = entry;
+
+        entry.tag = tag;
+        return updateTLBEntry(entry, address, physicalAddress, range);
     }
 
     private static TLBEntry updateTLBEntry(final TLBEntry tlb, final long address, final long physicalAddress, final MappedMemoryRange range) {
         tlb.hash = address & ~R5.PAGE_ADDRESS_MASK;
         tlb.toOffset = physicalAddress - address - range.start;
         tlb.device = range.device;
+        tlb.blocks = null;
+        tlb.decoded = null;
 
         return tlb;
     }
@@ -1436,32 +2140,78 @@ final class R5CPUTemplate implements R5CPU {
         // Reset per-array for *much* faster clears due to it being a faster memory access pattern/the
         // hotspot optimizer being able to more efficiently handle it (probably the latter, I suspect this
         // gets replaced by a memset with stride).
-        for (int i = 0; i < TLB_SIZE; i++) {
-            fetchTLB[i].hash = -1;
+        for (final TLBEntry entry : fetchTLB) {
+            entry.hash = -1;
         }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            loadTLB[i].hash = -1;
+        for (final TLBEntry entry : loadTLB) {
+            entry.hash = -1;
         }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            storeTLB[i].hash = -1;
+        for (final TLBEntry entry : storeTLB) {
+            entry.hash = -1;
         }
+
+        flushPageWalkCache();
     }
 
-    private void flushTLB(final long address) {
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
+    private void flushTLB(final TLBEntry[] tlb, final int asid) {
+        for (final TLBEntry entry : tlb) {
+            if ((entry.tag & TLB_TAG_TRANSLATED_MASK) != 0 && (entry.tag & TLB_TAG_ASID_MASK) == asid) {
+                entry.hash = -1;
+            }
+        }
+    }
+
+    private void flushTLB(final TLBEntry[] tlb, final long address, final boolean anyASID, final int asid) {
+        final int index = getTLBSetIndex(address);
         final long hash = address & ~R5.PAGE_ADDRESS_MASK;
+        final int ways = 1 << tlbWaysShift;
+        for (int i = 0; i < ways; i++) {
+            final TLBEntry entry = tlb[index + i];
+            if (entry.hash == hash && (anyASID || (entry.tag & TLB_TAG_ASID_MASK) == asid)) {
+                entry.hash = -1;
+            }
+        }
+    }
 
-        if (fetchTLB[index].hash == hash) {
-            fetchTLB[index].hash = -1;
+    private void flushStoreTLB(final MemoryMappedDevice device, final int offset, final int size) {
+        // Stores to pages with compiled blocks or decoded instructions must take the slow path, so that
+        // they drop those. So get rid of any store TLB entries pointing at the pages.
+        final int firstPage = offset >>> R5.PAGE_ADDRESS_SHIFT;
+        final int lastPage = (offset + size - 1) >>> R5.PAGE_ADDRESS_SHIFT;
+        for (final TLBEntry entry : storeTLB) {
+            if (entry.hash != -1 && entry.device == device) {
+                final int page = (int) (entry.hash + entry.toOffset) >>> R5.PAGE_ADDRESS_SHIFT;
+                if (page >= firstPage && page <= lastPage) {
+                    entry.hash = -1;
+                }
+            }
         }
-        if (loadTLB[index].hash == hash) {
-            loadTLB[index].hash = -1;
+    }
+
+    private void flushCodeCaches() {
+        if (blockCache != null) {
+            blockCache.clear();
         }
-        if (storeTLB[index].hash == hash) {
-            storeTLB[index].hash = -1;
+        if (decodeCache != null) {
+            decodeCache.clear();
         }
     }
 
+    private void invalidateCode(final MemoryMappedDevice device, final int offset) {
+        if (blockCache != null) {
+            blockCache.invalidate(device, offset);
+        }
+        if (decodeCache != null) {
+            decodeCache.invalidate(device, offset);
+        }
+    }
+
+    private void flushTLB(final long address, final boolean anyASID, final int asid) {
+        flushTLB(fetchTLB, address, anyASID, asid);
+        flushTLB(loadTLB, address, anyASID, asid);
+        flushTLB(storeTLB, address, anyASID, asid);
+    }
+
     ///////////////////////////////////////////////////////////////////
     // RV32I Base Instruction Set
 
@@ -1831,7 +2581,8 @@ final class R5CPUTemplate implements R5CPU {
 
     @Instruction("FENCE")
     private void fence() {
-        // no-op
+        // Other harts may run on other threads, so we have to make our memory accesses visible to them.
+        VarHandle.fullFence();
     }
 
     @Instruction("ECALL")
@@ -1999,8 +2750,78 @@ final class R5CPUTemplate implements R5CPU {
     // RV32/RV64 Zifencei Standard Extension
 
     @Instruction("FENCE.I")
-    private void fence_i() {
-        // no-op
+    private boolean fence_i() {
+        flushCodeCaches();
+        return true; // Exit trace, following instructions may have changed.
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // RV32/RV64 Zicbom Standard Extension
+
+    private void checkCacheBlockOperation(final int envcfgMask) throws R5IllegalInstructionException {
+        // M-mode has to enable these for S- and U-mode, S-mode additionally for U-mode.
+        if ((priv < R5.PRIVILEGE_M && (menvcfg & envcfgMask) == 0) ||
+            (priv < R5.PRIVILEGE_S && (senvcfg & envcfgMask) == 0)) {
+            throw new R5IllegalInstructionException();
+        }
+    }
+
+    private void checkCacheBlockManagementAccess(final long address) throws R5MemoryAccessException {
+        // We have no caches, so management operations only need to check whether they may access the block.
+        // They raise the same faults as stores, see cbo.zero, but don't mark the block dirty.
+        final TLBEntry entry = storeTLB[getTLBSetIndex(address)];
+        if ((entry.hash == (address & ~R5.PAGE_ADDRESS_MASK) && entry.tag == dataTLBTag) ||
+            findTLBEntry(storeTLB, address, dataTLBTag) != null) {
+            return;
+        }
+
+        final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.STORE, false);
+        if (physicalMemory.getMemoryRange(physicalAddress) == null) {
+            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+        }
+    }
+
+    @Instruction("CBO.INVAL")
+    private void cbo_inval(@Field("rs1") final int rs1) throws R5IllegalInstructionException, R5MemoryAccessException {
+        checkCacheBlockOperation(R5.ENVCFG_CBIE_MASK);
+        checkCacheBlockManagementAccess(x[rs1] & ~(R5.CACHE_BLOCK_SIZE - 1));
+    }
+
+    @Instruction("CBO.CLEAN")
+    private void cbo_clean(@Field("rs1") final int rs1) throws R5IllegalInstructionException, R5MemoryAccessException {
+        checkCacheBlockOperation(R5.ENVCFG_CBCFE_MASK);
+        checkCacheBlockManagementAccess(x[rs1] & ~(R5.CACHE_BLOCK_SIZE - 1));
+    }
+
+    @Instruction("CBO.FLUSH")
+    private void cbo_flush(@Field("rs1") final int rs1) throws R5IllegalInstructionException, R5MemoryAccessException {
+        checkCacheBlockOperation(R5.ENVCFG_CBCFE_MASK);
+        checkCacheBlockManagementAccess(x[rs1] & ~(R5.CACHE_BLOCK_SIZE - 1));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // RV32/RV64 Zicboz Standard Extension
+
+    @Instruction("CBO.ZERO")
+    private void cbo_zero(@Field("rs1") final int rs1) throws R5IllegalInstructionException, R5MemoryAccessException {
+        checkCacheBlockOperation(R5.ENVCFG_CBZE_MASK);
+
+        final long address = x[rs1] & ~(R5.CACHE_BLOCK_SIZE - 1);
+
+        // Blocks are naturally aligned, so like atomic accesses they never span pages.
+        final TLBEntry entry = getAtomicAccessTLBEntry(address, R5.CACHE_BLOCK_SIZE_LOG2);
+        if (entry == null) {
+            for (int offset = 0; offset < R5.CACHE_BLOCK_SIZE; offset += Long.BYTES) {
+                store64(address + offset, 0);
+            }
+            return;
+        }
+
+        try {
+            ((PhysicalMemory) entry.device).clear((int) (address + entry.toOffset), R5.CACHE_BLOCK_SIZE);
+        } catch (final MemoryAccessException e) {
+            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+        }
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -2256,6 +3077,7 @@ final class R5CPUTemplate implements R5CPU {
         final long address = x[rs1];
         final int result = load32(address);
         reservation_set = address;
+        reservation_value = result;
 
         if (rd != 0) {
             x[rd] = result;
@@ -2268,8 +3090,7 @@ final class R5CPUTemplate implements R5CPU {
                       @Field("rs2") final int rs2) throws R5MemoryAccessException {
         final int result;
         final long address = x[rs1];
-        if (address == reservation_set) {
-            store32(address, (int) x[rs2]);
+        if (address == reservation_set && compareAndSwap(address, reservation_value, x[rs2], Sizes.SIZE_32_LOG2)) {
             result = 0;
         } else {
             result = 1;
@@ -2286,11 +3107,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoswap_w(@Field("rd") final int rd,
                            @Field("rs1") final int rs1,
                            @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_SWAP, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2301,11 +3118,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoadd_w(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, a + b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_ADD, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2316,11 +3129,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoxor_w(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, a ^ b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_XOR, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2331,11 +3140,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoand_w(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, a & b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_AND, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2346,11 +3151,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoor_w(@Field("rd") final int rd,
                          @Field("rs1") final int rs1,
                          @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, a | b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_OR, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2361,11 +3162,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amomin_w(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, Math.min(a, b));
+        final int a = (int) amo(x[rs1], x[rs2], AMO_MIN, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2376,11 +3173,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amomax_w(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, Math.max(a, b));
+        final int a = (int) amo(x[rs1], x[rs2], AMO_MAX, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2391,12 +3184,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amominu_w(@Field("rd") final int rd,
                            @Field("rs1") final int rs1,
                            @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-
-        store32(address, Integer.compareUnsigned(a, b) < 0 ? a : b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_MINU, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2407,11 +3195,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amomaxu_w(@Field("rd") final int rd,
                            @Field("rs1") final int rs1,
                            @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final int a = load32(address);
-        final int b = (int) x[rs2];
-
-        store32(address, Integer.compareUnsigned(a, b) > 0 ? a : b);
+        final int a = (int) amo(x[rs1], x[rs2], AMO_MAXU, Sizes.SIZE_32_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2427,6 +3211,7 @@ final class R5CPUTemplate implements R5CPU {
         final long address = x[rs1];
         final long result = load64(address);
         reservation_set = address;
+        reservation_value = result;
 
         if (rd != 0) {
             x[rd] = result;
@@ -2439,8 +3224,7 @@ final class R5CPUTemplate implements R5CPU {
                       @Field("rs2") final int rs2) throws R5MemoryAccessException {
         final int result;
         final long address = x[rs1];
-        if (address == reservation_set) {
-            store64(address, x[rs2]);
+        if (address == reservation_set && compareAndSwap(address, reservation_value, x[rs2], Sizes.SIZE_64_LOG2)) {
             result = 0;
         } else {
             result = 1;
@@ -2457,11 +3241,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoswap_d(@Field("rd") final int rd,
                            @Field("rs1") final int rs1,
                            @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, b);
+        final long a = amo(x[rs1], x[rs2], AMO_SWAP, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2472,11 +3252,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoadd_d(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, a + b);
+        final long a = amo(x[rs1], x[rs2], AMO_ADD, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2487,11 +3263,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoxor_d(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, a ^ b);
+        final long a = amo(x[rs1], x[rs2], AMO_XOR, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2502,11 +3274,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoand_d(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, a & b);
+        final long a = amo(x[rs1], x[rs2], AMO_AND, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2517,11 +3285,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amoor_d(@Field("rd") final int rd,
                          @Field("rs1") final int rs1,
                          @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, a | b);
+        final long a = amo(x[rs1], x[rs2], AMO_OR, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2532,11 +3296,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amomin_d(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, Math.min(a, b));
+        final long a = amo(x[rs1], x[rs2], AMO_MIN, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2547,11 +3307,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amomax_d(@Field("rd") final int rd,
                           @Field("rs1") final int rs1,
                           @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, Math.max(a, b));
+        final long a = amo(x[rs1], x[rs2], AMO_MAX, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2562,11 +3318,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amominu_d(@Field("rd") final int rd,
                            @Field("rs1") final int rs1,
                            @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, Long.compareUnsigned(a, b) < 0 ? a : b);
+        final long a = amo(x[rs1], x[rs2], AMO_MINU, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2577,11 +3329,7 @@ final class R5CPUTemplate implements R5CPU {
     private void amomaxu_d(@Field("rd") final int rd,
                            @Field("rs1") final int rs1,
                            @Field("rs2") final int rs2) throws R5MemoryAccessException {
-        final long address = x[rs1];
-        final long a = load64(address);
-        final long b = x[rs2];
-
-        store64(address, Long.compareUnsigned(a, b) > 0 ? a : b);
+        final long a = amo(x[rs1], x[rs2], AMO_MAXU, Sizes.SIZE_64_LOG2);
 
         if (rd != 0) {
             x[rd] = a;
@@ -2664,10 +3412,27 @@ final class R5CPUTemplate implements R5CPU {
             throw new R5IllegalInstructionException();
         }
 
+        // We don't track global mappings, so we may flush more than necessary when an ASID is given,
+        // but never less. Entries for global mappings are simply cached per ASID.
+        final long asidMask = xlen == R5.XLEN_32
+            ? R5.SATP_ASID_MASK32 >>> R5.SATP_ASID_SHIFT32
+            : R5.SATP_ASID_MASK64 >>> R5.SATP_ASID_SHIFT64;
+        final int asid = (int) (x[rs2] & asidMask);
+
+        // Page tables themselves may have been changed or freed, and we do not track which addresses
+        // the cached tables cover. So always flush the page walk cache completely.
+        flushPageWalkCache();
+
         if (rs1 == 0) {
-            flushTLB();
+            if (rs2 == 0) {
+                flushTLB();
+            } else {
+                flushTLB(fetchTLB, asid);
+                flushTLB(loadTLB, asid);
+                flushTLB(storeTLB, asid);
+            }
         } else {
-            flushTLB(x[rs1]);
+            flushTLB(x[rs1], rs2 == 0, asid);
         }
 
         return true; // Exit trace, need to re-fetch.
@@ -3281,6 +4046,483 @@ final class R5CPUTemplate implements R5CPU {
         fs = R5.FS_DIRTY;
     }
 
+    ///////////////////////////////////////////////////////////////////
+    // RV32/RV64 Zba Standard Extension
+
+    @Instruction("SH1ADD")
+    private void sh1add(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] << 1) + x[rs2];
+        }
+    }
+
+    @Instruction("SH2ADD")
+    private void sh2add(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] << 2) + x[rs2];
+        }
+    }
+
+    @Instruction("SH3ADD")
+    private void sh3add(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] << 3) + x[rs2];
+        }
+    }
+
+    @Instruction("SH1ADDW")
+    private void sh1addw(@Field("rd") final int rd,
+                         @Field("rs1") final int rs1,
+                         @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (int) ((x[rs1] << 1) + x[rs2]);
+        }
+    }
+
+    @Instruction("SH2ADDW")
+    private void sh2addw(@Field("rd") final int rd,
+                         @Field("rs1") final int rs1,
+                         @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (int) ((x[rs1] << 2) + x[rs2]);
+        }
+    }
+
+    @Instruction("SH3ADDW")
+    private void sh3addw(@Field("rd") final int rd,
+                         @Field("rs1") final int rs1,
+                         @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (int) ((x[rs1] << 3) + x[rs2]);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // RV64 Zba Standard Extension
+
+    @Instruction("ADD.UW")
+    private void add_uw(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] & 0xFFFFFFFFL) + x[rs2];
+        }
+    }
+
+    @Instruction("SH1ADD.UW")
+    private void sh1add_uw(@Field("rd") final int rd,
+                           @Field("rs1") final int rs1,
+                           @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = ((x[rs1] & 0xFFFFFFFFL) << 1) + x[rs2];
+        }
+    }
+
+    @Instruction("SH2ADD.UW")
+    private void sh2add_uw(@Field("rd") final int rd,
+                           @Field("rs1") final int rs1,
+                           @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = ((x[rs1] & 0xFFFFFFFFL) << 2) + x[rs2];
+        }
+    }
+
+    @Instruction("SH3ADD.UW")
+    private void sh3add_uw(@Field("rd") final int rd,
+                           @Field("rs1") final int rs1,
+                           @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = ((x[rs1] & 0xFFFFFFFFL) << 3) + x[rs2];
+        }
+    }
+
+    @Instruction("SLLI.UW")
+    private void slli_uw(@Field("rd") final int rd,
+                         @Field("rs1") final int rs1,
+                         @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] & 0xFFFFFFFFL) << shamt;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // RV32/RV64 Zbb Standard Extension
+
+    private static long orcb(final long value) {
+        // Sets the high bit of every non-zero byte without carries into neighbouring bytes,
+        // then widens those bits to fill their bytes.
+        final long highBits = (((value & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | value) & 0x8080808080808080L;
+        return (highBits >>> 7) * 0xFF;
+    }
+
+    @Instruction("ANDN")
+    private void andn(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = x[rs1] & ~x[rs2];
+        }
+    }
+
+    @Instruction("ORN")
+    private void orn(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1,
+                     @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = x[rs1] | ~x[rs2];
+        }
+    }
+
+    @Instruction("XNOR")
+    private void xnor(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = ~(x[rs1] ^ x[rs2]);
+        }
+    }
+
+    @Instruction("CLZ")
+    private void clz(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Long.numberOfLeadingZeros(x[rs1]);
+        }
+    }
+
+    @Instruction("CTZ")
+    private void ctz(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Long.numberOfTrailingZeros(x[rs1]);
+        }
+    }
+
+    @Instruction("CPOP")
+    private void cpop(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Long.bitCount(x[rs1]);
+        }
+    }
+
+    @Instruction("MAX")
+    private void max(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1,
+                     @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Math.max(x[rs1], x[rs2]);
+        }
+    }
+
+    @Instruction("MAXU")
+    private void maxu(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Long.compareUnsigned(x[rs1], x[rs2]) >= 0 ? x[rs1] : x[rs2];
+        }
+    }
+
+    @Instruction("MIN")
+    private void min(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1,
+                     @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Math.min(x[rs1], x[rs2]);
+        }
+    }
+
+    @Instruction("MINU")
+    private void minu(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Long.compareUnsigned(x[rs1], x[rs2]) <= 0 ? x[rs1] : x[rs2];
+        }
+    }
+
+    @Instruction("SEXT.B")
+    private void sext_b(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = (byte) x[rs1];
+        }
+    }
+
+    @Instruction("SEXT.H")
+    private void sext_h(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = (short) x[rs1];
+        }
+    }
+
+    @Instruction("ZEXT.H")
+    private void zext_h(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = x[rs1] & 0xFFFF;
+        }
+    }
+
+    @Instruction("ROL")
+    private void rol(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1,
+                     @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Long.rotateLeft(x[rs1], (int) x[rs2]);
+        }
+    }
+
+    @Instruction("ROR")
+    private void ror(@Field("rd") final int rd,
+                     @Field("rs1") final int rs1,
+                     @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Long.rotateRight(x[rs1], (int) x[rs2]);
+        }
+    }
+
+    @Instruction("RORI")
+    private void rori(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = Long.rotateRight(x[rs1], shamt);
+        }
+    }
+
+    @Instruction("ORC.B")
+    private void orc_b(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = orcb(x[rs1]);
+        }
+    }
+
+    @Instruction("ORC.BW")
+    private void orc_bw(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = (int) orcb(x[rs1]);
+        }
+    }
+
+    @Instruction("REV8")
+    private void rev8(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Long.reverseBytes(x[rs1]);
+        }
+    }
+
+    @Instruction("REV8W")
+    private void rev8w(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Integer.reverseBytes((int) x[rs1]);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // RV64 Zbb Standard Extension
+
+    @Instruction("CLZW")
+    private void clzw(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Integer.numberOfLeadingZeros((int) x[rs1]);
+        }
+    }
+
+    @Instruction("CTZW")
+    private void ctzw(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Integer.numberOfTrailingZeros((int) x[rs1]);
+        }
+    }
+
+    @Instruction("CPOPW")
+    private void cpopw(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1) {
+        if (rd != 0) {
+            x[rd] = Integer.bitCount((int) x[rs1]);
+        }
+    }
+
+    @Instruction("ROLW")
+    private void rolw(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Integer.rotateLeft((int) x[rs1], (int) x[rs2]);
+        }
+    }
+
+    @Instruction("RORW")
+    private void rorw(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = Integer.rotateRight((int) x[rs1], (int) x[rs2]);
+        }
+    }
+
+    @Instruction("RORIW")
+    private void roriw(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = Integer.rotateRight((int) x[rs1], shamt);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // RV32/RV64 Zbs Standard Extension
+
+    @Instruction("BCLR")
+    private void bclr(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = x[rs1] & ~(1L << x[rs2]);
+        }
+    }
+
+    @Instruction("BCLRI")
+    private void bclri(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = x[rs1] & ~(1L << shamt);
+        }
+    }
+
+    @Instruction("BEXT")
+    private void bext(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] >>> x[rs2]) & 1;
+        }
+    }
+
+    @Instruction("BEXTI")
+    private void bexti(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = (x[rs1] >>> shamt) & 1;
+        }
+    }
+
+    @Instruction("BINV")
+    private void binv(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = x[rs1] ^ (1L << x[rs2]);
+        }
+    }
+
+    @Instruction("BINVI")
+    private void binvi(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = x[rs1] ^ (1L << shamt);
+        }
+    }
+
+    @Instruction("BSET")
+    private void bset(@Field("rd") final int rd,
+                      @Field("rs1") final int rs1,
+                      @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = x[rs1] | (1L << x[rs2]);
+        }
+    }
+
+    @Instruction("BSETI")
+    private void bseti(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = x[rs1] | (1L << shamt);
+        }
+    }
+
+    @Instruction("BCLRW")
+    private void bclrw(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (int) x[rs1] & ~(1 << x[rs2]);
+        }
+    }
+
+    @Instruction("BCLRIW")
+    private void bclriw(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = (int) x[rs1] & ~(1 << shamt);
+        }
+    }
+
+    @Instruction("BEXTW")
+    private void bextw(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = ((int) x[rs1] >>> x[rs2]) & 1;
+        }
+    }
+
+    @Instruction("BINVW")
+    private void binvw(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (int) x[rs1] ^ (1 << x[rs2]);
+        }
+    }
+
+    @Instruction("BINVIW")
+    private void binviw(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = (int) x[rs1] ^ (1 << shamt);
+        }
+    }
+
+    @Instruction("BSETW")
+    private void bsetw(@Field("rd") final int rd,
+                       @Field("rs1") final int rs1,
+                       @Field("rs2") final int rs2) {
+        if (rd != 0) {
+            x[rd] = (int) x[rs1] | (1 << x[rs2]);
+        }
+    }
+
+    @Instruction("BSETIW")
+    private void bsetiw(@Field("rd") final int rd,
+                        @Field("rs1") final int rs1,
+                        @Field("shamt") final int shamt) {
+        if (rd != 0) {
+            x[rd] = (int) x[rs1] | (1 << shamt);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////
 
     private enum MemoryAccessType {
@@ -3298,10 +4540,15 @@ final class R5CPUTemplate implements R5CPU {
 
     private static final class TLBEntry {
         public long hash = -1;
+        public int tag;
         public long toOffset;
         public MemoryMappedDevice device;
         //Subset of complete breakpoint set
         public LongSet breakpoints;
+        // Compiled blocks in the page, only used in fetch TLB and if block compilation is enabled.
+        public R5BlockCache.Page blocks;
+        // Decoded instructions in the page, only used in fetch TLB and if predecoding is enabled.
+        public R5DecodeCache.Page decoded;
     }
 
     private final class DebugInterface implements CPUDebugInterface {
@@ -3356,7 +4603,9 @@ final class R5CPUTemplate implements R5CPU {
             int i = 0;
             while (true) {
                 try {
-                    entry.device.store((int) (address + i + entry.toOffset), data[i], 0);
+                    final int offset = (int) (address + i + entry.toOffset);
+                    entry.device.store(offset, data[i], 0);
+                    invalidateCode(entry.device, offset);
                 } catch (final MemoryAccessException e) {
                     return i;
                 }
@@ -3385,12 +4634,17 @@ final class R5CPUTemplate implements R5CPU {
         public void addBreakpoint(final long address) {
             breakpoints.add(address);
 
-            final TLBEntry entry = tryGetTLBEntry(address, MemoryAccessType.FETCH);
-            if (entry != null) {
-                if (entry.breakpoints == null) {
-                    entry.breakpoints = new LongOpenHashSet();
+            // Entries of all translation contexts for the page need to know about the breakpoint.
+            final int index = getTLBSetIndex(address);
+            final long hash = address & ~R5.PAGE_ADDRESS_MASK;
+            for (int i = 0; i < 1 << tlbWaysShift; i++) {
+                final TLBEntry entry = fetchTLB[index + i];
+                if (entry.hash == hash) {
+                    if (entry.breakpoints == null) {
+                        entry.breakpoints = new LongOpenHashSet();
+                    }
+                    entry.breakpoints.add(address);
                 }
-                entry.breakpoints.add(address);
             }
         }
 
@@ -3398,9 +4652,13 @@ final class R5CPUTemplate implements R5CPU {
         public void removeBreakpoint(final long address) {
             breakpoints.remove(address);
 
-            final TLBEntry entry = tryGetTLBEntry(address, MemoryAccessType.FETCH);
-            if (entry != null && entry.breakpoints != null) {
-                entry.breakpoints.remove(address);
+            final int index = getTLBSetIndex(address);
+            final long hash = address & ~R5.PAGE_ADDRESS_MASK;
+            for (int i = 0; i < 1 << tlbWaysShift; i++) {
+                final TLBEntry entry = fetchTLB[index + i];
+                if (entry.hash == hash && entry.breakpoints != null) {
+                    entry.breakpoints.remove(address);
+                }
             }
         }
 
@@ -3432,14 +4690,16 @@ final class R5CPUTemplate implements R5CPU {
                 case STORE -> storeTLB;
                 case FETCH -> fetchTLB;
             };
-            final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
+            final int tag = accessType == MemoryAccessType.FETCH ? fetchTLBTag : dataTLBTag;
+            final int index = getTLBSetIndex(address);
             final long hash = address & ~R5.PAGE_ADDRESS_MASK;
-            final TLBEntry entry = tlb[index];
-            if (entry.hash == hash) {
-                return entry;
-            } else {
-                return null;
+            for (int i = 0; i < 1 << tlbWaysShift; i++) {
+                final TLBEntry entry = tlb[index + i];
+                if (entry.hash == hash && entry.tag == tag) {
+                    return entry;
+                }
             }
+            return null;
         }
 
         private void handleBreakpoint(final long pc) {
@@ -0,0 +1,162 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.instruction.InstructionDeclaration;
+
+import java.util.Arrays;
+
+/**
+ * Defines how many cycles instructions take to execute on a {@link R5CPU}.
+ * <p>
+ * Costs are assigned per {@link InstructionClass}. The cycle counter ({@code mcycle}) advances by the cost
+ * of each executed instruction, while the instructions-retired counter ({@code minstret}) advances by one.
+ * Since {@link R5CPU#step(int)} is given a budget in cycles, expensive instructions also make a CPU run
+ * fewer instructions per step.
+ * <p>
+ * Costs are compiled into the generated CPU class, so a CPU using the {@link #DEFAULT} model, where every
+ * instruction takes a single cycle, pays nothing for this. Each distinct model requires generating a CPU
+ * class of its own, so applications should use as few distinct models as possible.
+ * <p>
+ * Create instances of this type using a builder obtained by calling {@link #builder()}.
+ * <p>
+ * This class has to be public, because the generated CPU class is defined by its own class loader.
+ */
+public final class R5CostModel {
+    /**
+     * The default cost model, where every instruction takes one cycle.
+     */
+    public static final R5CostModel DEFAULT = builder().build();
+
+    /**
+     * Classes of instructions that may be assigned different costs.
+     */
+    public enum InstructionClass {
+        ALU, // Integer arithmetic, logic and bit manipulation.
+        MULTIPLY, // Integer multiplication.
+        DIVIDE, // Integer division and remainder.
+        LOAD, // Integer and floating point loads, including load-reserved.
+        STORE, // Integer and floating point stores, including cache block zero.
+        ATOMIC, // Atomic memory operations and store-conditional.
+        BRANCH, // Conditional branches.
+        JUMP, // Unconditional jumps.
+        FLOAT, // Floating point arithmetic, conversion and moves.
+        FLOAT_DIVIDE, // Floating point division and square root.
+        SYSTEM, // CSR access, fences, traps and other privileged instructions.
+    }
+
+    private final int[] costs;
+
+    private R5CostModel(final int[] costs) {
+        this.costs = costs;
+    }
+
+    /**
+     * Creates a new builder for setting up cost models using method chaining.
+     *
+     * @return a new cost model builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the number of cycles instructions of the specified class take.
+     *
+     * @param instructionClass the instruction class.
+     * @return the cost of instructions in that class, in cycles.
+     */
+    public int getCost(final InstructionClass instructionClass) {
+        return costs[instructionClass.ordinal()];
+    }
+
+    /**
+     * Returns the number of cycles the specified instruction takes.
+     *
+     * @param declaration the declaration of the instruction.
+     * @return the cost of the instruction, in cycles.
+     */
+    public int getCost(final InstructionDeclaration declaration) {
+        return getCost(classify(declaration.name));
+    }
+
+    /**
+     * Determines the class of the instruction with the specified name.
+     * <p>
+     * Names are those used in the instruction declarations, see {@link R5Instructions}.
+     * Unknown names are classified as {@link InstructionClass#ALU}.
+     *
+     * @param name the name of the instruction.
+     * @return the class of the instruction.
+     */
+    public static InstructionClass classify(final String name) {
+        return switch (name) {
+            case "MUL", "MULH", "MULHSU", "MULHU", "MULW", "MULHW", "MULHSUW", "MULHUW" -> InstructionClass.MULTIPLY;
+            case "DIV", "DIVU", "REM", "REMU", "DIVW", "DIVUW", "REMW", "REMUW" -> InstructionClass.DIVIDE;
+            case "LB", "LH", "LW", "LD", "LBU", "LHU", "LWU", "FLW", "FLD", "LR.W", "LR.D" -> InstructionClass.LOAD;
+            case "SB", "SH", "SW", "SD", "FSW", "FSD", "CBO.ZERO" -> InstructionClass.STORE;
+            case "BEQ", "BNE", "BLT", "BGE", "BLTU", "BGEU" -> InstructionClass.BRANCH;
+            case "JAL", "JALR", "JALW", "JALRW" -> InstructionClass.JUMP;
+            case "FDIV.S", "FSQRT.S", "FDIV.D", "FSQRT.D" -> InstructionClass.FLOAT_DIVIDE;
+            case "CSRRW", "CSRRS", "CSRRC", "CSRRWI", "CSRRSI", "CSRRCI",
+                "FENCE", "FENCE.I", "ECALL", "EBREAK", "SRET", "MRET", "WFI", "SFENCE.VMA",
+                "CBO.INVAL", "CBO.CLEAN", "CBO.FLUSH" -> InstructionClass.SYSTEM;
+            default -> {
+                if (name.startsWith("AMO") || name.startsWith("SC.")) {
+                    yield InstructionClass.ATOMIC;
+                } else if (name.startsWith("F")) {
+                    yield InstructionClass.FLOAT;
+                } else {
+                    yield InstructionClass.ALU;
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(costs, ((R5CostModel) o).costs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(costs);
+    }
+
+    /**
+     * Builder for {@link R5CostModel} instances using method chaining.
+     */
+    public static final class Builder {
+        private final int[] costs = new int[InstructionClass.values().length];
+
+        private Builder() {
+            Arrays.fill(costs, 1);
+        }
+
+        /**
+         * Configures the cost of instructions of the specified class.
+         * <p>
+         * This defaults to one cycle for all instruction classes.
+         *
+         * @param instructionClass the instruction class to configure.
+         * @param value            the cost of instructions in that class, in cycles. Must be positive.
+         * @return this builder for method chaining.
+         */
+        public Builder cost(final InstructionClass instructionClass, final int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("cost must be positive");
+            }
+            costs[instructionClass.ordinal()] = value;
+            return this;
+        }
+
+        /**
+         * Creates the cost model with the current configuration of this builder.
+         *
+         * @return the new cost model.
+         */
+        public R5CostModel build() {
+            return new R5CostModel(costs.clone());
+        }
+    }
+}
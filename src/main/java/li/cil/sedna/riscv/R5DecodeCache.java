@@ -0,0 +1,480 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionDefinition;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.ConstantInstructionArgument;
+import li.cil.sedna.instruction.argument.FieldInstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.argument.ProgramCounterInstructionArgument;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
+import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
+import li.cil.sedna.riscv.exception.R5MemoryAccessException;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Holds pre-decoded instructions for hot pages of guest code, run by the threaded interpreter of the CPU.
+ * <p>
+ * Like compiled blocks, decoded instructions are kept in per-page tables, keyed by their physical location,
+ * and the CPU keeps a reference to the table in its fetch TLB entries. Within a page, each instruction is
+ * decoded the first time it is run, into a record holding the index of its operation and the values of all
+ * of its fields. Running an instruction from its record skips loading and decoding it entirely, and the
+ * operation index is dispatched using a single switch, generated into the CPU class by {@link DispatchGenerator}.
+ * <p>
+ * Decoded instructions for a page must be dropped when the page is written to.
+ * <p>
+ * This class has to be public, because the generated CPU class is defined by its own class loader.
+ */
+public final class R5DecodeCache {
+    // Number of times a page has to be entered before we start decoding instructions in it.
+    private static final int DECODE_THRESHOLD = 16;
+
+    // When we exceed this many tracked pages, we drop all of them and start over.
+    private static final int MAX_PAGE_COUNT = 8 * 1024;
+
+    // When we exceed this many pages with decoded instructions, we drop all of them and start over.
+    private static final int MAX_DECODED_PAGE_COUNT = 1024;
+
+    // Instructions are 16-bit aligned, so there are half as many possible instruction starts as bytes.
+    private static final int SLOT_COUNT = (1 << R5.PAGE_ADDRESS_SHIFT) >>> 1;
+
+    /**
+     * Layout of a decoded instruction in {@link Page#getRecords()}: the operation index, the raw instruction,
+     * the cycles the instruction takes beyond the first one, followed by the values of its fields, in the
+     * order the instruction method takes them.
+     */
+    public static final int RECORD_OPERATION = 0;
+    public static final int RECORD_INSTRUCTION = 1;
+    public static final int RECORD_EXTRA_CYCLES = 2;
+    public static final int RECORD_FIELDS = 3;
+    public static final int RECORD_SIZE = 8;
+
+    /**
+     * Returned by {@link Page#get(int)} and {@link #decode(Page, int)} for instructions that have no decoded form.
+     * These are left to the regular interpreter.
+     */
+    public static final int UNSUPPORTED = -1;
+
+    /**
+     * Returned by {@link Page#get(int)} for instructions that have not been decoded yet.
+     */
+    public static final int NOT_DECODED = 0;
+
+    /**
+     * Result of the generated dispatch code when the instruction wrote the PC field.
+     */
+    public static final int JUMP = 0;
+
+    /**
+     * Result of the generated dispatch code when the trace must end. The PC field points to the next
+     * instruction to execute.
+     */
+    public static final int EXIT = -1;
+
+    private static final AbstractDecoderTreeNode DECODER_TREE = R5Instructions.RV64.getDecoderTree();
+    private static final ArrayList<InstructionDeclaration> OPERATIONS = new ArrayList<>();
+    private static final ArrayList<FieldInstructionArgument[]> OPERATION_FIELDS = new ArrayList<>();
+    private static final Reference2IntOpenHashMap<InstructionDeclaration> OPERATIONS_BY_DECLARATION = new Reference2IntOpenHashMap<>();
+
+    static {
+        OPERATIONS_BY_DECLARATION.defaultReturnValue(UNSUPPORTED);
+        for (final InstructionDeclaration declaration : R5Instructions.RV64.getDeclarations()) {
+            final FieldInstructionArgument[] fields;
+            if (declaration.type == InstructionType.NOP) {
+                fields = new FieldInstructionArgument[0];
+            } else if (declaration.type == InstructionType.REGULAR) {
+                final InstructionDefinition definition = R5Instructions.RV64.getDefinition(declaration);
+                if (definition == null) {
+                    continue;
+                }
+                fields = Arrays.stream(definition.parameters)
+                    .filter(argument -> argument instanceof FieldInstructionArgument)
+                    .toArray(FieldInstructionArgument[]::new);
+                if (fields.length > RECORD_SIZE - RECORD_FIELDS) {
+                    throw new IllegalStateException(String.format("Instruction [%s] has too many fields.", declaration.displayName));
+                }
+            } else {
+                continue;
+            }
+
+            OPERATIONS_BY_DECLARATION.put(declaration, OPERATIONS.size());
+            OPERATIONS.add(declaration);
+            OPERATION_FIELDS.add(fields);
+        }
+    }
+
+    private final int[] extraCycles = new int[OPERATIONS.size()];
+    private final IdentityHashMap<MemoryMappedDevice, Int2ObjectOpenHashMap<Page>> pagesByDevice = new IdentityHashMap<>();
+    private int pageCount;
+    private int decodedPageCount;
+
+    public R5DecodeCache(final R5CostModel costModel) {
+        // Costs are stored in the records rather than compiled into the dispatch code. Adding them in
+        // each case would make the method holding it too large for the JIT to compile it.
+        for (int operation = 0; operation < OPERATIONS.size(); operation++) {
+            final InstructionDeclaration declaration = OPERATIONS.get(operation);
+            if (declaration.type == InstructionType.REGULAR) {
+                extraCycles[operation] = costModel.getCost(declaration) - 1;
+            }
+        }
+    }
+
+    /**
+     * Get the decoded instruction table for the page containing the specified location.
+     * <p>
+     * The returned table stays usable until {@link Page#contains(int)} returns {@code false},
+     * at which point it must be looked up again.
+     *
+     * @param device the device the code lives in.
+     * @param offset the offset into the device.
+     * @return the decoded instruction table for the page.
+     */
+    public Page getPage(final MemoryMappedDevice device, final int offset) {
+        final int index = offset >>> R5.PAGE_ADDRESS_SHIFT;
+        Page page = getPages(device).get(index);
+        if (page == null) {
+            if (pageCount >= MAX_PAGE_COUNT) {
+                clear();
+            }
+
+            page = new Page(device, index);
+            getPages(device).put(index, page);
+            pageCount++;
+        }
+        return page;
+    }
+
+    /**
+     * Counts an entry into the specified page and checks whether instructions in it should be decoded.
+     *
+     * @param page the table for the page that is entered.
+     * @return {@code true} if the page is hot and may be run using its decoded instructions; {@code false} otherwise.
+     */
+    public boolean enter(final Page page) {
+        if (page.slots != null) {
+            return true;
+        }
+
+        if (++page.entryCount < DECODE_THRESHOLD) {
+            return false;
+        }
+
+        if (decodedPageCount >= MAX_DECODED_PAGE_COUNT) {
+            clear(); // Also invalidates the page, the next lookup will find a fresh one.
+            return false;
+        }
+
+        page.slots = new int[SLOT_COUNT];
+        page.records = new int[RECORD_SIZE * 64];
+        page.recordsEnd = RECORD_SIZE; // Record zero is never used, so NOT_DECODED can be zero.
+        decodedPageCount++;
+        return true;
+    }
+
+    /**
+     * Decodes the instruction at the specified location and stores it in the table for its page.
+     *
+     * @param page   the table for the page the code lives in. Must be hot, see {@link #enter(Page)}.
+     * @param offset the offset of the instruction in the device. A 32-bit instruction must fit the page.
+     * @return the offset of the decoded instruction in {@link Page#getRecords()}, or {@link #UNSUPPORTED}.
+     */
+    public int decode(final Page page, final int offset) {
+        final int slot = Page.getSlot(offset);
+
+        final int inst;
+        try {
+            inst = (int) page.device.load(offset, Sizes.SIZE_32_LOG2);
+        } catch (final MemoryAccessException e) {
+            return UNSUPPORTED; // Leave it to the interpreter to raise the exception. Not remembered, may be transient.
+        }
+
+        final InstructionDeclaration declaration = DECODER_TREE.query(inst);
+        final int operation = declaration != null ? OPERATIONS_BY_DECLARATION.getInt(declaration) : UNSUPPORTED;
+        if (operation == UNSUPPORTED) {
+            page.slots[slot] = UNSUPPORTED;
+            return UNSUPPORTED;
+        }
+
+        final int record = page.allocate();
+        final int[] records = page.records;
+        records[record + RECORD_OPERATION] = operation;
+        records[record + RECORD_INSTRUCTION] = inst;
+        records[record + RECORD_EXTRA_CYCLES] = extraCycles[operation];
+        final FieldInstructionArgument[] fields = OPERATION_FIELDS.get(operation);
+        for (int i = 0; i < fields.length; i++) {
+            records[record + RECORD_FIELDS + i] = fields[i].get(inst);
+        }
+
+        page.slots[slot] = record;
+        return record;
+    }
+
+    /**
+     * Drops all decoded instructions in the page containing the specified offset.
+     *
+     * @param device the device that was written to.
+     * @param offset the offset in the device that was written to.
+     */
+    public void invalidate(final MemoryMappedDevice device, final int offset) {
+        final Int2ObjectOpenHashMap<Page> pages = pagesByDevice.get(device);
+        if (pages != null) {
+            final Page page = pages.get(offset >>> R5.PAGE_ADDRESS_SHIFT);
+            if (page != null) {
+                page.reset();
+            }
+        }
+    }
+
+    /**
+     * Drops all decoded instructions and collected entry counts.
+     */
+    public void clear() {
+        for (final Int2ObjectOpenHashMap<Page> pages : pagesByDevice.values()) {
+            for (final Page page : pages.values()) {
+                page.isValid = false;
+            }
+        }
+        pagesByDevice.clear();
+        pageCount = 0;
+        decodedPageCount = 0;
+    }
+
+    private Int2ObjectOpenHashMap<Page> getPages(final MemoryMappedDevice device) {
+        return pagesByDevice.computeIfAbsent(device, d -> new Int2ObjectOpenHashMap<>());
+    }
+
+    /**
+     * The decoded instructions and entry count for a single page of a device.
+     */
+    public static final class Page {
+        private final MemoryMappedDevice device;
+        private final int index;
+        private int entryCount;
+        private int[] slots; // Offset of the record per instruction start, only allocated once the page is hot.
+        private int[] records;
+        private int recordsEnd;
+        private boolean isValid = true;
+
+        private Page(final MemoryMappedDevice device, final int index) {
+            this.device = device;
+            this.index = index;
+        }
+
+        /**
+         * Checks whether this table is still in use and holds instructions for the specified offset.
+         *
+         * @param offset the offset into the device.
+         * @return {@code true} if this table may be used for the offset; {@code false} otherwise.
+         */
+        public boolean contains(final int offset) {
+            return isValid && index == offset >>> R5.PAGE_ADDRESS_SHIFT;
+        }
+
+        /**
+         * Checks whether this table holds no decoded instructions.
+         *
+         * @return {@code true} if no instructions in this page have been decoded; {@code false} otherwise.
+         */
+        public boolean isEmpty() {
+            return recordsEnd == RECORD_SIZE;
+        }
+
+        /**
+         * Get the offset of the record of the decoded instruction at the specified location.
+         *
+         * @param offset the offset of the instruction in the device.
+         * @return the offset of the record, {@link #NOT_DECODED} or {@link #UNSUPPORTED}.
+         */
+        public int get(final int offset) {
+            return slots[getSlot(offset)];
+        }
+
+        /**
+         * The records of the decoded instructions in this page. Records are laid out as described by
+         * {@link #RECORD_SIZE}. The array may be replaced when instructions are decoded.
+         *
+         * @return the records of the decoded instructions in this page.
+         */
+        public int[] getRecords() {
+            return records;
+        }
+
+        private static int getSlot(final int offset) {
+            return (offset & R5.PAGE_ADDRESS_MASK) >>> 1;
+        }
+
+        private int allocate() {
+            if (recordsEnd == records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            final int record = recordsEnd;
+            recordsEnd += RECORD_SIZE;
+            return record;
+        }
+
+        private void reset() {
+            if (slots == null || isEmpty()) {
+                return;
+            }
+
+            Arrays.fill(slots, NOT_DECODED);
+            recordsEnd = RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Replaces the {@code dispatch()} hook in the threaded interpreter of the CPU template with a switch over all
+     * operations, each calling the instruction method with the fields stored in the current record.
+     * <p>
+     * Generating this into the interpreter loop rather than a separate method avoids a call per instruction,
+     * since the method holding the switch is far too large to be inlined.
+     */
+    static final class DispatchGenerator extends ClassVisitor implements Opcodes {
+        private static final String DISPATCH_METHOD_NAME = "interpretDecoded";
+        private static final String DISPATCH_HOOK_NAME = "dispatch";
+
+        // Locals of the interpreter method the generated code reads.
+        private static final int LOCAL_THIS = 0;
+        private static final int LOCAL_PC = 4;
+        private static final int LOCAL_OPERATION = 11;
+        private static final int LOCAL_FIRST_FIELD = 12;
+
+        private String className;
+
+        public DispatchGenerator(final ClassVisitor classVisitor) {
+            super(ASM7, classVisitor);
+        }
+
+        @Override
+        public void visit(final int version, final int access, final String name, final String signature, final String superName, final String[] interfaces) {
+            super.visit(version, access, name, signature, superName, interfaces);
+            className = name;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
+            final MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+            if (DISPATCH_METHOD_NAME.equals(name)) {
+                return new TemplateMethodVisitor(methodVisitor);
+            } else {
+                return methodVisitor;
+            }
+        }
+
+        private final class TemplateMethodVisitor extends MethodVisitor {
+            public TemplateMethodVisitor(final MethodVisitor methodVisitor) {
+                super(ASM7, methodVisitor);
+            }
+
+            @Override
+            public void visitMethodInsn(final int opcode, final String owner, final String name, final String descriptor, final boolean isInterface) {
+                if (DISPATCH_HOOK_NAME.equals(name)) {
+                    generateDispatch(super.mv);
+                } else {
+                    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                }
+            }
+        }
+
+        private void generateDispatch(final MethodVisitor mv) {
+            final Label[] labels = new Label[OPERATIONS.size()];
+            Arrays.setAll(labels, i -> new Label());
+            final Label illegalLabel = new Label();
+            final Label endLabel = new Label();
+
+            mv.visitVarInsn(ILOAD, LOCAL_OPERATION);
+            mv.visitTableSwitchInsn(0, labels.length - 1, illegalLabel, labels);
+
+            for (int operation = 0; operation < labels.length; operation++) {
+                mv.visitLabel(labels[operation]);
+                final InstructionDeclaration declaration = OPERATIONS.get(operation);
+                if (declaration.type == InstructionType.NOP) {
+                    emitFastLdc(mv, declaration.size);
+                } else {
+                    emitInstruction(mv, declaration);
+                }
+                mv.visitJumpInsn(GOTO, endLabel);
+            }
+
+            mv.visitLabel(illegalLabel);
+            mv.visitTypeInsn(NEW, Type.getInternalName(R5IllegalInstructionException.class));
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(R5IllegalInstructionException.class), "<init>", "()V", false);
+            mv.visitInsn(ATHROW);
+
+            mv.visitLabel(endLabel);
+        }
+
+        private void emitInstruction(final MethodVisitor mv, final InstructionDeclaration declaration) {
+            final InstructionDefinition definition = R5Instructions.RV64.getDefinition(declaration);
+
+            mv.visitVarInsn(ALOAD, LOCAL_THIS);
+            final StringBuilder methodDescriptor = new StringBuilder("(");
+            int field = 0;
+            for (final InstructionArgument argument : definition.parameters) {
+                if (argument instanceof ProgramCounterInstructionArgument) {
+                    mv.visitVarInsn(LLOAD, LOCAL_PC);
+                    methodDescriptor.append('J');
+                } else if (argument instanceof final ConstantInstructionArgument constantArgument) {
+                    emitFastLdc(mv, constantArgument.value);
+                    methodDescriptor.append('I');
+                } else if (argument instanceof FieldInstructionArgument) {
+                    mv.visitVarInsn(ILOAD, LOCAL_FIRST_FIELD + field++);
+                    methodDescriptor.append('I');
+                } else {
+                    throw new IllegalArgumentException();
+                }
+            }
+            methodDescriptor.append(')').append(definition.returnsBoolean ? 'Z' : 'V');
+
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, definition.methodName, methodDescriptor.toString(), false);
+
+            if (definition.returnsBoolean) {
+                final Label continueLabel = new Label();
+                final Label exitLabel = new Label();
+                mv.visitJumpInsn(IFEQ, continueLabel);
+                if (!definition.writesPC) {
+                    mv.visitVarInsn(ALOAD, LOCAL_THIS);
+                    mv.visitVarInsn(LLOAD, LOCAL_PC);
+                    mv.visitLdcInsn((long) declaration.size);
+                    mv.visitInsn(LADD);
+                    mv.visitFieldInsn(PUTFIELD, className, "pc", "J");
+                }
+                emitFastLdc(mv, EXIT);
+                mv.visitJumpInsn(GOTO, exitLabel);
+                mv.visitLabel(continueLabel);
+                emitFastLdc(mv, declaration.size);
+                mv.visitLabel(exitLabel);
+            } else if (definition.writesPC) {
+                emitFastLdc(mv, JUMP);
+            } else {
+                emitFastLdc(mv, declaration.size);
+            }
+        }
+
+        private static void emitFastLdc(final MethodVisitor mv, final int value) {
+            if (value >= -1 && value <= 5) {
+                mv.visitInsn(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, value);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+    }
+}
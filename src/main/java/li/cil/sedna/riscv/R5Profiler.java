@@ -0,0 +1,165 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects execution statistics of one or more {@link R5CPU}s.
+ * <p>
+ * Profilers are passed to the CPU when it is created, see {@link R5CPU#create}.
+ * CPUs created without a profiler do not collect any statistics.
+ * <p>
+ * Two kinds of statistics are collected:
+ * <ul>
+ *     <li>How often execution entered the code at some virtual address. Execution is entered at the targets of
+ *     branches and jumps, after traps and when crossing page boundaries.</li>
+ *     <li>How many instructions were retired in each virtual page.</li>
+ * </ul>
+ * <p>
+ * Each CPU records into counters of its own, without any synchronization, and makes them visible to the
+ * profiler at the end of each step. Snapshots may be taken from other threads while the CPUs are running,
+ * they merge the statistics of all CPUs up to the end of their last completed step.
+ * <p>
+ * This class has to be public, because the generated CPU class is defined by its own class loader.
+ */
+public final class R5Profiler {
+    private final List<HartCounters> harts = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates the counters a single CPU records its statistics into.
+     * <p>
+     * Called by CPUs when they are created.
+     *
+     * @return the new counters.
+     */
+    public HartCounters createHartCounters() {
+        final HartCounters counters = new HartCounters();
+        harts.add(counters);
+        return counters;
+    }
+
+    /**
+     * Returns the addresses at which execution was entered most often, in descending order.
+     *
+     * @param count the maximum number of entries to return.
+     * @return the most frequently entered addresses.
+     */
+    public List<Entry> getHotTargets(final int count) {
+        final Long2LongOpenHashMap entryCounts = new Long2LongOpenHashMap();
+        for (final HartCounters hart : harts) {
+            hart.addEntryCountsTo(entryCounts);
+        }
+
+        final ArrayList<Entry> result = new ArrayList<>(entryCounts.size());
+        for (final Long2LongMap.Entry entry : entryCounts.long2LongEntrySet()) {
+            result.add(new Entry(entry.getLongKey(), entry.getLongValue()));
+        }
+        result.sort(Comparator.comparingLong(Entry::count).reversed());
+        return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    /**
+     * Returns the number of instructions retired per virtual page.
+     * <p>
+     * Keys of the returned map are page numbers, i.e. virtual addresses shifted right by {@link R5#PAGE_ADDRESS_SHIFT}.
+     *
+     * @return a copy of the per-page instruction counts.
+     */
+    public Long2LongMap getInstructionsRetiredByPage() {
+        final Long2LongOpenHashMap instructionsByPage = new Long2LongOpenHashMap();
+        for (final HartCounters hart : harts) {
+            hart.addInstructionsByPageTo(instructionsByPage);
+        }
+        return instructionsByPage;
+    }
+
+    /**
+     * Clears all collected statistics.
+     * <p>
+     * Statistics of steps in progress while this is called are kept.
+     */
+    public void reset() {
+        for (final HartCounters hart : harts) {
+            hart.reset();
+        }
+    }
+
+    /**
+     * A profiled address and how often it was hit.
+     *
+     * @param address the virtual address.
+     * @param count   the number of times execution was entered at this address.
+     */
+    public record Entry(long address, long count) {
+    }
+
+    /**
+     * The statistics of a single CPU.
+     * <p>
+     * {@link #record(long, long)} must only be called from the thread stepping the CPU.
+     */
+    public static final class HartCounters {
+        // Only accessed by the CPU's thread, so recording needs no synchronization.
+        private final Long2LongOpenHashMap entryCounts = new Long2LongOpenHashMap();
+        private final Long2LongOpenHashMap instructionsByPage = new Long2LongOpenHashMap();
+
+        // Guarded by this, read when taking snapshots.
+        private final Long2LongOpenHashMap publishedEntryCounts = new Long2LongOpenHashMap();
+        private final Long2LongOpenHashMap publishedInstructionsByPage = new Long2LongOpenHashMap();
+
+        private HartCounters() {
+        }
+
+        /**
+         * Records a run of instructions started at the specified address.
+         *
+         * @param pc           the virtual address execution started at.
+         * @param instructions the number of instructions retired in the run.
+         */
+        public void record(final long pc, final long instructions) {
+            entryCounts.addTo(pc, 1);
+            instructionsByPage.addTo(pc >>> R5.PAGE_ADDRESS_SHIFT, instructions);
+        }
+
+        /**
+         * Makes the statistics recorded so far visible to the profiler.
+         */
+        public void publish() {
+            if (entryCounts.isEmpty()) {
+                return;
+            }
+
+            synchronized (this) {
+                addAll(entryCounts, publishedEntryCounts);
+                addAll(instructionsByPage, publishedInstructionsByPage);
+            }
+
+            entryCounts.clear();
+            instructionsByPage.clear();
+        }
+
+        private synchronized void addEntryCountsTo(final Long2LongOpenHashMap target) {
+            addAll(publishedEntryCounts, target);
+        }
+
+        private synchronized void addInstructionsByPageTo(final Long2LongOpenHashMap target) {
+            addAll(publishedInstructionsByPage, target);
+        }
+
+        private synchronized void reset() {
+            publishedEntryCounts.clear();
+            publishedInstructionsByPage.clear();
+        }
+
+        private static void addAll(final Long2LongOpenHashMap source, final Long2LongOpenHashMap target) {
+            for (final Long2LongMap.Entry entry : source.long2LongEntrySet()) {
+                target.addTo(entry.getLongKey(), entry.getLongValue());
+            }
+        }
+    }
+}
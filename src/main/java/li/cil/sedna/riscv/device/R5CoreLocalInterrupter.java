@@ -13,8 +13,8 @@ import li.cil.sedna.api.device.Steppable;
 import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.riscv.R5;
 
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Implementation of a shared CLINT that is aware of one or more harts.
@@ -27,13 +27,25 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
     private static final int CLINT_TIME_BASE = 0xBFF8;
 
     private final RealTimeCounter rtc;
+    private final RealTimeCounter cycleCounter;
 
     private final Int2ObjectMap<Interrupt> msips = new Int2ObjectArrayMap<>();
     private final Int2ObjectMap<Interrupt> mtips = new Int2ObjectArrayMap<>();
     @Serialized private final Int2LongArrayMap mtimecmps = new Int2LongArrayMap();
 
     public R5CoreLocalInterrupter(final RealTimeCounter rtc) {
+        this(rtc, rtc);
+    }
+
+    /**
+     * Creates a new CLINT with a time base that differs from the clock it is stepped with.
+     *
+     * @param rtc          the time base, used for {@code mtime} and the time comparators.
+     * @param cycleCounter the clock the cycles passed to {@link #step(int)} are counted in, usually the first hart.
+     */
+    public R5CoreLocalInterrupter(final RealTimeCounter rtc, final RealTimeCounter cycleCounter) {
         this.rtc = rtc;
+        this.cycleCounter = cycleCounter;
     }
 
     public void putHart(final int id, final InterruptController interruptController) {
@@ -50,14 +62,67 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
         }
     }
 
+    /**
+     * Returns the earliest time at which a timer interrupt will be raised, unless harts change their
+     * time comparators before then.
+     * <p>
+     * This allows stepping harts exactly up to the point where the next timer interrupt is due. The
+     * returned value is an unsigned time value as returned by the {@link RealTimeCounter} used by this
+     * device. If no comparator lies in the future, {@code -1}, i.e. the maximum unsigned value, is returned.
+     *
+     * @return the time at which the next timer interrupt is due.
+     */
+    public long getNextDeadline() {
+        final long time = rtc.getTime();
+        long deadline = -1;
+        for (final int hartId : mtimecmps.keySet()) {
+            final long mtimecmp = mtimecmps.get(hartId);
+            if (Long.compareUnsigned(mtimecmp, time) > 0 && Long.compareUnsigned(mtimecmp, deadline) < 0) {
+                deadline = mtimecmp;
+            }
+        }
+        return deadline;
+    }
+
+    @Override
+    public boolean isIdle() {
+        return true; // We only ever do something when a deadline is reached.
+    }
+
+    @Override
+    public long getCyclesUntilWakeup() {
+        final long time = rtc.getTime();
+        for (final int hartId : mtimecmps.keySet()) {
+            if (Long.compareUnsigned(mtimecmps.get(hartId), time) <= 0 && !mtips.get(hartId).isRaised()) {
+                return 0; // Deadline passed, interrupt gets raised in the next step.
+            }
+        }
+
+        final long deadline = getNextDeadline();
+        final long timeUntilDeadline = deadline - time;
+        if (deadline == -1 || timeUntilDeadline < 0) {
+            return Long.MAX_VALUE; // No comparator in the future, or too far ahead to matter.
+        }
+
+        final double cyclesUntilDeadline = (double) timeUntilDeadline * cycleCounter.getFrequency() / rtc.getFrequency();
+        return cyclesUntilDeadline >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) cyclesUntilDeadline;
+    }
+
     @Override
     public void step(final int cycles) {
-        checkTimeComparators(); // TODO Polling sucks.
+        // Boards stop stepping at the next deadline, so interrupts are raised in time.
+        checkTimeComparators();
     }
 
     @Override
     public Iterable<Interrupt> getInterrupts() {
-        return Stream.concat(msips.values().stream(), mtips.values().stream()).collect(Collectors.toList());
+        // Grouped by hart, so that the interrupts of each hart are next to each other in the device tree.
+        final List<Interrupt> interrupts = new ArrayList<>();
+        for (final int hartId : msips.keySet()) {
+            interrupts.add(msips.get(hartId));
+            interrupts.add(mtips.get(hartId));
+        }
+        return interrupts;
     }
 
     @Override
@@ -0,0 +1,258 @@
+package li.cil.sedna.serialization;
+
+import li.cil.ceres.api.Serialized;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MappedMemoryRange;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A snapshot of the memory and device state of a machine, as taken by a {@link MachineSnapshotWriter}.
+ * <p>
+ * Snapshots are either full snapshots, containing all pages of memory, or deltas, containing only
+ * the pages that changed since the previous snapshot. Either kind contains the complete device state.
+ * The memory of each {@link PhysicalMemory} device of the machine is stored in its own {@link Segment},
+ * tagged with the address the device is mapped at.
+ * A chain of snapshots starting with a full snapshot can be restored using {@link #restore(List, MemoryMap)}
+ * and collapsed into a single snapshot using {@link #compact(List)}.
+ * <p>
+ * Snapshots are serializable using Ceres, so they can be persisted like other serializable objects.
+ */
+@Serialized
+public final class MachineSnapshot {
+    private boolean isFull;
+    private Segment[] segments;
+    private byte[] state;
+
+    MachineSnapshot(final boolean isFull, final Segment[] segments, final byte[] state) {
+        this.isFull = isFull;
+        this.segments = segments;
+        this.state = state;
+    }
+
+    // For deserialization.
+    private MachineSnapshot() {
+    }
+
+    /**
+     * Whether this snapshot contains all pages of memory.
+     *
+     * @return {@code true} if this is a full snapshot; {@code false} if it is a delta.
+     */
+    public boolean isFull() {
+        return isFull;
+    }
+
+    /**
+     * The memory segments contained in this snapshot, ordered by address.
+     *
+     * @return the memory segments.
+     */
+    public List<Segment> getSegments() {
+        return List.of(segments);
+    }
+
+    /**
+     * The serialized device state contained in this snapshot.
+     *
+     * @return the serialized device state.
+     */
+    public ByteBuffer getState() {
+        return ByteBuffer.wrap(state).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the pages of a chain of snapshots into the memory mapped in the specified memory map.
+     * <p>
+     * Each segment is written to the {@link PhysicalMemory} mapped at the segment's address.
+     * Restoring the device state is left to the caller, since it may require deserializing into
+     * existing objects, see {@link MachineSnapshotWriter#restore(List)}.
+     *
+     * @param chain     the snapshots to apply, oldest first. The first snapshot must be a full snapshot.
+     * @param memoryMap the memory map holding the memory to write to.
+     * @throws MemoryAccessException    if writing to the memory fails.
+     * @throws IllegalArgumentException if the chain is empty or does not start with a full snapshot,
+     *                                  or if the memory in the memory map does not match the snapshots.
+     */
+    public static void restore(final List<MachineSnapshot> chain, final MemoryMap memoryMap) throws MemoryAccessException {
+        validateChain(chain, true);
+
+        final Segment[] layout = chain.get(0).segments;
+        final PhysicalMemory[] memories = new PhysicalMemory[layout.length];
+        for (int i = 0; i < layout.length; i++) {
+            final MappedMemoryRange range = memoryMap.getMemoryRange(layout[i].address);
+            if (range == null || range.address() != layout[i].address || !(range.device instanceof PhysicalMemory)) {
+                throw new IllegalArgumentException(String.format("no memory at snapshot segment address %x", layout[i].address));
+            }
+            if (range.device.getLength() != layout[i].memoryLength) {
+                throw new IllegalArgumentException(String.format("memory size at %x does not match snapshot", layout[i].address));
+            }
+            memories[i] = (PhysicalMemory) range.device;
+        }
+
+        for (final MachineSnapshot snapshot : chain) {
+            for (int i = 0; i < snapshot.segments.length; i++) {
+                final Segment segment = snapshot.segments[i];
+                int dataOffset = 0;
+                for (int page = segment.pages.nextSetBit(0); page >= 0; page = segment.pages.nextSetBit(page + 1)) {
+                    final int offset = page << MemoryMap.DIRTY_PAGE_SIZE_LOG2;
+                    final int length = segment.getPageLength(offset);
+                    memories[i].store(offset, ByteBuffer.wrap(segment.pageData, dataOffset, length));
+                    dataOffset += length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collapses a chain of snapshots into a single snapshot.
+     * <p>
+     * The result contains the latest version of each page contained in any of the snapshots, and
+     * the device state of the last snapshot. If the first snapshot is a full snapshot, so is the
+     * result; otherwise the result is a delta that may replace the compacted snapshots in a chain.
+     *
+     * @param chain the snapshots to compact, oldest first.
+     * @return a single snapshot equivalent to the chain.
+     * @throws IllegalArgumentException if the chain is empty, contains a full snapshot after its first
+     *                                  element or snapshots of different memory layouts.
+     */
+    public static MachineSnapshot compact(final List<MachineSnapshot> chain) {
+        validateChain(chain, false);
+        final MachineSnapshot first = chain.get(0);
+        if (chain.size() == 1) {
+            return first;
+        }
+
+        final Segment[] segments = new Segment[first.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = compact(chain, i);
+        }
+
+        final MachineSnapshot last = chain.get(chain.size() - 1);
+        return new MachineSnapshot(first.isFull, segments, last.state);
+    }
+
+    private static Segment compact(final List<MachineSnapshot> chain, final int index) {
+        // Find the latest snapshot containing each page, and where in that snapshot's data the page is.
+        final Segment first = chain.get(0).segments[index];
+        final int pageCount = getPageCount(first.memoryLength);
+        final Segment[] sources = new Segment[pageCount];
+        final int[] sourceOffsets = new int[pageCount];
+        final BitSet pages = new BitSet(pageCount);
+        int dataLength = 0;
+        for (final MachineSnapshot snapshot : chain) {
+            final Segment segment = snapshot.segments[index];
+            int dataOffset = 0;
+            for (int page = segment.pages.nextSetBit(0); page >= 0; page = segment.pages.nextSetBit(page + 1)) {
+                final int length = segment.getPageLength(page << MemoryMap.DIRTY_PAGE_SIZE_LOG2);
+                if (sources[page] == null) {
+                    dataLength += length;
+                }
+                sources[page] = segment;
+                sourceOffsets[page] = dataOffset;
+                pages.set(page);
+                dataOffset += length;
+            }
+        }
+
+        final byte[] pageData = new byte[dataLength];
+        int dataOffset = 0;
+        for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+            final Segment source = sources[page];
+            final int length = source.getPageLength(page << MemoryMap.DIRTY_PAGE_SIZE_LOG2);
+            System.arraycopy(source.pageData, sourceOffsets[page], pageData, dataOffset, length);
+            dataOffset += length;
+        }
+
+        return new Segment(first.address, first.memoryLength, pages, pageData);
+    }
+
+    static int getPageCount(final int memoryLength) {
+        return (int) ((Integer.toUnsignedLong(memoryLength) + MemoryMap.DIRTY_PAGE_SIZE - 1) >>> MemoryMap.DIRTY_PAGE_SIZE_LOG2);
+    }
+
+    static int getPageLength(final int memoryLength, final int offset) {
+        return Math.min(MemoryMap.DIRTY_PAGE_SIZE, memoryLength - offset);
+    }
+
+    private static void validateChain(final List<MachineSnapshot> chain, final boolean requireFull) {
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException("chain must not be empty");
+        }
+        if (requireFull && !chain.get(0).isFull) {
+            throw new IllegalArgumentException("chain must start with a full snapshot");
+        }
+        final Segment[] layout = chain.get(0).segments;
+        for (int i = 1; i < chain.size(); i++) {
+            if (chain.get(i).isFull) {
+                throw new IllegalArgumentException("only the first snapshot in a chain may be a full snapshot");
+            }
+            final Segment[] segments = chain.get(i).segments;
+            if (segments.length != layout.length) {
+                throw new IllegalArgumentException("snapshots in a chain must have the same memory layout");
+            }
+            for (int j = 0; j < segments.length; j++) {
+                if (segments[j].address != layout[j].address || segments[j].memoryLength != layout[j].memoryLength) {
+                    throw new IllegalArgumentException("snapshots in a chain must have the same memory layout");
+                }
+            }
+        }
+    }
+
+    /**
+     * The pages of a single {@link PhysicalMemory} device contained in a snapshot.
+     */
+    @Serialized
+    public static final class Segment {
+        private long address;
+        private int memoryLength;
+        private BitSet pages;
+        private byte[] pageData;
+
+        Segment(final long address, final int memoryLength, final BitSet pages, final byte[] pageData) {
+            this.address = address;
+            this.memoryLength = memoryLength;
+            this.pages = pages;
+            this.pageData = pageData;
+        }
+
+        // For deserialization.
+        private Segment() {
+        }
+
+        /**
+         * The address the memory this segment was taken from is mapped at.
+         *
+         * @return the address of the memory.
+         */
+        public long getAddress() {
+            return address;
+        }
+
+        /**
+         * The size of the memory this segment was taken from, in bytes.
+         *
+         * @return the size of the memory.
+         */
+        public int getMemoryLength() {
+            return memoryLength;
+        }
+
+        /**
+         * The indices of the pages contained in this segment. Pages are {@link MemoryMap#DIRTY_PAGE_SIZE} bytes large.
+         *
+         * @return the pages contained in this segment.
+         */
+        public BitSet getPages() {
+            return (BitSet) pages.clone();
+        }
+
+        private int getPageLength(final int offset) {
+            return MachineSnapshot.getPageLength(memoryLength, offset);
+        }
+    }
+}
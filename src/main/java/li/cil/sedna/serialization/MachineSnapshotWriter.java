@@ -0,0 +1,172 @@
+package li.cil.sedna.serialization;
+
+import li.cil.ceres.BinarySerialization;
+import li.cil.ceres.api.SerializationException;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MappedMemoryRange;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.riscv.R5Board;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Takes incremental snapshots of a machine.
+ * <p>
+ * The first snapshot taken is a full snapshot, containing all of the machine's memory, i.e. all
+ * {@link PhysicalMemory} devices added to the board. Subsequent snapshots are deltas, containing only the
+ * pages written to since the previous snapshot, as tracked by the board's {@link MemoryMap}. When memory
+ * is added to or removed from the board, the next snapshot is a full snapshot again. Each snapshot also
+ * contains the complete device state, which is obtained by serializing a state object using Ceres. That
+ * object must reference everything that should be persisted, typically the board and all devices added to
+ * it. Before capturing anything, devices processing work asynchronously are drained, see {@link R5Board#drain()}.
+ * <p>
+ * Snapshots must not be taken or restored while the board is being stepped.
+ */
+public final class MachineSnapshotWriter {
+    private final R5Board board;
+    private final Object state;
+    @Nullable private List<MappedMemoryRange> baseLayout; // Memory the last full snapshot was taken of, if any.
+
+    /**
+     * Creates a new snapshot writer.
+     *
+     * @param board the board to snapshot the memory of.
+     * @param state the object holding the device state to snapshot.
+     */
+    public MachineSnapshotWriter(final R5Board board, final Object state) {
+        this.board = board;
+        this.state = state;
+    }
+
+    /**
+     * Takes a snapshot. This is a full snapshot if no snapshot has been taken or restored yet, or if
+     * the memory of the board changed since then, a delta otherwise.
+     *
+     * @return the snapshot.
+     * @throws MemoryAccessException  if reading the memory fails.
+     * @throws SerializationException if serializing the device state fails.
+     */
+    public MachineSnapshot capture() throws MemoryAccessException, SerializationException {
+        final List<MappedMemoryRange> layout = getMemoryLayout();
+        if (!layout.equals(baseLayout)) {
+            return captureFull();
+        }
+
+        // Completing requests writes to memory, so this must happen before collecting dirty pages.
+        board.drain();
+
+        final BitSet[] pages = new BitSet[layout.size()];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = board.getAndClearDirtyPages(layout.get(i).device);
+        }
+        return capture(false, layout, pages);
+    }
+
+    /**
+     * Takes a full snapshot. Subsequent calls to {@link #capture()} produce deltas relative to this snapshot.
+     * <p>
+     * Useful to start a new chain of snapshots, instead of growing the current one indefinitely.
+     *
+     * @return the snapshot.
+     * @throws MemoryAccessException  if reading the memory fails.
+     * @throws SerializationException if serializing the device state fails.
+     */
+    public MachineSnapshot captureFull() throws MemoryAccessException, SerializationException {
+        // Clear dirty pages first, so that writes from here on end up in the next delta.
+        board.drain();
+
+        final List<MappedMemoryRange> layout = getMemoryLayout();
+        final BitSet[] pages = new BitSet[layout.size()];
+        for (int i = 0; i < pages.length; i++) {
+            final MappedMemoryRange range = layout.get(i);
+            board.getAndClearDirtyPages(range.device);
+
+            final int pageCount = MachineSnapshot.getPageCount(range.device.getLength());
+            pages[i] = new BitSet(pageCount);
+            pages[i].set(0, pageCount);
+        }
+
+        final MachineSnapshot snapshot = capture(true, layout, pages);
+        baseLayout = layout;
+        return snapshot;
+    }
+
+    /**
+     * Restores the machine from a chain of snapshots.
+     * <p>
+     * Writes the memory and deserializes the device state of the last snapshot into the state object.
+     * Subsequent calls to {@link #capture()} produce deltas relative to the restored state, so they may
+     * be appended to the chain.
+     *
+     * @param chain the snapshots to restore, oldest first. The first snapshot must be a full snapshot.
+     * @throws MemoryAccessException    if writing the memory fails.
+     * @throws SerializationException   if deserializing the device state fails.
+     * @throws IllegalArgumentException if the chain is invalid or does not match the memory of the board.
+     */
+    public void restore(final List<MachineSnapshot> chain) throws MemoryAccessException, SerializationException {
+        // Don't let requests still in progress write to the restored memory.
+        board.drain();
+        MachineSnapshot.restore(chain, board.getMemoryMap());
+        BinarySerialization.deserialize(chain.get(chain.size() - 1).getState(), state);
+
+        // Memory was written directly, so cached translations and compiled code are stale.
+        for (int i = 0; i < board.getHartCount(); i++) {
+            board.getHart(i).invalidateCaches();
+        }
+
+        final List<MappedMemoryRange> layout = getMemoryLayout();
+        for (final MappedMemoryRange range : layout) {
+            board.getAndClearDirtyPages(range.device);
+        }
+        baseLayout = layout;
+    }
+
+    private List<MappedMemoryRange> getMemoryLayout() {
+        final List<MappedMemoryRange> layout = new ArrayList<>();
+        for (final MemoryMappedDevice device : board.getDevices()) {
+            if (device instanceof PhysicalMemory) {
+                layout.add(board.getMemoryMap().getMemoryRange(device).orElseThrow(AssertionError::new));
+            }
+        }
+        return layout;
+    }
+
+    private MachineSnapshot capture(final boolean isFull, final List<MappedMemoryRange> layout, final BitSet[] pages) throws MemoryAccessException, SerializationException {
+        final MachineSnapshot.Segment[] segments = new MachineSnapshot.Segment[layout.size()];
+        for (int i = 0; i < segments.length; i++) {
+            final MappedMemoryRange range = layout.get(i);
+            segments[i] = capture((PhysicalMemory) range.device, range.address(), pages[i]);
+        }
+
+        final ByteBuffer serializedState = BinarySerialization.serialize(state);
+        final byte[] stateData = new byte[serializedState.remaining()];
+        serializedState.get(stateData);
+
+        return new MachineSnapshot(isFull, segments, stateData);
+    }
+
+    private static MachineSnapshot.Segment capture(final PhysicalMemory memory, final long address, final BitSet pages) throws MemoryAccessException {
+        final int memoryLength = memory.getLength();
+        int dataLength = 0;
+        for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+            dataLength += MachineSnapshot.getPageLength(memoryLength, page << MemoryMap.DIRTY_PAGE_SIZE_LOG2);
+        }
+
+        final byte[] pageData = new byte[dataLength];
+        int dataOffset = 0;
+        for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+            final int offset = page << MemoryMap.DIRTY_PAGE_SIZE_LOG2;
+            final int length = MachineSnapshot.getPageLength(memoryLength, offset);
+            memory.load(offset, ByteBuffer.wrap(pageData, dataOffset, length));
+            dataOffset += length;
+        }
+
+        return new MachineSnapshot.Segment(address, memoryLength, pages, pageData);
+    }
+}
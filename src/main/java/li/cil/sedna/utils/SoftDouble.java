@@ -48,14 +48,35 @@ public final class SoftDouble {
     private static final long QUIET_NAN_MASK = 1L << (MANTISSA_SIZE - 1);
     private static final long QUIET_NAN = (Integer.toUnsignedLong(EXPONENT_MASK) << MANTISSA_SIZE) | QUIET_NAN_MASK;
 
+    // Smallest exponent of operands and results for which we use the host's floating point operations. Above
+    // this, the residuals we use to detect inexact results are always exactly representable; they cannot underflow.
+    private static final int FAST_PATH_MIN_EXPONENT = Double.MIN_EXPONENT + 2 * (MANTISSA_SIZE + 1);
+
     public final SoftFloat.Flags flags;
+    private final boolean useFastPath;
 
     public SoftDouble() {
-        flags = new SoftFloat.Flags();
+        this(new SoftFloat.Flags());
     }
 
     public SoftDouble(final SoftFloat.Flags flags) {
+        this(flags, true);
+    }
+
+    /**
+     * Creates a new instance, optionally disabling the fast path.
+     * <p>
+     * When enabled, arithmetic using round to nearest on normal values with results that cannot
+     * underflow or overflow uses the host's floating point operations, which are IEEE754 compliant
+     * for this case. Only the inexact flag may be raised in this case, which is derived from exact
+     * residuals. All other cases use the software implementation.
+     *
+     * @param flags       the flags register to raise exceptions in.
+     * @param useFastPath whether to use host floating point operations where possible.
+     */
+    public SoftDouble(final SoftFloat.Flags flags, final boolean useFastPath) {
         this.flags = flags;
+        this.useFastPath = useFastPath;
     }
 
     public static long nan() {
@@ -93,6 +114,18 @@ public final class SoftDouble {
     }
 
     public long add(long a, long b, final int rm) {
+        if (useFastPath && rm == RM_RNE && isFastPathValue(a) && isFastPathValue(b)) {
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double sum = x + y;
+            if (isFastPathValue(sum)) {
+                if (twoSumError(x, y, sum) != 0) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Double.doubleToRawLongBits(sum);
+            }
+        }
+
         // Make sure a is the larger of the two. This way we can unify NaN and Infinity detection.
         if ((a & ~SIGN_MASK) < (b & ~SIGN_MASK)) {
             final long tmp = a;
@@ -159,6 +192,18 @@ public final class SoftDouble {
     }
 
     public long mul(final long a, final long b, final int rm) {
+        if (useFastPath && rm == RM_RNE && isFastPathValue(a) && isFastPathValue(b)) {
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double product = x * y;
+            if (isFastPathValue(product)) {
+                if (Math.fma(x, y, -product) != 0) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Double.doubleToRawLongBits(product);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -219,6 +264,24 @@ public final class SoftDouble {
     }
 
     public long muladd(final long a, final long b, final long c, final int rm) {
+        if (useFastPath && rm == RM_RNE && isFastPathValue(a) && isFastPathValue(b) && isFastPathValue(c)) {
+            // We can only cheaply tell whether the result is exact if the product is. In that case the
+            // fused result is the rounded sum of the product and c. Otherwise use the slow path.
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double z = Double.longBitsToDouble(c);
+            final double product = x * y;
+            if (isFastPathValue(product) && Math.fma(x, y, -product) == 0) {
+                final double sum = product + z;
+                if (isFastPathValue(sum)) {
+                    if (twoSumError(product, z, sum) != 0) {
+                        flags.raise(FLAG_INEXACT);
+                    }
+                    return Double.doubleToRawLongBits(sum);
+                }
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int signC = getSign(c);
@@ -306,7 +369,7 @@ public final class SoftDouble {
 
         if (exponentC == 0) {
             if (mantissaC == 0) { // a * b + c
-                return normalize(sign, exponent, mantissa1, rm, flags);
+                return normalize(sign, exponent, mantissa1 | (mantissa0 != 0 ? 1 : 0), rm, flags);
             } else { // subnormal
                 final int_long exponentAndMantissa = normalizeSubnormal(mantissaC);
                 exponentC = exponentAndMantissa.a;
@@ -349,17 +412,17 @@ public final class SoftDouble {
             mantissaC0 = mantissaC1 | (mantissaC0 != 0 ? 1 : 0);
             mantissaC1 = 0;
         } else if (shift != 0) {
-            mantissaC0 = (mantissaC1 << (SIZE - shift)) | (mantissaC0 >> shift) | ((mantissaC0 & ((1L << shift) - 1)) != 0 ? 1 : 0);
+            mantissaC0 = (mantissaC1 << (SIZE - shift)) | (mantissaC0 >>> shift) | ((mantissaC0 & ((1L << shift) - 1)) != 0 ? 1 : 0);
             mantissaC1 = mantissaC1 >>> shift;
         }
 
         if (sign == signC) {
             mantissa0 += mantissaC0;
-            mantissa1 += mantissaC1 + (mantissa0 < mantissaC0 ? 1 : 0);
+            mantissa1 += mantissaC1 + (Long.compareUnsigned(mantissa0, mantissaC0) < 0 ? 1 : 0);
         } else {
             final long tmp = mantissa0;
             mantissa0 -= mantissaC0;
-            mantissa1 = mantissa1 - mantissaC1 - (mantissa0 > tmp ? 1 : 0);
+            mantissa1 = mantissa1 - mantissaC1 - (Long.compareUnsigned(mantissa0, tmp) > 0 ? 1 : 0);
             if ((mantissa0 | mantissa1) == 0) {
                 sign = (rm == RM_RDN) ? 1 : 0;
             }
@@ -373,6 +436,18 @@ public final class SoftDouble {
     }
 
     public long div(final long a, final long b, final int rm) {
+        if (useFastPath && rm == RM_RNE && isFastPathValue(a) && isFastPathValue(b)) {
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double quotient = x / y;
+            if (isFastPathValue(quotient)) {
+                if (Math.fma(-quotient, y, x) != 0) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Double.doubleToRawLongBits(quotient);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -436,6 +511,15 @@ public final class SoftDouble {
     }
 
     public long sqrt(final long a, final int rm) {
+        if (useFastPath && rm == RM_RNE && a > 0 && isFastPathValue(a)) {
+            final double x = Double.longBitsToDouble(a);
+            final double root = Math.sqrt(x);
+            if (Math.fma(-root, root, x) != 0) {
+                flags.raise(FLAG_INEXACT);
+            }
+            return Double.doubleToRawLongBits(root);
+        }
+
         final int signA = getSign(a);
         int exponentA = getExponent(a);
         long mantissaA = getMantissa(a);
@@ -494,6 +578,23 @@ public final class SoftDouble {
         return normalize(signA, exponentA, mantissaA, rm, flags);
     }
 
+    private static boolean isFastPathValue(final long a) {
+        return isFastPathValue(Double.longBitsToDouble(a));
+    }
+
+    private static boolean isFastPathValue(final double a) {
+        // Also excludes zero, subnormals, infinities and NaNs.
+        final int exponent = Math.getExponent(a);
+        return exponent >= FAST_PATH_MIN_EXPONENT && exponent <= Double.MAX_EXPONENT;
+    }
+
+    private static double twoSumError(final double a, final double b, final double sum) {
+        // Knuth's TwoSum, exact as long as there is no overflow: sum + error == a + b.
+        final double bVirtual = sum - a;
+        final double aVirtual = sum - bVirtual;
+        return (a - aVirtual) + (b - bVirtual);
+    }
+
     public long min(final long a, final long b) {
         if (isNaN(a) || isNaN(b)) {
             return handleMinMaxNaN(a, b);
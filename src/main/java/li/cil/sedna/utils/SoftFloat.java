@@ -57,14 +57,41 @@ public final class SoftFloat {
     private static final int QUIET_NAN_MASK = 1 << (MANTISSA_SIZE - 1);
     private static final int QUIET_NAN = (EXPONENT_MASK << MANTISSA_SIZE) | QUIET_NAN_MASK;
 
+    // Mask of the bits of a double's mantissa that are below float precision, and the value of those bits
+    // if the double lies exactly halfway between two floats.
+    private static final long DOUBLE_EXTRA_MANTISSA_MASK = (1L << (SoftDouble.MANTISSA_SIZE - MANTISSA_SIZE)) - 1;
+    private static final long DOUBLE_EXTRA_MANTISSA_HALF = 1L << (SoftDouble.MANTISSA_SIZE - MANTISSA_SIZE - 1);
+
+    // Smallest exponent of results for which we use the host's floating point operations. A result in the binade
+    // below may have been rounded up from a tiny value, in which case we would have to raise the underflow flag.
+    private static final int FAST_PATH_MIN_EXPONENT = Float.MIN_EXPONENT + 1;
+
     public final Flags flags;
+    private final boolean useFastPath;
 
     public SoftFloat() {
-        flags = new Flags();
+        this(new Flags());
     }
 
     public SoftFloat(final Flags flags) {
+        this(flags, true);
+    }
+
+    /**
+     * Creates a new instance, optionally disabling the fast path.
+     * <p>
+     * When enabled, arithmetic using round to nearest on normal values with normal results is computed
+     * using the host's double precision operations. Double precision is wide enough for rounding the
+     * result to single precision afterwards to give the correctly rounded result. Only the inexact flag
+     * may be raised in this case, which is derived from exact residuals. All other cases use the software
+     * implementation.
+     *
+     * @param flags       the flags register to raise exceptions in.
+     * @param useFastPath whether to use host floating point operations where possible.
+     */
+    public SoftFloat(final Flags flags, final boolean useFastPath) {
         this.flags = flags;
+        this.useFastPath = useFastPath;
     }
 
     public static int nan() {
@@ -102,6 +129,22 @@ public final class SoftFloat {
     }
 
     public int add(int a, int b, final int rm) {
+        if (useFastPath && rm == RM_RNE && isNormal(a) && isNormal(b)) {
+            final double x = Float.intBitsToFloat(a);
+            final double y = Float.intBitsToFloat(b);
+            final double sum = x + y;
+            final float result = (float) sum;
+            if (isFastPathValue(result)) {
+                // TwoSum, the error of the double precision sum. If it is not exact, neither is the float.
+                final double yVirtual = sum - x;
+                final double xVirtual = sum - yVirtual;
+                if ((x - xVirtual) + (y - yVirtual) != 0 || result != sum) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Float.floatToRawIntBits(result);
+            }
+        }
+
         // Make sure a is the larger of the two. This way we can unify NaN and Infinity detection.
         if ((a & ~SIGN_MASK) < (b & ~SIGN_MASK)) {
             final int tmp = a;
@@ -167,6 +210,18 @@ public final class SoftFloat {
     }
 
     public int mul(final int a, final int b, final int rm) {
+        if (useFastPath && rm == RM_RNE && isNormal(a) && isNormal(b)) {
+            // The double precision product of two floats is exact.
+            final double product = (double) Float.intBitsToFloat(a) * Float.intBitsToFloat(b);
+            final float result = (float) product;
+            if (isFastPathValue(result)) {
+                if (result != product) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Float.floatToRawIntBits(result);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -227,6 +282,26 @@ public final class SoftFloat {
     }
 
     public int muladd(final int a, final int b, final int c, final int rm) {
+        if (useFastPath && rm == RM_RNE && isNormal(a) && isNormal(b) && isNormal(c)) {
+            final double z = Float.intBitsToFloat(c);
+            final double product = (double) Float.intBitsToFloat(a) * Float.intBitsToFloat(b); // Exact.
+            final double sum = product + z;
+            final double yVirtual = sum - product;
+            final double xVirtual = sum - yVirtual;
+            final double error = (product - xVirtual) + (z - yVirtual);
+            // If the double precision sum is inexact and halfway between two floats, rounding it again
+            // may round in the wrong direction. Rare enough to leave to the slow path.
+            if (error == 0 || (Double.doubleToRawLongBits(sum) & DOUBLE_EXTRA_MANTISSA_MASK) != DOUBLE_EXTRA_MANTISSA_HALF) {
+                final float result = (float) sum;
+                if (isFastPathValue(result)) {
+                    if (error != 0 || result != sum) {
+                        flags.raise(FLAG_INEXACT);
+                    }
+                    return Float.floatToRawIntBits(result);
+                }
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int signC = getSign(c);
@@ -314,7 +389,7 @@ public final class SoftFloat {
 
         if (exponentC == 0) {
             if (mantissaC == 0) { // a * b + c
-                return normalize(sign, exponent, mantissa1, rm, flags);
+                return normalize(sign, exponent, mantissa1 | (mantissa0 != 0 ? 1 : 0), rm, flags);
             } else { // subnormal
                 final int2 exponentAndMantissa = normalizeSubnormal(mantissaC);
                 exponentC = exponentAndMantissa.a;
@@ -357,17 +432,17 @@ public final class SoftFloat {
             mantissaC0 = mantissaC1 | (mantissaC0 != 0 ? 1 : 0);
             mantissaC1 = 0;
         } else if (shift != 0) {
-            mantissaC0 = (mantissaC1 << (SIZE - shift)) | (mantissaC0 >> shift) | ((mantissaC0 & ((1 << shift) - 1)) != 0 ? 1 : 0);
+            mantissaC0 = (mantissaC1 << (SIZE - shift)) | (mantissaC0 >>> shift) | ((mantissaC0 & ((1 << shift) - 1)) != 0 ? 1 : 0);
             mantissaC1 = mantissaC1 >>> shift;
         }
 
         if (sign == signC) {
             mantissa0 += mantissaC0;
-            mantissa1 += mantissaC1 + (mantissa0 < mantissaC0 ? 1 : 0);
+            mantissa1 += mantissaC1 + (Integer.compareUnsigned(mantissa0, mantissaC0) < 0 ? 1 : 0);
         } else {
             final int tmp = mantissa0;
             mantissa0 -= mantissaC0;
-            mantissa1 = mantissa1 - mantissaC1 - (mantissa0 > tmp ? 1 : 0);
+            mantissa1 = mantissa1 - mantissaC1 - (Integer.compareUnsigned(mantissa0, tmp) > 0 ? 1 : 0);
             if ((mantissa0 | mantissa1) == 0) {
                 sign = (rm == RM_RDN) ? 1 : 0;
             }
@@ -381,6 +456,19 @@ public final class SoftFloat {
     }
 
     public int div(final int a, final int b, final int rm) {
+        if (useFastPath && rm == RM_RNE && isNormal(a) && isNormal(b)) {
+            final double x = Float.intBitsToFloat(a);
+            final double y = Float.intBitsToFloat(b);
+            final float result = (float) (x / y);
+            if (isFastPathValue(result)) {
+                // Products of floats are exact in double precision.
+                if (result * y != x) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Float.floatToRawIntBits(result);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -444,6 +532,15 @@ public final class SoftFloat {
     }
 
     public int sqrt(final int a, final int rm) {
+        if (useFastPath && rm == RM_RNE && a > 0 && isNormal(a)) {
+            final double x = Float.intBitsToFloat(a);
+            final float result = (float) Math.sqrt(x);
+            if ((double) result * result != x) {
+                flags.raise(FLAG_INEXACT);
+            }
+            return Float.floatToRawIntBits(result);
+        }
+
         final int signA = getSign(a);
         int exponentA = getExponent(a);
         int mantissaA = getMantissa(a);
@@ -502,6 +599,17 @@ public final class SoftFloat {
         return normalize(signA, exponentA, mantissaA, rm, flags);
     }
 
+    private static boolean isNormal(final int a) {
+        final int exponent = getExponent(a);
+        return exponent != 0 && exponent != EXPONENT_MASK;
+    }
+
+    private static boolean isFastPathValue(final float a) {
+        // Also excludes zero, subnormals, infinities and NaNs.
+        final int exponent = Math.getExponent(a);
+        return exponent >= FAST_PATH_MIN_EXPONENT && exponent <= Float.MAX_EXPONENT;
+    }
+
     public int min(final int a, final int b) {
         if (isNaN(a) || isNaN(b)) {
             return handleMinMaxNaN(a, b);
@@ -0,0 +1,105 @@
+package li.cil.sedna;
+
+import li.cil.sedna.device.block.ByteBufferBlockDevice;
+import li.cil.sedna.device.block.CopyOnWriteBlockDevice;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CopyOnWriteBlockDeviceTests {
+    private static final int CLUSTER_BITS = 9;
+
+    @TempDir Path directory;
+    private byte[] array;
+    private ByteBufferBlockDevice base;
+
+    @BeforeEach
+    public void setupEach() {
+        array = new byte[64 * 1024 + 100];
+        new Random(0xdeadbeef).nextBytes(array);
+        base = ByteBufferBlockDevice.wrap(ByteBuffer.wrap(array), true);
+    }
+
+    @Test
+    public void readingReadsBackingDevice() throws IOException {
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(directory.resolve("overlay"), base, CLUSTER_BITS)) {
+            assertEquals(base.getCapacity(), overlay.getCapacity());
+            assertFalse(overlay.isReadonly());
+            assertArrayEquals(array, readAll(overlay));
+        }
+    }
+
+    @Test
+    public void writingKeepsBackingDeviceAndPersists() throws IOException {
+        final Path path = directory.resolve("overlay");
+        final byte[] expected = array.clone();
+        final byte[] data = new byte[1000];
+        new Random(0xcafebabe).nextBytes(data);
+        System.arraycopy(data, 0, expected, 300, data.length);
+        expected[expected.length - 1] = 42;
+
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(path, base, CLUSTER_BITS)) {
+            overlay.write(ByteBuffer.wrap(data), 300);
+            overlay.write(ByteBuffer.wrap(new byte[]{42}), overlay.getCapacity() - 1);
+            assertArrayEquals(expected, readAll(overlay));
+        }
+
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.open(path, base, false)) {
+            assertArrayEquals(expected, readAll(overlay));
+        }
+    }
+
+    @Test
+    public void writingZeroesAndDiscardingReusesClusters() throws IOException {
+        final Path path = directory.resolve("overlay");
+        try (final CopyOnWriteBlockDevice overlay = CopyOnWriteBlockDevice.create(path, base, CLUSTER_BITS)) {
+            overlay.write(ByteBuffer.allocate(8 * 1024), 0);
+            final long size = Files.size(path);
+
+            overlay.writeZeroes(100, 16 * 1024);
+            final byte[] expected = array.clone();
+            Arrays.fill(expected, 0, 100 + 16 * 1024, (byte) 0);
+            assertArrayEquals(expected, readAll(overlay));
+
+            overlay.discard(0, overlay.getCapacity());
+            overlay.write(ByteBuffer.allocate(4 * 1024), 1024);
+            assertEquals(size, Files.size(path));
+        }
+    }
+
+    @Test
+    public void overlaysCanBeChained() throws IOException {
+        final Path lowerPath = directory.resolve("lower");
+        try (final CopyOnWriteBlockDevice lower = CopyOnWriteBlockDevice.create(lowerPath, base, CLUSTER_BITS)) {
+            lower.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 1000);
+        }
+
+        try (final CopyOnWriteBlockDevice lower = CopyOnWriteBlockDevice.open(lowerPath, base, true);
+             final CopyOnWriteBlockDevice upper = CopyOnWriteBlockDevice.create(directory.resolve("upper"), lower)) {
+            assertThrows(UnsupportedOperationException.class, () -> lower.write(ByteBuffer.allocate(1), 0));
+
+            upper.write(ByteBuffer.wrap(new byte[]{4}), 1001);
+
+            final byte[] expected = array.clone();
+            expected[1000] = 1;
+            expected[1001] = 4;
+            expected[1002] = 3;
+            assertArrayEquals(expected, readAll(upper));
+        }
+    }
+
+    private static byte[] readAll(final CopyOnWriteBlockDevice device) throws IOException {
+        final byte[] data = new byte[(int) device.getCapacity()];
+        assertEquals(data.length, device.read(ByteBuffer.wrap(data), 0));
+        return data;
+    }
+}
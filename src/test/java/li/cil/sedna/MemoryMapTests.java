@@ -1,14 +1,22 @@
 package li.cil.sedna;
 
+import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.api.memory.MemoryRange;
+import li.cil.sedna.device.memory.Memory;
 import li.cil.sedna.memory.MemoryMaps;
 import li.cil.sedna.memory.SimpleMemoryMap;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -57,4 +65,68 @@ public final class MemoryMapTests {
         assertEquals(0, MemoryMaps.getContinuousMemorySize(memoryMap, 0));
         assertEquals(0, MemoryMaps.getContinuousMemorySize(memoryMap, 0x80008000L));
     }
+
+    @Test
+    public void storesMarkPagesDirty() throws MemoryAccessException {
+        final PhysicalMemory memory = Memory.create(4 * MemoryMap.DIRTY_PAGE_SIZE);
+        assertTrue(memoryMap.addDevice(0x80000000L, memory));
+
+        assertFalse(memoryMap.isDirty(memory, 0));
+
+        memoryMap.store(0x80000000L + MemoryMap.DIRTY_PAGE_SIZE + 8, 0x12345678, Sizes.SIZE_32_LOG2);
+        MemoryMaps.store(memoryMap, 0x80000000L + 3 * MemoryMap.DIRTY_PAGE_SIZE - 2, new byte[4], 0, 4);
+
+        assertFalse(memoryMap.isDirty(memory, 0));
+        assertTrue(memoryMap.isDirty(memory, MemoryMap.DIRTY_PAGE_SIZE));
+        assertTrue(memoryMap.isDirty(memory, 2 * MemoryMap.DIRTY_PAGE_SIZE));
+        assertTrue(memoryMap.isDirty(memory, 3 * MemoryMap.DIRTY_PAGE_SIZE));
+
+        final BitSet expected = new BitSet();
+        expected.set(1, 4);
+        assertEquals(expected, memoryMap.getAndClearDirtyPages(memory));
+    }
+
+    @Test
+    public void clearingDirtyPagesMarksThemClean() throws MemoryAccessException {
+        final PhysicalMemory memory = Memory.create(2 * MemoryMap.DIRTY_PAGE_SIZE);
+        assertTrue(memoryMap.addDevice(0x80000000L, memory));
+
+        memoryMap.store(0x80000000L, 1, Sizes.SIZE_8_LOG2);
+        assertEquals(1, memoryMap.getAndClearDirtyPages(memory).cardinality());
+
+        assertFalse(memoryMap.isDirty(memory, 0));
+        assertTrue(memoryMap.getAndClearDirtyPages(memory).isEmpty());
+    }
+
+    @Test
+    public void untrackedMapsReportAllPagesDirty() {
+        final MemoryMap untracked = mock(MemoryMap.class, CALLS_REAL_METHODS);
+        final PhysicalMemory memory = Memory.create(2 * MemoryMap.DIRTY_PAGE_SIZE + 4);
+
+        untracked.setDirty(MemoryRange.at(0x80000000L, memory.getLength()), 0);
+        assertTrue(untracked.isDirty(memory, 0));
+
+        final BitSet expected = new BitSet();
+        expected.set(0, 3);
+        assertEquals(expected, untracked.getAndClearDirtyPages(memory));
+    }
+
+    @Test
+    public void slicesAreBackedByMemory() throws MemoryAccessException {
+        final PhysicalMemory memory1 = Memory.create(0x1000);
+        final PhysicalMemory memory2 = Memory.create(0x1000);
+        assertTrue(memoryMap.addDevice(0x80000000L, memory1));
+        assertTrue(memoryMap.addDevice(0x80001000L, memory2));
+
+        final ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        assertTrue(MemoryMaps.slice(memoryMap, 0x80000ff0L, 0x20, buffers));
+        assertEquals(2, buffers.size());
+        assertEquals(0x10, buffers.get(0).remaining());
+        assertEquals(0x10, buffers.get(1).remaining());
+
+        buffers.get(1).put(0, (byte) 0x12);
+        assertEquals(0x12, memory2.load(0, Sizes.SIZE_8_LOG2));
+
+        assertFalse(MemoryMaps.slice(memoryMap, 0x80001ff0L, 0x20, new ArrayList<>()));
+    }
 }
@@ -0,0 +1,101 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.memory.ByteBufferMemory;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.MemoryMaps;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class SegmentedMemoryTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final long MEMORY_SIZE = 2L * Memory.MAX_SEGMENT_SIZE + 0x10000;
+
+    @TempDir Path directory;
+
+    @Test
+    public void smallMemoryIsSingleSegment() {
+        final List<PhysicalMemory> segments = Memory.createSegmented(0x1000);
+        assertEquals(1, segments.size());
+        assertEquals(0x1000, segments.get(0).getLength());
+    }
+
+    @Test
+    public void invalidSizeThrows() {
+        assertThrows(IllegalArgumentException.class, () -> Memory.createSegmented(0));
+        assertThrows(IllegalArgumentException.class, () -> Memory.createSegmented(-1));
+    }
+
+    @Test
+    public void largeMemoryIsSplitIntoSegments() {
+        final List<PhysicalMemory> segments = createMappedSegments();
+        assertEquals(3, segments.size());
+        assertEquals(Memory.MAX_SEGMENT_SIZE, segments.get(0).getLength());
+        assertEquals(Memory.MAX_SEGMENT_SIZE, segments.get(1).getLength());
+        assertEquals(0x10000, segments.get(2).getLength());
+    }
+
+    @Test
+    public void segmentsAreContinuousInMemoryMap() {
+        final MemoryMap memoryMap = createMemoryMap(createMappedSegments());
+
+        assertEquals(MEMORY_SIZE, MemoryMaps.getContinuousMemorySizeLong(memoryMap, MEMORY_START));
+        assertEquals(Integer.MAX_VALUE, MemoryMaps.getContinuousMemorySize(memoryMap, MEMORY_START));
+        assertEquals(0x10000, MemoryMaps.getContinuousMemorySize(memoryMap, MEMORY_START + 2L * Memory.MAX_SEGMENT_SIZE));
+    }
+
+    @Test
+    public void accessesAcrossSegmentBoundaryReachBothSegments() throws MemoryAccessException {
+        final List<PhysicalMemory> segments = createMappedSegments();
+        final MemoryMap memoryMap = createMemoryMap(segments);
+
+        final long boundary = MEMORY_START + Memory.MAX_SEGMENT_SIZE;
+        final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+        MemoryMaps.store(memoryMap, boundary - 4, data, 0, data.length);
+
+        assertEquals(0x04030201, segments.get(0).load(Memory.MAX_SEGMENT_SIZE - 4, Sizes.SIZE_32_LOG2));
+        assertEquals(0x08070605, segments.get(1).load(0, Sizes.SIZE_32_LOG2));
+
+        final byte[] result = new byte[data.length];
+        MemoryMaps.load(memoryMap, boundary - 4, result, 0, result.length);
+        assertArrayEquals(data, result);
+    }
+
+    private List<PhysicalMemory> createMappedSegments() {
+        return Memory.createSegmented(MEMORY_SIZE, this::createMappedSegment);
+    }
+
+    private PhysicalMemory createMappedSegment(final int size) {
+        // Sparse files, so only the pages we touch take up space.
+        try (final FileChannel channel = FileChannel.open(Files.createTempFile(directory, "segment", null),
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new ByteBufferMemory(size, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MemoryMap createMemoryMap(final List<PhysicalMemory> segments) {
+        final MemoryMap memoryMap = new SimpleMemoryMap();
+        long address = MEMORY_START;
+        for (final PhysicalMemory segment : segments) {
+            assertTrue(memoryMap.addDevice(address, segment));
+            address += segment.getLength();
+        }
+        return memoryMap;
+    }
+}
@@ -7,14 +7,23 @@ import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.device.PhysicalMemory;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.block.ByteBufferBlockDevice;
 import li.cil.sedna.device.memory.Memory;
 import li.cil.sedna.device.serial.UART16550A;
+import li.cil.sedna.device.virtio.VirtIOBlockDevice;
 import li.cil.sedna.device.virtio.VirtIOConsoleDevice;
+import li.cil.sedna.memory.MemoryMaps;
 import li.cil.sedna.memory.SimpleMemoryMap;
+import li.cil.sedna.riscv.R5Board;
+import li.cil.sedna.serialization.MachineSnapshot;
+import li.cil.sedna.serialization.MachineSnapshotWriter;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -184,4 +193,179 @@ public final class SerializationTests {
         assertEquals('s', deserialized.read());
         assertEquals('t', deserialized.read());
     }
+
+    @Test
+    public void testMachineSnapshotDeltas() throws Exception {
+        final R5Board board = new R5Board();
+        final PhysicalMemory memory = Memory.create(4 * MemoryMap.DIRTY_PAGE_SIZE);
+        assertTrue(board.addDevice(0x80000000L, memory));
+        final UART16550A uart = new UART16550A();
+
+        final MachineSnapshotWriter writer = new MachineSnapshotWriter(board, uart);
+
+        final MachineSnapshot full = writer.capture();
+        assertTrue(full.isFull());
+        assertEquals(4, full.getSegments().get(0).getPages().cardinality());
+
+        MemoryMaps.store(board.getMemoryMap(), 0x80000000L + MemoryMap.DIRTY_PAGE_SIZE, new byte[]{1, 2, 3, 4}, 0, 4);
+        final MachineSnapshot delta1 = writer.capture();
+        assertFalse(delta1.isFull());
+        assertEquals(1, delta1.getSegments().get(0).getPages().cardinality());
+        assertTrue(delta1.getSegments().get(0).getPages().get(1));
+
+        MemoryMaps.store(board.getMemoryMap(), 0x80000000L + MemoryMap.DIRTY_PAGE_SIZE, new byte[]{5}, 0, 1);
+        MemoryMaps.store(board.getMemoryMap(), 0x80000000L + 3 * MemoryMap.DIRTY_PAGE_SIZE, new byte[]{6}, 0, 1);
+        uart.store(7 /* scr */, 42, Sizes.SIZE_8_LOG2);
+        final MachineSnapshot delta2 = writer.capture();
+        assertEquals(2, delta2.getSegments().get(0).getPages().cardinality());
+
+        final MachineSnapshot compacted = MachineSnapshot.compact(List.of(full, delta1, delta2));
+        assertTrue(compacted.isFull());
+        assertEquals(4, compacted.getSegments().get(0).getPages().cardinality());
+
+        final ByteBuffer serialized = assertDoesNotThrow(() -> BinarySerialization.serialize(compacted));
+        final MachineSnapshot deserialized = assertDoesNotThrow(() -> BinarySerialization.deserialize(serialized, MachineSnapshot.class));
+
+        for (final List<MachineSnapshot> chain : List.of(List.of(full, delta1, delta2), List.of(deserialized))) {
+            final MemoryMap restoredMap = new SimpleMemoryMap();
+            final PhysicalMemory restored = Memory.create(4 * MemoryMap.DIRTY_PAGE_SIZE);
+            assertTrue(restoredMap.addDevice(0x80000000L, restored));
+            MachineSnapshot.restore(chain, restoredMap);
+            assertEquals(5, restored.load(MemoryMap.DIRTY_PAGE_SIZE, Sizes.SIZE_8_LOG2));
+            assertEquals(2, restored.load(MemoryMap.DIRTY_PAGE_SIZE + 1, Sizes.SIZE_8_LOG2));
+            assertEquals(6, restored.load(3 * MemoryMap.DIRTY_PAGE_SIZE, Sizes.SIZE_8_LOG2));
+
+            final UART16550A restoredUART = BinarySerialization.deserialize(chain.get(chain.size() - 1).getState(), UART16550A.class);
+            assertEquals(42, restoredUART.load(7 /* scr */, Sizes.SIZE_8_LOG2));
+        }
+    }
+
+    @Test
+    public void testMachineSnapshotMultipleMemories() throws Exception {
+        final R5Board board = new R5Board();
+        final long lowAddress = 0x80000000L;
+        final long highAddress = 0x100000000L;
+        assertTrue(board.addDevice(highAddress, Memory.create(3 * MemoryMap.DIRTY_PAGE_SIZE)));
+        assertTrue(board.addDevice(lowAddress, Memory.create(2 * MemoryMap.DIRTY_PAGE_SIZE)));
+
+        final MachineSnapshotWriter writer = new MachineSnapshotWriter(board, new UART16550A());
+
+        final MachineSnapshot full = writer.capture();
+        assertTrue(full.isFull());
+        final List<MachineSnapshot.Segment> segments = full.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(lowAddress, segments.get(0).getAddress());
+        assertEquals(2 * MemoryMap.DIRTY_PAGE_SIZE, segments.get(0).getMemoryLength());
+        assertEquals(2, segments.get(0).getPages().cardinality());
+        assertEquals(highAddress, segments.get(1).getAddress());
+        assertEquals(3 * MemoryMap.DIRTY_PAGE_SIZE, segments.get(1).getMemoryLength());
+        assertEquals(3, segments.get(1).getPages().cardinality());
+
+        MemoryMaps.store(board.getMemoryMap(), lowAddress + MemoryMap.DIRTY_PAGE_SIZE, new byte[]{1, 2}, 0, 2);
+        MemoryMaps.store(board.getMemoryMap(), highAddress + 2 * MemoryMap.DIRTY_PAGE_SIZE, new byte[]{3, 4}, 0, 2);
+        final MachineSnapshot delta = writer.capture();
+        assertFalse(delta.isFull());
+        assertEquals(List.of(1), delta.getSegments().get(0).getPages().stream().boxed().toList());
+        assertEquals(List.of(2), delta.getSegments().get(1).getPages().stream().boxed().toList());
+
+        for (final List<MachineSnapshot> chain : List.of(List.of(full, delta), List.of(MachineSnapshot.compact(List.of(full, delta))))) {
+            final MemoryMap restoredMap = new SimpleMemoryMap();
+            final PhysicalMemory low = Memory.create(2 * MemoryMap.DIRTY_PAGE_SIZE);
+            final PhysicalMemory high = Memory.create(3 * MemoryMap.DIRTY_PAGE_SIZE);
+            assertTrue(restoredMap.addDevice(lowAddress, low));
+            assertTrue(restoredMap.addDevice(highAddress, high));
+            MachineSnapshot.restore(chain, restoredMap);
+            assertEquals(0x0201, low.load(MemoryMap.DIRTY_PAGE_SIZE, Sizes.SIZE_16_LOG2));
+            assertEquals(0x0403, high.load(2 * MemoryMap.DIRTY_PAGE_SIZE, Sizes.SIZE_16_LOG2));
+        }
+
+        // Each segment must be restored to memory of the same size at the same address.
+        final MemoryMap incompleteMap = new SimpleMemoryMap();
+        assertTrue(incompleteMap.addDevice(lowAddress, Memory.create(2 * MemoryMap.DIRTY_PAGE_SIZE)));
+        assertThrows(IllegalArgumentException.class, () -> MachineSnapshot.restore(List.of(full, delta), incompleteMap));
+
+        // Changing the memory layout starts a new chain.
+        assertTrue(board.addDevice(0x90000000L, Memory.create(MemoryMap.DIRTY_PAGE_SIZE)));
+        final MachineSnapshot changed = writer.capture();
+        assertTrue(changed.isFull());
+        assertEquals(3, changed.getSegments().size());
+        assertThrows(IllegalArgumentException.class, () -> MachineSnapshot.compact(List.of(full, delta, changed)));
+    }
+
+    @Test
+    public void testMachineSnapshotCompletesPendingBlockRequests() throws Exception {
+        final R5Board board = new R5Board();
+        final PhysicalMemory memory = Memory.create(4 * MemoryMap.DIRTY_PAGE_SIZE);
+        assertTrue(board.addDevice(0x80000000L, memory));
+
+        final ByteBufferBlockDevice block = ByteBufferBlockDevice.create(4096, false);
+        block.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 0);
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(board.getMemoryMap(), block);
+        assertTrue(board.addDevice(0x10000000L, device));
+
+        // Delay I/O, so the request is guaranteed to still be in flight when taking the snapshot.
+        device.setExecutor(CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+
+        final long descsAddr = 0x80000000L;
+        final long driverAddr = 0x80000100L;
+        final long deviceAddr = 0x80000200L;
+        final long headerAddr = 0x80000300L;
+        final long statusAddr = 0x80000310L;
+        final long dataAddr = 0x80001000L;
+
+        // Initialize device.
+        device.store(0x070 /*status*/, 0 /* reset */, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 /* acknowledge */, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 | 2 /* driver */, Sizes.SIZE_32_LOG2);
+        device.store(0x024 /*driverfeature_sel*/, 1, Sizes.SIZE_32_LOG2);
+        device.store(0x020 /*driverfeature*/, 1/*version 1*/, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 | 2 | 8 /* features_ok */, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 | 2 | 8 | 4 /* driver_ok */, Sizes.SIZE_32_LOG2);
+
+        // Setup request queue.
+        device.store(0x030 /*queue_sel*/, 0 /* requestq */, Sizes.SIZE_32_LOG2);
+        device.store(0x080 /*queue_desc*/, (int) descsAddr, Sizes.SIZE_32_LOG2);
+        device.store(0x080 + 4 /*queue_desch*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x090 /*queue_drv*/, (int) driverAddr, Sizes.SIZE_32_LOG2);
+        device.store(0x090 + 4 /*queue_drvh*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x0A0 /*queue_dev*/, (int) deviceAddr, Sizes.SIZE_32_LOG2);
+        device.store(0x0A0 + 4 /*queue_devh*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x038 /*queue_num*/, 4 /* 4 descriptors */, Sizes.SIZE_32_LOG2);
+        device.store(0x044 /*queue_ready*/, 1 /* true */, Sizes.SIZE_32_LOG2);
+
+        // Read sector zero: header, data and status descriptors.
+        final MemoryMap memoryMap = board.getMemoryMap();
+        memoryMap.store(headerAddr /* .type */, 0 /* VIRTIO_BLK_T_IN */, Sizes.SIZE_32_LOG2);
+        memoryMap.store(headerAddr + 8 /* .sector */, 0, Sizes.SIZE_64_LOG2);
+        storeDescriptor(memoryMap, descsAddr, 0, headerAddr, 16, 1 /* next */, 1);
+        storeDescriptor(memoryMap, descsAddr, 1, dataAddr, 512, 1 | 2 /* next, write */, 2);
+        storeDescriptor(memoryMap, descsAddr, 2, statusAddr, 1, 2 /* write */, 0);
+        memoryMap.store(driverAddr + 4 /* .ring[0] */, 0, Sizes.SIZE_16_LOG2);
+        memoryMap.store(driverAddr + 2 /* .idx */, 1, Sizes.SIZE_16_LOG2);
+        device.store(0x050 /* notify */, 0 /* queueidx */, Sizes.SIZE_32_LOG2);
+
+        device.step(1_000_000);
+        assertFalse(device.isIdle());
+        assertEquals(0, memoryMap.load(deviceAddr + 2 /* .idx */, Sizes.SIZE_16_LOG2));
+
+        final MachineSnapshotWriter writer = new MachineSnapshotWriter(board, device);
+        final MachineSnapshot snapshot = writer.capture();
+        assertTrue(device.isIdle());
+
+        final MemoryMap restoredMap = new SimpleMemoryMap();
+        final PhysicalMemory restored = Memory.create(4 * MemoryMap.DIRTY_PAGE_SIZE);
+        assertTrue(restoredMap.addDevice(0x80000000L, restored));
+        MachineSnapshot.restore(List.of(snapshot), restoredMap);
+        assertEquals(1, restored.load((int) (deviceAddr + 2 - 0x80000000L) /* .idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0 /* VIRTIO_BLK_S_OK */, restored.load((int) (statusAddr - 0x80000000L), Sizes.SIZE_8_LOG2));
+        assertEquals(0x04030201, restored.load((int) (dataAddr - 0x80000000L), Sizes.SIZE_32_LOG2));
+    }
+
+    private static void storeDescriptor(final MemoryMap memoryMap, final long descsAddr, final int index, final long address, final int length, final int flags, final int next) throws MemoryAccessException {
+        final long addr = descsAddr + index * 16L;
+        memoryMap.store(addr /* .addr */, address, Sizes.SIZE_64_LOG2);
+        memoryMap.store(addr + 8 /* .len */, length, Sizes.SIZE_32_LOG2);
+        memoryMap.store(addr + 12 /* .flags */, flags, Sizes.SIZE_16_LOG2);
+        memoryMap.store(addr + 14 /* .next */, next, Sizes.SIZE_16_LOG2);
+    }
 }
@@ -3,6 +3,7 @@ package li.cil.sedna;
 import li.cil.sedna.utils.SoftDouble;
 import li.cil.sedna.utils.SoftFloat;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 
 import java.math.BigInteger;
@@ -13,6 +14,7 @@ import java.util.Objects;
 import java.util.Random;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public final class SoftDoubleTests {
@@ -23,6 +25,7 @@ public final class SoftDoubleTests {
         return Arrays.stream(OPERATIONS)
                 .map(op -> DynamicTest.dynamicTest(op.getName(), URI.create(op.getName()), () -> {
                     final SoftDouble fpu = new SoftDouble();
+                    final SoftDouble slowFpu = new SoftDouble(new SoftFloat.Flags(), false);
                     final Random random = new Random(0);
                     final long[] longArgs = new long[op.getArgCount()];
                     final double[] doubleArgs = new double[longArgs.length];
@@ -34,14 +37,36 @@ public final class SoftDoubleTests {
 
                         final OperationResult result0 = op.runSoftDouble(fpu, longArgs);
                         final OperationResult result1 = op.runJavaDouble(doubleArgs, longArgs);
+                        final OperationResult result2 = op.runSoftDouble(slowFpu, longArgs);
 
-                        if (!Objects.equals(result0, result1)) {
-                            fail(i + ": " + result0 + " != " + result1 + "\nargs=" + Arrays.toString(longArgs) + "," + Arrays.toString(doubleArgs));
+                        if (!Objects.equals(result0, result1) || !Objects.equals(result2, result1)) {
+                            fail(i + ": " + result0 + "/" + result2 + " != " + result1 + "\nargs=" + Arrays.toString(longArgs) + "," + Arrays.toString(doubleArgs));
                         }
                     }
                 })).collect(Collectors.toList());
     }
 
+    @Test
+    public void testFastPathRaisesSameFlags() {
+        final SoftDouble fpu = new SoftDouble();
+        final SoftDouble slowFpu = new SoftDouble(new SoftFloat.Flags(), false);
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // Short mantissas so that a good share of results is exact.
+            final long a = Double.doubleToRawLongBits(Math.scalb((double) random.nextInt(1 << 20), random.nextInt(200) - 100));
+            final long b = Double.doubleToRawLongBits(Math.scalb((double) -random.nextInt(1 << 20), random.nextInt(200) - 100));
+            final long c = Double.doubleToRawLongBits(Math.scalb(random.nextDouble(), random.nextInt(200) - 100));
+
+            fpu.flags.value = slowFpu.flags.value = 0;
+            assertEquals(slowFpu.add(a, b, SoftDouble.RM_RNE), fpu.add(a, b, SoftDouble.RM_RNE));
+            assertEquals(slowFpu.mul(a, c, SoftDouble.RM_RNE), fpu.mul(a, c, SoftDouble.RM_RNE));
+            assertEquals(slowFpu.div(a, b, SoftDouble.RM_RNE), fpu.div(a, b, SoftDouble.RM_RNE));
+            assertEquals(slowFpu.sqrt(a, SoftDouble.RM_RNE), fpu.sqrt(a, SoftDouble.RM_RNE));
+            assertEquals(slowFpu.muladd(a, b, c, SoftDouble.RM_RNE), fpu.muladd(a, b, c, SoftDouble.RM_RNE));
+            assertEquals(slowFpu.flags.value, fpu.flags.value, i + ": " + a + ", " + b + ", " + c);
+        }
+    }
+
     // NB: min and max are not tested here, because for RISC-V they return the non-NaN value for a
     //     (NaN, not-NaN) argument pair, whereas Java will return NaN. And we want to be RISC-V correct.
     // NB: Java converts NaNs to zero whereas RISC-V expects them to be treated as positive infinity, so
@@ -59,6 +84,9 @@ public final class SoftDoubleTests {
             new LambdaOperationDescriptor("div", 2,
                     (fpu, longs) -> OperationResult.of(fpu.div(longs[0], longs[1], JAVA_ROUNDING_MODE)),
                     (doubles, longs) -> OperationResult.of(doubles[0] / doubles[1])),
+            new LambdaOperationDescriptor("muladd", 3,
+                    (fpu, longs) -> OperationResult.of(fpu.muladd(longs[0], longs[1], longs[2], JAVA_ROUNDING_MODE)),
+                    (doubles, longs) -> OperationResult.of(Math.fma(doubles[0], doubles[1], doubles[2]))),
             new LambdaOperationDescriptor("sqrt", 1,
                     (fpu, longs) -> OperationResult.of(fpu.sqrt(longs[0], JAVA_ROUNDING_MODE)),
                     (doubles, longs) -> OperationResult.of(Math.sqrt(doubles[0]))),
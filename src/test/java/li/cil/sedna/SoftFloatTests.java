@@ -2,6 +2,7 @@ package li.cil.sedna;
 
 import li.cil.sedna.utils.SoftFloat;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 
 import java.net.URI;
@@ -11,6 +12,7 @@ import java.util.Objects;
 import java.util.Random;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public final class SoftFloatTests {
@@ -21,6 +23,7 @@ public final class SoftFloatTests {
         return Arrays.stream(OPERATIONS)
                 .map(op -> DynamicTest.dynamicTest(op.getName(), URI.create(op.getName()), () -> {
                     final SoftFloat fpu = new SoftFloat();
+                    final SoftFloat slowFpu = new SoftFloat(new SoftFloat.Flags(), false);
                     final Random random = new Random(0);
                     final int[] intArgs = new int[op.getArgCount()];
                     final float[] floatArgs = new float[intArgs.length];
@@ -32,14 +35,66 @@ public final class SoftFloatTests {
 
                         final OperationResult result0 = op.runSoftFloat(fpu, intArgs);
                         final OperationResult result1 = op.runJavaFloat(floatArgs, intArgs);
+                        final OperationResult result2 = op.runSoftFloat(slowFpu, intArgs);
 
-                        if (!Objects.equals(result0, result1)) {
-                            fail(i + ": " + result0 + " != " + result1 + "\nargs=" + Arrays.toString(intArgs) + "," + Arrays.toString(floatArgs));
+                        if (!Objects.equals(result0, result1) || !Objects.equals(result2, result1)) {
+                            fail(i + ": " + result0 + "/" + result2 + " != " + result1 + "\nargs=" + Arrays.toString(intArgs) + "," + Arrays.toString(floatArgs));
                         }
                     }
                 })).collect(Collectors.toList());
     }
 
+    @Test
+    public void testFastPathRaisesSameFlags() {
+        final SoftFloat fpu = new SoftFloat();
+        final SoftFloat slowFpu = new SoftFloat(new SoftFloat.Flags(), false);
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // Short mantissas so that a good share of results is exact.
+            final int a = Float.floatToRawIntBits(Math.scalb((float) random.nextInt(1 << 10), random.nextInt(40) - 20));
+            final int b = Float.floatToRawIntBits(Math.scalb((float) -random.nextInt(1 << 10), random.nextInt(40) - 20));
+            final int c = Float.floatToRawIntBits(Math.scalb(random.nextFloat(), random.nextInt(40) - 20));
+
+            fpu.flags.value = slowFpu.flags.value = 0;
+            assertEquals(slowFpu.add(a, b, SoftFloat.RM_RNE), fpu.add(a, b, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.mul(a, c, SoftFloat.RM_RNE), fpu.mul(a, c, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.div(a, b, SoftFloat.RM_RNE), fpu.div(a, b, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.sqrt(a, SoftFloat.RM_RNE), fpu.sqrt(a, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.muladd(a, b, c, SoftFloat.RM_RNE), fpu.muladd(a, b, c, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.flags.value, fpu.flags.value, i + ": " + a + ", " + b + ", " + c);
+        }
+    }
+
+    @Test
+    public void testFastPathRaisesSameFlagsNearSubnormals() {
+        final SoftFloat fpu = new SoftFloat();
+        final SoftFloat slowFpu = new SoftFloat(new SoftFloat.Flags(), false);
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // Values just below one and just above the smallest normal value, so that results are
+            // slightly below the smallest normal value and may round up to it.
+            final int a = 0x3F800000 - random.nextInt(1 << 8);
+            final int b = 0x3F800000 + random.nextInt(1 << 8);
+            final int c = 0x00800000 + random.nextInt(1 << 8);
+
+            // Check flags after each operation, results that are subnormal on both paths raise underflow anyway.
+            fpu.flags.value = slowFpu.flags.value = 0;
+            assertEquals(slowFpu.mul(a, c, SoftFloat.RM_RNE), fpu.mul(a, c, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.flags.value, fpu.flags.value, i + ": mul " + a + ", " + c);
+
+            fpu.flags.value = slowFpu.flags.value = 0;
+            assertEquals(slowFpu.div(c, b, SoftFloat.RM_RNE), fpu.div(c, b, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.flags.value, fpu.flags.value, i + ": div " + c + ", " + b);
+
+            fpu.flags.value = slowFpu.flags.value = 0;
+            // a * 2c - c = c * (2a - 1), which is again slightly below c.
+            final int twoC = c + (1 << SoftFloat.MANTISSA_SIZE);
+            final int negC = c | SoftFloat.SIGN_MASK;
+            assertEquals(slowFpu.muladd(a, twoC, negC, SoftFloat.RM_RNE), fpu.muladd(a, twoC, negC, SoftFloat.RM_RNE));
+            assertEquals(slowFpu.flags.value, fpu.flags.value, i + ": muladd " + a + ", " + twoC + ", " + negC);
+        }
+    }
+
     // NB: min and max are not tested here, because for RISC-V they return the non-NaN value for a
     //     (NaN, not-NaN) argument pair, whereas Java will return NaN. And we want to be RISC-V correct.
     // NB: Java converts NaNs to zero whereas RISC-V expects them to be treated as positive infinity, so
@@ -57,6 +112,9 @@ public final class SoftFloatTests {
             new LambdaOperationDescriptor("div", 2,
                     (fpu, ints) -> OperationResult.of(fpu.div(ints[0], ints[1], JAVA_ROUNDING_MODE)),
                     (floats, ints) -> OperationResult.of(floats[0] / floats[1])),
+            new LambdaOperationDescriptor("muladd", 3,
+                    (fpu, ints) -> OperationResult.of(fpu.muladd(ints[0], ints[1], ints[2], JAVA_ROUNDING_MODE)),
+                    (floats, ints) -> OperationResult.of(Math.fma(floats[0], floats[1], floats[2]))),
             new LambdaOperationDescriptor("sqrt", 1,
                     (fpu, ints) -> OperationResult.of(fpu.sqrt(ints[0], JAVA_ROUNDING_MODE)),
                     (floats, ints) -> OperationResult.of((float) Math.sqrt(floats[0]))),
@@ -0,0 +1,94 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MappedMemoryRange;
+import li.cil.sedna.api.memory.MemoryRange;
+import li.cil.sedna.memory.SortedMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class SortedMemoryMapTests {
+    private SortedMemoryMap memoryMap;
+
+    @BeforeEach
+    public void setupEach() {
+        memoryMap = new SortedMemoryMap();
+    }
+
+    @Test
+    public void lookupFindsDevicesAddedOutOfOrder() {
+        final PhysicalMemory memory1 = createMemory(0x1000);
+        final PhysicalMemory memory2 = createMemory(0x1000);
+        final PhysicalMemory memory3 = createMemory(0x1000);
+
+        assertTrue(memoryMap.addDevice(0x80002000L, memory3));
+        assertTrue(memoryMap.addDevice(0x1000, memory1));
+        assertTrue(memoryMap.addDevice(0x80000000L, memory2));
+
+        assertNull(memoryMap.getMemoryRange(0));
+        assertSame(memory1, getDevice(0x1000));
+        assertSame(memory1, getDevice(0x1fff));
+        assertNull(memoryMap.getMemoryRange(0x2000));
+        assertSame(memory2, getDevice(0x80000fffL));
+        assertNull(memoryMap.getMemoryRange(0x80001000L));
+        assertSame(memory3, getDevice(0x80002000L));
+        assertNull(memoryMap.getMemoryRange(0x80003000L));
+    }
+
+    @Test
+    public void overlappingDevicesAreRejected() {
+        final PhysicalMemory memory1 = createMemory(0x1000);
+        final PhysicalMemory memory2 = createMemory(0x1000);
+
+        assertTrue(memoryMap.addDevice(0x80000000L, memory1));
+        assertFalse(memoryMap.addDevice(0x80000fffL, memory2));
+        assertFalse(memoryMap.addDevice(0x7ffff001L, memory2));
+        assertTrue(memoryMap.addDevice(0x80001000L, memory2));
+
+        assertTrue(memoryMap.getMemoryRange(MemoryRange.of(0x7fffff00L, 0x80000000L)).isPresent());
+        assertFalse(memoryMap.getMemoryRange(MemoryRange.of(0x7fff0000L, 0x7fffffffL)).isPresent());
+    }
+
+    @Test
+    public void removedDevicesAreNotFound() {
+        final PhysicalMemory memory1 = createMemory(0x1000);
+        final PhysicalMemory memory2 = createMemory(0x1000);
+
+        assertTrue(memoryMap.addDevice(0x80000000L, memory1));
+        assertTrue(memoryMap.addDevice(0x80001000L, memory2));
+        assertSame(memory1, getDevice(0x80000000L));
+
+        memoryMap.removeDevice(memory1);
+
+        assertNull(memoryMap.getMemoryRange(0x80000000L));
+        assertFalse(memoryMap.getMemoryRange(memory1).isPresent());
+        assertSame(memory2, getDevice(0x80001000L));
+    }
+
+    @Test
+    public void highAddressesAreComparedUnsigned() {
+        final PhysicalMemory memory1 = createMemory(0x1000);
+        final PhysicalMemory memory2 = createMemory(0x1000);
+
+        assertTrue(memoryMap.addDevice(0xfffff000_00000000L, memory1));
+        assertTrue(memoryMap.addDevice(0x1000, memory2));
+
+        assertSame(memory2, getDevice(0x1000));
+        assertSame(memory1, getDevice(0xfffff000_00000000L));
+    }
+
+    private static PhysicalMemory createMemory(final int length) {
+        final PhysicalMemory memory = mock(PhysicalMemory.class);
+        when(memory.getLength()).thenReturn(length);
+        return memory;
+    }
+
+    private Object getDevice(final long address) {
+        final MappedMemoryRange range = memoryMap.getMemoryRange(address);
+        return range != null ? range.device : null;
+    }
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -69,6 +70,23 @@ public final class SparseBlockDeviceTests {
         assertArrayEquals(lowerValues, sparseValues);
     }
 
+    @Test
+    public void writingZeroesAndDiscardingReleasesBlocks() throws IOException {
+        sparse = new SparseBlockDevice(lower, false, 256);
+
+        sparse.writeZeroes(100, 600);
+        assertEquals(3, sparse.getBlockCount());
+
+        final byte[] expected = array.clone();
+        Arrays.fill(expected, 100, 700, (byte) 0);
+        final byte[] sparseData = new byte[array.length];
+        sparse.read(ByteBuffer.wrap(sparseData), 0);
+        assertArrayEquals(expected, sparseData);
+
+        sparse.discard(0, sparse.getCapacity());
+        assertEquals(0, sparse.getBlockCount());
+    }
+
     @Test
     public void serializationRetainsOverwrittenBlocks() throws IOException {
         final byte[] overwriteData = "something something not random out".getBytes(StandardCharsets.UTF_8);
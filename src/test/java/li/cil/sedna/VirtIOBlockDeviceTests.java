@@ -0,0 +1,357 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.BlockDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.block.ByteBufferBlockDevice;
+import li.cil.sedna.device.block.SparseBlockDevice;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.device.virtio.VirtIOBlockDevice;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class VirtIOBlockDeviceTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int EXECUTOR_DELAY_MS = 50;
+    private static final int VIRTIO_BLK_F_MQ = 1 << 12;
+    private static final int QUEUE_COUNT = 4;
+    private static final int VIRTIO_BLK_F_DISCARD = 1 << 13;
+    private static final int VIRTIO_BLK_F_WRITE_ZEROES = 1 << 14;
+    private static final int VIRTIO_BLK_T_DISCARD = 11;
+    private static final int VIRTIO_BLK_T_WRITE_ZEROES = 13;
+    private static final int VIRTIO_BLK_S_OK = 0;
+    private static final int VIRTIO_BLK_S_IOERR = 1;
+    private static final int VIRTIO_BLK_WRITE_ZEROES_FLAG_UNMAP = 1;
+    private static final int SECTOR_SIZE = 512;
+
+    private MemoryMap memoryMap;
+    private ByteBufferBlockDevice block;
+
+    @BeforeEach
+    public void setupEach() throws Exception {
+        memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_START, Memory.create(0x4000));
+
+        block = ByteBufferBlockDevice.create(4096, false);
+        block.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 0);
+    }
+
+    @Test
+    public void testRequestCompletesAfterDrain() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block);
+        device.setExecutor(CompletableFuture.delayedExecutor(EXECUTOR_DELAY_MS, TimeUnit.MILLISECONDS));
+        initialize(device, 0);
+        setupQueue(device, 0);
+        submitRequest(device, 0, 0 /* VIRTIO_BLK_T_IN */, 0, 2 /* write */);
+
+        device.step(1_000_000);
+        assertFalse(device.isIdle());
+        assertEquals(0, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+
+        device.drain();
+        assertTrue(device.isIdle());
+        assertEquals(1, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0 /* VIRTIO_BLK_S_OK */, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+        assertEquals(0x04030201, memoryMap.load(dataAddress(0), Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void testResetWithRequestInFlightDoesNotCompleteIt() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block);
+        device.setExecutor(CompletableFuture.delayedExecutor(EXECUTOR_DELAY_MS, TimeUnit.MILLISECONDS));
+        initialize(device, 0);
+        setupQueue(device, 0);
+        submitRequest(device, 0, 0 /* VIRTIO_BLK_T_IN */, 0, 2 /* write */);
+
+        device.step(1_000_000);
+        assertFalse(device.isIdle());
+
+        device.store(0x070 /*status*/, 0 /* reset */, Sizes.SIZE_32_LOG2);
+        Thread.sleep(2 * EXECUTOR_DELAY_MS);
+        device.step(1_000_000);
+        assertTrue(device.isIdle());
+        assertEquals(0, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0xFF, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2) & 0xFF);
+
+        // After the driver set the queue up again, the request must be returned exactly once.
+        initialize(device, 0);
+        setupQueue(device, 0);
+        device.store(0x050 /* notify */, 0, Sizes.SIZE_32_LOG2);
+        device.step(1_000_000);
+        device.drain();
+        assertEquals(1, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0 /* VIRTIO_BLK_S_OK */, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+        assertEquals(0x04030201, memoryMap.load(dataAddress(0), Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void testCloseWithRequestInFlightDoesNotCompleteIt() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block);
+        device.setExecutor(CompletableFuture.delayedExecutor(EXECUTOR_DELAY_MS, TimeUnit.MILLISECONDS));
+        initialize(device, 0);
+        setupQueue(device, 0);
+        submitRequest(device, 0, 0 /* VIRTIO_BLK_T_IN */, 0, 2 /* write */);
+
+        device.step(1_000_000);
+        device.close();
+        Thread.sleep(2 * EXECUTOR_DELAY_MS);
+        assertEquals(0, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0xFF, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2) & 0xFF);
+    }
+
+    @Test
+    public void testSingleQueueDoesNotOfferMultiQueue() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block);
+        device.store(0x014 /*devicefeature_sel*/, 0, Sizes.SIZE_32_LOG2);
+        assertEquals(0, device.load(0x010 /*devicefeature*/, Sizes.SIZE_32_LOG2) & VIRTIO_BLK_F_MQ);
+    }
+
+    @Test
+    public void testMultiQueueNegotiation() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block, QUEUE_COUNT);
+        device.store(0x014 /*devicefeature_sel*/, 0, Sizes.SIZE_32_LOG2);
+        assertEquals(VIRTIO_BLK_F_MQ, device.load(0x010 /*devicefeature*/, Sizes.SIZE_32_LOG2) & VIRTIO_BLK_F_MQ);
+        assertEquals(QUEUE_COUNT, device.load(0x100 + 34 /*config.num_queues*/, Sizes.SIZE_16_LOG2));
+
+        initialize(device, VIRTIO_BLK_F_MQ);
+        assertEquals(8 /*features_ok*/, device.load(0x070 /*status*/, Sizes.SIZE_32_LOG2) & 8);
+
+        // Selecting queues past the reported count must be ignored.
+        device.store(0x030 /*queue_sel*/, QUEUE_COUNT - 1, Sizes.SIZE_32_LOG2);
+        device.store(0x044 /*queue_ready*/, 1, Sizes.SIZE_32_LOG2);
+        device.store(0x030 /*queue_sel*/, QUEUE_COUNT, Sizes.SIZE_32_LOG2);
+        assertEquals(1, device.load(0x044 /*queue_ready*/, Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void testRequestsOnMultipleQueues() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block, QUEUE_COUNT);
+        runRequestsOnMultipleQueues(device);
+    }
+
+    @Test
+    public void testRequestsOnMultipleQueuesWithExecutor() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block, QUEUE_COUNT);
+        final ExecutorService executor = Executors.newFixedThreadPool(QUEUE_COUNT);
+        try {
+            device.setExecutor(executor);
+            runRequestsOnMultipleQueues(device);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runRequestsOnMultipleQueues(final VirtIOBlockDevice device) throws Exception {
+        initialize(device, VIRTIO_BLK_F_MQ);
+
+        // Read sector zero through the first queue, write sector one through the last queue.
+        final int readQueue = 0;
+        final int writeQueue = QUEUE_COUNT - 1;
+        setupQueue(device, readQueue);
+        setupQueue(device, writeQueue);
+
+        final long readDataAddr = dataAddress(readQueue);
+        submitRequest(device, readQueue, 0 /* VIRTIO_BLK_T_IN */, 0, 2 /* write */);
+
+        final long writeDataAddr = dataAddress(writeQueue);
+        memoryMap.store(writeDataAddr, 0x0D0C0B0A, Sizes.SIZE_32_LOG2);
+        submitRequest(device, writeQueue, 1 /* VIRTIO_BLK_T_OUT */, 1, 0);
+
+        for (int i = 0; i < 1000 && !device.isIdle(); i++) {
+            device.step(1_000_000);
+            Thread.sleep(1);
+        }
+        assertTrue(device.isIdle());
+
+        assertEquals(1, memoryMap.load(queueAddress(readQueue) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0 /* VIRTIO_BLK_S_OK */, memoryMap.load(queueAddress(readQueue) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+        assertEquals(0x04030201, memoryMap.load(readDataAddr, Sizes.SIZE_32_LOG2));
+
+        assertEquals(1, memoryMap.load(queueAddress(writeQueue) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(0 /* VIRTIO_BLK_S_OK */, memoryMap.load(queueAddress(writeQueue) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+        final ByteBuffer written = ByteBuffer.allocate(4);
+        block.read(written, 512);
+        assertArrayEquals(new byte[]{0x0A, 0x0B, 0x0C, 0x0D}, written.array());
+
+        // Queues we did not use must not have been touched.
+        for (int queue = 1; queue < QUEUE_COUNT - 1; queue++) {
+            assertEquals(0, memoryMap.load(queueAddress(queue) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        }
+    }
+
+    @Test
+    public void testDiscardAndWriteZeroesConfig() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block);
+        device.store(0x014 /*devicefeature_sel*/, 0, Sizes.SIZE_32_LOG2);
+        final int features = (int) device.load(0x010 /*devicefeature*/, Sizes.SIZE_32_LOG2);
+        assertEquals(VIRTIO_BLK_F_DISCARD | VIRTIO_BLK_F_WRITE_ZEROES, features & (VIRTIO_BLK_F_DISCARD | VIRTIO_BLK_F_WRITE_ZEROES));
+
+        // All fields lie inside the 60 bytes of virtio_blk_config.
+        assertEquals(1 << 16, device.load(0x100 + 36 /*config.max_discard_sectors*/, Sizes.SIZE_32_LOG2));
+        assertEquals(16, device.load(0x100 + 40 /*config.max_discard_seg*/, Sizes.SIZE_32_LOG2));
+        assertEquals(1, device.load(0x100 + 44 /*config.discard_sector_alignment*/, Sizes.SIZE_32_LOG2));
+        assertEquals(1 << 16, device.load(0x100 + 48 /*config.max_write_zeroes_sectors*/, Sizes.SIZE_32_LOG2));
+        assertEquals(1, device.load(0x100 + 52 /*config.max_write_zeroes_seg*/, Sizes.SIZE_32_LOG2));
+        assertEquals(1, device.load(0x100 + 56 /*config.write_zeroes_may_unmap*/, Sizes.SIZE_8_LOG2));
+    }
+
+    @Test
+    public void testMultiSegmentDiscard() throws Exception {
+        // Sparse device with one block per sector, discarded blocks read from the underlying device again.
+        final SparseBlockDevice sparse = new SparseBlockDevice(block, false, SECTOR_SIZE);
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, sparse);
+        sparse.write(ByteBuffer.wrap(filled(4 * SECTOR_SIZE, (byte) 0x55)), 0);
+        assertEquals(4, sparse.getBlockCount());
+
+        initialize(device, VIRTIO_BLK_F_DISCARD);
+        setupQueue(device, 0);
+        submitSegmentsRequest(device, VIRTIO_BLK_T_DISCARD, new long[][]{{0, 1, 0}, {2, 2, 0}});
+        device.step(1_000_000);
+
+        assertEquals(1, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertEquals(VIRTIO_BLK_S_OK, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+        assertEquals(1, sparse.getBlockCount());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, read(sparse, 0, 4));
+        assertArrayEquals(filled(4, (byte) 0x55), read(sparse, SECTOR_SIZE, 4));
+    }
+
+    @Test
+    public void testWriteZeroesWithUnmap() throws Exception {
+        final SparseBlockDevice sparse = new SparseBlockDevice(block, false, SECTOR_SIZE);
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, sparse);
+        sparse.write(ByteBuffer.wrap(filled(2 * SECTOR_SIZE, (byte) 0x55)), 0);
+
+        initialize(device, VIRTIO_BLK_F_WRITE_ZEROES);
+        setupQueue(device, 0);
+        submitSegmentsRequest(device, VIRTIO_BLK_T_WRITE_ZEROES, new long[][]{{0, 2, VIRTIO_BLK_WRITE_ZEROES_FLAG_UNMAP}});
+        device.step(1_000_000);
+
+        assertEquals(VIRTIO_BLK_S_OK, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+        // Must read zeroes, not the data of the underlying device.
+        assertArrayEquals(new byte[2 * SECTOR_SIZE], read(sparse, 0, 2 * SECTOR_SIZE));
+    }
+
+    @Test
+    public void testSegmentsOutsideDeviceFail() throws Exception {
+        final VirtIOBlockDevice device = new VirtIOBlockDevice(memoryMap, block);
+        final long sectorCount = block.getCapacity() / SECTOR_SIZE;
+        initialize(device, VIRTIO_BLK_F_DISCARD | VIRTIO_BLK_F_WRITE_ZEROES);
+        setupQueue(device, 0);
+
+        submitSegmentsRequest(device, VIRTIO_BLK_T_DISCARD, new long[][]{{0, 1, 0}, {sectorCount, 1, 0}});
+        device.step(1_000_000);
+        assertEquals(VIRTIO_BLK_S_IOERR, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+
+        submitSegmentsRequest(device, VIRTIO_BLK_T_WRITE_ZEROES, new long[][]{{sectorCount - 1, 2, 0}});
+        device.step(1_000_000);
+        assertEquals(VIRTIO_BLK_S_IOERR, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+
+        submitSegmentsRequest(device, VIRTIO_BLK_T_WRITE_ZEROES, new long[][]{{-1, 2, 0}});
+        device.step(1_000_000);
+        assertEquals(VIRTIO_BLK_S_IOERR, memoryMap.load(queueAddress(0) + 0x310 /* status */, Sizes.SIZE_8_LOG2));
+
+        assertEquals(3, memoryMap.load(queueAddress(0) + 0x200 + 2 /* device.idx */, Sizes.SIZE_16_LOG2));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, read(block, 0, 4));
+    }
+
+    private static void initialize(final VirtIOBlockDevice device, final int features) throws MemoryAccessException {
+        device.store(0x070 /*status*/, 0 /* reset */, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 /* acknowledge */, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 | 2 /* driver */, Sizes.SIZE_32_LOG2);
+        device.store(0x024 /*driverfeature_sel*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x020 /*driverfeature*/, features, Sizes.SIZE_32_LOG2);
+        device.store(0x024 /*driverfeature_sel*/, 1, Sizes.SIZE_32_LOG2);
+        device.store(0x020 /*driverfeature*/, 1/*version 1*/, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 | 2 | 8 /* features_ok */, Sizes.SIZE_32_LOG2);
+        device.store(0x070 /*status*/, 1 | 2 | 8 | 4 /* driver_ok */, Sizes.SIZE_32_LOG2);
+    }
+
+    // Each queue gets 1K of memory for its rings, request header and status, and 512 bytes of data.
+    private static long queueAddress(final int queue) {
+        return MEMORY_START + queue * 0x400L;
+    }
+
+    private static long dataAddress(final int queue) {
+        return MEMORY_START + 0x2000 + queue * 0x200L;
+    }
+
+    private static void setupQueue(final VirtIOBlockDevice device, final int queue) throws MemoryAccessException {
+        final long queueAddr = queueAddress(queue);
+        device.store(0x030 /*queue_sel*/, queue, Sizes.SIZE_32_LOG2);
+        device.store(0x080 /*queue_desc*/, (int) queueAddr, Sizes.SIZE_32_LOG2);
+        device.store(0x080 + 4 /*queue_desch*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x090 /*queue_drv*/, (int) (queueAddr + 0x100), Sizes.SIZE_32_LOG2);
+        device.store(0x090 + 4 /*queue_drvh*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x0A0 /*queue_dev*/, (int) (queueAddr + 0x200), Sizes.SIZE_32_LOG2);
+        device.store(0x0A0 + 4 /*queue_devh*/, 0, Sizes.SIZE_32_LOG2);
+        device.store(0x038 /*queue_num*/, 4 /* 4 descriptors */, Sizes.SIZE_32_LOG2);
+        device.store(0x044 /*queue_ready*/, 1 /* true */, Sizes.SIZE_32_LOG2);
+    }
+
+    private void submitRequest(final VirtIOBlockDevice device, final int queue, final int type, final long sector, final int dataFlags) throws MemoryAccessException {
+        submitRequest(device, queue, type, sector, 512, dataFlags);
+    }
+
+    private void submitRequest(final VirtIOBlockDevice device, final int queue, final int type, final long sector, final int dataLength, final int dataFlags) throws MemoryAccessException {
+        final long queueAddr = queueAddress(queue);
+        final long descsAddr = queueAddr;
+        final long driverAddr = queueAddr + 0x100;
+        final long headerAddr = queueAddr + 0x300;
+        final long statusAddr = queueAddr + 0x310;
+
+        // Requests always use the same descriptors, in the next free slot of the driver ring.
+        final int idx = (int) memoryMap.load(driverAddr + 2 /* .idx */, Sizes.SIZE_16_LOG2);
+        memoryMap.store(headerAddr /* .type */, type, Sizes.SIZE_32_LOG2);
+        memoryMap.store(headerAddr + 8 /* .sector */, sector, Sizes.SIZE_64_LOG2);
+        memoryMap.store(statusAddr, 0xFF, Sizes.SIZE_8_LOG2);
+        storeDescriptor(descsAddr, 0, headerAddr, 16, 1 /* next */, 1);
+        storeDescriptor(descsAddr, 1, dataAddress(queue), dataLength, 1 /* next */ | dataFlags, 2);
+        storeDescriptor(descsAddr, 2, statusAddr, 1, 2 /* write */, 0);
+        memoryMap.store(driverAddr + 4 + (idx % 4) * 2L /* .ring[idx] */, 0, Sizes.SIZE_16_LOG2);
+        memoryMap.store(driverAddr + 2 /* .idx */, idx + 1, Sizes.SIZE_16_LOG2);
+        device.store(0x050 /* notify */, queue, Sizes.SIZE_32_LOG2);
+    }
+
+    // Segments are {sector, num_sectors, flags} of virtio_blk_discard_write_zeroes.
+    private void submitSegmentsRequest(final VirtIOBlockDevice device, final int type, final long[][] segments) throws MemoryAccessException {
+        for (int i = 0; i < segments.length; i++) {
+            final long segmentAddr = dataAddress(0) + i * 16L;
+            memoryMap.store(segmentAddr /* .sector */, segments[i][0], Sizes.SIZE_64_LOG2);
+            memoryMap.store(segmentAddr + 8 /* .num_sectors */, segments[i][1], Sizes.SIZE_32_LOG2);
+            memoryMap.store(segmentAddr + 12 /* .flags */, segments[i][2], Sizes.SIZE_32_LOG2);
+        }
+        submitRequest(device, 0, type, 0, segments.length * 16, 0);
+    }
+
+    private static byte[] filled(final int length, final byte value) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, value);
+        return data;
+    }
+
+    private static byte[] read(final BlockDevice device, final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        device.read(buffer, offset);
+        return buffer.array();
+    }
+
+    private void storeDescriptor(final long descsAddr, final int index, final long address, final int length, final int flags, final int next) throws MemoryAccessException {
+        final long addr = descsAddr + index * 16L;
+        memoryMap.store(addr /* .addr */, address, Sizes.SIZE_64_LOG2);
+        memoryMap.store(addr + 8 /* .len */, length, Sizes.SIZE_32_LOG2);
+        memoryMap.store(addr + 12 /* .flags */, flags, Sizes.SIZE_16_LOG2);
+        memoryMap.store(addr + 14 /* .next */, next, Sizes.SIZE_16_LOG2);
+    }
+}
@@ -79,4 +79,13 @@ public class ByteBufferMemoryTests {
 
         assertEquals(0x44332211, memory.load(0x00, Sizes.SIZE_32_LOG2));
     }
+
+    @Test
+    public void testClear() throws Exception {
+        memory.clear(0x10, 0x10);
+
+        assertEquals(0x11223344, memory.load(0x00, Sizes.SIZE_32_LOG2));
+        assertEquals(0, memory.load(0x10, Sizes.SIZE_32_LOG2));
+        assertEquals(0x99AABBCC, memory.load(0x20, Sizes.SIZE_32_LOG2));
+    }
 }
@@ -0,0 +1,49 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.device.memory.CopyOnWriteMemory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CopyOnWriteMemoryTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testWritesDoNotChangeImage() throws Exception {
+        final Path image = tempDir.resolve("image.bin");
+        final byte[] data = new byte[8 * 1024];
+        data[0] = 0x12;
+        data[4 * 1024] = 0x34;
+        Files.write(image, data);
+
+        final CopyOnWriteMemory memory1 = new CopyOnWriteMemory(data.length, image);
+        final CopyOnWriteMemory memory2 = new CopyOnWriteMemory(data.length, image);
+        try {
+            assertEquals(0x12, memory1.load(0, Sizes.SIZE_8_LOG2));
+            assertEquals(0x34, memory1.load(4 * 1024, Sizes.SIZE_8_LOG2));
+
+            memory1.store(0, 0x56, Sizes.SIZE_8_LOG2);
+
+            assertEquals(0x56, memory1.load(0, Sizes.SIZE_8_LOG2));
+            assertEquals(0x12, memory2.load(0, Sizes.SIZE_8_LOG2));
+            assertArrayEquals(data, Files.readAllBytes(image));
+        } finally {
+            memory1.close();
+            memory2.close();
+        }
+    }
+
+    @Test
+    public void testImageMustBeLargeEnough() throws Exception {
+        final Path image = tempDir.resolve("image.bin");
+        Files.write(image, new byte[1024]);
+
+        assertThrows(IllegalArgumentException.class, () -> new CopyOnWriteMemory(4 * 1024, image));
+    }
+}
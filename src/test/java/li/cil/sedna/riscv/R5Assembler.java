@@ -0,0 +1,103 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+
+/**
+ * Encodes the handful of instructions tests need to set up small programs by hand.
+ */
+final class R5Assembler {
+    static final int OP_IMM = 0b0010011;
+    static final int OP_IMM_32 = 0b0011011;
+    static final int OP = 0b0110011;
+    static final int OP_32 = 0b0111011;
+    static final int LOAD = 0b0000011;
+    static final int STORE = 0b0100011;
+    static final int BRANCH = 0b1100011;
+    static final int SYSTEM = 0b1110011;
+    static final int MISC_MEM = 0b0001111;
+    static final int AMO = 0b0101111;
+
+    static final int WFI = 0x10500073;
+    static final int MRET = 0x30200073;
+
+    private R5Assembler() {
+    }
+
+    static int r(final int funct7, final int rs2, final int rs1, final int funct3, final int rd, final int opcode) {
+        return funct7 << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    static int i(final int imm, final int rs1, final int funct3, final int rd, final int opcode) {
+        return (imm & 0xFFF) << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    static int s(final int imm, final int rs2, final int rs1, final int funct3) {
+        return ((imm >> 5) & 0x7F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | (imm & 0x1F) << 7 | STORE;
+    }
+
+    static int b(final int imm, final int rs2, final int rs1, final int funct3) {
+        return ((imm >> 12) & 1) << 31 | ((imm >> 5) & 0x3F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 |
+               ((imm >> 1) & 0xF) << 8 | ((imm >> 11) & 1) << 7 | BRANCH;
+    }
+
+    static int addi(final int rd, final int rs1, final int imm) {
+        return i(imm, rs1, 0b000, rd, OP_IMM);
+    }
+
+    static int slli(final int rd, final int rs1, final int shamt) {
+        return i(shamt, rs1, 0b001, rd, OP_IMM);
+    }
+
+    static int lui(final int rd, final int imm) {
+        return (imm & 0xFFFFF) << 12 | rd << 7 | 0b0110111;
+    }
+
+    static int auipc(final int rd, final int imm) {
+        return (imm & 0xFFFFF) << 12 | rd << 7 | 0b0010111;
+    }
+
+    static int jal(final int rd, final int imm) {
+        return ((imm >> 20) & 1) << 31 | ((imm >> 1) & 0x3FF) << 21 | ((imm >> 11) & 1) << 20 |
+               ((imm >> 12) & 0xFF) << 12 | rd << 7 | 0b1101111;
+    }
+
+    static int lw(final int rd, final int rs1, final int imm) {
+        return i(imm, rs1, 0b010, rd, LOAD);
+    }
+
+    static int sw(final int rs2, final int rs1, final int imm) {
+        return s(imm, rs2, rs1, 0b010);
+    }
+
+    static int ld(final int rd, final int rs1, final int imm) {
+        return i(imm, rs1, 0b011, rd, LOAD);
+    }
+
+    static int sd(final int rs2, final int rs1, final int imm) {
+        return s(imm, rs2, rs1, 0b011);
+    }
+
+    static int amow(final int funct5, final int rd, final int rs2, final int rs1) {
+        return r(funct5 << 2, rs2, rs1, 0b010, rd, AMO);
+    }
+
+    static int csrr(final int rd, final int csr) {
+        return i(csr, 0, 0b010, rd, SYSTEM);
+    }
+
+    static int csrw(final int csr, final int rs1) {
+        return i(csr, rs1, 0b001, 0, SYSTEM);
+    }
+
+    static int csrs(final int csr, final int rs1) {
+        return i(csr, rs1, 0b010, 0, SYSTEM);
+    }
+
+    static void store(final MemoryMap memoryMap, final long address, final int... instructions) throws MemoryAccessException {
+        for (int i = 0; i < instructions.length; i++) {
+            memoryMap.store(address + i * 4L, instructions[i], Sizes.SIZE_32_LOG2);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package li.cil.sedna.riscv;
+
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5BitManipulationTests {
+    // All tested instructions use a0 as rd, a1 as rs1 and a2 as rs2.
+    private static final int RD = 10, RS1 = 11, RS2 = 12;
+
+    @Test
+    public void testZba() throws Exception {
+        assertResult64(op(0b0010000, 0b010), 5, 100, 110); // sh1add
+        assertResult64(op(0b0010000, 0b100), 5, 100, 120); // sh2add
+        assertResult64(op(0b0010000, 0b110), 5, 100, 140); // sh3add
+        assertResult64(op(0b0010000, 0b110), 0x2000000000000001L, 1, 9); // sh3add, shifts out the top bits
+
+        assertResult64(op32(0b0000100, 0b000), 0xFFFFFFFF80000000L, 1, 0x80000001L); // add.uw
+        assertResult64(op32(0b0010000, 0b010), -1, 0, 0x1FFFFFFFEL); // sh1add.uw
+        assertResult64(op32(0b0010000, 0b100), -1, 4, 0x400000000L); // sh2add.uw
+        assertResult64(op32(0b0010000, 0b110), 0x1234567880000000L, 0, 0x400000000L); // sh3add.uw
+        assertResult64(shiftImm(0b000010, 4, 0b001, OP_IMM_32), 0xFFFFFFFF80000001L, 0, 0x800000010L); // slli.uw
+        assertResult64(shiftImm(0b000010, 32, 0b001, OP_IMM_32), -1, 0, 0xFFFFFFFF00000000L); // slli.uw
+
+        assertResult32(op(0b0010000, 0b010), 0x40000000, 0, 0x80000000); // sh1add
+        assertResult32(op(0b0010000, 0b110), 0x20000001, 1, 9); // sh3add
+    }
+
+    @Test
+    public void testZbb() throws Exception {
+        assertResult64(op(0b0100000, 0b111), 0xF0F0, 0xFF00, 0x00F0); // andn
+        assertResult64(op(0b0100000, 0b110), 0, 0xFFFFFFFFFFFF0000L, 0xFFFF); // orn
+        assertResult64(op(0b0100000, 0b100), 5, 3, ~6L); // xnor
+        assertResult64(unary(0x600, 0b001, OP_IMM), 1, 0, 63); // clz
+        assertResult64(unary(0x600, 0b001, OP_IMM), 0, 0, 64); // clz
+        assertResult64(unary(0x601, 0b001, OP_IMM), 0x80, 0, 7); // ctz
+        assertResult64(unary(0x601, 0b001, OP_IMM), 0, 0, 64); // ctz
+        assertResult64(unary(0x602, 0b001, OP_IMM), -1, 0, 64); // cpop
+        assertResult64(op(0b0000101, 0b110), -1, 1, 1); // max
+        assertResult64(op(0b0000101, 0b111), -1, 1, -1); // maxu
+        assertResult64(op(0b0000101, 0b100), -1, 1, -1); // min
+        assertResult64(op(0b0000101, 0b101), -1, 1, 1); // minu
+        assertResult64(unary(0x604, 0b001, OP_IMM), 0x80, 0, -128); // sext.b
+        assertResult64(unary(0x605, 0b001, OP_IMM), 0x8000, 0, -32768); // sext.h
+        assertResult64(r(0b0000100, 0, RS1, 0b100, RD, OP_32), 0xFFFFFFFFFFFF8001L, 0, 0x8001); // zext.h
+        assertResult64(op(0b0110000, 0b001), 0x8000000000000001L, 1, 3); // rol
+        assertResult64(op(0b0110000, 0b001), 0x8000000000000001L, 65, 3); // rol, only uses low bits of rs2
+        assertResult64(op(0b0110000, 0b101), 1, 1, 0x8000000000000000L); // ror
+        assertResult64(shiftImm(0b011000, 63, 0b101, OP_IMM), 1, 0, 2); // rori
+        assertResult64(unary(0x287, 0b101, OP_IMM), 0x0100000000008000L, 0, 0xFF0000000000FF00L); // orc.b
+        assertResult64(unary(0x6B8, 0b101, OP_IMM), 0x0102030405060708L, 0, 0x0807060504030201L); // rev8
+
+        assertResult64(unary(0x600, 0b001, OP_IMM_32), 0xFFFFFFFF00000001L, 0, 31); // clzw
+        assertResult64(unary(0x600, 0b001, OP_IMM_32), 0, 0, 32); // clzw
+        assertResult64(unary(0x601, 0b001, OP_IMM_32), 0x100000000L, 0, 32); // ctzw
+        assertResult64(unary(0x602, 0b001, OP_IMM_32), -1, 0, 32); // cpopw
+        assertResult64(op32(0b0110000, 0b001), 0x80000000L, 1, 1); // rolw
+        assertResult64(op32(0b0110000, 0b001), 0x40000000L, 1, 0xFFFFFFFF80000000L); // rolw, sign extends
+        assertResult64(op32(0b0110000, 0b101), 1, 1, 0xFFFFFFFF80000000L); // rorw
+        assertResult64(i(0x600 | 31, RS1, 0b101, RD, OP_IMM_32), 1, 0, 2); // roriw
+
+        assertResult32(unary(0x600, 0b001, OP_IMM), 1, 0, 31); // clz
+        assertResult32(unary(0x600, 0b001, OP_IMM), 0, 0, 32); // clz
+        assertResult32(unary(0x601, 0b001, OP_IMM), 0, 0, 32); // ctz
+        assertResult32(unary(0x602, 0b001, OP_IMM), -1, 0, 32); // cpop
+        assertResult32(op(0b0000101, 0b110), 0x80000000, 1, 1); // max
+        assertResult32(op(0b0000101, 0b111), 0x80000000, 1, 0x80000000); // maxu
+        assertResult32(op(0b0110000, 0b001), 0x80000001, 1, 3); // rol
+        assertResult32(op(0b0110000, 0b001), 0x80000001, 33, 3); // rol, only uses low bits of rs2
+        assertResult32(op(0b0110000, 0b101), 1, 1, 0x80000000); // ror
+        assertResult32(i(0x600 | 31, RS1, 0b101, RD, OP_IMM), 1, 0, 2); // rori
+        assertResult32(unary(0x287, 0b101, OP_IMM), 0x00010000, 0, 0x00FF0000); // orc.b
+        assertResult32(unary(0x698, 0b101, OP_IMM), 0x01020304, 0, 0x04030201); // rev8
+        assertResult32(r(0b0000100, 0, RS1, 0b100, RD, OP), 0xFFFF8001, 0, 0x8001); // zext.h
+    }
+
+    @Test
+    public void testZbs() throws Exception {
+        assertResult64(op(0b0100100, 0b001), -1, 63, 0x7FFFFFFFFFFFFFFFL); // bclr
+        assertResult64(shiftImm(0b010010, 0, 0b001, OP_IMM), 3, 0, 2); // bclri
+        assertResult64(op(0b0100100, 0b101), 0x8000000000000000L, 63, 1); // bext
+        assertResult64(op(0b0100100, 0b101), 0x8000000000000000L, 127, 1); // bext, only uses low bits of rs2
+        assertResult64(shiftImm(0b010010, 2, 0b101, OP_IMM), 4, 0, 1); // bexti
+        assertResult64(op(0b0110100, 0b001), 0, 40, 1L << 40); // binv
+        assertResult64(shiftImm(0b011010, 40, 0b001, OP_IMM), 1L << 40, 0, 0); // binvi
+        assertResult64(op(0b0010100, 0b001), 0, 63, 0x8000000000000000L); // bset
+        assertResult64(shiftImm(0b001010, 5, 0b001, OP_IMM), 0, 0, 32); // bseti
+
+        assertResult32(op(0b0010100, 0b001), 0, 31, 0x80000000); // bset
+        assertResult32(op(0b0010100, 0b001), 0, 32, 1); // bset, only uses low bits of rs2
+        assertResult32(i(0b0100100 << 5 | 31, RS1, 0b001, RD, OP_IMM), -1, 0, 0x7FFFFFFF); // bclri
+        assertResult32(i(0b0100100 << 5 | 31, RS1, 0b101, RD, OP_IMM), 0x80000000, 0, 1); // bexti
+    }
+
+    @Test
+    public void testRV64OnlyEncodingsAreIllegalOnRV32() throws Exception {
+        assertIllegal32(op32(0b0000100, 0b000)); // add.uw
+        assertIllegal32(op32(0b0010000, 0b010)); // sh1add.uw
+        assertIllegal32(shiftImm(0b000010, 4, 0b001, OP_IMM_32)); // slli.uw
+        assertIllegal32(unary(0x600, 0b001, OP_IMM_32)); // clzw
+        assertIllegal32(shiftImm(0b011000, 32, 0b101, OP_IMM)); // rori, shift amount out of range
+        assertIllegal32(shiftImm(0b001010, 32, 0b001, OP_IMM)); // bseti, shift amount out of range
+    }
+
+    private static int op(final int funct7, final int funct3) {
+        return r(funct7, RS2, RS1, funct3, RD, OP);
+    }
+
+    private static int op32(final int funct7, final int funct3) {
+        return r(funct7, RS2, RS1, funct3, RD, OP_32);
+    }
+
+    private static int unary(final int imm, final int funct3, final int opcode) {
+        return i(imm, RS1, funct3, RD, opcode);
+    }
+
+    private static int shiftImm(final int funct6, final int shamt, final int funct3, final int opcode) {
+        return i(funct6 << 6 | shamt, RS1, funct3, RD, opcode);
+    }
+
+    private static void assertResult64(final int instruction, final long rs1, final long rs2, final long expected) throws Exception {
+        final R5TestMachine machine = run(R5.XLEN_64, instruction, rs1, rs2);
+        assertEquals(MEMORY_START + 0x10, machine.programCounter(), "unexpected trap");
+        assertEquals(expected, machine.registers()[RD], String.format("%08x", instruction));
+    }
+
+    private static void assertResult32(final int instruction, final int rs1, final int rs2, final int expected) throws Exception {
+        final R5TestMachine machine = run(R5.XLEN_32, instruction, rs1, rs2);
+        assertEquals((int) (MEMORY_START + 0x10), (int) machine.programCounter(), "unexpected trap");
+        assertEquals(expected, machine.registers()[RD], String.format("%08x", instruction));
+    }
+
+    private static void assertIllegal32(final int instruction) throws Exception {
+        final R5TestMachine machine = run(R5.XLEN_32, instruction, 1, 1);
+        assertEquals((int) (MEMORY_START + 0x44), (int) machine.programCounter(), String.format("%08x", instruction));
+        assertEquals(R5.EXCEPTION_ILLEGAL_INSTRUCTION, machine.registers()[13]);
+    }
+
+    private static R5TestMachine run(final int xlen, final int instruction, final long rs1, final long rs2) throws Exception {
+        final R5TestMachine machine = new R5TestMachine(4096);
+        machine.store(MEMORY_START,
+            auipc(5, 0), // 0x00: auipc t0, 0
+            addi(5, 5, 0x40), // 0x04: addi t0, t0, 0x40
+            csrw(0x305, 5), // 0x08: csrw mtvec, t0
+            instruction, // 0x0C
+            jal(0, 0)); // 0x10: j .
+        machine.store(MEMORY_START + 0x40,
+            csrr(13, 0x342), // 0x40: csrr a3, mcause
+            jal(0, 0)); // 0x44: j .
+
+        machine.reset(MEMORY_START);
+        if (xlen == R5.XLEN_32) {
+            machine.cpu.setXLEN(R5.XLEN_32);
+        }
+
+        final long[] x = machine.registers();
+        x[RS1] = rs1;
+        x[RS2] = rs2;
+        x[RD] = 0xDEADBEEF;
+
+        machine.cpu.step(100);
+        return machine;
+    }
+}
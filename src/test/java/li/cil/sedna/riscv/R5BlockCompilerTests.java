@@ -0,0 +1,196 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.Consumer;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5BlockCompilerTests {
+    private static final int PAGE_SIZE = 1 << R5.PAGE_ADDRESS_SHIFT;
+    private static final long PROGRAM_ADDRESS = MEMORY_START + PAGE_SIZE;
+    private static final long DATA_ADDRESS = MEMORY_START + 3 * PAGE_SIZE;
+    private static final long PAGE_TABLE_ADDRESS = MEMORY_START + 4 * PAGE_SIZE;
+    private static final int MEMORY_SIZE = 8 * PAGE_SIZE;
+
+    // Loops run well past the point where their blocks get compiled before something interesting happens.
+    private static final int LIMIT = 100;
+    private static final int END = 120;
+
+    private static final int FENCE_I = 0x0000100F;
+
+    // Trap handler at the start of memory, stores mcause in s0, mepc in s1 and mtval in s3. Setup code
+    // enables Sv39, with RAM identity mapped by a single gigapage, and runs the program in S-mode.
+    private static final int[] TRAP_HANDLER_AND_SETUP = {
+        csrr(8, 0x342), // 0x00: csrr s0, mcause
+        csrr(9, 0x341), // 0x04: csrr s1, mepc
+        csrr(19, 0x343), // 0x08: csrr s3, mtval
+        jal(0, 0), // 0x0C: j .
+        auipc(5, 0), // 0x10: auipc t0, 0
+        addi(5, 5, -0x10), // 0x14: addi t0, t0, -0x10
+        csrw(0x305, 5), // 0x18: csrw mtvec, t0
+        ld(6, 5, 0x80), // 0x1C: ld t1, 0x80(t0) ; satp
+        csrw(0x180, 6), // 0x20: csrw satp, t1
+        lui(6, 1), // 0x24: lui t1, 1
+        addi(7, 6, -0x800), // 0x28: addi t2, t1, -0x800 ; MPP = S
+        csrw(0x300, 7), // 0x2C: csrw mstatus, t2
+        r(0, 6, 5, 0b000, 6, OP), // 0x30: add t1, t0, t1 ; program
+        csrw(0x341, 6), // 0x34: csrw mepc, t1
+        MRET, // 0x38: mret
+    };
+
+    @Test
+    public void testLoadPageFaultInsideBlock() throws Exception {
+        assertPageFaultInsideBlock(ld(12, 13, 8), R5.EXCEPTION_LOAD_PAGE_FAULT); // ld a2, 8(a3)
+    }
+
+    @Test
+    public void testStorePageFaultInsideBlock() throws Exception {
+        assertPageFaultInsideBlock(sd(11, 13, 8), R5.EXCEPTION_STORE_PAGE_FAULT); // sd a1, 8(a3)
+    }
+
+    @Test
+    public void testStoreIntoRunningBlockInvalidatesIt() throws Exception {
+        // Once the block is hot, it patches its own first instruction. The patched instruction must be run
+        // from the next time the block is entered.
+        final int[] program = {
+            addi(10, 10, 1), // 0x00: addi a0, a0, 1 ; patched
+            addi(18, 18, 1), // 0x04: addi s2, s2, 1
+            addi(5, 18, -LIMIT), // 0x08: addi t0, s2, -LIMIT
+            i(1, 5, 0b011, 5, OP_IMM), // 0x0C: seqz t0, t0
+            r(0x20, 5, 0, 0b000, 5, OP), // 0x10: neg t0, t0
+            r(0, 14, 5, 0b111, 5, OP), // 0x14: and t0, t0, a4
+            r(0, 5, 15, 0b000, 13, OP), // 0x18: add a3, a5, t0 ; program when s2 == LIMIT, data otherwise
+            sw(16, 13, 0), // 0x1C: sw a6, 0(a3)
+            addi(11, 11, 1), // 0x20: addi a1, a1, 1
+            b(-0x24, 20, 18, 0b100), // 0x24: blt s2, s4, 0x00
+            jal(0, 0), // 0x28: j .
+        };
+
+        final R5TestMachine machine = assertSameState(program, x -> {
+            x[14] = PROGRAM_ADDRESS - DATA_ADDRESS;
+            x[16] = addi(10, 10, 100);
+        });
+        final long[] x = machine.registers();
+        assertEquals(0, x[8], "unexpected trap");
+        assertEquals(LIMIT + (END - LIMIT) * 100, x[10]);
+        assertEquals(END, x[11]);
+        assertEquals(PROGRAM_ADDRESS + 0x28, machine.programCounter());
+    }
+
+    @Test
+    public void testFenceInstructionInsideBlock() throws Exception {
+        // Once the block is hot, it patches an instruction following the FENCE.I in the same block. The
+        // patched instruction must be run right away.
+        final int[] program = {
+            addi(18, 18, 1), // 0x00: addi s2, s2, 1
+            addi(5, 18, -LIMIT), // 0x04: addi t0, s2, -LIMIT
+            i(1, 5, 0b011, 5, OP_IMM), // 0x08: seqz t0, t0
+            r(0x20, 5, 0, 0b000, 5, OP), // 0x0C: neg t0, t0
+            r(0, 14, 5, 0b111, 5, OP), // 0x10: and t0, t0, a4
+            r(0, 5, 15, 0b000, 13, OP), // 0x14: add a3, a5, t0 ; program when s2 == LIMIT, data otherwise
+            sw(16, 13, 0), // 0x18: sw a6, 0(a3)
+            FENCE_I, // 0x1C: fence.i
+            addi(10, 10, 1), // 0x20: addi a0, a0, 1 ; patched
+            addi(11, 11, 1), // 0x24: addi a1, a1, 1
+            b(-0x28, 20, 18, 0b100), // 0x28: blt s2, s4, 0x00
+            jal(0, 0), // 0x2C: j .
+        };
+
+        final R5TestMachine machine = assertSameState(program, x -> {
+            x[14] = PROGRAM_ADDRESS + 0x20 - DATA_ADDRESS;
+            x[16] = addi(10, 10, 100);
+        });
+        final long[] x = machine.registers();
+        assertEquals(0, x[8], "unexpected trap");
+        assertEquals(LIMIT - 1 + (END - LIMIT + 1) * 100, x[10]);
+        assertEquals(END, x[11]);
+        assertEquals(PROGRAM_ADDRESS + 0x2C, machine.programCounter());
+    }
+
+    @Test
+    public void testBlockLongerThanInstructionLimit() throws Exception {
+        // Straight-line code longer than a block may be, so it gets split into multiple blocks.
+        final int length = 150;
+        final int[] program = new int[length + 3];
+        final long[] expected = new long[4];
+        for (int i = 0; i < length; i++) {
+            program[i] = addi(10 + (i & 3), 10 + (i & 3), i); // addi a{i%4}, a{i%4}, i
+            expected[i & 3] += (long) i * END;
+        }
+        program[length] = addi(18, 18, 1); // addi s2, s2, 1
+        program[length + 1] = b(-(length + 1) * 4, 20, 18, 0b100); // blt s2, s4, 0x00
+        program[length + 2] = jal(0, 0); // j .
+
+        final R5TestMachine machine = assertSameState(program, x -> {
+        });
+        final long[] x = machine.registers();
+        assertEquals(0, x[8], "unexpected trap");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], x[10 + i]);
+        }
+        assertEquals(PROGRAM_ADDRESS + (length + 2) * 4L, machine.programCounter());
+    }
+
+    private static void assertPageFaultInsideBlock(final int access, final int cause) throws Exception {
+        // Once the block is hot, the access goes to an unmapped page. The exception must be raised with
+        // the state the interpreter would have had at that instruction.
+        final int[] program = {
+            addi(18, 18, 1), // 0x00: addi s2, s2, 1
+            addi(5, 18, -LIMIT), // 0x04: addi t0, s2, -LIMIT
+            i(1, 5, 0b011, 5, OP_IMM), // 0x08: seqz t0, t0
+            r(0x20, 5, 0, 0b000, 5, OP), // 0x0C: neg t0, t0
+            r(0, 14, 5, 0b111, 5, OP), // 0x10: and t0, t0, a4
+            r(0, 5, 15, 0b000, 13, OP), // 0x14: add a3, a5, t0 ; zero when s2 == LIMIT, data otherwise
+            addi(11, 11, 3), // 0x18: addi a1, a1, 3
+            access, // 0x1C: access 8(a3)
+            addi(10, 10, 1), // 0x20: addi a0, a0, 1
+            jal(0, -0x24), // 0x24: j 0x00
+        };
+
+        final R5TestMachine machine = assertSameState(program, x -> x[14] = -DATA_ADDRESS);
+        final long[] x = machine.registers();
+        assertEquals(cause, x[8]);
+        assertEquals(PROGRAM_ADDRESS + 0x1C, x[9]);
+        assertEquals(8, x[19]);
+        assertEquals(LIMIT, x[18]);
+        assertEquals(LIMIT * 3, x[11]);
+        assertEquals(LIMIT - 1, x[10]);
+    }
+
+    private static R5TestMachine assertSameState(final int[] program, final Consumer<long[]> initializer) throws Exception {
+        final R5TestMachine compiled = run(program, initializer, true);
+        final R5TestMachine interpreted = run(program, initializer, false);
+        assertArrayEquals(interpreted.registers(), compiled.registers());
+        assertEquals(interpreted.programCounter(), compiled.programCounter());
+        assertEquals(interpreted.cpu.getTime(), compiled.cpu.getTime());
+        assertEquals(interpreted.cpu.getInstructionsRetired(), compiled.cpu.getInstructionsRetired());
+        assertArrayEquals(interpreted.cpu.getDebugInterface().loadDebug(PROGRAM_ADDRESS, 3 * PAGE_SIZE),
+            compiled.cpu.getDebugInterface().loadDebug(PROGRAM_ADDRESS, 3 * PAGE_SIZE));
+        return compiled;
+    }
+
+    private static R5TestMachine run(final int[] program, final Consumer<long[]> initializer, final boolean compileBlocks) throws Exception {
+        final R5TestMachine machine = new R5TestMachine(MEMORY_SIZE);
+        machine.store(MEMORY_START, TRAP_HANDLER_AND_SETUP);
+        machine.memoryMap.store(MEMORY_START + 0x80, 8L << 60 | PAGE_TABLE_ADDRESS >>> 12, Sizes.SIZE_64_LOG2); // Sv39
+        machine.memoryMap.store(PAGE_TABLE_ADDRESS + ((MEMORY_START >>> 30) & 0x1FF) * 8,
+            (MEMORY_START >>> 12) << 10 | 0xCF, Sizes.SIZE_64_LOG2); // V, R, W, X, A, D
+        machine.store(PROGRAM_ADDRESS, program);
+
+        machine.cpu.setBlockCompilationEnabled(compileBlocks);
+        machine.cpu.setPredecodingEnabled(false);
+        machine.reset(MEMORY_START + 0x10);
+
+        final long[] x = machine.registers();
+        x[15] = DATA_ADDRESS; // a5
+        x[20] = END; // s4
+        initializer.accept(x);
+
+        machine.cpu.step(100_000);
+        return machine;
+    }
+}
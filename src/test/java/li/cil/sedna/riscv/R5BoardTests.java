@@ -0,0 +1,313 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.device.memory.ByteBufferMemory;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.MemoryMaps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5BoardTests {
+    private static final long PROGRAM_START = 0x80000000L;
+    private static final int SUPERVISOR_TIMER_DEADLINE = 2000;
+    private static final long CLINT_MSIP_ADDRESS = 0x02000000L;
+    private static final int WAKEUP_DEADLINE = 2000;
+    private static final int ATOMIC_ADD_ITERATIONS = 0x10000;
+
+    @TempDir Path directory;
+
+    @Test
+    public void testSupervisorTimerInterruptLatencyOnSecondaryHart() throws Exception {
+        try (final R5Board board = new R5Board(2)) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            // The reset stub passes the hart id in a0. The first hart idles, the second one enables the
+            // supervisor timer and stores mcycle at 0x100 once the timer interrupt is taken.
+            store(board.getMemoryMap(), PROGRAM_START,
+                b(12, 0, 10, 0b001), // 0x00: bnez a0, 0x0C
+                WFI, // 0x04: wfi
+                jal(0, -4), // 0x08: j 0x04
+                addi(5, 0, -1), // 0x0C: li t0, -1
+                slli(5, 5, 63), // 0x10: slli t0, t0, 63
+                csrs(0x30A, 5), // 0x14: csrs menvcfg, t0 ; STCE
+                auipc(6, 0), // 0x18: auipc t1, 0
+                addi(6, 6, 0x28), // 0x1C: addi t1, t1, 0x28
+                csrw(0x305, 6), // 0x20: csrw mtvec, t1 ; 0x40
+                addi(7, 0, 32), // 0x24: li t2, STIE
+                csrw(0x304, 7), // 0x28: csrw mie, t2
+                addi(28, 0, SUPERVISOR_TIMER_DEADLINE), // 0x2C: li t3, deadline
+                csrw(0x14D, 28), // 0x30: csrw stimecmp, t3
+                addi(29, 0, 8), // 0x34: li t4, MIE
+                csrs(0x300, 29), // 0x38: csrs mstatus, t4
+                jal(0, 0), // 0x3C: j .
+                csrr(29, 0xB00), // 0x40: csrr t4, mcycle
+                csrw(0x304, 0), // 0x44: csrw mie, zero
+                auipc(30, 0), // 0x48: auipc t5, 0
+                sd(29, 30, 0xB8), // 0x4C: sd t4, 0xB8(t5) ; 0x100
+                jal(0, 0)); // 0x50: j .
+
+            board.setRunning(true);
+            board.step(SUPERVISOR_TIMER_DEADLINE / 2); // Let the second hart set up its timer.
+            board.step(100_000);
+
+            final long cycle = board.getMemoryMap().load(PROGRAM_START + 0x100, Sizes.SIZE_64_LOG2);
+            assertNotEquals(0, cycle, "interrupt not taken");
+            assertTrue(cycle >= SUPERVISOR_TIMER_DEADLINE, "interrupt taken early, at cycle " + cycle);
+            assertTrue(cycle < SUPERVISOR_TIMER_DEADLINE + 10, "interrupt taken late, at cycle " + cycle);
+        }
+    }
+
+    @Test
+    public void testMemoryLargerThan2GiB() throws Exception {
+        final long memorySize = 2L * Memory.MAX_SEGMENT_SIZE + 0x10000;
+        try (final R5Board board = new R5Board()) {
+            // Backed by sparse files, so only the pages we touch take up space.
+            final List<PhysicalMemory> segments = Memory.createSegmented(memorySize, this::createMappedSegment);
+            long address = PROGRAM_START;
+            for (final PhysicalMemory segment : segments) {
+                assertTrue(board.addDevice(address, segment));
+                address += segment.getLength();
+            }
+            assertEquals(memorySize, MemoryMaps.getContinuousMemorySizeLong(board.getMemoryMap(), PROGRAM_START));
+            board.initialize();
+
+            store(board.getMemoryMap(), PROGRAM_START,
+                auipc(5, 0x40000), // 0x00: auipc t0, 0x40000 ; start of second segment
+                lui(6, 0x12345), // 0x04: lui t1, 0x12345
+                addi(6, 6, 0x678), // 0x08: addi t1, t1, 0x678
+                slli(7, 6, 32), // 0x0C: slli t2, t1, 32
+                r(0, 6, 7, 0b110, 7, OP), // 0x10: or t2, t2, t1
+                sd(7, 5, -4), // 0x14: sd t2, -4(t0) ; spans segment boundary
+                ld(28, 5, -4), // 0x18: ld t3, -4(t0)
+                lui(29, 1), // 0x1C: lui t4, 1
+                slli(29, 29, 20), // 0x20: slli t4, t4, 20 ; start of third segment, above 4 GiB
+                sd(6, 29, 0), // 0x24: sd t1, 0(t4)
+                ld(30, 29, 0), // 0x28: ld t5, 0(t4)
+                jal(0, 0)); // 0x2C: j .
+
+            board.setRunning(true);
+            board.step(1000);
+
+            final long[] x = board.getCpu().getDebugInterface().getGeneralRegisters();
+            assertEquals(PROGRAM_START + 0x2C, board.getCpu().getDebugInterface().getProgramCounter());
+            assertEquals(0x1234567812345678L, x[28]);
+            assertEquals(0x12345678L, x[30]);
+            assertEquals(0x12345678, segments.get(0).load(Memory.MAX_SEGMENT_SIZE - 4, Sizes.SIZE_32_LOG2));
+            assertEquals(0x12345678, segments.get(1).load(0, Sizes.SIZE_32_LOG2));
+            assertEquals(0x12345678, segments.get(2).load(0, Sizes.SIZE_32_LOG2));
+        }
+    }
+
+    @Test
+    public void testConcurrentAtomicAddIsExact() throws Exception {
+        try (final R5Board board = new R5Board(2)) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            // Both harts add one to the same word, many times.
+            store(board.getMemoryMap(), PROGRAM_START,
+                auipc(5, 1), // 0x00: auipc t0, 1 ; counter at 0x1000
+                lui(6, ATOMIC_ADD_ITERATIONS >>> 12), // 0x04: lui t1, iterations
+                addi(7, 0, 1), // 0x08: li t2, 1
+                amow(0b00000, 0, 7, 5), // 0x0C: amoadd.w zero, t2, (t0)
+                addi(6, 6, -1), // 0x10: addi t1, t1, -1
+                b(-8, 0, 6, 0b001), // 0x14: bnez t1, 0x0C
+                jal(0, 0)); // 0x18: j .
+
+            board.setRunning(true);
+            for (int i = 0; i < 20; i++) {
+                board.step(ATOMIC_ADD_ITERATIONS);
+            }
+
+            assertEquals(2 * ATOMIC_ADD_ITERATIONS, board.getMemoryMap().load(PROGRAM_START + 0x1000, Sizes.SIZE_32_LOG2));
+        }
+    }
+
+    @Test
+    public void testStoreFromOtherHartFailsStoreConditional() throws Exception {
+        try (final R5Board board = new R5Board(2)) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            // The first hart takes a reservation, then waits for the second hart to store to the reserved word.
+            store(board.getMemoryMap(), PROGRAM_START,
+                auipc(5, 1), // 0x00: auipc t0, 1 ; reserved word at 0x1000
+                addi(28, 0, 1), // 0x04: li t3, 1
+                b(0x24, 0, 10, 0b001), // 0x08: bnez a0, 0x2C
+                amow(0b00010, 6, 0, 5), // 0x0C: lr.w t1, (t0)
+                sw(28, 5, 8), // 0x10: sw t3, 8(t0) ; reservation taken
+                lw(29, 5, 16), // 0x14: lw t4, 16(t0)
+                b(-4, 0, 29, 0b000), // 0x18: beqz t4, 0x14
+                addi(7, 0, 7), // 0x1C: li t2, 7
+                amow(0b00011, 30, 7, 5), // 0x20: sc.w t5, t2, (t0)
+                sw(30, 5, 24), // 0x24: sw t5, 24(t0)
+                jal(0, 0), // 0x28: j .
+                lw(29, 5, 8), // 0x2C: lw t4, 8(t0)
+                b(-4, 0, 29, 0b000), // 0x30: beqz t4, 0x2C
+                addi(7, 0, 5), // 0x34: li t2, 5
+                sw(7, 5, 0), // 0x38: sw t2, 0(t0)
+                sw(28, 5, 16), // 0x3C: sw t3, 16(t0) ; store done
+                jal(0, 0)); // 0x40: j .
+            board.getMemoryMap().store(PROGRAM_START + 0x1018, -1, Sizes.SIZE_32_LOG2);
+
+            board.setRunning(true);
+            for (int i = 0; i < 10; i++) {
+                board.step(10_000);
+            }
+
+            assertEquals(1, board.getMemoryMap().load(PROGRAM_START + 0x1018, Sizes.SIZE_32_LOG2), "sc.w succeeded");
+            assertEquals(5, board.getMemoryMap().load(PROGRAM_START + 0x1000, Sizes.SIZE_32_LOG2));
+        }
+    }
+
+    @Test
+    public void testSoftwareInterruptOnlyRaisedOnTargetHart() throws Exception {
+        try (final R5Board board = new R5Board(2)) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            // The first hart raises the software interrupt of the second one. Both harts keep storing their mip.
+            store(board.getMemoryMap(), PROGRAM_START,
+                auipc(5, 1), // 0x00: auipc t0, 1 ; mip of hart 0 at 0x1000, of hart 1 at 0x1008
+                slli(29, 10, 3), // 0x04: slli t4, a0, 3
+                r(0, 29, 5, 0b000, 5, OP), // 0x08: add t0, t0, t4
+                b(0x10, 0, 10, 0b001), // 0x0C: bnez a0, 0x1C
+                lui(6, 0x2000), // 0x10: lui t1, 0x2000 ; CLINT
+                addi(7, 0, 1), // 0x14: li t2, 1
+                sw(7, 6, 4), // 0x18: sw t2, 4(t1) ; msip of hart 1
+                csrr(28, 0x344), // 0x1C: csrr t3, mip
+                sd(28, 5, 0), // 0x20: sd t3, 0(t0)
+                jal(0, -8)); // 0x24: j 0x1C
+            board.getMemoryMap().store(PROGRAM_START + 0x1000, -1, Sizes.SIZE_64_LOG2);
+            board.getMemoryMap().store(PROGRAM_START + 0x1008, -1, Sizes.SIZE_64_LOG2);
+
+            board.setRunning(true);
+            board.step(10_000);
+
+            final long mip0 = board.getMemoryMap().load(PROGRAM_START + 0x1000, Sizes.SIZE_64_LOG2);
+            final long mip1 = board.getMemoryMap().load(PROGRAM_START + 0x1008, Sizes.SIZE_64_LOG2);
+            assertNotEquals(-1, mip0, "first hart did not run");
+            assertEquals(0, mip0 & R5.MSIP_MASK);
+            assertEquals(R5.MSIP_MASK, mip1 & R5.MSIP_MASK);
+            assertEquals(0, board.getCpu().getRaisedInterrupts() & R5.MSIP_MASK);
+        }
+    }
+
+    @Test
+    public void testIdleWhileWaitingForInterrupt() throws Exception {
+        try (final R5Board board = new R5Board()) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            store(board.getMemoryMap(), PROGRAM_START,
+                WFI, // 0x00: wfi
+                jal(0, -4)); // 0x04: j 0x00
+
+            board.setRunning(true);
+            board.step(1000);
+
+            // No interrupts enabled and no time comparators set, so nothing will ever wake us.
+            assertTrue(board.isIdle());
+            assertEquals(Long.MAX_VALUE, board.getCyclesUntilWakeup());
+        }
+    }
+
+    @Test
+    public void testCyclesUntilWakeupMatchesMachineTimeComparator() throws Exception {
+        try (final R5Board board = new R5Board()) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            store(board.getMemoryMap(), PROGRAM_START,
+                lui(5, 0x2004), // 0x00: lui t0, 0x2004 ; mtimecmp of hart 0
+                addi(6, 0, WAKEUP_DEADLINE), // 0x04: li t1, deadline
+                sd(6, 5, 0), // 0x08: sd t1, 0(t0)
+                addi(7, 0, 128), // 0x0C: li t2, MTIE
+                csrw(0x304, 7), // 0x10: csrw mie, t2
+                WFI, // 0x14: wfi
+                jal(0, -4)); // 0x18: j 0x14
+
+            assertWakesUpAtDeadline(board);
+        }
+    }
+
+    @Test
+    public void testCyclesUntilWakeupMatchesSupervisorTimeComparator() throws Exception {
+        try (final R5Board board = new R5Board()) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            store(board.getMemoryMap(), PROGRAM_START,
+                addi(5, 0, -1), // 0x00: li t0, -1
+                slli(5, 5, 63), // 0x04: slli t0, t0, 63
+                csrs(0x30A, 5), // 0x08: csrs menvcfg, t0 ; STCE
+                addi(6, 0, WAKEUP_DEADLINE), // 0x0C: li t1, deadline
+                csrw(0x14D, 6), // 0x10: csrw stimecmp, t1
+                addi(7, 0, 32), // 0x14: li t2, STIE
+                csrw(0x304, 7), // 0x18: csrw mie, t2
+                WFI, // 0x1C: wfi
+                jal(0, -4)); // 0x20: j 0x1C
+
+            assertWakesUpAtDeadline(board);
+        }
+    }
+
+    @Test
+    public void testPendingInterruptClearsIdle() throws Exception {
+        try (final R5Board board = new R5Board(2)) {
+            board.addDevice(PROGRAM_START, Memory.create(1024 * 1024));
+            board.initialize();
+
+            // Both harts wait for a software interrupt.
+            store(board.getMemoryMap(), PROGRAM_START,
+                addi(5, 0, 8), // 0x00: li t0, MSIE
+                csrw(0x304, 5), // 0x04: csrw mie, t0
+                WFI, // 0x08: wfi
+                jal(0, -4)); // 0x0C: j 0x08
+
+            board.setRunning(true);
+            board.step(1000);
+            assertTrue(board.isIdle());
+
+            board.getMemoryMap().store(CLINT_MSIP_ADDRESS + 4, 1, Sizes.SIZE_32_LOG2); // msip of hart 1
+            assertFalse(board.isIdle());
+
+            board.getMemoryMap().store(CLINT_MSIP_ADDRESS + 4, 0, Sizes.SIZE_32_LOG2);
+            board.step(1000);
+            assertTrue(board.isIdle());
+        }
+    }
+
+    private static void assertWakesUpAtDeadline(final R5Board board) {
+        board.setRunning(true);
+        board.step(WAKEUP_DEADLINE / 4);
+
+        assertTrue(board.isIdle());
+        assertEquals(WAKEUP_DEADLINE - board.getCpu().getTime(), board.getCyclesUntilWakeup());
+
+        board.step(WAKEUP_DEADLINE);
+        assertFalse(board.isIdle(), "pending timer interrupt did not wake hart");
+    }
+
+    private PhysicalMemory createMappedSegment(final int size) {
+        try (final FileChannel channel = FileChannel.open(Files.createTempFile(directory, "segment", null),
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new ByteBufferMemory(size, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5CacheBlockOperationTests {
+    private static final long BLOCK_ADDRESS = MEMORY_START + 0x1040;
+    private static final long FILL_START = MEMORY_START + 0x1000;
+    private static final long FILL_END = MEMORY_START + 0x1100;
+    private static final long PAGE_TABLE_ADDRESS = MEMORY_START + 0x2000;
+
+    private static final long MPP_U = 0, MPP_S = 1L << 11, MPP_M = 3L << 11;
+    private static final long BARE = 0; // No paging, otherwise the flags of the gigapage holding all of RAM.
+
+    // Leaf PTE mapping the gigapage at MEMORY_START to itself.
+    private static final long PTE_V = 1, PTE_R = 1 << 1, PTE_W = 1 << 2, PTE_X = 1 << 3, PTE_A = 1 << 6, PTE_D = 1 << 7;
+    private static final long PTE_GIGAPAGE = (MEMORY_START >>> 12) << 10;
+
+    @Test
+    public void testZeroClearsOneAlignedBlock() throws Exception {
+        // Any address inside the block clears the whole block.
+        final R5TestMachine machine = run(MPP_M, R5.ENVCFG_CBZE_MASK, 0, BARE, BLOCK_ADDRESS + 0x13);
+        assertCompleted(machine);
+
+        for (long address = FILL_START; address < FILL_END; address += 8) {
+            final boolean inBlock = address >= BLOCK_ADDRESS && address < BLOCK_ADDRESS + R5.CACHE_BLOCK_SIZE;
+            assertEquals(inBlock ? 0 : -1, machine.memoryMap.load(address, Sizes.SIZE_64_LOG2), String.format("%x", address));
+        }
+    }
+
+    @Test
+    public void testZeroIsIllegalWhenDisabled() throws Exception {
+        // menvcfg controls S- and U-mode, senvcfg additionally controls U-mode.
+        assertIllegal(run(MPP_S, 0, R5.ENVCFG_CBZE_MASK, BARE, BLOCK_ADDRESS));
+        assertIllegal(run(MPP_U, 0, R5.ENVCFG_CBZE_MASK, BARE, BLOCK_ADDRESS));
+        assertIllegal(run(MPP_U, R5.ENVCFG_CBZE_MASK, 0, BARE, BLOCK_ADDRESS));
+
+        assertCompleted(run(MPP_M, 0, 0, BARE, BLOCK_ADDRESS));
+        assertCompleted(run(MPP_S, R5.ENVCFG_CBZE_MASK, 0, BARE, BLOCK_ADDRESS));
+        assertCompleted(run(MPP_U, R5.ENVCFG_CBZE_MASK, R5.ENVCFG_CBZE_MASK, BARE, BLOCK_ADDRESS));
+    }
+
+    @Test
+    public void testZeroOnReadOnlyPageRaisesStorePageFault() throws Exception {
+        final R5TestMachine readOnly = run(MPP_S, R5.ENVCFG_CBZE_MASK, 0, PTE_R | PTE_X | PTE_A, BLOCK_ADDRESS);
+        assertEquals(R5.EXCEPTION_STORE_PAGE_FAULT, readOnly.registers()[8]);
+        assertEquals(0, readOnly.registers()[18], "instruction completed");
+        assertEquals(-1, readOnly.memoryMap.load(BLOCK_ADDRESS, Sizes.SIZE_64_LOG2));
+
+        final R5TestMachine writable = run(MPP_S, R5.ENVCFG_CBZE_MASK, 0, PTE_R | PTE_W | PTE_X | PTE_A | PTE_D, BLOCK_ADDRESS);
+        assertCompleted(writable);
+        assertEquals(0, writable.memoryMap.load(BLOCK_ADDRESS, Sizes.SIZE_64_LOG2));
+    }
+
+    private static void assertCompleted(final R5TestMachine machine) {
+        assertEquals(0, machine.registers()[8], "unexpected trap");
+        assertEquals(1, machine.registers()[18], "instruction did not complete");
+    }
+
+    private static void assertIllegal(final R5TestMachine machine) throws Exception {
+        assertEquals(R5.EXCEPTION_ILLEGAL_INSTRUCTION, machine.registers()[8]);
+        assertEquals(0, machine.registers()[18], "instruction completed");
+        assertEquals(-1, machine.memoryMap.load(BLOCK_ADDRESS, Sizes.SIZE_64_LOG2));
+    }
+
+    private static R5TestMachine run(final long mpp, final long menvcfg, final long senvcfg, final long pteFlags, final long address) throws Exception {
+        final R5TestMachine machine = new R5TestMachine(0x4000);
+
+        // Trap handler, stores mcause in s0.
+        machine.store(MEMORY_START,
+            csrr(8, 0x342), // 0x00: csrr s0, mcause
+            jal(0, 0)); // 0x04: j .
+
+        // Configuration loaded by the program below.
+        final long table = MEMORY_START + 0x80;
+        machine.memoryMap.store(table, menvcfg, Sizes.SIZE_64_LOG2);
+        machine.memoryMap.store(table + 8, senvcfg, Sizes.SIZE_64_LOG2);
+        machine.memoryMap.store(table + 24, mpp, Sizes.SIZE_64_LOG2);
+        if (pteFlags != BARE) {
+            final long vpn2 = (MEMORY_START >>> 30) & 0x1FF;
+            machine.memoryMap.store(PAGE_TABLE_ADDRESS + vpn2 * 8, PTE_GIGAPAGE | PTE_V | pteFlags, Sizes.SIZE_64_LOG2);
+            machine.memoryMap.store(table + 16, 8L << 60 | PAGE_TABLE_ADDRESS >>> 12, Sizes.SIZE_64_LOG2); // Sv39
+        }
+
+        // Sets up the privilege level and its configuration, then runs cbo.zero on a0 in that level.
+        machine.store(MEMORY_START + 0x100,
+            auipc(5, 0), // 0x100: auipc t0, 0
+            addi(6, 5, -0x100), // 0x104: addi t1, t0, -0x100
+            csrw(0x305, 6), // 0x108: csrw mtvec, t1
+            ld(7, 6, 0x80), // 0x10C: ld t2, 0x80(t1)
+            csrw(0x30A, 7), // 0x110: csrw menvcfg, t2
+            ld(7, 6, 0x88), // 0x114: ld t2, 0x88(t1)
+            csrw(0x10A, 7), // 0x118: csrw senvcfg, t2
+            ld(7, 6, 0x90), // 0x11C: ld t2, 0x90(t1)
+            csrw(0x180, 7), // 0x120: csrw satp, t2
+            ld(7, 6, 0x98), // 0x124: ld t2, 0x98(t1)
+            csrw(0x300, 7), // 0x128: csrw mstatus, t2
+            addi(7, 5, 0x40), // 0x12C: addi t2, t0, 0x40
+            csrw(0x341, 7), // 0x130: csrw mepc, t2
+            MRET, // 0x134: mret
+            jal(0, 0), // 0x138: j .
+            jal(0, 0), // 0x13C: j .
+            i(0x004, 10, 0b010, 0, MISC_MEM), // 0x140: cbo.zero (a0)
+            addi(18, 0, 1), // 0x144: li s2, 1
+            jal(0, 0)); // 0x148: j .
+
+        for (long fill = FILL_START; fill < FILL_END; fill += 8) {
+            machine.memoryMap.store(fill, -1, Sizes.SIZE_64_LOG2);
+        }
+
+        machine.reset(MEMORY_START + 0x100);
+        machine.registers()[10] = address;
+        machine.cpu.step(1000);
+        return machine;
+    }
+}
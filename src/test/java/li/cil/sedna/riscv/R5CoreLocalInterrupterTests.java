@@ -0,0 +1,67 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.rtc.RealTimeCounter;
+import li.cil.sedna.riscv.device.R5CoreLocalInterrupter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5CoreLocalInterrupterTests {
+    private static final int CLINT_TIMECMP_BASE = 0x4000;
+    private static final int RTC_FREQUENCY = 10_000_000;
+
+    private R5CPU cpu;
+    private TestTime rtc;
+    private R5CoreLocalInterrupter clint;
+
+    @BeforeEach
+    public void setupEach() {
+        cpu = new R5TestMachine(4096).cpu;
+        cpu.setFrequency(5 * RTC_FREQUENCY);
+        rtc = new TestTime();
+        rtc.time = 1000;
+        clint = new R5CoreLocalInterrupter(rtc, cpu);
+        clint.putHart(0, cpu);
+    }
+
+    @Test
+    public void testNoDeadlineNeverWakesUp() {
+        assertEquals(Long.MAX_VALUE, clint.getCyclesUntilWakeup());
+    }
+
+    @Test
+    public void testCyclesUntilWakeupUsesCpuFrequency() {
+        clint.store(CLINT_TIMECMP_BASE, 1100, Sizes.SIZE_64_LOG2);
+        assertEquals(500, clint.getCyclesUntilWakeup());
+
+        cpu.setFrequency(RTC_FREQUENCY);
+        assertEquals(100, clint.getCyclesUntilWakeup());
+    }
+
+    @Test
+    public void testPassedDeadlineWakesUpImmediately() {
+        clint.store(CLINT_TIMECMP_BASE, 1100, Sizes.SIZE_64_LOG2);
+        rtc.time = 1200;
+        assertEquals(0, clint.getCyclesUntilWakeup());
+
+        clint.step(1);
+        assertTrue((cpu.getRaisedInterrupts() & R5.MTIP_MASK) != 0);
+        assertEquals(Long.MAX_VALUE, clint.getCyclesUntilWakeup());
+    }
+
+    private static final class TestTime implements RealTimeCounter {
+        public long time;
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public int getFrequency() {
+            return RTC_FREQUENCY;
+        }
+    }
+}
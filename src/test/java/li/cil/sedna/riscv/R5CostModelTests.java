@@ -0,0 +1,83 @@
+package li.cil.sedna.riscv;
+
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5CostModelTests {
+    @Test
+    public void testClassify() {
+        assertEquals(R5CostModel.InstructionClass.ALU, R5CostModel.classify("ADDI"));
+        assertEquals(R5CostModel.InstructionClass.DIVIDE, R5CostModel.classify("DIVUW"));
+        assertEquals(R5CostModel.InstructionClass.LOAD, R5CostModel.classify("FLD"));
+        assertEquals(R5CostModel.InstructionClass.ATOMIC, R5CostModel.classify("AMOADD.W"));
+        assertEquals(R5CostModel.InstructionClass.ATOMIC, R5CostModel.classify("SC.D"));
+        assertEquals(R5CostModel.InstructionClass.FLOAT, R5CostModel.classify("FMADD.D"));
+        assertEquals(R5CostModel.InstructionClass.FLOAT_DIVIDE, R5CostModel.classify("FSQRT.S"));
+        assertEquals(R5CostModel.InstructionClass.SYSTEM, R5CostModel.classify("CSRRW"));
+    }
+
+    @Test
+    public void testBuilder() {
+        final R5CostModel model = R5CostModel.builder()
+            .cost(R5CostModel.InstructionClass.DIVIDE, 20)
+            .build();
+
+        assertEquals(20, model.getCost(R5CostModel.InstructionClass.DIVIDE));
+        assertEquals(1, model.getCost(R5CostModel.InstructionClass.ALU));
+        assertNotEquals(R5CostModel.DEFAULT, model);
+        assertEquals(R5CostModel.DEFAULT, R5CostModel.builder().build());
+        assertThrows(IllegalArgumentException.class, () -> R5CostModel.builder().cost(R5CostModel.InstructionClass.ALU, 0));
+    }
+
+    @Test
+    public void testCyclesFollowCostModel() throws Exception {
+        final R5CostModel model = R5CostModel.builder()
+            .cost(R5CostModel.InstructionClass.ALU, 2)
+            .cost(R5CostModel.InstructionClass.MULTIPLY, 5)
+            .cost(R5CostModel.InstructionClass.DIVIDE, 20)
+            .cost(R5CostModel.InstructionClass.BRANCH, 4)
+            .cost(R5CostModel.InstructionClass.SYSTEM, 3)
+            .build();
+
+        // Run often enough for the loop to get compiled or predecoded when those are enabled.
+        final int iterations = 100;
+        final int[] program = {
+            addi(5, 0, iterations), // 0x00: li t0, iterations
+            csrr(8, 0xB00), // 0x04: csrr s0, mcycle
+            csrr(9, 0xB02), // 0x08: csrr s1, minstret
+            addi(10, 0, 7), // 0x0C: li a0, 7
+            addi(11, 0, 3), // 0x10: li a1, 3
+            r(1, 11, 10, 0b100, 12, OP), // 0x14: div a2, a0, a1
+            r(1, 11, 10, 0b000, 13, OP), // 0x18: mul a3, a0, a1
+            addi(5, 5, -1), // 0x1C: addi t0, t0, -1
+            b(-20, 0, 5, 0b001), // 0x20: bnez t0, 0x0C
+            csrr(18, 0xB00), // 0x24: csrr s2, mcycle
+            csrr(19, 0xB02), // 0x28: csrr s3, minstret
+            jal(0, 0), // 0x2C: j .
+        };
+
+        // Both reads of each counter are the same kind of instruction, so their own cost cancels out.
+        final long expectedCycles = 2 * 3 + iterations * (2 + 2 + 20 + 5 + 2 + 4);
+        final long expectedInstructions = 2 + iterations * 6;
+
+        for (final boolean blocks : new boolean[]{false, true}) {
+            for (final boolean predecode : new boolean[]{false, true}) {
+                final R5TestMachine machine = new R5TestMachine(4096, model);
+                machine.store(MEMORY_START, program);
+                machine.cpu.setBlockCompilationEnabled(blocks);
+                machine.cpu.setPredecodingEnabled(predecode);
+                machine.reset(MEMORY_START);
+                machine.cpu.step(10_000);
+
+                final long[] x = machine.registers();
+                final String message = String.format("blocks=%b, predecode=%b", blocks, predecode);
+                assertEquals(MEMORY_START + 0x2C, machine.programCounter(), message);
+                assertEquals(expectedCycles, x[18] - x[8], "mcycle, " + message);
+                assertEquals(expectedInstructions, x[19] - x[9], "minstret, " + message);
+            }
+        }
+    }
+}
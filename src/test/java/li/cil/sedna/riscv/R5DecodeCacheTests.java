@@ -0,0 +1,175 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.Consumer;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5DecodeCacheTests {
+    private static final int PAGE_SIZE = 1 << R5.PAGE_ADDRESS_SHIFT;
+    private static final long PROGRAM_ADDRESS = MEMORY_START + PAGE_SIZE;
+    private static final long DATA_ADDRESS = MEMORY_START + 2 * PAGE_SIZE;
+    private static final int MEMORY_SIZE = 4 * PAGE_SIZE;
+
+    // Loops run well past the point where their page gets predecoded before something interesting happens.
+    private static final int LIMIT = 100;
+    private static final int END = 120;
+
+    private static final int FENCE_I = 0x0000100F;
+
+    // Trap handler at the start of memory, stores mcause in s0, mepc in s1 and mtval in s3. Programs
+    // expect its address in t6 and start by installing it.
+    private static final int[] TRAP_HANDLER = {
+        csrr(8, 0x342), // csrr s0, mcause
+        csrr(9, 0x341), // csrr s1, mepc
+        csrr(19, 0x343), // csrr s3, mtval
+        jal(0, 0), // j .
+    };
+
+    @Test
+    public void testStoreIntoDecodedPageInvalidatesIt() throws Exception {
+        // Stores into the page of the program on every iteration, starting before the page gets decoded.
+        // Once the page is hot, patches an instruction following the store in the same trace, which must
+        // be run right away.
+        final int[] program = {
+            csrw(0x305, 31), // 0x00: csrw mtvec, t6
+            addi(18, 18, 1), // 0x04: addi s2, s2, 1
+            addi(5, 18, -LIMIT), // 0x08: addi t0, s2, -LIMIT
+            i(1, 5, 0b011, 5, OP_IMM), // 0x0C: seqz t0, t0
+            r(0x20, 5, 0, 0b000, 5, OP), // 0x10: neg t0, t0
+            r(0, 14, 5, 0b111, 5, OP), // 0x14: and t0, t0, a4
+            r(0, 5, 15, 0b000, 13, OP), // 0x18: add a3, a5, t0 ; program when s2 == LIMIT, 0x100(program) otherwise
+            sw(16, 13, 0), // 0x1C: sw a6, 0(a3)
+            addi(11, 11, 1), // 0x20: addi a1, a1, 1
+            addi(10, 10, 1), // 0x24: addi a0, a0, 1 ; patched
+            b(-0x24, 20, 18, 0b100), // 0x28: blt s2, s4, 0x04
+            jal(0, 0), // 0x2C: j .
+        };
+
+        final R5TestMachine machine = assertSameState(program, x -> {
+            x[15] = PROGRAM_ADDRESS + 0x100;
+            x[14] = 0x24 - 0x100;
+            x[16] = addi(10, 10, 100);
+        });
+        final long[] x = machine.registers();
+        assertEquals(0, x[8], "unexpected trap");
+        assertEquals(LIMIT - 1 + (END - LIMIT + 1) * 100, x[10]);
+        assertEquals(END, x[11]);
+        assertEquals(PROGRAM_ADDRESS + 0x2C, machine.programCounter());
+    }
+
+    @Test
+    public void testFenceInstructionDropsDecodedInstructions() throws Exception {
+        // Runs a loop until the flag in the data page is set, then runs FENCE.I and the loop again. The
+        // loop is patched while the program waits, without going through the CPU, so only FENCE.I
+        // tells it about the change.
+        final int[] program = {
+            csrw(0x305, 31), // 0x00: csrw mtvec, t6
+            addi(10, 10, 1), // 0x04: addi a0, a0, 1 ; patched
+            addi(18, 18, 1), // 0x08: addi s2, s2, 1
+            b(-8, 20, 18, 0b100), // 0x0C: blt s2, s4, 0x04
+            ld(5, 15, 0), // 0x10: ld t0, 0(a5)
+            b(-4, 0, 5, 0b000), // 0x14: beqz t0, 0x10
+            FENCE_I, // 0x18: fence.i
+            addi(18, 0, 0), // 0x1C: li s2, 0
+            addi(15, 15, 8), // 0x20: addi a5, a5, 8 ; wait for the next flag afterwards
+            jal(0, -0x20), // 0x24: j 0x04
+        };
+
+        final R5TestMachine[] machines = new R5TestMachine[2];
+        for (int i = 0; i < machines.length; i++) {
+            final boolean predecode = i == 0;
+            final R5TestMachine machine = machines[i] = create(program, x -> {
+            }, predecode);
+            machine.cpu.step(10_000);
+            assertEquals(END, machine.registers()[10], "predecode=" + predecode);
+
+            machine.store(PROGRAM_ADDRESS + 0x04, addi(10, 10, 100));
+            machine.memoryMap.store(DATA_ADDRESS, 1, Sizes.SIZE_64_LOG2);
+            machine.cpu.step(10_000);
+            assertEquals(END + END * 100, machine.registers()[10], "predecode=" + predecode);
+        }
+
+        assertSameState(machines[1], machines[0]);
+    }
+
+    @Test
+    public void testIllegalInstructionInsideTrace() throws Exception {
+        final int instruction = csrw(0xC00, 0); // csrw cycle, zero
+        final long[] x = assertTrapInsideTrace(instruction, R5.EXCEPTION_ILLEGAL_INSTRUCTION);
+        assertEquals(instruction, x[19]);
+    }
+
+    @Test
+    public void testUndecodableInstructionInsideTrace() throws Exception {
+        assertTrapInsideTrace(0, R5.EXCEPTION_ILLEGAL_INSTRUCTION);
+    }
+
+    @Test
+    public void testLoadFaultInsideTrace() throws Exception {
+        final long[] x = assertTrapInsideTrace(ld(12, 0, 8), R5.EXCEPTION_FAULT_LOAD); // ld a2, 8(zero)
+        assertEquals(8, x[19]);
+    }
+
+    private static long[] assertTrapInsideTrace(final int trap, final int cause) throws Exception {
+        // Once the page is hot, the forward branch skipping the instruction is not taken. The exception
+        // must be raised with the state the interpreter would have had at that instruction.
+        final int[] program = {
+            csrw(0x305, 31), // 0x00: csrw mtvec, t6
+            addi(18, 18, 1), // 0x04: addi s2, s2, 1
+            addi(11, 11, 3), // 0x08: addi a1, a1, 3
+            b(8, 14, 18, 0b001), // 0x0C: bne s2, a4, 0x14
+            trap, // 0x10: trap
+            addi(10, 10, 1), // 0x14: addi a0, a0, 1
+            b(-0x14, 20, 18, 0b100), // 0x18: blt s2, s4, 0x04
+            jal(0, 0), // 0x1C: j .
+        };
+
+        final R5TestMachine machine = assertSameState(program, x -> x[14] = LIMIT);
+        final long[] x = machine.registers();
+        assertEquals(cause, x[8]);
+        assertEquals(PROGRAM_ADDRESS + 0x10, x[9]);
+        assertEquals(LIMIT, x[18]);
+        assertEquals(LIMIT * 3, x[11]);
+        assertEquals(LIMIT - 1, x[10]);
+        return x;
+    }
+
+    private static R5TestMachine assertSameState(final int[] program, final Consumer<long[]> initializer) throws Exception {
+        final R5TestMachine predecoded = create(program, initializer, true);
+        predecoded.cpu.step(100_000);
+        final R5TestMachine interpreted = create(program, initializer, false);
+        interpreted.cpu.step(100_000);
+        assertSameState(interpreted, predecoded);
+        return predecoded;
+    }
+
+    private static void assertSameState(final R5TestMachine expected, final R5TestMachine actual) throws Exception {
+        assertArrayEquals(expected.registers(), actual.registers());
+        assertEquals(expected.programCounter(), actual.programCounter());
+        assertEquals(expected.cpu.getTime(), actual.cpu.getTime());
+        assertEquals(expected.cpu.getInstructionsRetired(), actual.cpu.getInstructionsRetired());
+        assertArrayEquals(expected.cpu.getDebugInterface().loadDebug(PROGRAM_ADDRESS, 2 * PAGE_SIZE),
+            actual.cpu.getDebugInterface().loadDebug(PROGRAM_ADDRESS, 2 * PAGE_SIZE));
+    }
+
+    private static R5TestMachine create(final int[] program, final Consumer<long[]> initializer, final boolean predecode) throws Exception {
+        final R5TestMachine machine = new R5TestMachine(MEMORY_SIZE);
+        machine.store(MEMORY_START, TRAP_HANDLER);
+        machine.store(PROGRAM_ADDRESS, program);
+
+        machine.cpu.setPredecodingEnabled(predecode);
+        machine.reset(PROGRAM_ADDRESS);
+
+        final long[] x = machine.registers();
+        x[15] = DATA_ADDRESS; // a5
+        x[20] = END; // s4
+        x[31] = MEMORY_START; // t6
+        initializer.accept(x);
+        return machine;
+    }
+}
@@ -0,0 +1,100 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.gdbstub.CPUDebugInterface;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5DecoderTests {
+    private static final int MEMORY_SIZE = 0x2000;
+    private static final long INSTRUCTION_ADDRESS = MEMORY_START + 0x200;
+    private static final long DATA_ADDRESS = MEMORY_START + 0x1000;
+
+    @Test
+    public void testCompressedInstructionsDecodeLikeDecoderTree64() throws Exception {
+        assertCompressedInstructionsDecodeLikeDecoderTree(R5.XLEN_64);
+    }
+
+    @Test
+    public void testCompressedInstructionsDecodeLikeDecoderTree32() throws Exception {
+        assertCompressedInstructionsDecodeLikeDecoderTree(R5.XLEN_32);
+    }
+
+    private static void assertCompressedInstructionsDecodeLikeDecoderTree(final int xlen) throws Exception {
+        // Compressed instructions are dispatched through lookup tables, compare with a CPU that decodes them
+        // by walking the decoder tree instead. Any mismatch shows up as a different result.
+        final R5CPU expected = createCPU(R5CPUGenerator::createWithoutDispatchTables, xlen);
+        final R5CPU actual = createCPU(R5CPU::create, xlen);
+
+        for (int instruction = 0; instruction <= 0xFFFF; instruction++) {
+            if ((instruction & 0b11) == 0b11) {
+                continue; // Not a compressed instruction.
+            }
+
+            final String message = String.format("%04x", instruction);
+            final long[] expectedRegisters = run(expected, xlen, instruction);
+            final long[] actualRegisters = run(actual, xlen, instruction);
+            assertArrayEquals(expectedRegisters, actualRegisters, message);
+            assertEquals(expected.getDebugInterface().getProgramCounter(), actual.getDebugInterface().getProgramCounter(), message);
+            assertArrayEquals(expected.getDebugInterface().loadDebug(DATA_ADDRESS, MEMORY_SIZE / 2),
+                actual.getDebugInterface().loadDebug(DATA_ADDRESS, MEMORY_SIZE / 2), message);
+        }
+    }
+
+    private static R5CPU createCPU(final CPUFactory factory, final int xlen) throws Exception {
+        final MemoryMap memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_START, Memory.create(MEMORY_SIZE));
+
+        // Trap handler at the start of memory, stores mcause in t6. Setup enables the FPU for compressed
+        // floating point loads and stores, and installs the trap handler.
+        store(memoryMap, MEMORY_START,
+            csrr(31, 0x342), // 0x00: csrr t6, mcause
+            jal(0, 0), // 0x04: j .
+            lui(5, 0x6), // 0x08: lui t0, 0x6 ; FS
+            csrs(0x300, 5), // 0x0C: csrs mstatus, t0
+            auipc(5, 0), // 0x10: auipc t0, 0
+            addi(5, 5, -0x10), // 0x14: addi t0, t0, -0x10
+            csrw(0x305, 5)); // 0x18: csrw mtvec, t0
+
+        final R5CPU cpu = factory.create(memoryMap);
+        cpu.setBlockCompilationEnabled(false);
+        cpu.reset(true, MEMORY_START + 0x08);
+        if (xlen == R5.XLEN_32) {
+            cpu.setXLEN(R5.XLEN_32);
+        }
+        for (int i = 0; i < 5; i++) {
+            cpu.getDebugInterface().step();
+        }
+        return cpu;
+    }
+
+    private static long[] run(final R5CPU cpu, final int xlen, final int instruction) throws Exception {
+        final CPUDebugInterface debug = cpu.getDebugInterface();
+        debug.storeDebug(INSTRUCTION_ADDRESS, new byte[]{(byte) instruction, (byte) (instruction >>> 8), 0, 0});
+
+        // Point all registers into the data area, so loads and stores relative to them succeed.
+        final long[] x = debug.getGeneralRegisters();
+        for (int i = 1; i < x.length; i++) {
+            final long value = DATA_ADDRESS + i * 8L;
+            x[i] = xlen == R5.XLEN_32 ? (int) value : value;
+        }
+
+        debug.setProgramCounter(INSTRUCTION_ADDRESS);
+        debug.step();
+        if (debug.getProgramCounter() == MEMORY_START) {
+            debug.step(); // Record the trap cause.
+        }
+
+        return x.clone();
+    }
+
+    @FunctionalInterface
+    private interface CPUFactory {
+        R5CPU create(MemoryMap memoryMap);
+    }
+}
@@ -0,0 +1,130 @@
+package li.cil.sedna.riscv;
+
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.R5Assembler.*;
+import static li.cil.sedna.riscv.R5TestMachine.MEMORY_START;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class R5InstructionFusionTests {
+    private static final int PAGE_SIZE = 1 << R5.PAGE_ADDRESS_SHIFT;
+
+    // Trap handler at the start of memory, stores mcause in s0 and mepc in s1. Programs expect its
+    // address in t6 and start by installing it.
+    private static final int[] TRAP_HANDLER = {
+        csrr(8, 0x342), // csrr s0, mcause
+        csrr(9, 0x341), // csrr s1, mepc
+        jal(0, 0), // j .
+    };
+
+    // Contains every kind of pair we fuse, including taken and not taken branches and jumps.
+    private static final int[] FUSION_PAIRS = {
+        csrw(0x305, 31), // csrw mtvec, t6
+        lui(10, 0x12345), // lui a0, 0x12345
+        addi(10, 10, 0x678), // addi a0, a0, 0x678
+        auipc(11, 0), // auipc a1, 0
+        addi(11, 11, 16), // addi a1, a1, 16
+        slli(12, 10, 40), // slli a2, a0, 40
+        i(40, 12, 0b101, 12, OP_IMM), // srli a2, a2, 40
+        i(0, 10, 0b010, 13, OP_IMM), // slti a3, a0, 0
+        b(8, 0, 13, 0b001), // bnez a3, +8 ; not taken
+        r(0, 10, 0, 0b011, 14, OP), // sltu a4, zero, a0
+        b(8, 0, 14, 0b001), // bnez a4, +8 ; taken
+        addi(15, 0, 99), // li a5, 99 ; skipped
+        auipc(16, 0), // auipc a6, 0
+        ld(17, 16, 4), // ld a7, 4(a6)
+        auipc(5, 0), // auipc t0, 0
+        i(12, 5, 0b000, 1, 0b1100111), // jalr ra, 12(t0)
+        addi(15, 0, 42), // li a5, 42 ; skipped
+        // Count loop iterations until the end of the step, so cycles miscounted for the pairs show up in s2.
+        addi(18, 18, 1), // addi s2, s2, 1
+        jal(0, -4), // j -4
+    };
+
+    @Test
+    public void testFusedPairsMatchUnfusedExecution() throws Exception {
+        assertSameState(MEMORY_START + 0x100, FUSION_PAIRS);
+
+        final long[] x = run(MEMORY_START + 0x100, FUSION_PAIRS, true).registers();
+        assertEquals(0x12345678L, x[10]);
+        assertEquals(MEMORY_START + 0x10C + 16, x[11]);
+        assertEquals(0x345678L, x[12]);
+        assertEquals(0, x[13]);
+        assertEquals(1, x[14]);
+        assertEquals(0, x[15]);
+        assertEquals((long) FUSION_PAIRS[14] << 32 | (FUSION_PAIRS[13] & 0xFFFFFFFFL), x[17]);
+        assertEquals(0, x[8], "unexpected trap");
+    }
+
+    @Test
+    public void testPairsSplitAcrossPageBoundaryMatchUnfusedExecution() throws Exception {
+        // Move the program over the page boundary so every pair is split by it once.
+        for (int offset = 4; offset < FUSION_PAIRS.length * 4; offset += 4) {
+            assertSameState(MEMORY_START + PAGE_SIZE - offset, FUSION_PAIRS);
+        }
+    }
+
+    @Test
+    public void testTrapInSecondInstructionOfPair() throws Exception {
+        final int[] program = {
+            csrw(0x305, 31), // csrw mtvec, t6
+            auipc(5, 0x1000), // auipc t0, 0x1000 ; points past the end of memory
+            ld(6, 5, 0), // ld t1, 0(t0)
+            jal(0, 0), // j .
+        };
+        final long start = MEMORY_START + 0x100;
+        assertSameState(start, program);
+
+        final long[] x = run(start, program, true).registers();
+        assertEquals(R5.EXCEPTION_FAULT_LOAD, x[8]);
+        assertEquals(start + 8, x[9]);
+        assertEquals(start + 4 + 0x1000000L, x[5]);
+    }
+
+    @Test
+    public void testFetchFaultInSecondInstructionOfPairOnNextPage() throws Exception {
+        final int[] program = {
+            csrw(0x305, 31), // csrw mtvec, t6
+            lui(10, 0x12345), // lui a0, 0x12345 ; last instruction in memory
+        };
+        final long start = MEMORY_START + PAGE_SIZE - 8;
+        assertSameState(start, program);
+
+        final long[] x = run(start, program, true).registers();
+        assertEquals(R5.EXCEPTION_FAULT_FETCH, x[8]);
+        assertEquals(MEMORY_START + PAGE_SIZE, x[9]);
+        assertEquals(0x12345000L, x[10]);
+    }
+
+    private static void assertSameState(final long start, final int[] program) throws Exception {
+        final R5TestMachine fused = run(start, program, true);
+        final R5TestMachine unfused = run(start, program, false);
+        final String message = String.format("program at %x", start);
+        assertArrayEquals(unfused.registers(), fused.registers(), message);
+        assertEquals(unfused.programCounter(), fused.programCounter(), message);
+        assertEquals(unfused.cpu.getTime(), fused.cpu.getTime(), message);
+        assertEquals(unfused.cpu.getInstructionsRetired(), fused.cpu.getInstructionsRetired(), message);
+    }
+
+    private static R5TestMachine run(final long start, final int[] program, final boolean fused) throws Exception {
+        // Only map a second page if the program needs it, so running off the end of it faults.
+        final boolean crossesPage = start + program.length * 4L > MEMORY_START + PAGE_SIZE;
+        final R5TestMachine machine = new R5TestMachine(crossesPage ? 2 * PAGE_SIZE : PAGE_SIZE);
+        machine.store(MEMORY_START, TRAP_HANDLER);
+        machine.store(start, program);
+
+        machine.cpu.setBlockCompilationEnabled(false);
+        machine.cpu.setPredecodingEnabled(false);
+        machine.reset(start);
+        if (!fused) {
+            // Pages with breakpoints are never fused. These are never hit.
+            machine.cpu.getDebugInterface().addBreakpoint(MEMORY_START + PAGE_SIZE / 2);
+            machine.cpu.getDebugInterface().addBreakpoint(MEMORY_START + PAGE_SIZE + PAGE_SIZE / 2);
+        }
+
+        machine.registers()[31] = MEMORY_START;
+
+        machine.cpu.step(1000);
+        return machine;
+    }
+}
@@ -0,0 +1,41 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+
+/**
+ * A single CPU with RAM at {@link #MEMORY_START}, for running small programs assembled with {@link R5Assembler}.
+ */
+final class R5TestMachine {
+    static final long MEMORY_START = 0x80000000L;
+
+    final MemoryMap memoryMap = new SimpleMemoryMap();
+    final R5CPU cpu;
+
+    R5TestMachine(final int memorySize) {
+        this(memorySize, R5CostModel.DEFAULT);
+    }
+
+    R5TestMachine(final int memorySize, final R5CostModel costModel) {
+        memoryMap.addDevice(MEMORY_START, Memory.create(memorySize));
+        cpu = R5CPU.create(memoryMap, null, null, costModel);
+    }
+
+    void store(final long address, final int... instructions) throws MemoryAccessException {
+        R5Assembler.store(memoryMap, address, instructions);
+    }
+
+    void reset(final long pc) {
+        cpu.reset(true, pc);
+    }
+
+    long[] registers() {
+        return cpu.getDebugInterface().getGeneralRegisters();
+    }
+
+    long programCounter() {
+        return cpu.getDebugInterface().getProgramCounter();
+    }
+}